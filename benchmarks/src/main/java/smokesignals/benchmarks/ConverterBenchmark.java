@@ -0,0 +1,90 @@
+package smokesignals.benchmarks;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+import smokesignals.utils.fhirconverter.BundleEntryStream;
+import smokesignals.utils.fhirconverter.FhirConverterFactory;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode and encode throughput of the converters {@link FhirConverterFactory} hands to Retrofit, for searchsets of
+ * increasing size. Run with {@code -prof gc} (the default of {@link BenchmarkRunner}) for allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConverterBenchmark {
+
+    private static final MediaType FHIR_JSON = MediaType.parse("application/json+fhir; charset=UTF-8");
+    private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+
+    @Param({"1", "100", "1000"})
+    public int entries;
+
+    private byte[] mJson;
+    private Bundle mBundle;
+    private Converter<ResponseBody, Bundle> mDecoder;
+    private Converter<ResponseBody, BundleEntryStream> mStreamingDecoder;
+    private Converter<Bundle, RequestBody> mEncoder;
+
+    @Setup
+    public void setUp() {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl("http://localhost/")
+                .addConverterFactory(FhirConverterFactory.create(Fixtures.CONTEXT))
+                .build();
+        mDecoder = retrofit.responseBodyConverter(Bundle.class, NO_ANNOTATIONS);
+        mStreamingDecoder = retrofit.responseBodyConverter(BundleEntryStream.class, NO_ANNOTATIONS);
+        mEncoder = retrofit.requestBodyConverter(Bundle.class, NO_ANNOTATIONS, NO_ANNOTATIONS);
+
+        mBundle = Fixtures.searchset(entries);
+        mJson = Fixtures.CONTEXT.newJsonParser().encodeResourceToString(mBundle).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Bundle decode() throws IOException {
+        return mDecoder.convert(ResponseBody.create(FHIR_JSON, mJson));
+    }
+
+    @Benchmark
+    public void decodeStreaming(Blackhole blackhole) throws IOException {
+        try (BundleEntryStream stream = mStreamingDecoder.convert(ResponseBody.create(FHIR_JSON, mJson))) {
+            while (stream.hasNext()) {
+                blackhole.consume(stream.next());
+            }
+        }
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        Buffer buffer = new Buffer();
+        mEncoder.convert(mBundle).writeTo(buffer);
+        long size = buffer.size();
+        buffer.clear();
+        return size;
+    }
+}
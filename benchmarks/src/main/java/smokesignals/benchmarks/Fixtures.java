@@ -0,0 +1,47 @@
+package smokesignals.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.composite.CodeableConceptDt;
+import ca.uhn.fhir.model.dstu2.composite.QuantityDt;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.ObservationStatusEnum;
+import ca.uhn.fhir.model.primitive.DateTimeDt;
+
+import java.util.Date;
+
+/**
+ * Test data shared by the benchmarks.
+ */
+final class Fixtures {
+
+    static final FhirContext CONTEXT = FhirContext.forDstu2();
+
+    private Fixtures() {}
+
+    /**
+     * A searchset of {@code entries} small but realistic Observations.
+     */
+    static Bundle searchset(int entries) {
+        Bundle bundle = new Bundle();
+        bundle.setType(BundleTypeEnum.SEARCH_RESULTS);
+        bundle.setTotal(entries);
+        for (int i = 0; i < entries; i++) {
+            Observation observation = new Observation();
+            observation.setId("Observation/obs-" + i);
+            observation.getMeta().setVersionId("1").setLastUpdated(new Date(1500000000000L + i * 1000L));
+            observation.setStatus(ObservationStatusEnum.FINAL);
+            observation.setCode(new CodeableConceptDt("http://loinc.org", "8867-4").setText("Heart rate"));
+            observation.setSubject(new ResourceReferenceDt("Patient/pat-" + (i % 50)));
+            observation.setEffective(new DateTimeDt(new Date(1500000000000L + i * 60000L)));
+            observation.setValue(new QuantityDt(60 + i % 40).setUnit("beats/minute")
+                    .setSystem("http://unitsofmeasure.org").setCode("/min"));
+            bundle.addEntry()
+                    .setFullUrl("http://localhost/Observation/obs-" + i)
+                    .setResource(observation);
+        }
+        return bundle;
+    }
+}
@@ -0,0 +1,65 @@
+package smokesignals.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import smokesignals.utils.query.FhirMultiQuery;
+import smokesignals.utils.query.FhirQuery;
+import smokesignals.utils.query.Query;
+import smokesignals.utils.query.QueryTemplate;
+import smokesignals.utils.query.decorator.Comparator;
+import smokesignals.utils.query.decorator.Filter;
+import smokesignals.utils.query.encodedparams.Compare;
+import smokesignals.utils.query.encodedparams.Modifier;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the same search parameters with {@link FhirQuery.FhirQueryBuilder}, {@link FhirMultiQuery} and a
+ * precompiled {@link QueryTemplate}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    private final QueryTemplate mTemplate = QueryTemplate.compile(
+            "Observation?_id=:id&_lastUpdated=ge:from&_text:exact=:text&_count=:count&_sort=:sort");
+
+    @Benchmark
+    public FhirQuery fhirQueryBuilder() {
+        return new FhirQuery.FhirQueryBuilder()
+                .where(Query.id("obs-1"))
+                .where(Comparator.add(Query.lastUpdated("2017-01-01"), Compare.GREATER_OR_EQUAL))
+                .where(Filter.add(Query.text("heart rate"), Modifier.EXACT))
+                .where(Query.count(50))
+                .where(Query.sort("-_lastUpdated"))
+                .build();
+    }
+
+    @Benchmark
+    public String fhirMultiQueryBuilder() {
+        return new FhirMultiQuery.FhirMultiQueryBuilder()
+                .where(Query.id("obs-1"))
+                .where(Comparator.add(Query.lastUpdated("2017-01-01"), Compare.GREATER_OR_EQUAL))
+                .where(Filter.add(Query.text("heart rate"), Modifier.EXACT))
+                .where(Query.count(50))
+                .where(Query.sort("-_lastUpdated"))
+                .build()
+                .appendTo("Observation");
+    }
+
+    @Benchmark
+    public String queryTemplate() {
+        return mTemplate.expand("obs-1", "2017-01-01", "heart rate", 50, "-_lastUpdated");
+    }
+}
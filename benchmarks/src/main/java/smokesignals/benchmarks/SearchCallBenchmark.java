@@ -0,0 +1,92 @@
+package smokesignals.benchmarks;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import retrofit2.Retrofit;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.FhirCallUtils;
+import smokesignals.utils.fhirconverter.FhirConverterFactory;
+import smokesignals.utils.query.FhirQuery;
+import smokesignals.utils.query.Query;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end {@link FhirInterface#search(String, Map)} calls against an in-process {@link MockWebServer}, covering
+ * query encoding, the OkHttp round trip over loopback and decoding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchCallBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int entries;
+
+    private MockWebServer mServer;
+    private FhirInterface mFhirInterface;
+    private FhirQuery mQuery;
+
+    @Setup
+    public void setUp() throws IOException {
+        final String body = Fixtures.CONTEXT.newJsonParser().encodeResourceToString(Fixtures.searchset(entries));
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setBody(body);
+            }
+        });
+        mServer.start();
+
+        mFhirInterface = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(FhirConverterFactory.create(Fixtures.CONTEXT))
+                .client(new OkHttpClient())
+                .build()
+                .create(FhirInterface.class);
+        mQuery = new FhirQuery.FhirQueryBuilder().where(Query.count(entries)).build();
+    }
+
+    /**
+     * MockWebServer keeps every request it served, so they are dropped after each iteration.
+     */
+    @TearDown(Level.Iteration)
+    public void drainRecordedRequests() throws InterruptedException {
+        while (mServer.takeRequest(0, TimeUnit.MILLISECONDS) != null) {
+            // discard
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    @Benchmark
+    public Bundle search() throws IOException {
+        return FhirCallUtils.execute(mFhirInterface.search("Observation", mQuery));
+    }
+}
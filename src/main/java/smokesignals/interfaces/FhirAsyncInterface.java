@@ -0,0 +1,252 @@
+package smokesignals.interfaces;
+
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import retrofit2.Response;
+import retrofit2.http.*;
+import smokesignals.utils.fhirconverter.BundleEntryStream;
+import smokesignals.utils.fhirconverter.LazyBundle;
+import smokesignals.utils.query.FhirMultiQuery;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static smokesignals.interfaces.FhirInterface.ACCEPT;
+import static smokesignals.interfaces.FhirInterface.AUTHORIZATION;
+import static smokesignals.interfaces.FhirInterface.IF_MATCH;
+import static smokesignals.interfaces.FhirInterface.IF_MODIFIED_SINCE;
+import static smokesignals.interfaces.FhirInterface.IF_NONE_MATCH;
+import static smokesignals.interfaces.FhirInterface.PREFER;
+
+/**
+ * The interactions of {@link FhirInterface}, each returning a {@link CompletableFuture} instead of a
+ * {@link retrofit2.Call}. Requires the {@link smokesignals.utils.async.AsyncCallAdapterFactory} to be added to the
+ * {@link retrofit2.Retrofit} instance creating it, which decides where the calls run and how many run at once.
+ * <p>
+ * The futures complete exceptionally with the HAPI exception matching an unsuccessful status code, for example a
+ * {@link ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException} for a {@code 404}. The interactions whose
+ * status codes or headers carry the answer, such as a {@code 304 Not Modified} or the {@code 202 Accepted} of a bulk
+ * export, complete with the whole {@link Response} instead.
+ */
+public interface FhirAsyncInterface {
+
+    /**
+     * See {@link FhirInterface#search(String, Map)}.
+     */
+    @GET
+    CompletableFuture<Bundle> search(@Url String endpoint,
+                                     @QueryMap Map<String, String> searchPrameters);
+
+    /**
+     * See {@link FhirInterface#search(String, Map, String)}.
+     */
+    @GET
+    CompletableFuture<Bundle> search(@Url String endpoint,
+                                     @QueryMap Map<String, String> searchPrameters,
+                                     @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#search(String, FhirMultiQuery.QueryPairs)}.
+     */
+    @GET
+    CompletableFuture<Bundle> search(@Url String endpoint,
+                                     @QueryMap(encoded = true) FhirMultiQuery.QueryPairs searchParameters);
+
+    /**
+     * See {@link FhirInterface#search(String, FhirMultiQuery.QueryPairs, String)}.
+     */
+    @GET
+    CompletableFuture<Bundle> search(@Url String endpoint,
+                                     @QueryMap(encoded = true) FhirMultiQuery.QueryPairs searchParameters,
+                                     @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#searchStreaming(String, Map)}. The stream holds the connection open until it is
+     * exhausted or closed.
+     */
+    @GET
+    CompletableFuture<BundleEntryStream> searchStreaming(@Url String endpoint,
+                                                         @QueryMap Map<String, String> searchPrameters);
+
+    /**
+     * See {@link FhirInterface#searchLazy(String, Map)}.
+     */
+    @GET
+    CompletableFuture<LazyBundle> searchLazy(@Url String endpoint,
+                                             @QueryMap Map<String, String> searchPrameters);
+
+    /**
+     * See {@link FhirInterface#page(String, String)}.
+     */
+    @GET
+    CompletableFuture<Bundle> page(@Url String url,
+                                   @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#read(String, String, String)}.
+     */
+    @GET("{type}/{id}")
+    CompletableFuture<BaseResource> read(@Path("type") String resourceType,
+                                         @Path("id") String id,
+                                         @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#conditionalRead(String, String, String, String, String)}. Completes with the response,
+     * as a {@code 304 Not Modified} has no body.
+     */
+    @GET("{type}/{id}")
+    CompletableFuture<Response<BaseResource>> conditionalRead(@Path("type") String resourceType,
+                                                              @Path("id") String id,
+                                                              @Header(IF_NONE_MATCH) String etag,
+                                                              @Header(IF_MODIFIED_SINCE) String lastModified,
+                                                              @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#vRead(String, String, String, String)}.
+     */
+    @GET("{type}/{id}/_history/{vid}")
+    CompletableFuture<BaseResource> vRead(@Path("type") String resourceType,
+                                          @Path("id") String id,
+                                          @Path("vid") String version,
+                                          @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#update(String, String, BaseResource, String)}.
+     */
+    @PUT("{type}/{id}")
+    CompletableFuture<BaseResource> update(@Path("type") String resourceType,
+                                           @Path("id") String id,
+                                           @Body BaseResource body,
+                                           @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#conditionalUpdate(String, Map, BaseResource, String)}.
+     */
+    @PUT("{type}")
+    CompletableFuture<BaseResource> conditionalUpdate(@Path("type") String resourceType,
+                                                      @QueryMap Map<String, String> searchPrameters,
+                                                      @Body BaseResource body,
+                                                      @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#patch(String, String, BaseResource, String)}.
+     */
+    @PATCH("{type}/{id}")
+    CompletableFuture<BaseResource> patch(@Path("type") String resourceType,
+                                          @Path("id") String id,
+                                          @Body BaseResource body,
+                                          @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#jsonPatch(String, String, RequestBody, String, String)}.
+     */
+    @PATCH("{type}/{id}")
+    CompletableFuture<BaseResource> jsonPatch(@Path("type") String resourceType,
+                                              @Path("id") String id,
+                                              @Body RequestBody patch,
+                                              @Header(IF_MATCH) String ifMatch,
+                                              @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#delete(String, String, String)}.
+     */
+    @DELETE("{type}/{id}")
+    CompletableFuture<BaseResource> delete(@Path("type") String resourceType,
+                                           @Path("id") String id,
+                                           @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#conditionalDelete(String, Map, String)}.
+     */
+    @DELETE("{type}")
+    CompletableFuture<BaseResource> conditionalDelete(@Path("type") String resourceType,
+                                                      @QueryMap Map<String, String> searchPrameters,
+                                                      @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#create(String, BaseResource, String)}.
+     */
+    @POST("{type}")
+    CompletableFuture<BaseResource> create(@Path("type") String resourceType,
+                                           @Body BaseResource body,
+                                           @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#conditionalCreate(String, BaseResource, Map, String)}. The search parameters are given
+     * as the query string the {@code If-None-Exist} header carries, such as {@code identifier=http://a|1}.
+     */
+    @POST("{type}")
+    CompletableFuture<BaseResource> conditionalCreate(@Path("type") String resourceType,
+                                                      @Body BaseResource body,
+                                                      @Header("If-None-Exist") String searchParameters,
+                                                      @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#transaction(Bundle, String)}.
+     */
+    @POST("./")
+    CompletableFuture<Bundle> transaction(@Body Bundle bundle,
+                                          @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#instanceHistory(String, String, Map, String)}.
+     */
+    @GET("{type}/{id}/_history")
+    CompletableFuture<Bundle> instanceHistory(@Path("type") String resourceType,
+                                              @Path("id") String id,
+                                              @QueryMap Map<String, String> historyParameters,
+                                              @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#typeHistory(String, Map, String)}.
+     */
+    @GET("{type}/_history")
+    CompletableFuture<Bundle> typeHistory(@Path("type") String resourceType,
+                                          @QueryMap Map<String, String> historyParameters,
+                                          @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#systemHistory(Map, String)}.
+     */
+    @GET("_history")
+    CompletableFuture<Bundle> systemHistory(@QueryMap Map<String, String> historyParameters,
+                                            @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#bulkExport(String, Map, String, String, String)}. Completes with the response, whose
+     * {@code Content-Location} header holds the status endpoint.
+     */
+    @GET
+    CompletableFuture<Response<Void>> bulkExport(@Url String endpoint,
+                                                 @QueryMap Map<String, String> parameters,
+                                                 @Header(ACCEPT) String accept,
+                                                 @Header(PREFER) String prefer,
+                                                 @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#bulkExportStatus(String, String)}. Completes with the response, as a {@code 202} and
+     * its {@code Retry-After} header mean the export is still running.
+     */
+    @GET
+    CompletableFuture<Response<ResponseBody>> bulkExportStatus(@Url String statusUrl,
+                                                               @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#bulkExportCancel(String, String)}.
+     */
+    @DELETE
+    CompletableFuture<Void> bulkExportCancel(@Url String statusUrl,
+                                             @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * See {@link FhirInterface#bulkExportFile(String, String, String)}. The body is streamed and must be closed by the
+     * caller.
+     */
+    @Streaming
+    @GET
+    CompletableFuture<ResponseBody> bulkExportFile(@Url String fileUrl,
+                                                   @Header(ACCEPT) String accept,
+                                                   @Header(AUTHORIZATION) String bearer);
+}
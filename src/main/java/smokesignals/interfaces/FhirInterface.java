@@ -2,8 +2,13 @@ package smokesignals.interfaces;
 
 import ca.uhn.fhir.model.dstu2.resource.BaseResource;
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import okhttp3.ResponseBody;
+import okhttp3.RequestBody;
 import retrofit2.Call;
 import retrofit2.http.*;
+import smokesignals.utils.fhirconverter.BundleEntryStream;
+import smokesignals.utils.fhirconverter.LazyBundle;
+import smokesignals.utils.query.FhirMultiQuery;
 
 import ca.uhn.fhir.model.dstu2.resource.*;
 
@@ -15,6 +20,11 @@ import java.util.Map;
 public interface FhirInterface {
 
     String AUTHORIZATION = "Authorization";
+    String IF_NONE_MATCH = "If-None-Match";
+    String IF_MODIFIED_SINCE = "If-Modified-Since";
+    String IF_MATCH = "If-Match";
+    String PREFER = "Prefer";
+    String ACCEPT = "Accept";
 
     /**
      * This interaction searches a set of resources based on some filter criteria. The interaction can be performed by
@@ -65,6 +75,86 @@ public interface FhirInterface {
     Call<Bundle> search(@Url String endpoint,
                         @QueryMap Map<String, String> searchPrameters);
 
+    /**
+     * Same interaction as {@link #search(String, Map)}, with an {@code Authorization} header for servers that protect
+     * their searches.
+     *
+     * @param endpoint
+     * @param searchPrameters
+     * @param bearer
+     * @return
+     */
+    @GET
+    Call<Bundle> search(@Url String endpoint,
+                        @QueryMap Map<String, String> searchPrameters,
+                        @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * Same interaction as {@link #search(String, Map)}, with the parameters of a {@link FhirMultiQuery}, so a name
+     * such as {@code _include} or {@code date} can be sent more than once. The pairs are already URL encoded and are
+     * sent as they are.
+     *
+     * @param endpoint
+     * @param searchParameters
+     * @return
+     */
+    @GET
+    Call<Bundle> search(@Url String endpoint,
+                        @QueryMap(encoded = true) FhirMultiQuery.QueryPairs searchParameters);
+
+    /**
+     * Same interaction as {@link #search(String, FhirMultiQuery.QueryPairs)}, with an {@code Authorization} header.
+     *
+     * @param endpoint
+     * @param searchParameters
+     * @param bearer
+     * @return
+     */
+    @GET
+    Call<Bundle> search(@Url String endpoint,
+                        @QueryMap(encoded = true) FhirMultiQuery.QueryPairs searchParameters,
+                        @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * Same interaction as {@link #search(String, Map)}, but the searchset {@link Bundle} is decoded one entry at a
+     * time while the caller iterates, so memory use depends on the size of a single entry rather than of the page.
+     * The returned {@link BundleEntryStream} holds the connection open until it is exhausted or closed.
+     *
+     * @param endpoint
+     * @param searchPrameters
+     * @return
+     */
+    @GET
+    Call<BundleEntryStream> searchStreaming(@Url String endpoint,
+                                            @QueryMap Map<String, String> searchPrameters);
+
+    /**
+     * Same interaction as {@link #search(String, Map)}, but only the {@code resourceType}, {@code id},
+     * {@code meta.versionId} and {@code meta.lastUpdated} of each entry are read up front. The resources are parsed
+     * one by one, on the first call to {@link LazyBundle.LazyEntry#getResource()}, so entries that are only counted
+     * or routed by those keys never pay for a full parse.
+     *
+     * @param endpoint
+     * @param searchPrameters
+     * @return
+     */
+    @GET
+    Call<LazyBundle> searchLazy(@Url String endpoint,
+                                @QueryMap Map<String, String> searchPrameters);
+
+    /**
+     * Fetches a page of a search or history by the {@code url} of a {@code Bundle.link}, such as the one with
+     * relation {@code next}. The link already holds every parameter of the search, so none are added, but the
+     * authorization has to be sent again with each page.
+     *
+     * @param url
+     * @param bearer
+     * @return
+     */
+    @GET
+    Call<Bundle> page(@Url String url,
+                      @Header(AUTHORIZATION) String bearer);
+
     /**
      * The read interaction accesses the current contents of a resource.
      * The interaction is performed by an {@code HTTP GET} command as shown:
@@ -101,6 +191,28 @@ public interface FhirInterface {
                             @Path("id") String id,
                             @Header(AUTHORIZATION) String bearer);
 
+    /**
+     * A read that lets the server answer {@code 304 Not Modified} when the client already holds the current version.
+     * <p>
+     * {@code GET [base]/[type]/[id]} with {@code If-None-Match: [etag]} and/or {@code If-Modified-Since: [date]}
+     * <p>
+     * Clients can use the ETag and Last-Modified headers returned by an earlier read to revalidate their copy. If the
+     * resource has not changed the server returns {@code 304} with no body, otherwise it behaves exactly as
+     * {@link #read(String, String, String)}. Either header may be {@code null}, in which case it is not sent.
+     *
+     * @param resourceType
+     * @param id
+     * @param etag
+     * @param lastModified
+     * @param bearer
+     */
+    @GET("{type}/{id}")
+    Call<BaseResource> conditionalRead(@Path("type") String resourceType,
+                                       @Path("id") String id,
+                                       @Header(IF_NONE_MATCH) String etag,
+                                       @Header(IF_MODIFIED_SINCE) String lastModified,
+                                       @Header(AUTHORIZATION) String bearer);
+
     /**
      * The vread interaction preforms a version specific read of the resource. The interaction is performed by an
      * {@code HTTP GET} command as shown:
@@ -290,6 +402,25 @@ public interface FhirInterface {
                              @Body BaseResource body,
                              @Header(AUTHORIZATION) String bearer);
 
+    /**
+     * Same interaction as {@link #patch(String, String, BaseResource, String)}, with a JSON Patch document as the body,
+     * such as the one built by {@link smokesignals.utils.patch.JsonPatch}, sent with the content type
+     * {@code application/json-patch+json}. When {@code ifMatch} carries the ETag of the version the patch was computed
+     * against, the server answers {@code 412 Precondition Failed} instead of patching a resource that has changed since.
+     *
+     * @param resourceType
+     * @param id
+     * @param patch
+     * @param ifMatch
+     * @param bearer
+     */
+    @PATCH("{type}/{id}")
+    Call<BaseResource> jsonPatch(@Path("type") String resourceType,
+                                 @Path("id") String id,
+                                 @Body RequestBody patch,
+                                 @Header(IF_MATCH) String ifMatch,
+                                 @Header(AUTHORIZATION) String bearer);
+
     /**
      * The delete interaction removes an existing resource. The interaction is performed by an {@code HTTP DELETE}
      * command as shown:
@@ -452,5 +583,170 @@ public interface FhirInterface {
                                          @Path("search_params") Map<String, String> searchPrameters,
                                          @Header(AUTHORIZATION) String bearer);
 
-}
+    //BATCH/TRANSACTION
 
+    /**
+     * The batch and transaction interactions submit a set of actions to perform on a server in a single HTTP
+     * request/response. The actions may be performed independently as a "batch", or as a single atomic "transaction"
+     * where the entire set of changes succeed or fail as a single entity. A batch or transaction interaction is
+     * performed by an {@code HTTP POST} command as shown:
+     * <p>
+     * {@code POST [base] {?_format=[mime-type]}}
+     * <p>
+     * The content of the post submission is a {@link Bundle} with {@code Bundle.type} = batch or transaction. Each
+     * entry SHALL carry request details ({@code Bundle.entry.request}) that provide the HTTP details of the action in
+     * order to inform the system processing the batch or transaction what to do for the entry.
+     * <p>
+     * For a batch, there SHALL be no interdependencies between the different entries in the Bundle that cause change
+     * on the server. The success or failure of one change SHOULD not alter the success or failure or resulting content
+     * of another change. For a transaction, servers SHALL either accept all actions and return a {@code 200 OK}, along
+     * with a response {@link Bundle}, or reject all resources and return an HTTP {@code 400} or {@code 500} type
+     * response.
+     * <p>
+     * The response {@link Bundle} contains one entry for each entry in the request, in the same order, with the
+     * outcome of processing the entry in {@code Bundle.entry.response}. For a batch, entries that failed carry their
+     * error status and SHOULD include an {@link OperationOutcome}.
+     *
+     * @param bundle
+     * @param bearer
+     * @return
+     */
+    @POST("./")
+    Call<Bundle> transaction(@Body Bundle bundle,
+                             @Header(AUTHORIZATION) String bearer);
+
+    //HISTORY
+
+    /**
+     * The history interaction retrieves the history of either a particular resource, all resources of a given type,
+     * or all resources supported by the system. These three variations of the history interaction are performed by
+     * HTTP {@code GET} command as shown:
+     * <p>
+     * {@code GET [base]/[type]/[id]/_history{?[parameters]&_format=[mime-type]}}
+     * <p>
+     * {@code GET [base]/[type]/_history{?[parameters]&_format=[mime-type]}}
+     * <p>
+     * {@code GET [base]/_history{?[parameters]&_format=[mime-type]}}
+     * <p>
+     * The return content is a {@link Bundle} with type set to history containing the specified version history,
+     * sorted with oldest versions last, and including deleted resources. Each entry SHALL minimally contain at least
+     * one of: a resource which holds the resource as it is at the conclusion of the interaction, or a request with
+     * entry.request.method. The request provides information about the result of the interaction that led to this
+     * new version, and allows, for instance, a subscriber system to differentiate between newly created resources
+     * and updates to existing resources.
+     * <p>
+     * The parameters are {@code _count}, the number of entries per page, {@code _since}, only versions created at or
+     * after the given instant, and {@code _at}, only versions current at some point during the given period. The
+     * history is paged like a search; {@link smokesignals.utils.paging.HistoryPager} follows the pages.
+     *
+     * @param resourceType
+     * @param id
+     * @param historyParameters
+     * @param bearer
+     * @return
+     */
+    @GET("{type}/{id}/_history")
+    Call<Bundle> instanceHistory(@Path("type") String resourceType,
+                                 @Path("id") String id,
+                                 @QueryMap Map<String, String> historyParameters,
+                                 @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * The history of every resource of a type. See {@link #instanceHistory(String, String, Map, String)}.
+     *
+     * @param resourceType
+     * @param historyParameters
+     * @param bearer
+     * @return
+     */
+    @GET("{type}/_history")
+    Call<Bundle> typeHistory(@Path("type") String resourceType,
+                             @QueryMap Map<String, String> historyParameters,
+                             @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * The history of every resource on the server. See {@link #instanceHistory(String, String, Map, String)}.
+     *
+     * @param historyParameters
+     * @param bearer
+     * @return
+     */
+    @GET("_history")
+    Call<Bundle> systemHistory(@QueryMap Map<String, String> historyParameters,
+                               @Header(AUTHORIZATION) String bearer);
+
+    //BULK DATA
+
+    /**
+     * Kicks off an asynchronous Bulk Data export of a whole system, all patients or the members of a group:
+     * <p>
+     * {@code GET [base]/$export}, {@code GET [base]/Patient/$export} or {@code GET [base]/Group/[id]/$export}
+     * {@code {?_outputFormat=application/fhir+ndjson&_since=[instant]&_type=[types]}}
+     * <p>
+     * The request SHALL carry {@code Accept: application/fhir+json} and {@code Prefer: respond-async}. On success the
+     * server returns {@code 202 Accepted} with the URL of the export status endpoint in the {@code Content-Location}
+     * header; there is no body. If the export could not be started the server returns a 4xx or 5xx status with an
+     * {@link OperationOutcome}.
+     *
+     * @param endpoint
+     * @param parameters
+     * @param accept
+     * @param prefer
+     * @param bearer
+     * @return
+     */
+    @GET
+    Call<Void> bulkExport(@Url String endpoint,
+                          @QueryMap Map<String, String> parameters,
+                          @Header(ACCEPT) String accept,
+                          @Header(PREFER) String prefer,
+                          @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * Polls the status endpoint returned by {@link #bulkExport(String, Map, String, String, String)}.
+     * <p>
+     * {@code GET [status endpoint]}
+     * <p>
+     * While the export is running the server returns {@code 202 Accepted}, optionally with an {@code X-Progress}
+     * header and a {@code Retry-After} header telling the client when to poll again. Once it is complete the server
+     * returns {@code 200 OK} with a JSON manifest listing the output files, one or more per resource type. An error
+     * returns a 4xx or 5xx status with an {@link OperationOutcome}.
+     *
+     * @param statusUrl
+     * @param bearer
+     * @return
+     */
+    @GET
+    Call<ResponseBody> bulkExportStatus(@Url String statusUrl,
+                                        @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * Cancels a running export, or lets the server delete the files of a completed one.
+     * <p>
+     * {@code DELETE [status endpoint]}
+     *
+     * @param statusUrl
+     * @param bearer
+     * @return
+     */
+    @DELETE
+    Call<Void> bulkExportCancel(@Url String statusUrl,
+                                @Header(AUTHORIZATION) String bearer);
+
+    /**
+     * Downloads one output file of a completed export, as newline delimited JSON with one resource per line. The body
+     * is streamed, so it is not held in memory and must be closed by the caller. The {@code Authorization} header is
+     * only needed when the manifest sets {@code requiresAccessToken}.
+     *
+     * @param fileUrl
+     * @param accept
+     * @param bearer
+     * @return
+     */
+    @Streaming
+    @GET
+    Call<ResponseBody> bulkExportFile(@Url String fileUrl,
+                                      @Header(ACCEPT) String accept,
+                                      @Header(AUTHORIZATION) String bearer);
+
+}
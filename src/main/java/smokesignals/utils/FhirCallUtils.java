@@ -0,0 +1,76 @@
+package smokesignals.utils;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import okhttp3.Headers;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Response;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helpers for executing {@link Call}s outside of the {@link retrofit2.Callback} style used by callers of
+ * {@link smokesignals.interfaces.FhirInterface}.
+ */
+public class FhirCallUtils {
+
+    public static final String RETRY_AFTER = "Retry-After";
+
+    private FhirCallUtils() {}
+
+    /**
+     * Executes the call on the current thread and returns the decoded body.
+     *
+     * @param call {@link Call} to execute.
+     * @return the decoded body of a {@code 2xx} response.
+     * @throws IOException                  if the request could not be sent or the body could not be read.
+     * @throws BaseServerResponseException  matching the status code, if the server answered with anything else.
+     */
+    public static <T> T execute(Call<T> call) throws IOException {
+        Response<T> response = call.execute();
+        if (!response.isSuccessful()) {
+            throw toException(response);
+        }
+        return response.body();
+    }
+
+    /**
+     * Maps an unsuccessful response to the HAPI exception for its status code, closing the error body.
+     */
+    public static BaseServerResponseException toException(Response<?> response) {
+        closeErrorBody(response);
+        return BaseServerResponseException.newInstance(response.code(),
+                response.code() + " " + response.message() + " : " + response.raw().request().url());
+    }
+
+    /**
+     * Releases the connection held by the body of an unsuccessful response, such as a {@code 304 Not Modified}.
+     */
+    public static void closeErrorBody(Response<?> response) {
+        ResponseBody errorBody = response.errorBody();
+        if (errorBody != null) {
+            errorBody.close();
+        }
+    }
+
+    /**
+     * Milliseconds to wait according to a {@code Retry-After} header given either as delay-seconds or as an
+     * HTTP-date, or {@code -1} when there is no usable header.
+     *
+     * @param now current time in milliseconds, against which an HTTP-date is measured.
+     */
+    public static long retryAfterMillis(Headers headers, long now) {
+        String retryAfter = headers.get(RETRY_AFTER);
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim())));
+        } catch (NumberFormatException e) {
+            Date date = headers.getDate(RETRY_AFTER);
+            return date == null ? -1 : Math.max(0, date.getTime() - now);
+        }
+    }
+}
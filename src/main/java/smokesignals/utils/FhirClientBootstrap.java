@@ -0,0 +1,338 @@
+package smokesignals.utils;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.parser.IParser;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import retrofit2.Retrofit;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.fhirconverter.FhirConverterFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the {@link OkHttpClient}, {@link Retrofit} and {@link FhirInterface} for a FHIR server from one process-wide
+ * {@link FhirContext} and one process-wide client, and gets them ready before the first real request.
+ * <p>
+ * Creating a {@code FhirContext} is cheap, but the first use of each resource type makes HAPI scan its model classes,
+ * and a new client opens its connections, with their TLS handshakes, on the first requests. Both costs are paid once
+ * here: {@link #sharedContext()} and {@link #sharedClient()} are created on first use and reused by every bootstrap,
+ * clients customised through {@link FhirClientBootstrapBuilder#client(OkHttpClient)} should be derived from the
+ * shared one with {@link OkHttpClient#newBuilder()} so that they keep its connection pool and dispatcher, and
+ * {@link FhirClientBootstrapBuilder#build()} scans the resource types asked for, optionally on several threads, and
+ * opens the requested number of connections to the server before returning:
+ * <pre>
+ * FhirInterface fhir = new FhirClientBootstrap.FhirClientBootstrapBuilder(baseUrl)
+ *         .warmUp("Patient", "Observation", "Encounter")
+ *         .parallelism(4)
+ *         .preconnect(4)
+ *         .build()
+ *         .getFhirInterface();
+ * </pre>
+ */
+public class FhirClientBootstrap {
+
+    private static final String RESOURCE_PREFIX = "resource.";
+
+    private final FhirContext mFhirContext;
+    private final OkHttpClient mOkHttpClient;
+    private final Retrofit mRetrofit;
+    private final FhirInterface mFhirInterface;
+    private final int mWarmedTypes;
+    private final int mConnections;
+
+    private FhirClientBootstrap(FhirClientBootstrapBuilder builder) throws IOException {
+        mFhirContext = builder.mFhirContext != null ? builder.mFhirContext : sharedContext();
+        mOkHttpClient = builder.mOkHttpClient != null ? builder.mOkHttpClient : sharedClient();
+        mRetrofit = new Retrofit.Builder()
+                .baseUrl(builder.mBaseUrl)
+                .addConverterFactory(FhirConverterFactory.create(mFhirContext))
+                .client(mOkHttpClient)
+                .build();
+        mFhirInterface = mRetrofit.create(FhirInterface.class);
+        Set<String> types = builder.mAllTypes ? resourceNames(mFhirContext) : builder.mTypes;
+        mWarmedTypes = warmUp(mFhirContext, types, builder.mParallelism);
+        mConnections = preconnect(mOkHttpClient, builder.mBaseUrl, builder.mConnections, builder.mPreconnectTimeoutMillis);
+    }
+
+    /**
+     * The DSTU2 context shared by every bootstrap, created on first use.
+     */
+    public static FhirContext sharedContext() {
+        return Shared.CONTEXT;
+    }
+
+    /**
+     * The client shared by every bootstrap, created on first use. Derive customised clients from it with
+     * {@link OkHttpClient#newBuilder()} to share its connection pool and threads.
+     */
+    public static OkHttpClient sharedClient() {
+        return Shared.CLIENT;
+    }
+
+    public FhirContext getFhirContext() {
+        return mFhirContext;
+    }
+
+    public OkHttpClient getOkHttpClient() {
+        return mOkHttpClient;
+    }
+
+    public Retrofit getRetrofit() {
+        return mRetrofit;
+    }
+
+    public FhirInterface getFhirInterface() {
+        return mFhirInterface;
+    }
+
+    /**
+     * The number of resource types scanned while building.
+     */
+    public int getWarmedTypeCount() {
+        return mWarmedTypes;
+    }
+
+    /**
+     * The number of warm-up requests that reached the server, which is the number of connections left in the pool
+     * when the server keeps them alive.
+     */
+    public int getPreconnectedCount() {
+        return mConnections;
+    }
+
+    /**
+     * Every resource type of the context's FHIR version. Unlike {@link FhirContext#getResourceNames()}, which only
+     * lists the types scanned so far once any has been, this reads them from the version's definitions.
+     */
+    static Set<String> resourceNames(FhirContext context) throws IOException {
+        Properties definitions = new Properties();
+        try (InputStream in = context.getVersion().getFhirVersionPropertiesFile()) {
+            definitions.load(in);
+        }
+        Set<String> names = new TreeSet<>();
+        for (String key : definitions.stringPropertyNames()) {
+            if (key.startsWith(RESOURCE_PREFIX)) {
+                names.add(key.substring(RESOURCE_PREFIX.length()));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Scans the model of every type and runs one empty instance through a parser, so that the first real encode or
+     * decode of the type finds everything in place.
+     *
+     * @return the number of types scanned.
+     */
+    static int warmUp(FhirContext context, Collection<String> types, int parallelism) throws IOException {
+        if (types.isEmpty()) {
+            return 0;
+        }
+        if (parallelism <= 1) {
+            IParser parser = context.newJsonParser();
+            for (String type : types) {
+                warmUp(context, parser, type);
+            }
+            return types.size();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, types.size()), runnable -> {
+            Thread thread = new Thread(runnable, "fhir-warm-up");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            ThreadLocal<IParser> parsers = ThreadLocal.withInitial(context::newJsonParser);
+            List<Future<?>> scans = new ArrayList<>(types.size());
+            for (String type : types) {
+                scans.add(executor.submit(() -> warmUp(context, parsers.get(), type)));
+            }
+            for (Future<?> scan : scans) {
+                scan.get();
+            }
+            return types.size();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while warming up");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void warmUp(FhirContext context, IParser parser, String type) {
+        RuntimeResourceDefinition definition = context.getResourceDefinition(type);
+        parser.parseResource(definition.getImplementingClass(), parser.encodeResourceToString(definition.newInstance()));
+    }
+
+    /**
+     * Sends {@code connections} concurrent {@code HEAD} requests to the base URL and waits for them, so that the
+     * connections they open, and their TLS sessions, stay in the pool for the first real requests. Whatever the server
+     * answers only the connection matters. The client's dispatcher caps how many are opened to the same host at once.
+     *
+     * @return the number of requests that got a response.
+     */
+    static int preconnect(OkHttpClient client, HttpUrl baseUrl, int connections, long timeoutMillis)
+            throws IOException {
+        if (connections == 0) {
+            return 0;
+        }
+        final CountDownLatch done = new CountDownLatch(connections);
+        final AtomicInteger connected = new AtomicInteger();
+        List<Call> calls = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            Call call = client.newCall(new Request.Builder().url(baseUrl).head().build());
+            calls.add(call);
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    response.close();
+                    connected.incrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                for (Call call : calls) {
+                    call.cancel();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting");
+        }
+        return connected.get();
+    }
+
+    /**
+     * Holder of the shared instances, initialised by the class loader on first use.
+     */
+    private static class Shared {
+        static final FhirContext CONTEXT = FhirContext.forDstu2();
+        static final OkHttpClient CLIENT = new OkHttpClient();
+    }
+
+    public static class FhirClientBootstrapBuilder {
+
+        private final HttpUrl mBaseUrl;
+        private FhirContext mFhirContext;
+        private OkHttpClient mOkHttpClient;
+        private final Set<String> mTypes = new LinkedHashSet<>();
+        private boolean mAllTypes;
+        private int mParallelism = 1;
+        private int mConnections;
+        private long mPreconnectTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
+
+        public FhirClientBootstrapBuilder(String baseUrl) {
+            if (baseUrl == null) throw new NullPointerException("baseUrl == null");
+            HttpUrl url = HttpUrl.parse(baseUrl);
+            if (url == null) throw new IllegalArgumentException("Illegal URL: " + baseUrl);
+            mBaseUrl = url;
+        }
+
+        /**
+         * The context to use instead of the {@link #sharedContext() shared} one.
+         */
+        public FhirClientBootstrapBuilder context(FhirContext fhirContext) {
+            if (fhirContext == null) throw new NullPointerException("FhirContext == null");
+            mFhirContext = fhirContext;
+            return this;
+        }
+
+        /**
+         * The client to use instead of the {@link #sharedClient() shared} one, preferably derived from it.
+         */
+        public FhirClientBootstrapBuilder client(OkHttpClient client) {
+            if (client == null) throw new NullPointerException("OkHttpClient == null");
+            mOkHttpClient = client;
+            return this;
+        }
+
+        /**
+         * Resource types, such as {@code Patient}, to scan while building.
+         */
+        public FhirClientBootstrapBuilder warmUp(String... resourceTypes) {
+            for (String type : resourceTypes) {
+                if (type == null) throw new NullPointerException("resourceType == null");
+            }
+            mTypes.addAll(Arrays.asList(resourceTypes));
+            return this;
+        }
+
+        /**
+         * Scan every resource type of the context while building.
+         */
+        public FhirClientBootstrapBuilder warmUpAll() {
+            mAllTypes = true;
+            return this;
+        }
+
+        /**
+         * Threads used to scan the resource types. Defaults to 1, which scans them on the building thread.
+         */
+        public FhirClientBootstrapBuilder parallelism(int parallelism) {
+            if (parallelism < 1) throw new IllegalArgumentException("parallelism < 1");
+            mParallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Connections to open to the server while building. Defaults to none.
+         */
+        public FhirClientBootstrapBuilder preconnect(int connections) {
+            if (connections < 0) throw new IllegalArgumentException("connections < 0");
+            mConnections = connections;
+            return this;
+        }
+
+        /**
+         * How long building waits for the connections to open. Defaults to 10 seconds.
+         */
+        public FhirClientBootstrapBuilder preconnectTimeout(long timeout, TimeUnit unit) {
+            if (timeout < 0) throw new IllegalArgumentException("timeout < 0");
+            mPreconnectTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Creates the service, then warms up the model and the connections as configured.
+         *
+         * @throws IOException if warming up was interrupted.
+         */
+        public FhirClientBootstrap build() throws IOException {
+            return new FhirClientBootstrap(this);
+        }
+    }
+}
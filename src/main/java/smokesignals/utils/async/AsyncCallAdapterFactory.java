@@ -0,0 +1,331 @@
+package smokesignals.utils.async;
+
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import retrofit2.Call;
+import retrofit2.CallAdapter;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.http.Streaming;
+import smokesignals.utils.FhirCallUtils;
+import smokesignals.utils.fhirconverter.BundleEntryStream;
+import smokesignals.utils.metrics.FhirInteraction;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link CallAdapter.Factory} for service methods returning {@link CompletableFuture}, such as those of
+ * {@link smokesignals.interfaces.FhirAsyncInterface}.
+ * <p>
+ * Each call is executed on the factory's {@link Executor}, and the future completes with the decoded body, or
+ * exceptionally with the HAPI {@link ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException} matching an
+ * unsuccessful status code. Declare the return type as {@code CompletableFuture<Response<T>>} to receive every
+ * response as it is instead. Cancelling the future cancels the call.
+ * <p>
+ * The number of calls in flight is capped per host and per resource type. A call over either limit waits in a queue
+ * rather than on a thread, so fanning out hundreds of reads costs hundreds of futures, not hundreds of threads:
+ * <pre>
+ * Retrofit retrofit = new Retrofit.Builder()
+ *         .baseUrl(baseUrl)
+ *         .addConverterFactory(FhirConverterFactory.create(fhirContext))
+ *         .addCallAdapterFactory(new AsyncCallAdapterFactory.AsyncCallAdapterFactoryBuilder()
+ *                 .maxRequestsPerHost(16)
+ *                 .maxRequestsPerResourceType(4)
+ *                 .build())
+ *         .build();
+ * FhirAsyncInterface fhir = retrofit.create(FhirAsyncInterface.class);
+ * </pre>
+ * A call normally gives its slots back once its response is read. Streamed results, a {@link BundleEntryStream} or a
+ * {@link Streaming} {@link ResponseBody}, keep reading from the connection after that, so their slots are only given
+ * back when the caller closes them.
+ */
+public class AsyncCallAdapterFactory extends CallAdapter.Factory {
+
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 16;
+    public static final int DEFAULT_MAX_REQUESTS_PER_RESOURCE_TYPE = 8;
+
+    private final Executor mExecutor;
+    private final KeyedLimiter mHostLimiter;
+    private final KeyedLimiter mTypeLimiter;
+
+    private AsyncCallAdapterFactory(AsyncCallAdapterFactoryBuilder builder) {
+        mExecutor = builder.mExecutor != null ? builder.mExecutor : defaultExecutor();
+        mHostLimiter = new KeyedLimiter(builder.mMaxRequestsPerHost);
+        mTypeLimiter = new KeyedLimiter(builder.mMaxRequestsPerResourceType);
+    }
+
+    /**
+     * Creates a factory with the default executor and limits.
+     */
+    public static AsyncCallAdapterFactory create() {
+        return new AsyncCallAdapterFactoryBuilder().build();
+    }
+
+    /**
+     * An executor starting a virtual thread per call when the runtime has them (Java 21 and later), and otherwise a
+     * cached pool of daemon threads. Either way the limits keep the number of threads in use bounded.
+     */
+    public static ExecutorService defaultExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            final AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "fhir-async-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public KeyedLimiter getHostLimiter() {
+        return mHostLimiter;
+    }
+
+    public KeyedLimiter getResourceTypeLimiter() {
+        return mTypeLimiter;
+    }
+
+    @Override
+    public CallAdapter<?, ?> get(Type returnType, Annotation[] annotations, Retrofit retrofit) {
+        if (getRawType(returnType) != CompletableFuture.class) {
+            return null;
+        }
+        if (!(returnType instanceof ParameterizedType)) {
+            throw new IllegalStateException("CompletableFuture return type must be parameterized"
+                    + " as CompletableFuture<Foo> or CompletableFuture<? extends Foo>");
+        }
+        Type innerType = getParameterUpperBound(0, (ParameterizedType) returnType);
+        int baseSegments = pathSize(retrofit.baseUrl().encodedPathSegments());
+        if (getRawType(innerType) != Response.class) {
+            return new FutureCallAdapter<>(innerType, baseSegments, false, isStreamed(innerType, annotations));
+        }
+        if (!(innerType instanceof ParameterizedType)) {
+            throw new IllegalStateException("Response must be parameterized as Response<Foo> or Response<? extends Foo>");
+        }
+        Type bodyType = getParameterUpperBound(0, (ParameterizedType) innerType);
+        return new FutureCallAdapter<>(bodyType, baseSegments, true, isStreamed(bodyType, annotations));
+    }
+
+    /**
+     * Whether the body keeps reading from the connection after the call returns.
+     */
+    private static boolean isStreamed(Type bodyType, Annotation[] annotations) {
+        Class<?> rawType = getRawType(bodyType);
+        if (rawType == BundleEntryStream.class) {
+            return true;
+        }
+        if (rawType != ResponseBody.class) {
+            return false;
+        }
+        for (Annotation annotation : annotations) {
+            if (annotation instanceof Streaming) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int pathSize(List<String> segments) {
+        int size = segments.size();
+        return size > 0 && segments.get(size - 1).isEmpty() ? size - 1 : size;
+    }
+
+    private class FutureCallAdapter<R> implements CallAdapter<R, CompletableFuture<?>> {
+
+        private final Type mResponseType;
+        private final int mBaseSegments;
+        private final boolean mWrapResponse;
+        private final boolean mStreamed;
+
+        FutureCallAdapter(Type responseType, int baseSegments, boolean wrapResponse, boolean streamed) {
+            mResponseType = responseType;
+            mBaseSegments = baseSegments;
+            mWrapResponse = wrapResponse;
+            mStreamed = streamed;
+        }
+
+        @Override
+        public Type responseType() {
+            return mResponseType;
+        }
+
+        @Override
+        public CompletableFuture<?> adapt(final Call<R> call) {
+            final CompletableFuture<Object> future = new CompletableFuture<Object>() {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    if (mayInterruptIfRunning || !isDone()) {
+                        call.cancel();
+                    }
+                    return super.cancel(mayInterruptIfRunning);
+                }
+            };
+            Request request = call.request();
+            final String host = request.url().host() + ":" + request.url().port();
+            final String type = resourceType(request.url());
+            // the resource type is taken first, so a call held back by its type never sits on a slot of the host
+            mTypeLimiter.acquire(type, () -> mHostLimiter.acquire(host, () -> submit(call, future, host, type)));
+            return future;
+        }
+
+        private String resourceType(HttpUrl url) {
+            List<String> segments = url.pathSegments();
+            String type = FhirInteraction.resourceType(segments.subList(Math.min(mBaseSegments, segments.size()),
+                    segments.size()));
+            return type == null ? "" : type;
+        }
+
+        private void submit(final Call<R> call, final CompletableFuture<Object> future, final String host,
+                            final String type) {
+            if (future.isDone()) {
+                release(host, type);
+                return;
+            }
+            try {
+                mExecutor.execute(() -> {
+                    Response<R> response = null;
+                    Throwable failure = null;
+                    boolean streaming = false;
+                    try {
+                        if (!future.isDone()) {
+                            response = call.execute();
+                            if (mStreamed && response.isSuccessful() && response.body() != null) {
+                                response = releaseOnClose(response, host, type);
+                                streaming = true;
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure = t;
+                    }
+                    // the slots are free again by the time anyone waiting on the future carries on
+                    if (!streaming) {
+                        release(host, type);
+                    }
+                    if (failure != null) {
+                        future.completeExceptionally(failure);
+                    } else if (response != null && !complete(response, future) && streaming) {
+                        // cancelled meanwhile, nobody is left to close the stream
+                        closeQuietly((Closeable) response.body());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                release(host, type);
+                future.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * @return whether the future took the response, rather than being done already.
+         */
+        private boolean complete(Response<R> response, CompletableFuture<Object> future) {
+            if (mWrapResponse) {
+                return future.complete(response);
+            } else if (response.isSuccessful()) {
+                return future.complete(response.body());
+            } else {
+                return future.completeExceptionally(FhirCallUtils.toException(response));
+            }
+        }
+
+        /**
+         * Hands the slots of the call over to its streamed body, which gives them back when it is closed.
+         */
+        @SuppressWarnings("unchecked")
+        private Response<R> releaseOnClose(Response<R> response, final String host, final String type) {
+            final AtomicBoolean released = new AtomicBoolean();
+            final Runnable release = () -> {
+                if (released.compareAndSet(false, true)) {
+                    release(host, type);
+                }
+            };
+            Object body = response.body();
+            if (body instanceof BundleEntryStream) {
+                ((BundleEntryStream) body).onClose(release);
+                return response;
+            }
+            ResponseBody responseBody = (ResponseBody) body;
+            BufferedSource source = Okio.buffer(new ForwardingSource(responseBody.source()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        release.run();
+                    }
+                }
+            });
+            ResponseBody streamed = ResponseBody.create(responseBody.contentType(), responseBody.contentLength(),
+                    source);
+            return Response.success((R) streamed, response.raw());
+        }
+
+        private void closeQuietly(Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+                // The slots are given back all the same.
+            }
+        }
+
+        private void release(String host, String type) {
+            mHostLimiter.release(host);
+            mTypeLimiter.release(type);
+        }
+    }
+
+    public static class AsyncCallAdapterFactoryBuilder {
+
+        private Executor mExecutor;
+        private int mMaxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+        private int mMaxRequestsPerResourceType = DEFAULT_MAX_REQUESTS_PER_RESOURCE_TYPE;
+
+        /**
+         * Executor running the blocking calls. Defaults to {@link #defaultExecutor()}.
+         */
+        public AsyncCallAdapterFactoryBuilder executor(Executor executor) {
+            if (executor == null) throw new NullPointerException("Executor == null");
+            mExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Calls allowed in flight to one host and port at once.
+         */
+        public AsyncCallAdapterFactoryBuilder maxRequestsPerHost(int maxRequestsPerHost) {
+            if (maxRequestsPerHost < 1) throw new IllegalArgumentException("maxRequestsPerHost < 1");
+            mMaxRequestsPerHost = maxRequestsPerHost;
+            return this;
+        }
+
+        /**
+         * Calls allowed in flight for one resource type at once, across hosts. Calls not aimed at a resource type,
+         * such as transactions, share a limit of their own.
+         */
+        public AsyncCallAdapterFactoryBuilder maxRequestsPerResourceType(int maxRequestsPerResourceType) {
+            if (maxRequestsPerResourceType < 1) throw new IllegalArgumentException("maxRequestsPerResourceType < 1");
+            mMaxRequestsPerResourceType = maxRequestsPerResourceType;
+            return this;
+        }
+
+        public AsyncCallAdapterFactory build() {
+            return new AsyncCallAdapterFactory(this);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package smokesignals.utils.async;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caps how many tasks run at once for each key, such as a host or a resource type, without blocking any thread.
+ * <p>
+ * {@link #acquire(String, Runnable)} runs the task straight away on the calling thread if the key has a free slot,
+ * and otherwise queues it. {@link #release(String)} hands the freed slot to the oldest queued task of that key, which
+ * then runs on the releasing thread. Tasks should therefore only start work elsewhere, typically by submitting it to
+ * an executor, rather than doing it themselves.
+ * <p>
+ * A key is only tracked while a task holds or waits for one of its slots, so limiting on an open-ended set of keys,
+ * such as every host a client ever talks to, does not grow the limiter.
+ */
+public class KeyedLimiter {
+
+    private final int mMaxPerKey;
+    private final ConcurrentMap<String, Slots> mSlots = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxPerKey tasks allowed to hold a slot of the same key at once.
+     */
+    public KeyedLimiter(int maxPerKey) {
+        if (maxPerKey < 1) throw new IllegalArgumentException("maxPerKey < 1");
+        mMaxPerKey = maxPerKey;
+    }
+
+    /**
+     * Runs {@code onAcquired} once a slot of {@code key} is free. The slot is held until {@link #release(String)}.
+     */
+    public void acquire(String key, Runnable onAcquired) {
+        while (true) {
+            Slots slots = slots(key);
+            synchronized (slots) {
+                if (slots.mRemoved) {
+                    // released to idle and pruned after we looked it up, the next lookup creates a fresh one
+                    continue;
+                }
+                if (slots.mInFlight >= mMaxPerKey) {
+                    slots.mWaiting.add(onAcquired);
+                    return;
+                }
+                slots.mInFlight++;
+            }
+            onAcquired.run();
+            return;
+        }
+    }
+
+    /**
+     * Frees a slot of {@code key}, passing it straight on to the next waiting task if there is one.
+     */
+    public void release(String key) {
+        Slots slots = mSlots.get(key);
+        if (slots == null) throw new IllegalStateException("No slot of " + key + " is held");
+        Runnable next;
+        synchronized (slots) {
+            next = slots.mWaiting.poll();
+            if (next == null) {
+                if (--slots.mInFlight == 0) {
+                    slots.mRemoved = true;
+                    mSlots.remove(key, slots);
+                }
+                return;
+            }
+        }
+        next.run();
+    }
+
+    public int getMaxPerKey() {
+        return mMaxPerKey;
+    }
+
+    /**
+     * Tasks currently holding a slot of the key.
+     */
+    public int getInFlight(String key) {
+        Slots slots = mSlots.get(key);
+        if (slots == null) {
+            return 0;
+        }
+        synchronized (slots) {
+            return slots.mInFlight;
+        }
+    }
+
+    /**
+     * Tasks waiting for a slot of the key.
+     */
+    public int getQueued(String key) {
+        Slots slots = mSlots.get(key);
+        if (slots == null) {
+            return 0;
+        }
+        synchronized (slots) {
+            return slots.mWaiting.size();
+        }
+    }
+
+    /**
+     * Keys with a slot held or a task waiting for one.
+     */
+    public int getKeyCount() {
+        return mSlots.size();
+    }
+
+    private Slots slots(String key) {
+        Slots slots = mSlots.get(key);
+        return slots != null ? slots : mSlots.computeIfAbsent(key, ignored -> new Slots());
+    }
+
+    private static class Slots {
+
+        int mInFlight;
+        boolean mRemoved;
+        final Queue<Runnable> mWaiting = new ArrayDeque<>();
+    }
+}
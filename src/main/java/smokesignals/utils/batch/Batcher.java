@@ -0,0 +1,156 @@
+package smokesignals.utils.batch;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flush, close and in-flight bookkeeping shared by {@link WriteBatcher} and {@link ReadBatcher}.
+ * <p>
+ * Subclasses keep their own pending collection, guarded by {@link #mLock}, and call {@link #queuedLocked(int)} after
+ * adding to it. A batch is drained as soon as it holds {@code maxEntries} items, or {@code maxDelay} after its first
+ * one, and handed to {@link #sendBatch(List)} outside the lock. At most {@code maxInFlightBatches} batches are sent at
+ * once: {@link #sendBatch(List)} takes a permit from {@link #mInFlightBatches} per request, blocking the thread that
+ * filled the batch while that many are waiting on the server, and releases it once the request is answered.
+ *
+ * @param <P> a queued interaction and its future
+ */
+abstract class Batcher<P> implements Closeable {
+
+    final Object mLock = new Object();
+    final Semaphore mInFlightBatches;
+
+    private final int mMaxEntries;
+    private final long mMaxDelayMillis;
+    private final int mMaxInFlightBatches;
+    private final ScheduledExecutorService mScheduler;
+    private final boolean mOwnsScheduler;
+
+    private ScheduledFuture<?> mScheduledFlush;
+    private boolean mClosed;
+    /**
+     * Batches drained from the pending collection whose requests are not enqueued yet, so {@link #close()} knows to
+     * wait for them before counting the in-flight permits.
+     */
+    private int mUnsentBatches;
+
+    Batcher(final String threadName, int maxEntries, long maxDelayMillis, int maxInFlightBatches,
+            ScheduledExecutorService scheduler) {
+        mMaxEntries = maxEntries;
+        mMaxDelayMillis = maxDelayMillis;
+        mMaxInFlightBatches = maxInFlightBatches;
+        mInFlightBatches = new Semaphore(maxInFlightBatches);
+        mOwnsScheduler = scheduler == null;
+        mScheduler = mOwnsScheduler ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        }) : scheduler;
+    }
+
+    /**
+     * Empties the pending collection, holding {@link #mLock}.
+     *
+     * @return what was pending, possibly empty.
+     */
+    abstract List<P> takePendingLocked();
+
+    /**
+     * Sends a drained batch, taking a permit from {@link #mInFlightBatches} for each request it enqueues.
+     */
+    abstract void sendBatch(List<P> batch);
+
+    /**
+     * Sends whatever is queued right away instead of waiting for the batch to fill up or its delay to pass.
+     */
+    public void flush() {
+        List<P> batch;
+        synchronized (mLock) {
+            batch = drainLocked();
+        }
+        send(batch);
+    }
+
+    /**
+     * Sends whatever is still queued and blocks until every batch has been answered. Calls queued after this one fail
+     * with an {@link IllegalStateException}.
+     */
+    @Override
+    public void close() {
+        List<P> batch;
+        synchronized (mLock) {
+            mClosed = true;
+            batch = drainLocked();
+        }
+        send(batch);
+        boolean interrupted = false;
+        synchronized (mLock) {
+            while (mUnsentBatches > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mInFlightBatches.acquireUninterruptibly(mMaxInFlightBatches);
+        mInFlightBatches.release(mMaxInFlightBatches);
+        if (mOwnsScheduler) {
+            mScheduler.shutdownNow();
+        }
+    }
+
+    boolean isClosedLocked() {
+        return mClosed;
+    }
+
+    /**
+     * Called holding {@link #mLock} after an item was added to the pending collection.
+     *
+     * @param pending the number of items now pending.
+     * @return the batch to {@link #send(List)} once the lock is released, or null.
+     */
+    List<P> queuedLocked(int pending) {
+        if (pending >= mMaxEntries) {
+            return drainLocked();
+        }
+        if (pending == 1) {
+            mScheduledFlush = mScheduler.schedule(this::flush, mMaxDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        return null;
+    }
+
+    void send(List<P> batch) {
+        if (batch == null) {
+            return;
+        }
+        try {
+            sendBatch(batch);
+        } finally {
+            synchronized (mLock) {
+                mUnsentBatches--;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    private List<P> drainLocked() {
+        if (mScheduledFlush != null) {
+            mScheduledFlush.cancel(false);
+            mScheduledFlush = null;
+        }
+        List<P> batch = takePendingLocked();
+        if (batch.isEmpty()) {
+            return null;
+        }
+        mUnsentBatches++;
+        return batch;
+    }
+}
@@ -0,0 +1,366 @@
+package smokesignals.utils.batch;
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.HTTPVerbEnum;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.FhirCallUtils;
+import smokesignals.utils.query.FhirQuery;
+import smokesignals.utils.query.Query;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers individual {@code read} interactions made within a short window and sends them together, the counterpart
+ * of {@link WriteBatcher} for reads.
+ * <p>
+ * A batch is sent as soon as it holds {@code maxEntries} reads, or {@code maxDelay} after its first read, whichever
+ * comes first. With {@link Mode#ID_SEARCH} (the default) it becomes one {@code GET [type]?_id=a,b,c} search per
+ * resource type in the batch; with {@link Mode#BATCH_BUNDLE} one batch {@link Bundle} of {@code GET} entries through
+ * {@link FhirInterface#transaction(Bundle, String)}. Each read returns a {@link CompletableFuture} completed with its
+ * resource, or exceptionally with a {@link ResourceNotFoundException} when the server does not have it.
+ * <p>
+ * Reads of the same id in one batch are sent once and complete with the same resource instance. The bearer, if any,
+ * goes with every search and batch {@link Bundle} alike.
+ * <p>
+ * {@code maxInFlightBatches} caps the searches or batch bundles waiting on the server, counting each resource type's
+ * search on its own; the thread that fills one more blocks until one returns.
+ */
+public class ReadBatcher extends Batcher<ReadBatcher.PendingRead> {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 10;
+    public static final int DEFAULT_MAX_IN_FLIGHT_BATCHES = 4;
+
+    /**
+     * How a batch of reads is sent.
+     */
+    public enum Mode {
+        /**
+         * One {@code GET [type]?_id=a,b,c} search per resource type.
+         */
+        ID_SEARCH,
+        /**
+         * One batch {@link Bundle} with a {@code GET [type]/[id]} entry per resource.
+         */
+        BATCH_BUNDLE
+    }
+
+    private final FhirInterface mFhirInterface;
+    private final String mBearer;
+    private final Mode mMode;
+
+    private Map<String, PendingRead> mPending = new LinkedHashMap<>();
+
+    private ReadBatcher(ReadBatcherBuilder builder) {
+        super("ReadBatcher", builder.mMaxEntries, builder.mMaxDelayMillis, builder.mMaxInFlightBatches,
+                builder.mScheduler);
+        mFhirInterface = builder.mFhirInterface;
+        mBearer = builder.mBearer;
+        mMode = builder.mMode;
+    }
+
+    /**
+     * Queues {@code GET [base]/[type]/[id]}.
+     */
+    public CompletableFuture<BaseResource> read(String resourceType, String id) {
+        if (resourceType == null) throw new NullPointerException("resourceType == null");
+        if (id == null) throw new NullPointerException("id == null");
+        List<PendingRead> batch = null;
+        PendingRead read;
+        synchronized (mLock) {
+            if (isClosedLocked()) {
+                CompletableFuture<BaseResource> closed = new CompletableFuture<>();
+                closed.completeExceptionally(new IllegalStateException("ReadBatcher is closed"));
+                return closed;
+            }
+            String key = resourceType + "/" + id;
+            read = mPending.get(key);
+            if (read == null) {
+                read = new PendingRead(resourceType, id);
+                mPending.put(key, read);
+                batch = queuedLocked(mPending.size());
+            }
+        }
+        send(batch);
+        return read.mResult;
+    }
+
+    @Override
+    List<PendingRead> takePendingLocked() {
+        List<PendingRead> batch = new ArrayList<>(mPending.values());
+        mPending = new LinkedHashMap<>();
+        return batch;
+    }
+
+    @Override
+    void sendBatch(List<PendingRead> batch) {
+        if (mMode == Mode.BATCH_BUNDLE) {
+            sendBundle(batch);
+            return;
+        }
+        Map<String, List<PendingRead>> byType = new LinkedHashMap<>();
+        for (PendingRead read : batch) {
+            byType.computeIfAbsent(read.mResourceType, type -> new ArrayList<>()).add(read);
+        }
+        for (Map.Entry<String, List<PendingRead>> type : byType.entrySet()) {
+            sendSearch(type.getKey(), type.getValue());
+        }
+    }
+
+    private void sendSearch(String resourceType, List<PendingRead> reads) {
+        mInFlightBatches.acquireUninterruptibly();
+        searchHoldingPermit(resourceType, reads);
+    }
+
+    /**
+     * Sends the search on a permit already taken. The permit is handed on to the follow-up search for the ids a capped
+     * page left out, and released once every read is completed.
+     */
+    private void searchHoldingPermit(final String resourceType, final List<PendingRead> reads) {
+        List<String> ids = new ArrayList<>(reads.size());
+        for (PendingRead read : reads) {
+            ids.add(read.mId);
+        }
+        FhirQuery query = new FhirQuery.FhirQueryBuilder()
+                .where(Query.id(String.join(",", ids)))
+                .where(Query.count(ids.size()))
+                .build();
+
+        try {
+            mFhirInterface.search(resourceType, query, mBearer).enqueue(new Callback<Bundle>() {
+                @Override
+                public void onResponse(Call<Bundle> call, Response<Bundle> response) {
+                    List<PendingRead> leftOut = null;
+                    try {
+                        if (response.isSuccessful()) {
+                            leftOut = completeSearch(resourceType, reads, response.body());
+                        } else {
+                            fail(reads, FhirCallUtils.toException(response));
+                        }
+                    } finally {
+                        if (leftOut == null) {
+                            mInFlightBatches.release();
+                        }
+                    }
+                    if (leftOut != null) {
+                        searchHoldingPermit(resourceType, leftOut);
+                    }
+                }
+
+                @Override
+                public void onFailure(Call<Bundle> call, Throwable throwable) {
+                    fail(reads, throwable);
+                    mInFlightBatches.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            fail(reads, e);
+            mInFlightBatches.release();
+        }
+    }
+
+    /**
+     * Completes the reads the search found.
+     *
+     * @return the reads to search again because the server capped the page below the number of ids, or null.
+     */
+    private static List<PendingRead> completeSearch(String resourceType, List<PendingRead> reads, Bundle searchSet) {
+        Map<String, BaseResource> found = new HashMap<>();
+        if (searchSet != null) {
+            for (Bundle.Entry entry : searchSet.getEntry()) {
+                IResource resource = entry.getResource();
+                if (resource instanceof BaseResource && resourceType.equals(resource.getResourceName())) {
+                    found.put(resource.getIdElement().getIdPart(), (BaseResource) resource);
+                }
+            }
+        }
+        List<PendingRead> missing = new ArrayList<>();
+        for (PendingRead read : reads) {
+            BaseResource resource = found.get(read.mId);
+            if (resource != null) {
+                read.mResult.complete(resource);
+            } else {
+                missing.add(read);
+            }
+        }
+        if (missing.isEmpty()) {
+            return null;
+        }
+        if (!found.isEmpty() && searchSet.getLink(Bundle.LINK_NEXT) != null) {
+            return missing;
+        }
+        for (PendingRead read : missing) {
+            read.mResult.completeExceptionally(new ResourceNotFoundException(read.mResourceType + "/" + read.mId));
+        }
+        return null;
+    }
+
+    private void sendBundle(final List<PendingRead> batch) {
+        Bundle bundle = new Bundle().setType(BundleTypeEnum.BATCH);
+        for (PendingRead read : batch) {
+            bundle.addEntry().getRequest().setMethod(HTTPVerbEnum.GET).setUrl(read.mResourceType + "/" + read.mId);
+        }
+
+        mInFlightBatches.acquireUninterruptibly();
+        try {
+            mFhirInterface.transaction(bundle, mBearer).enqueue(new Callback<Bundle>() {
+                @Override
+                public void onResponse(Call<Bundle> call, Response<Bundle> response) {
+                    try {
+                        if (response.isSuccessful()) {
+                            completeBundle(batch, response.body());
+                        } else {
+                            fail(batch, FhirCallUtils.toException(response));
+                        }
+                    } finally {
+                        mInFlightBatches.release();
+                    }
+                }
+
+                @Override
+                public void onFailure(Call<Bundle> call, Throwable throwable) {
+                    fail(batch, throwable);
+                    mInFlightBatches.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            fail(batch, e);
+            mInFlightBatches.release();
+        }
+    }
+
+    private static void completeBundle(List<PendingRead> batch, Bundle responseBundle) {
+        List<Bundle.Entry> responses = responseBundle == null ? new ArrayList<Bundle.Entry>() : responseBundle.getEntry();
+        if (responses.size() != batch.size()) {
+            fail(batch, new IllegalStateException("Server answered " + responses.size() + " entries for a batch of "
+                    + batch.size()));
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            PendingRead read = batch.get(i);
+            Bundle.Entry response = responses.get(i);
+            int statusCode = WriteBatcher.statusCode(response.getResponse().getStatus());
+            if (statusCode >= 200 && statusCode < 300 && response.getResource() instanceof BaseResource) {
+                read.mResult.complete((BaseResource) response.getResource());
+            } else {
+                if (statusCode >= 200 && statusCode < 300) {
+                    statusCode = ResourceNotFoundException.STATUS_CODE;
+                }
+                BaseServerResponseException error = BaseServerResponseException.newInstance(statusCode,
+                        response.getResponse().getStatus() + " : " + read.mResourceType + "/" + read.mId);
+                if (response.getResource() instanceof OperationOutcome) {
+                    error.setOperationOutcome((OperationOutcome) response.getResource());
+                }
+                read.mResult.completeExceptionally(error);
+            }
+        }
+    }
+
+    private static void fail(List<PendingRead> batch, Throwable throwable) {
+        for (PendingRead read : batch) {
+            read.mResult.completeExceptionally(throwable);
+        }
+    }
+
+    static class PendingRead {
+
+        final String mResourceType;
+        final String mId;
+        final CompletableFuture<BaseResource> mResult = new CompletableFuture<>();
+
+        PendingRead(String resourceType, String id) {
+            mResourceType = resourceType;
+            mId = id;
+        }
+    }
+
+    public static class ReadBatcherBuilder {
+
+        private final FhirInterface mFhirInterface;
+        private String mBearer;
+        private Mode mMode = Mode.ID_SEARCH;
+        private int mMaxEntries = DEFAULT_MAX_ENTRIES;
+        private long mMaxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+        private int mMaxInFlightBatches = DEFAULT_MAX_IN_FLIGHT_BATCHES;
+        private ScheduledExecutorService mScheduler;
+
+        public ReadBatcherBuilder(FhirInterface fhirInterface) {
+            if (fhirInterface == null) throw new NullPointerException("FhirInterface == null");
+            mFhirInterface = fhirInterface;
+        }
+
+        /**
+         * Authorization header sent with every search and batch {@link Bundle}.
+         */
+        public ReadBatcherBuilder bearer(String bearer) {
+            mBearer = bearer;
+            return this;
+        }
+
+        /**
+         * Defaults to {@link Mode#ID_SEARCH}.
+         */
+        public ReadBatcherBuilder mode(Mode mode) {
+            if (mode == null) throw new NullPointerException("Mode == null");
+            mMode = mode;
+            return this;
+        }
+
+        /**
+         * Number of distinct reads that triggers sending a batch. Defaults to {@value #DEFAULT_MAX_ENTRIES}.
+         */
+        public ReadBatcherBuilder maxEntries(int maxEntries) {
+            if (maxEntries < 1) throw new IllegalArgumentException("maxEntries < 1");
+            mMaxEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * Longest a read waits for its batch to fill up. Defaults to {@value #DEFAULT_MAX_DELAY_MILLIS} ms.
+         */
+        public ReadBatcherBuilder maxDelay(long delay, TimeUnit unit) {
+            if (delay < 0) throw new IllegalArgumentException("delay < 0");
+            mMaxDelayMillis = unit.toMillis(delay);
+            return this;
+        }
+
+        /**
+         * Number of batches that may be waiting on the server at once. Defaults to
+         * {@value #DEFAULT_MAX_IN_FLIGHT_BATCHES}.
+         */
+        public ReadBatcherBuilder maxInFlightBatches(int maxInFlightBatches) {
+            if (maxInFlightBatches < 1) throw new IllegalArgumentException("maxInFlightBatches < 1");
+            mMaxInFlightBatches = maxInFlightBatches;
+            return this;
+        }
+
+        /**
+         * Scheduler for the delayed flushes. When none is given the batcher runs its own daemon thread, which is shut
+         * down on {@link ReadBatcher#close()}.
+         */
+        public ReadBatcherBuilder scheduler(ScheduledExecutorService scheduler) {
+            mScheduler = scheduler;
+            return this;
+        }
+
+        public ReadBatcher build() {
+            return new ReadBatcher(this);
+        }
+    }
+}
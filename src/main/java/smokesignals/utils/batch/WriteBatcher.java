@@ -0,0 +1,272 @@
+package smokesignals.utils.batch;
+
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.HTTPVerbEnum;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.FhirCallUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers individual {@code create}, {@code update} and {@code delete} interactions and sends them together as one
+ * batch or transaction {@link Bundle} through {@link FhirInterface#transaction(Bundle, String)}.
+ * <p>
+ * A batch is sent as soon as it holds {@code maxEntries} writes, or {@code maxDelay} after its first write, whichever
+ * comes first. Each write returns a {@link CompletableFuture} completed with the matching response entry, which holds
+ * {@code Bundle.entry.response} and the resource if the server returned one.
+ * <p>
+ * With {@link BundleTypeEnum#BATCH} (the default) every entry succeeds or fails on its own: a failed entry completes
+ * its future with the {@link BaseServerResponseException} for its status and leaves the others untouched. With
+ * {@link BundleTypeEnum#TRANSACTION} the server applies all entries or none, so a rejected transaction fails every
+ * future in it.
+ * <p>
+ * Each batch is one request, so {@code maxInFlightBatches} caps the transaction requests waiting on the server; the
+ * thread that fills one more blocks until one returns.
+ */
+public class WriteBatcher extends Batcher<WriteBatcher.PendingWrite> {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 50;
+    public static final int DEFAULT_MAX_IN_FLIGHT_BATCHES = 4;
+
+    private final FhirInterface mFhirInterface;
+    private final String mBearer;
+    private final BundleTypeEnum mBundleType;
+
+    private List<PendingWrite> mPending = new ArrayList<>();
+
+    private WriteBatcher(WriteBatcherBuilder builder) {
+        super("WriteBatcher", builder.mMaxEntries, builder.mMaxDelayMillis, builder.mMaxInFlightBatches,
+                builder.mScheduler);
+        mFhirInterface = builder.mFhirInterface;
+        mBearer = builder.mBearer;
+        mBundleType = builder.mBundleType;
+    }
+
+    /**
+     * Queues {@code POST [base]/[type]}.
+     */
+    public CompletableFuture<Bundle.Entry> create(String resourceType, BaseResource body) {
+        Bundle.Entry entry = new Bundle.Entry()
+                .setFullUrl("urn:uuid:" + UUID.randomUUID())
+                .setResource(body);
+        entry.getRequest().setMethod(HTTPVerbEnum.POST).setUrl(resourceType);
+        return enqueue(entry);
+    }
+
+    /**
+     * Queues {@code PUT [base]/[type]/[id]}.
+     */
+    public CompletableFuture<Bundle.Entry> update(String resourceType, String id, BaseResource body) {
+        Bundle.Entry entry = new Bundle.Entry().setResource(body);
+        entry.getRequest().setMethod(HTTPVerbEnum.PUT).setUrl(resourceType + "/" + id);
+        return enqueue(entry);
+    }
+
+    /**
+     * Queues {@code DELETE [base]/[type]/[id]}.
+     */
+    public CompletableFuture<Bundle.Entry> delete(String resourceType, String id) {
+        Bundle.Entry entry = new Bundle.Entry();
+        entry.getRequest().setMethod(HTTPVerbEnum.DELETE).setUrl(resourceType + "/" + id);
+        return enqueue(entry);
+    }
+
+    private CompletableFuture<Bundle.Entry> enqueue(Bundle.Entry entry) {
+        PendingWrite write = new PendingWrite(entry);
+        List<PendingWrite> batch = null;
+        synchronized (mLock) {
+            if (isClosedLocked()) {
+                write.mResult.completeExceptionally(new IllegalStateException("WriteBatcher is closed"));
+                return write.mResult;
+            }
+            mPending.add(write);
+            batch = queuedLocked(mPending.size());
+        }
+        send(batch);
+        return write.mResult;
+    }
+
+    @Override
+    List<PendingWrite> takePendingLocked() {
+        List<PendingWrite> batch = mPending;
+        mPending = new ArrayList<>();
+        return batch;
+    }
+
+    @Override
+    void sendBatch(final List<PendingWrite> batch) {
+        Bundle bundle = new Bundle().setType(mBundleType);
+        for (PendingWrite write : batch) {
+            bundle.addEntry(write.mRequest);
+        }
+
+        mInFlightBatches.acquireUninterruptibly();
+        try {
+            mFhirInterface.transaction(bundle, mBearer).enqueue(new Callback<Bundle>() {
+                @Override
+                public void onResponse(Call<Bundle> call, Response<Bundle> response) {
+                    try {
+                        if (response.isSuccessful()) {
+                            complete(batch, response.body());
+                        } else {
+                            fail(batch, FhirCallUtils.toException(response));
+                        }
+                    } finally {
+                        mInFlightBatches.release();
+                    }
+                }
+
+                @Override
+                public void onFailure(Call<Bundle> call, Throwable throwable) {
+                    fail(batch, throwable);
+                    mInFlightBatches.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            fail(batch, e);
+            mInFlightBatches.release();
+        }
+    }
+
+    private static void complete(List<PendingWrite> batch, Bundle responseBundle) {
+        List<Bundle.Entry> responses = responseBundle == null ? new ArrayList<Bundle.Entry>() : responseBundle.getEntry();
+        if (responses.size() != batch.size()) {
+            fail(batch, new IllegalStateException("Server answered " + responses.size() + " entries for a batch of "
+                    + batch.size()));
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Bundle.Entry response = responses.get(i);
+            int statusCode = statusCode(response.getResponse().getStatus());
+            if (statusCode >= 200 && statusCode < 300) {
+                batch.get(i).mResult.complete(response);
+            } else {
+                BaseServerResponseException error = BaseServerResponseException.newInstance(statusCode,
+                        response.getResponse().getStatus() + " : " + batch.get(i).mRequest.getRequest().getUrl());
+                if (response.getResource() instanceof OperationOutcome) {
+                    error.setOperationOutcome((OperationOutcome) response.getResource());
+                }
+                batch.get(i).mResult.completeExceptionally(error);
+            }
+        }
+    }
+
+    private static void fail(List<PendingWrite> batch, Throwable throwable) {
+        for (PendingWrite write : batch) {
+            write.mResult.completeExceptionally(throwable);
+        }
+    }
+
+    /**
+     * {@code Bundle.entry.response.status} starts with the three digit HTTP status code, e.g. {@code 201 Created}.
+     */
+    static int statusCode(String status) {
+        if (status == null || status.length() < 3) {
+            return 500;
+        }
+        try {
+            return Integer.parseInt(status.substring(0, 3));
+        } catch (NumberFormatException e) {
+            return 500;
+        }
+    }
+
+    static class PendingWrite {
+
+        final Bundle.Entry mRequest;
+        final CompletableFuture<Bundle.Entry> mResult = new CompletableFuture<>();
+
+        PendingWrite(Bundle.Entry request) {
+            mRequest = request;
+        }
+    }
+
+    public static class WriteBatcherBuilder {
+
+        private final FhirInterface mFhirInterface;
+        private String mBearer;
+        private BundleTypeEnum mBundleType = BundleTypeEnum.BATCH;
+        private int mMaxEntries = DEFAULT_MAX_ENTRIES;
+        private long mMaxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+        private int mMaxInFlightBatches = DEFAULT_MAX_IN_FLIGHT_BATCHES;
+        private ScheduledExecutorService mScheduler;
+
+        public WriteBatcherBuilder(FhirInterface fhirInterface) {
+            if (fhirInterface == null) throw new NullPointerException("FhirInterface == null");
+            mFhirInterface = fhirInterface;
+        }
+
+        /**
+         * Authorization header sent with every batch.
+         */
+        public WriteBatcherBuilder bearer(String bearer) {
+            mBearer = bearer;
+            return this;
+        }
+
+        /**
+         * {@link BundleTypeEnum#BATCH} or {@link BundleTypeEnum#TRANSACTION}. Defaults to batch.
+         */
+        public WriteBatcherBuilder bundleType(BundleTypeEnum bundleType) {
+            if (bundleType != BundleTypeEnum.BATCH && bundleType != BundleTypeEnum.TRANSACTION) {
+                throw new IllegalArgumentException("bundleType must be batch or transaction");
+            }
+            mBundleType = bundleType;
+            return this;
+        }
+
+        /**
+         * Number of writes that triggers sending a batch. Defaults to {@value #DEFAULT_MAX_ENTRIES}.
+         */
+        public WriteBatcherBuilder maxEntries(int maxEntries) {
+            if (maxEntries < 1) throw new IllegalArgumentException("maxEntries < 1");
+            mMaxEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * Longest a write waits for its batch to fill up. Defaults to {@value #DEFAULT_MAX_DELAY_MILLIS} ms.
+         */
+        public WriteBatcherBuilder maxDelay(long delay, TimeUnit unit) {
+            if (delay < 0) throw new IllegalArgumentException("delay < 0");
+            mMaxDelayMillis = unit.toMillis(delay);
+            return this;
+        }
+
+        /**
+         * Number of batches that may be waiting on the server at once. Defaults to
+         * {@value #DEFAULT_MAX_IN_FLIGHT_BATCHES}.
+         */
+        public WriteBatcherBuilder maxInFlightBatches(int maxInFlightBatches) {
+            if (maxInFlightBatches < 1) throw new IllegalArgumentException("maxInFlightBatches < 1");
+            mMaxInFlightBatches = maxInFlightBatches;
+            return this;
+        }
+
+        /**
+         * Scheduler for the delayed flushes. When none is given the batcher runs its own daemon thread, which is shut
+         * down on {@link WriteBatcher#close()}.
+         */
+        public WriteBatcherBuilder scheduler(ScheduledExecutorService scheduler) {
+            mScheduler = scheduler;
+            return this;
+        }
+
+        public WriteBatcher build() {
+            return new WriteBatcher(this);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package smokesignals.utils.bulk;
+
+import okhttp3.Headers;
+import okhttp3.ResponseBody;
+import retrofit2.Response;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.FhirCallUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A FHIR Bulk Data {@code $export} job, from the asynchronous kick-off to the downloaded NDJSON files.
+ * <p>
+ * {@link BulkExportBuilder#start()} sends the kick-off request and returns once the server has accepted it.
+ * {@link #awaitManifest()} then polls the status endpoint, waiting as long as each {@code Retry-After} header asks
+ * (or backing off exponentially when there is none), and {@link #download(BulkExportManifest, Path)} fetches the
+ * output files in parallel. Each file is copied from the socket straight into a {@link FileChannel}, so no file is
+ * ever held in memory. The downloaded files are read back with {@link NdjsonResourceReader}.
+ */
+public class BulkExport {
+
+    public static final String FHIR_JSON = "application/fhir+json";
+    public static final String FHIR_NDJSON = "application/fhir+ndjson";
+    public static final String RESPOND_ASYNC = "respond-async";
+
+    public static final long DEFAULT_POLL_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    public static final long DEFAULT_MAX_POLL_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    public static final int DEFAULT_MAX_PARALLEL_DOWNLOADS = 4;
+
+    static final String CONTENT_LOCATION = "Content-Location";
+    static final String X_PROGRESS = "X-Progress";
+
+    private static final long TRANSFER_CHUNK = 1 << 20;
+
+    private final FhirInterface mFhirInterface;
+    private final String mStatusUrl;
+    private final String mBearer;
+    private final long mPollIntervalMillis;
+    private final long mMaxPollIntervalMillis;
+    private final int mMaxParallelDownloads;
+
+    private volatile String mProgress;
+    private long mRetryAfterMillis = -1;
+
+    private BulkExport(BulkExportBuilder builder, String statusUrl) {
+        mFhirInterface = builder.mFhirInterface;
+        mStatusUrl = statusUrl;
+        mBearer = builder.mBearer;
+        mPollIntervalMillis = builder.mPollIntervalMillis;
+        mMaxPollIntervalMillis = builder.mMaxPollIntervalMillis;
+        mMaxParallelDownloads = builder.mMaxParallelDownloads;
+    }
+
+    /**
+     * The status endpoint of this export, from the kick-off {@code Content-Location} header.
+     */
+    public String getStatusUrl() {
+        return mStatusUrl;
+    }
+
+    /**
+     * The last {@code X-Progress} the server reported, or null.
+     */
+    public String getProgress() {
+        return mProgress;
+    }
+
+    /**
+     * Polls the status endpoint once.
+     *
+     * @return the manifest if the export is complete, or null while it is still running.
+     */
+    public BulkExportManifest poll() throws IOException {
+        Response<ResponseBody> response = mFhirInterface.bulkExportStatus(mStatusUrl, mBearer).execute();
+        if (!response.isSuccessful()) {
+            throw FhirCallUtils.toException(response);
+        }
+        try (ResponseBody body = response.body()) {
+            if (response.code() == 202) {
+                mProgress = response.headers().get(X_PROGRESS);
+                mRetryAfterMillis = retryAfterMillis(response.headers(), System.currentTimeMillis());
+                return null;
+            }
+            if (body == null) {
+                throw new IOException("Bulk export status returned " + response.code() + " without a manifest");
+            }
+            return BulkExportManifest.parse(body.byteStream());
+        }
+    }
+
+    /**
+     * Polls until the export is complete.
+     */
+    public BulkExportManifest awaitManifest() throws IOException {
+        return awaitManifest(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Polls until the export is complete or the timeout has passed.
+     *
+     * @return the manifest, or null if the export was still running at the timeout.
+     */
+    public BulkExportManifest awaitManifest(long timeout, TimeUnit unit) throws IOException {
+        long deadline = unit.toMillis(timeout) == Long.MAX_VALUE ? Long.MAX_VALUE
+                : System.currentTimeMillis() + unit.toMillis(timeout);
+        long backoff = mPollIntervalMillis;
+        while (true) {
+            BulkExportManifest manifest = poll();
+            if (manifest != null) {
+                return manifest;
+            }
+            long wait;
+            if (mRetryAfterMillis >= 0) {
+                wait = Math.min(mRetryAfterMillis, mMaxPollIntervalMillis);
+            } else {
+                wait = backoff;
+                backoff = Math.min(backoff * 2, mMaxPollIntervalMillis);
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 || (deadline != Long.MAX_VALUE && wait >= remaining)) {
+                return null;
+            }
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the bulk export");
+            }
+        }
+    }
+
+    /**
+     * Asks the server to stop the export, or to delete the files of a completed one.
+     */
+    public void cancel() throws IOException {
+        FhirCallUtils.execute(mFhirInterface.bulkExportCancel(mStatusUrl, mBearer));
+    }
+
+    /**
+     * Downloads every output and error file of the manifest into the directory, at most
+     * {@code maxParallelDownloads} at a time. Files are named after their type, as in {@code Patient-1.ndjson}.
+     *
+     * @return the downloaded path of each file, in manifest order.
+     */
+    public Map<BulkExportManifest.OutputFile, Path> download(BulkExportManifest manifest, Path directory)
+            throws IOException {
+        Files.createDirectories(directory);
+        final String bearer = manifest.isRequiresAccessToken() ? mBearer : null;
+
+        List<BulkExportManifest.OutputFile> files = new ArrayList<>(manifest.getOutput());
+        files.addAll(manifest.getError());
+        Map<BulkExportManifest.OutputFile, Path> paths = new LinkedHashMap<>();
+        Map<String, Integer> perType = new HashMap<>();
+        for (BulkExportManifest.OutputFile file : files) {
+            String type = file.getType() == null ? "file" : file.getType();
+            int index = perType.containsKey(type) ? perType.get(type) + 1 : 1;
+            perType.put(type, index);
+            paths.put(file, directory.resolve(type + "-" + index + ".ndjson"));
+        }
+        if (paths.isEmpty()) {
+            return paths;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(mMaxParallelDownloads, paths.size()),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "BulkExport");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        List<Future<?>> downloads = new ArrayList<>();
+        try {
+            for (final Map.Entry<BulkExportManifest.OutputFile, Path> entry : paths.entrySet()) {
+                downloads.add(executor.submit(() -> {
+                    downloadFile(entry.getKey().getUrl(), bearer, entry.getValue());
+                    return null;
+                }));
+            }
+            for (Future<?> download : downloads) {
+                download.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading the bulk export");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+        return paths;
+    }
+
+    private void downloadFile(String url, String bearer, Path path) throws IOException {
+        Response<ResponseBody> response = mFhirInterface.bulkExportFile(url, FHIR_NDJSON, bearer).execute();
+        if (!response.isSuccessful()) {
+            throw FhirCallUtils.toException(response);
+        }
+        try (ResponseBody body = response.body();
+             ReadableByteChannel source = Channels.newChannel(body.byteStream());
+             FileChannel target = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long transferred;
+            while ((transferred = target.transferFrom(source, position, TRANSFER_CHUNK)) > 0) {
+                position += transferred;
+            }
+        }
+    }
+
+    /**
+     * See {@link FhirCallUtils#retryAfterMillis(Headers, long)}.
+     */
+    static long retryAfterMillis(Headers headers, long now) {
+        return FhirCallUtils.retryAfterMillis(headers, now);
+    }
+
+    public static class BulkExportBuilder {
+
+        private final FhirInterface mFhirInterface;
+        private String mEndpoint = "$export";
+        private final Map<String, String> mParameters = new LinkedHashMap<>();
+        private String mBearer;
+        private long mPollIntervalMillis = DEFAULT_POLL_INTERVAL_MILLIS;
+        private long mMaxPollIntervalMillis = DEFAULT_MAX_POLL_INTERVAL_MILLIS;
+        private int mMaxParallelDownloads = DEFAULT_MAX_PARALLEL_DOWNLOADS;
+
+        public BulkExportBuilder(FhirInterface fhirInterface) {
+            if (fhirInterface == null) throw new NullPointerException("FhirInterface == null");
+            mFhirInterface = fhirInterface;
+            mParameters.put("_outputFormat", FHIR_NDJSON);
+        }
+
+        /**
+         * The kick-off endpoint: {@code $export} (the default), {@code Patient/$export} or
+         * {@code Group/[id]/$export}.
+         */
+        public BulkExportBuilder endpoint(String endpoint) {
+            mEndpoint = endpoint;
+            return this;
+        }
+
+        /**
+         * Restricts the export to the given resource types ({@code _type}).
+         */
+        public BulkExportBuilder types(String... types) {
+            return parameter("_type", String.join(",", types));
+        }
+
+        /**
+         * Only exports resources updated after the instant ({@code _since}), typically the
+         * {@link BulkExportManifest#getTransactionTime() transaction time} of the previous export.
+         */
+        public BulkExportBuilder since(String instant) {
+            return parameter("_since", instant);
+        }
+
+        public BulkExportBuilder parameter(String name, String value) {
+            mParameters.put(name, value);
+            return this;
+        }
+
+        public BulkExportBuilder bearer(String bearer) {
+            mBearer = bearer;
+            return this;
+        }
+
+        /**
+         * First wait between polls when the server sends no {@code Retry-After}; doubled on every poll. Defaults to
+         * {@value #DEFAULT_POLL_INTERVAL_MILLIS} ms.
+         */
+        public BulkExportBuilder pollInterval(long interval, TimeUnit unit) {
+            if (interval < 0) throw new IllegalArgumentException("interval < 0");
+            mPollIntervalMillis = unit.toMillis(interval);
+            return this;
+        }
+
+        /**
+         * Longest wait between polls, also capping {@code Retry-After}. Defaults to
+         * {@value #DEFAULT_MAX_POLL_INTERVAL_MILLIS} ms.
+         */
+        public BulkExportBuilder maxPollInterval(long interval, TimeUnit unit) {
+            if (interval < 0) throw new IllegalArgumentException("interval < 0");
+            mMaxPollIntervalMillis = unit.toMillis(interval);
+            return this;
+        }
+
+        /**
+         * Number of files downloaded at the same time. Defaults to {@value #DEFAULT_MAX_PARALLEL_DOWNLOADS}.
+         */
+        public BulkExportBuilder maxParallelDownloads(int maxParallelDownloads) {
+            if (maxParallelDownloads < 1) throw new IllegalArgumentException("maxParallelDownloads < 1");
+            mMaxParallelDownloads = maxParallelDownloads;
+            return this;
+        }
+
+        /**
+         * Sends the kick-off request.
+         *
+         * @throws IOException if the server did not accept the export with {@code 202} and a status URL.
+         */
+        public BulkExport start() throws IOException {
+            Response<Void> response = mFhirInterface.bulkExport(mEndpoint, mParameters, FHIR_JSON, RESPOND_ASYNC,
+                    mBearer).execute();
+            if (!response.isSuccessful()) {
+                throw FhirCallUtils.toException(response);
+            }
+            String statusUrl = response.headers().get(CONTENT_LOCATION);
+            if (response.code() != 202 || statusUrl == null) {
+                throw new IOException("Bulk export kick-off returned " + response.code() + " without a "
+                        + CONTENT_LOCATION);
+            }
+            return new BulkExport(this, statusUrl);
+        }
+    }
+}
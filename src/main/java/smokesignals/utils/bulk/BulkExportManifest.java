@@ -0,0 +1,134 @@
+package smokesignals.utils.bulk;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The JSON manifest returned by the status endpoint of a completed Bulk Data export, for example
+ * <pre>
+ * {
+ *   "transactionTime": "2018-01-01T00:00:00Z",
+ *   "request": "[base]/Patient/$export?_type=Patient,Observation",
+ *   "requiresAccessToken": true,
+ *   "output": [{"type": "Patient", "url": "[file url]", "count": 100}],
+ *   "error": [{"type": "OperationOutcome", "url": "[file url]"}]
+ * }
+ * </pre>
+ * The manifest is not a FHIR resource, so it is read with Jackson rather than the HAPI parser.
+ */
+public class BulkExportManifest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String mTransactionTime;
+    private final String mRequest;
+    private final boolean mRequiresAccessToken;
+    private final List<OutputFile> mOutput;
+    private final List<OutputFile> mError;
+
+    private BulkExportManifest(String transactionTime, String request, boolean requiresAccessToken,
+                               List<OutputFile> output, List<OutputFile> error) {
+        mTransactionTime = transactionTime;
+        mRequest = request;
+        mRequiresAccessToken = requiresAccessToken;
+        mOutput = Collections.unmodifiableList(output);
+        mError = Collections.unmodifiableList(error);
+    }
+
+    /**
+     * Reads a manifest. The stream is not closed.
+     */
+    public static BulkExportManifest parse(InputStream json) throws IOException {
+        JsonNode root = MAPPER.readTree(json);
+        if (root == null || !root.isObject()) {
+            throw new IOException("Bulk export manifest is not a JSON object");
+        }
+        return new BulkExportManifest(
+                root.path("transactionTime").asText(null),
+                root.path("request").asText(null),
+                root.path("requiresAccessToken").asBoolean(false),
+                files(root.path("output")),
+                files(root.path("error")));
+    }
+
+    private static List<OutputFile> files(JsonNode array) throws IOException {
+        List<OutputFile> files = new ArrayList<>();
+        for (JsonNode file : array) {
+            String url = file.path("url").asText(null);
+            if (url == null) {
+                throw new IOException("Bulk export manifest lists a file without a url");
+            }
+            files.add(new OutputFile(file.path("type").asText(null), url,
+                    file.has("count") ? file.get("count").asLong() : -1));
+        }
+        return files;
+    }
+
+    /**
+     * The server time the export was run at, to be used as {@code _since} of the next incremental export.
+     */
+    public String getTransactionTime() {
+        return mTransactionTime;
+    }
+
+    public String getRequest() {
+        return mRequest;
+    }
+
+    /**
+     * Whether the file URLs need the {@code Authorization} header of the kick-off request.
+     */
+    public boolean isRequiresAccessToken() {
+        return mRequiresAccessToken;
+    }
+
+    public List<OutputFile> getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * Files of {@code OperationOutcome}s for resources the server failed to export.
+     */
+    public List<OutputFile> getError() {
+        return mError;
+    }
+
+    public static class OutputFile {
+
+        private final String mType;
+        private final String mUrl;
+        private final long mCount;
+
+        OutputFile(String type, String url, long count) {
+            mType = type;
+            mUrl = url;
+            mCount = count;
+        }
+
+        public String getType() {
+            return mType;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        /**
+         * Number of resources in the file, or {@code -1} if the server did not say.
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String toString() {
+            return mType + " " + mUrl;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package smokesignals.utils.bulk;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads a newline delimited JSON file, such as a Bulk Data export output, one resource per line.
+ * <p>
+ * The file is memory mapped in windows of {@code windowSize} bytes, so reading it neither copies it onto the heap nor
+ * is limited to 2 GB. Lines are only located while iterating, and each one is decoded and parsed by
+ * {@link #next()}, so skipping the rest of a file costs nothing. A single line must fit in a window. Blank lines are
+ * ignored.
+ */
+public class NdjsonResourceReader implements Iterator<IBaseResource>, Closeable {
+
+    public static final int DEFAULT_WINDOW_SIZE = 64 << 20;
+
+    private final IParser mParser;
+    private final FileChannel mChannel;
+    private final long mSize;
+    private final int mWindowSize;
+
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+    private long mLineStart;
+    private int mLineLength = -1;
+    private long mNextLineStart;
+
+    public NdjsonResourceReader(FhirContext context, Path file) throws IOException {
+        this(context, file, DEFAULT_WINDOW_SIZE);
+    }
+
+    public NdjsonResourceReader(FhirContext context, Path file, int windowSize) throws IOException {
+        if (windowSize < 1) throw new IllegalArgumentException("windowSize < 1");
+        mParser = context.newJsonParser();
+        mChannel = FileChannel.open(file, StandardOpenOption.READ);
+        mSize = mChannel.size();
+        mWindowSize = windowSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (mLineLength < 0 && mLineStart < mSize) {
+                findLine();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return mLineLength >= 0;
+    }
+
+    /**
+     * Parses the next line.
+     */
+    @Override
+    public IBaseResource next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        int offset = (int) (mLineStart - mWindowStart);
+        byte[] line = new byte[mLineLength];
+        mWindow.position(offset);
+        mWindow.get(line);
+        mLineStart = mNextLineStart;
+        mLineLength = -1;
+        return mParser.parseResource(new String(line, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns a sequential {@link Stream} over the remaining resources. Closing the stream closes this reader.
+     */
+    public Stream<IBaseResource> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    try {
+                        close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    /**
+     * Closes the file. The last mapped window is released by the garbage collector.
+     */
+    @Override
+    public void close() throws IOException {
+        mWindow = null;
+        mChannel.close();
+    }
+
+    /**
+     * Locates the line starting at {@code mLineStart}, remapping the window there when the line runs past its end.
+     * Sets {@code mLineLength} unless the line is blank, in which case {@code mLineStart} moves on to the next one.
+     */
+    private void findLine() throws IOException {
+        if (mWindow == null || mLineStart >= mWindowStart + mWindow.limit()) {
+            map(mLineStart);
+        }
+        int start = (int) (mLineStart - mWindowStart);
+        int end = indexOfNewline(start);
+        if (end < 0 && mWindowStart + mWindow.limit() < mSize) {
+            if (start > 0) {
+                map(mLineStart);
+                start = 0;
+                end = indexOfNewline(start);
+            }
+            if (end < 0 && mWindowStart + mWindow.limit() < mSize) {
+                throw new IOException("Line at byte " + mLineStart + " is longer than the window of "
+                        + mWindowSize + " bytes");
+            }
+        }
+        if (end < 0) {
+            end = mWindow.limit();
+        }
+        int length = end - start;
+        if (length > 0 && mWindow.get(end - 1) == '\r') {
+            length--;
+        }
+        mNextLineStart = mWindowStart + end + 1;
+        if (isBlank(start, length)) {
+            mLineStart = mNextLineStart;
+        } else {
+            mLineLength = length;
+        }
+    }
+
+    private int indexOfNewline(int from) {
+        for (int i = from; i < mWindow.limit(); i++) {
+            if (mWindow.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isBlank(int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            byte b = mWindow.get(i);
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void map(long position) throws IOException {
+        mWindowStart = position;
+        mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(mWindowSize, mSize - position));
+    }
+}
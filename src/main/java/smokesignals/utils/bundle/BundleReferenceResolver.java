@@ -0,0 +1,201 @@
+package smokesignals.utils.bundle;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.primitive.IdDt;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.paging.SearchPager;
+import smokesignals.utils.query.FhirQuery;
+import smokesignals.utils.query.Query;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves references between the resources of a {@link Bundle}, such as a search page with {@code _include}d
+ * resources, in constant time.
+ * <p>
+ * The resources are indexed once, by {@code fullUrl} and by {@code [type]/[id]}, so resolving a reference is a hash
+ * lookup instead of a scan of {@code Bundle.entry}. Relative references, and absolute ones on the same server base as
+ * the entries, resolve by type and id, whatever the version. Contained ({@code #id}) references are left alone.
+ * <p>
+ * References to resources the bundle does not hold can be {@link #fetch(FhirInterface, Iterable, String) fetched}
+ * all at once, with one {@code _id=a,b,c} search per resource type rather than a read per reference:
+ * <pre>
+ * BundleReferenceResolver resolver = new BundleReferenceResolver(page);
+ * List&lt;ResourceReferenceDt&gt; unresolved = resolver.link(fhirContext);
+ * resolver.fetch(fhirInterface, unresolved, bearer);
+ * resolver.link(fhirContext);
+ * </pre>
+ */
+public class BundleReferenceResolver {
+
+    public static final int DEFAULT_IDS_PER_SEARCH = 100;
+
+    private final Map<String, IResource> mByFullUrl = new HashMap<>();
+    private final Map<String, IResource> mByTypeAndId = new HashMap<>();
+    private final Set<String> mBaseUrls = new HashSet<>();
+    private final List<IResource> mResources = new ArrayList<>();
+
+    public BundleReferenceResolver(Bundle bundle) {
+        if (bundle == null) throw new NullPointerException("Bundle == null");
+        for (Bundle.Entry entry : bundle.getEntry()) {
+            IResource resource = entry.getResource();
+            if (resource != null) {
+                add(resource, entry.getFullUrl());
+            }
+        }
+    }
+
+    /**
+     * Indexes another resource, for example from the next page of the same search.
+     *
+     * @param fullUrl the resource's {@code fullUrl}, or null.
+     */
+    public void add(IResource resource, String fullUrl) {
+        if (resource == null) throw new NullPointerException("IResource == null");
+        mResources.add(resource);
+        if (fullUrl != null && !fullUrl.isEmpty()) {
+            mByFullUrl.put(fullUrl, resource);
+            IdDt id = new IdDt(fullUrl);
+            if (id.isAbsolute() && id.hasBaseUrl()) {
+                mBaseUrls.add(id.getBaseUrl());
+            }
+        }
+        String key = key(resource.getResourceName(), resource.getIdElement().getIdPart());
+        if (key != null) {
+            mByTypeAndId.put(key, resource);
+        }
+    }
+
+    /**
+     * The indexed resource the reference points to, or null.
+     */
+    public IResource resolve(ResourceReferenceDt reference) {
+        if (reference == null) {
+            return null;
+        }
+        IResource resource = (IResource) reference.getResource();
+        return resource != null ? resource : resolve(reference.getReference().getValue());
+    }
+
+    /**
+     * The indexed resource the reference points to, or null.
+     */
+    public IResource resolve(String reference) {
+        if (reference == null || reference.isEmpty() || reference.startsWith("#")) {
+            return null;
+        }
+        IResource resource = mByFullUrl.get(reference);
+        if (resource != null) {
+            return resource;
+        }
+        IdDt id = new IdDt(reference);
+        if (id.isAbsolute() && !mBaseUrls.contains(id.getBaseUrl())) {
+            return null;
+        }
+        String key = key(id.getResourceType(), id.getIdPart());
+        return key == null ? null : mByTypeAndId.get(key);
+    }
+
+    /**
+     * Sets the target of every reference held by the indexed resources, so that
+     * {@link ResourceReferenceDt#getResource()} returns it.
+     *
+     * @return the references that could not be resolved, contained ones excepted.
+     */
+    public List<ResourceReferenceDt> link(FhirContext fhirContext) {
+        List<ResourceReferenceDt> unresolved = new ArrayList<>();
+        // the list grows when fetching, so iterate over what is there now
+        for (IResource resource : new ArrayList<>(mResources)) {
+            for (ResourceReferenceDt reference : fhirContext.newTerser()
+                    .getAllPopulatedChildElementsOfType(resource, ResourceReferenceDt.class)) {
+                if (reference.getResource() != null || reference.getReference().isLocal()) {
+                    continue;
+                }
+                IResource target = resolve(reference.getReference().getValue());
+                if (target != null) {
+                    reference.setResource(target);
+                } else {
+                    unresolved.add(reference);
+                }
+            }
+        }
+        return unresolved;
+    }
+
+    /**
+     * Fetches and indexes the targets of the given references that are not indexed yet, using one
+     * {@code GET [type]?_id=a,b,c} search per resource type and {@value #DEFAULT_IDS_PER_SEARCH} ids.
+     *
+     * @param bearer Authorization header sent with every search and every page of it, or null.
+     * @return the number of resources fetched. Ids the server does not know are simply not found.
+     */
+    public int fetch(FhirInterface fhirInterface, Iterable<ResourceReferenceDt> references, String bearer) {
+        return fetch(fhirInterface, references, DEFAULT_IDS_PER_SEARCH, bearer);
+    }
+
+    /**
+     * @see #fetch(FhirInterface, Iterable, String)
+     */
+    public int fetch(FhirInterface fhirInterface, Iterable<ResourceReferenceDt> references, int idsPerSearch,
+                     String bearer) {
+        if (fhirInterface == null) throw new NullPointerException("FhirInterface == null");
+        if (idsPerSearch < 1) throw new IllegalArgumentException("idsPerSearch < 1");
+        Map<String, Set<String>> missing = new LinkedHashMap<>();
+        for (ResourceReferenceDt reference : references) {
+            IdDt id = reference.getReference();
+            if (resolve(reference) != null || id.isLocal() || !id.hasResourceType() || !id.hasIdPart()) {
+                continue;
+            }
+            if (id.isAbsolute() && !mBaseUrls.contains(id.getBaseUrl())) {
+                // on another server, not ours to search
+                continue;
+            }
+            missing.computeIfAbsent(id.getResourceType(), type -> new LinkedHashSet<>()).add(id.getIdPart());
+        }
+        int fetched = 0;
+        for (Map.Entry<String, Set<String>> type : missing.entrySet()) {
+            List<String> ids = new ArrayList<>(type.getValue());
+            for (int from = 0; from < ids.size(); from += idsPerSearch) {
+                List<String> chunk = ids.subList(from, Math.min(ids.size(), from + idsPerSearch));
+                FhirQuery query = new FhirQuery.FhirQueryBuilder()
+                        .where(Query.id(String.join(",", chunk)))
+                        .where(Query.count(chunk.size()))
+                        .build();
+                try (SearchPager pager = new SearchPager.SearchPagerBuilder(fhirInterface)
+                        .firstPage(fhirInterface.search(type.getKey(), query, bearer))
+                        .bearer(bearer)
+                        .build()) {
+                    while (pager.hasNext()) {
+                        Bundle.Entry entry = pager.next();
+                        if (entry.getResource() != null) {
+                            add(entry.getResource(), entry.getFullUrl());
+                            fetched++;
+                        }
+                    }
+                }
+            }
+        }
+        return fetched;
+    }
+
+    /**
+     * The number of resources indexed.
+     */
+    public int size() {
+        return mResources.size();
+    }
+
+    private static String key(String resourceType, String id) {
+        return resourceType == null || id == null ? null : resourceType + "/" + id;
+    }
+}
@@ -0,0 +1,724 @@
+package smokesignals.utils.cache;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.parser.IParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Serialized resources kept outside the Java heap, so that holding hundreds of thousands of them adds nothing for the
+ * garbage collector to trace.
+ * <p>
+ * Resources are stored as their JSON, deflated when {@link OffHeapResourceStoreBuilder#compress(boolean) compression}
+ * is on and it saves space, and appended to direct {@link ByteBuffer} segments of a fixed size. An open addressing
+ * index of primitive arrays maps the 64-bit hash of each key, {@code [type]/[id]} or
+ * {@code [type]/[id]/_history/[version]}, to the segment and offset of its record, and the key kept in the record
+ * settles collisions. Reads copy the record out under a shared lock and parse it with the {@link FhirContext} given
+ * to the builder, so every {@link #get(String)} returns a new instance that callers may change freely.
+ * <p>
+ * Replacing or removing a key leaves its old record behind as garbage. Once a full segment is mostly garbage it is
+ * compacted in the background, one segment at a time, by appending its live records at the tail and recycling it, so
+ * a compaction only ever blocks the store for the time it takes to move one segment. When every segment is in use the
+ * oldest one is recycled whole and its entries are evicted, which makes the store a FIFO cache bounded by
+ * {@link OffHeapResourceStoreBuilder#maxBytes(long)}. Use it as the storage tier of a {@link ReadCache}:
+ * <pre>
+ * OffHeapResourceStore store = new OffHeapResourceStore.OffHeapResourceStoreBuilder(fhirContext)
+ *         .maxBytes(1L &lt;&lt; 30)
+ *         .compress(true)
+ *         .build();
+ * ReadCache cache = new ReadCache.ReadCacheBuilder(fhirInterface, fhirContext)
+ *         .store(store)
+ *         .build();
+ * </pre>
+ * The store is safe for concurrent use. {@link #close() Closing} it stops its compaction thread; the segments are
+ * released by the garbage collector.
+ */
+public class OffHeapResourceStore implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+    public static final long DEFAULT_MAX_BYTES = 256L << 20;
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private static final String HISTORY = "/_history/";
+
+    /**
+     * Record length, key length, flags and uncompressed payload length, followed by the key and the payload.
+     */
+    private static final int HEADER = 4 + 2 + 1 + 4;
+    private static final byte COMPRESSED = 1;
+    private static final int MIN_COMPRESS_BYTES = 512;
+
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ThreadLocal<IParser> mFhirJsonParser;
+    private final int mSegmentSize;
+    private final boolean mCompress;
+    private final double mCompactionThreshold;
+    private final Executor mCompactionExecutor;
+    private final boolean mOwnsExecutor;
+
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final ByteBuffer[] mSegments;
+    private final int[] mLiveBytes;
+    private final long[] mSequence;
+    private final ArrayDeque<Integer> mFree = new ArrayDeque<>();
+    private int mAllocated;
+    private int mCurrent = -1;
+    private long mNextSequence;
+
+    private long[] mHashes = new long[INITIAL_CAPACITY];
+    private long[] mLocations = new long[INITIAL_CAPACITY];
+    private int mSize;
+    private int mUsed;
+
+    private final AtomicBoolean mCompactionScheduled = new AtomicBoolean();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private final AtomicLong mCompactions = new AtomicLong();
+
+    private OffHeapResourceStore(OffHeapResourceStoreBuilder builder) {
+        final FhirContext fhirContext = builder.mFhirContext;
+        mFhirJsonParser = ThreadLocal.withInitial(fhirContext::newJsonParser);
+        mSegmentSize = builder.mSegmentSize;
+        mCompress = builder.mCompress;
+        mCompactionThreshold = builder.mCompactionThreshold;
+        mOwnsExecutor = builder.mCompactionExecutor == null;
+        mCompactionExecutor = mOwnsExecutor ? compactionExecutor() : builder.mCompactionExecutor;
+        int segments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, builder.mMaxBytes / mSegmentSize));
+        mSegments = new ByteBuffer[segments];
+        mLiveBytes = new int[segments];
+        mSequence = new long[segments];
+    }
+
+    /**
+     * The key of a version of a resource, or of its current version when {@code version} is null.
+     */
+    public static String key(String resourceType, String id, String version) {
+        return version == null ? resourceType + "/" + id : resourceType + "/" + id + HISTORY + version;
+    }
+
+    /**
+     * Stores a resource under the key of its id, with the version when the id has one.
+     *
+     * @return false when the resource is too large for a segment.
+     */
+    public boolean put(BaseResource resource) {
+        IdDt id = resource.getId();
+        if (id == null || !id.hasIdPart()) throw new IllegalArgumentException("resource has no id");
+        return put(key(resource.getResourceName(), id.getIdPart(), id.getVersionIdPart()), resource);
+    }
+
+    public boolean put(String key, BaseResource resource) {
+        return put(key, mFhirJsonParser.get().encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Stores the JSON of a resource, replacing whatever was stored under {@code key}.
+     *
+     * @return false when the record is too large for a segment.
+     */
+    public boolean put(String key, byte[] json) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > Short.MAX_VALUE) throw new IllegalArgumentException("key is too long");
+        byte[] payload = json;
+        byte flags = 0;
+        if (mCompress && json.length >= MIN_COMPRESS_BYTES) {
+            byte[] deflated = deflate(json);
+            if (deflated.length < json.length) {
+                payload = deflated;
+                flags = COMPRESSED;
+            }
+        }
+        int length = HEADER + keyBytes.length + payload.length;
+        if (length > mSegmentSize) {
+            return false;
+        }
+        long hash = hash(keyBytes);
+
+        mLock.writeLock().lock();
+        try {
+            long location = append(length, keyBytes, flags, json.length, payload, -1);
+            long previous = indexPut(hash, keyBytes, location);
+            if (previous != EMPTY) {
+                release(previous);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        scheduleCompaction();
+        return true;
+    }
+
+    /**
+     * Parses the resource stored under {@code key}, or returns null.
+     */
+    public BaseResource get(String key) {
+        byte[] json = getBytes(key);
+        return json == null ? null : (BaseResource) mFhirJsonParser.get().parseResource(
+                new String(json, StandardCharsets.UTF_8));
+    }
+
+    public BaseResource get(String resourceType, String id, String version) {
+        return get(key(resourceType, id, version));
+    }
+
+    /**
+     * The JSON stored under {@code key}, or null.
+     */
+    public byte[] getBytes(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(keyBytes);
+        byte flags;
+        int rawLength;
+        byte[] payload;
+        mLock.readLock().lock();
+        try {
+            int slot = find(hash, keyBytes);
+            if (slot < 0) {
+                return null;
+            }
+            long location = mLocations[slot];
+            ByteBuffer segment = segment(location).duplicate();
+            int offset = offset(location);
+            int length = segment.getInt(offset);
+            int keyLength = segment.getShort(offset + 4);
+            flags = segment.get(offset + 6);
+            rawLength = segment.getInt(offset + 7);
+            payload = new byte[length - HEADER - keyLength];
+            segment.position(offset + HEADER + keyLength);
+            segment.get(payload);
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return (flags & COMPRESSED) != 0 ? inflate(payload, rawLength) : payload;
+    }
+
+    public boolean contains(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        mLock.readLock().lock();
+        try {
+            return find(hash(keyBytes), keyBytes) >= 0;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    public boolean remove(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        mLock.writeLock().lock();
+        try {
+            int slot = find(hash(keyBytes), keyBytes);
+            if (slot < 0) {
+                return false;
+            }
+            release(mLocations[slot]);
+            mLocations[slot] = DELETED;
+            mSize--;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        scheduleCompaction();
+        return true;
+    }
+
+    public void clear() {
+        mLock.writeLock().lock();
+        try {
+            Arrays.fill(mLocations, EMPTY);
+            mSize = 0;
+            mUsed = 0;
+            mFree.clear();
+            for (int i = 0; i < mAllocated; i++) {
+                mSegments[i].clear();
+                mLiveBytes[i] = 0;
+                mSequence[i] = 0;
+                mFree.add(i);
+            }
+            mCurrent = -1;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compacts every full segment whose share of garbage has reached the threshold, each under its own lock.
+     *
+     * @return the number of segments compacted.
+     */
+    public int compact() {
+        int compacted = 0;
+        int segment;
+        while ((segment = nextToCompact()) >= 0) {
+            mLock.writeLock().lock();
+            try {
+                if (isWorthCompacting(segment)) {
+                    compact(segment);
+                    compacted++;
+                }
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        }
+        return compacted;
+    }
+
+    public int getSize() {
+        mLock.readLock().lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Off-heap bytes held by the records that are still reachable.
+     */
+    public long getLiveBytes() {
+        mLock.readLock().lock();
+        try {
+            long live = 0;
+            for (int i = 0; i < mAllocated; i++) {
+                live += mLiveBytes[i];
+            }
+            return live;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Off-heap bytes allocated for segments, live or not.
+     */
+    public long getAllocatedBytes() {
+        mLock.readLock().lock();
+        try {
+            return (long) mAllocated * mSegmentSize;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Entries dropped because the store was full.
+     */
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    public long getCompactionCount() {
+        return mCompactions.get();
+    }
+
+    @Override
+    public void close() {
+        if (mOwnsExecutor) {
+            ((ExecutorService) mCompactionExecutor).shutdownNow();
+        }
+    }
+
+    /**
+     * Writes a record at the tail, moving on to a new segment when it does not fit in the current one.
+     *
+     * @param excluded a segment that must not be recycled to make room, or -1.
+     */
+    private long append(int length, byte[] keyBytes, byte flags, int rawLength, byte[] payload, int excluded) {
+        if (mCurrent < 0 || mSegments[mCurrent].remaining() < length) {
+            nextSegment(excluded);
+        }
+        ByteBuffer segment = mSegments[mCurrent];
+        int offset = segment.position();
+        segment.putInt(length).putShort((short) keyBytes.length).put(flags).putInt(rawLength)
+                .put(keyBytes).put(payload);
+        mLiveBytes[mCurrent] += length;
+        return location(mCurrent, offset);
+    }
+
+    private void nextSegment(int excluded) {
+        int next;
+        if (!mFree.isEmpty()) {
+            next = mFree.poll();
+        } else if (mAllocated < mSegments.length) {
+            next = mAllocated++;
+            mSegments[next] = ByteBuffer.allocateDirect(mSegmentSize);
+        } else {
+            next = -1;
+            for (int i = 0; i < mAllocated; i++) {
+                if (i != excluded && (next < 0 || mSequence[i] < mSequence[next])) {
+                    next = i;
+                }
+            }
+            evict(next);
+        }
+        mSegments[next].clear();
+        mLiveBytes[next] = 0;
+        mSequence[next] = ++mNextSequence;
+        mCurrent = next;
+    }
+
+    /**
+     * Drops every entry whose record lies in {@code segment}.
+     */
+    private void evict(int segment) {
+        ByteBuffer buffer = mSegments[segment];
+        int offset = 0;
+        while (offset < buffer.position()) {
+            int length = buffer.getInt(offset);
+            long location = location(segment, offset);
+            int slot = findLocation(hash(buffer, offset), location);
+            if (slot >= 0) {
+                mLocations[slot] = DELETED;
+                mSize--;
+                mEvictions.incrementAndGet();
+            }
+            offset += length;
+        }
+    }
+
+    /**
+     * Moves the live records of {@code segment} to the tail and recycles it.
+     */
+    private void compact(int segment) {
+        ByteBuffer buffer = mSegments[segment];
+        int end = buffer.position();
+        int offset = 0;
+        while (offset < end) {
+            int length = buffer.getInt(offset);
+            long hash = hash(buffer, offset);
+            int slot = findLocation(hash, location(segment, offset));
+            if (slot >= 0) {
+                int keyLength = buffer.getShort(offset + 4);
+                byte[] keyBytes = new byte[keyLength];
+                byte[] payload = new byte[length - HEADER - keyLength];
+                ByteBuffer record = buffer.duplicate();
+                record.position(offset + HEADER);
+                record.get(keyBytes).get(payload);
+                // making room may evict another segment, but never this one, so the slot stays valid
+                mLocations[slot] = append(length, keyBytes, buffer.get(offset + 6), buffer.getInt(offset + 7),
+                        payload, segment);
+            }
+            offset += length;
+        }
+        buffer.clear();
+        mLiveBytes[segment] = 0;
+        mSequence[segment] = 0;
+        mFree.add(segment);
+        mCompactions.incrementAndGet();
+    }
+
+    private int nextToCompact() {
+        mLock.readLock().lock();
+        try {
+            int worst = -1;
+            double worstGarbage = 0;
+            for (int i = 0; i < mAllocated; i++) {
+                if (isWorthCompacting(i)) {
+                    double garbage = garbage(i);
+                    if (garbage > worstGarbage) {
+                        worst = i;
+                        worstGarbage = garbage;
+                    }
+                }
+            }
+            return worst;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Whether {@code segment} is full, not being written to, and holds enough garbage.
+     */
+    private boolean isWorthCompacting(int segment) {
+        return segment != mCurrent && mSequence[segment] != 0 && garbage(segment) >= mCompactionThreshold;
+    }
+
+    private double garbage(int segment) {
+        int used = mSegments[segment].position();
+        return used == 0 ? 0 : (double) (used - mLiveBytes[segment]) / used;
+    }
+
+    private void scheduleCompaction() {
+        if (nextToCompact() < 0 || !mCompactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mCompactionExecutor.execute(() -> {
+                try {
+                    compact();
+                } finally {
+                    mCompactionScheduled.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mCompactionScheduled.set(false);
+        }
+    }
+
+    private void release(long location) {
+        int segment = (int) (location >>> 32) - 1;
+        mLiveBytes[segment] -= mSegments[segment].getInt(offset(location));
+    }
+
+    // index
+
+    private int find(long hash, byte[] keyBytes) {
+        int mask = mLocations.length - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            long location = mLocations[i];
+            if (location == EMPTY) {
+                return -1;
+            }
+            if (location != DELETED && mHashes[i] == hash && keyEquals(location, keyBytes)) {
+                return i;
+            }
+        }
+    }
+
+    private int findLocation(long hash, long location) {
+        int mask = mLocations.length - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            if (mLocations[i] == EMPTY) {
+                return -1;
+            }
+            if (mLocations[i] == location) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * Points {@code keyBytes} at {@code location}.
+     *
+     * @return the location it pointed at before, or {@link #EMPTY}.
+     */
+    private long indexPut(long hash, byte[] keyBytes, long location) {
+        int slot = find(hash, keyBytes);
+        if (slot >= 0) {
+            long previous = mLocations[slot];
+            mLocations[slot] = location;
+            return previous;
+        }
+        if ((mUsed + 1) * 2 > mLocations.length) {
+            rehash();
+        }
+        insert(hash, location);
+        mSize++;
+        return EMPTY;
+    }
+
+    private void insert(long hash, long location) {
+        int mask = mLocations.length - 1;
+        int i = spread(hash) & mask;
+        while (mLocations[i] != EMPTY && mLocations[i] != DELETED) {
+            i = (i + 1) & mask;
+        }
+        if (mLocations[i] == EMPTY) {
+            mUsed++;
+        }
+        mHashes[i] = hash;
+        mLocations[i] = location;
+    }
+
+    /**
+     * Rebuilds the index without its deleted slots, doubling it when the live entries would fill more than a quarter.
+     */
+    private void rehash() {
+        long[] hashes = mHashes;
+        long[] locations = mLocations;
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < (mSize + 1) * 4) {
+            capacity <<= 1;
+        }
+        mHashes = new long[capacity];
+        mLocations = new long[capacity];
+        mUsed = 0;
+        for (int i = 0; i < locations.length; i++) {
+            if (locations[i] != EMPTY && locations[i] != DELETED) {
+                insert(hashes[i], locations[i]);
+            }
+        }
+    }
+
+    private boolean keyEquals(long location, byte[] keyBytes) {
+        ByteBuffer segment = segment(location);
+        int offset = offset(location);
+        if (segment.getShort(offset + 4) != keyBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (segment.get(offset + HEADER + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ByteBuffer segment(long location) {
+        return mSegments[(int) (location >>> 32) - 1];
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) (segment + 1) << 32) | (offset & 0xffffffffL);
+    }
+
+    /**
+     * 64-bit FNV-1a.
+     */
+    static long hash(byte[] keyBytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : keyBytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long hash(ByteBuffer segment, int offset) {
+        int keyLength = segment.getShort(offset + 4);
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < keyLength; i++) {
+            hash ^= segment.get(offset + HEADER + i) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static int spread(long hash) {
+        long h = hash ^ (hash >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        return (int) (h ^ (h >>> 33));
+    }
+
+    // compression
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes, int rawLength) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            byte[] raw = new byte[rawLength];
+            int read = 0;
+            while (read < rawLength && !inflater.finished()) {
+                read += inflater.inflate(raw, read, rawLength - read);
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt record", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static ExecutorService compactionExecutor() {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fhir-store-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static class OffHeapResourceStoreBuilder {
+
+        private final FhirContext mFhirContext;
+        private long mMaxBytes = DEFAULT_MAX_BYTES;
+        private int mSegmentSize = DEFAULT_SEGMENT_SIZE;
+        private boolean mCompress;
+        private double mCompactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+        private Executor mCompactionExecutor;
+
+        /**
+         * @param fhirContext used to encode the resources stored and to parse those read back.
+         */
+        public OffHeapResourceStoreBuilder(FhirContext fhirContext) {
+            if (fhirContext == null) throw new NullPointerException("FhirContext == null");
+            mFhirContext = fhirContext;
+        }
+
+        /**
+         * Upper bound on the off-heap memory used, rounded down to whole segments but at least one. Defaults to
+         * 256 MiB.
+         */
+        public OffHeapResourceStoreBuilder maxBytes(long maxBytes) {
+            if (maxBytes < 1) throw new IllegalArgumentException("maxBytes < 1");
+            mMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Size of each segment, and so of the largest record. Defaults to 16 MiB.
+         */
+        public OffHeapResourceStoreBuilder segmentSize(int segmentSize) {
+            if (segmentSize < HEADER + 1) throw new IllegalArgumentException("segmentSize < " + (HEADER + 1));
+            mSegmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Deflate resources of at least 512 bytes of JSON. Off by default.
+         */
+        public OffHeapResourceStoreBuilder compress(boolean compress) {
+            mCompress = compress;
+            return this;
+        }
+
+        /**
+         * Share of garbage, between 0 and 1, at which a full segment is compacted. Defaults to one half.
+         */
+        public OffHeapResourceStoreBuilder compactionThreshold(double threshold) {
+            if (threshold <= 0 || threshold > 1) throw new IllegalArgumentException("threshold " + threshold);
+            mCompactionThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * Runs the background compactions. Defaults to a daemon thread owned by the store.
+         */
+        public OffHeapResourceStoreBuilder compactionExecutor(Executor executor) {
+            if (executor == null) throw new NullPointerException("Executor == null");
+            mCompactionExecutor = executor;
+            return this;
+        }
+
+        public OffHeapResourceStore build() {
+            return new OffHeapResourceStore(this);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package smokesignals.utils.cache;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.parser.IParser;
+import okio.Utf8;
+import retrofit2.Response;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.FhirCallUtils;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least recently used cache in front of {@link FhirInterface#read(String, String, String)} and
+ * {@link FhirInterface#vRead(String, String, String, String)}.
+ * <p>
+ * A version specific read never changes, so {@code vRead} hits are answered from memory without going to the network.
+ * A {@code read} hit younger than the TTL of its resource type is answered from memory as well. Once older, it is
+ * revalidated with {@code If-None-Match} / {@code If-Modified-Since} and a {@code 304 Not Modified} answer returns the
+ * cached instance without parsing anything. The default TTL is zero, so every {@code read} is revalidated.
+ * <p>
+ * Entries are weighed by the size of their JSON representation, taken from {@code Content-Length} when the server
+ * sends it, and the least recently used entries are evicted once {@code maxBytes} is exceeded.
+ * <p>
+ * Cached resources are shared between callers and must be treated as read-only.
+ * <p>
+ * With an {@link OffHeapResourceStore} as its {@link ReadCacheBuilder#store(OffHeapResourceStore) store}, every
+ * version downloaded is also kept serialized off the heap, so {@code vRead} calls that miss the in-memory entries are
+ * answered by parsing the stored copy instead of going to the network. Those copies are not shared.
+ */
+public class ReadCache {
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final String HISTORY = "/_history/";
+
+    private final FhirInterface mFhirInterface;
+    private final ThreadLocal<IParser> mFhirJsonParser;
+    private final long mMaxBytes;
+    private final long mDefaultTtlNanos;
+    private final Map<String, Long> mTtlNanosByType;
+    private final OffHeapResourceStore mStore;
+
+    private final LinkedHashMap<String, CachedResource> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTotalBytes;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mRevalidations = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    private ReadCache(ReadCacheBuilder builder) {
+        mFhirInterface = builder.mFhirInterface;
+        final FhirContext fhirContext = builder.mFhirContext;
+        mFhirJsonParser = ThreadLocal.withInitial(fhirContext::newJsonParser);
+        mMaxBytes = builder.mMaxBytes;
+        mDefaultTtlNanos = builder.mDefaultTtlNanos;
+        mTtlNanosByType = new HashMap<>(builder.mTtlNanosByType);
+        mStore = builder.mStore;
+    }
+
+    /**
+     * {@link FhirInterface#read(String, String, String)} through the cache.
+     *
+     * @throws IOException if the request could not be sent or the body could not be read.
+     * @throws ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException for any status other than
+     *                                                                        {@code 2xx} or {@code 304}.
+     */
+    public BaseResource read(String resourceType, String id, String bearer) throws IOException {
+        String key = resourceType + "/" + id;
+        CachedResource cached = get(key);
+        long now = System.nanoTime();
+
+        if (cached != null && now - cached.mValidatedAt < ttlNanos(resourceType)) {
+            mHits.incrementAndGet();
+            return cached.mResource;
+        }
+
+        Response<BaseResource> response = cached == null
+                ? mFhirInterface.read(resourceType, id, bearer).execute()
+                : mFhirInterface.conditionalRead(resourceType, id, cached.mEtag, cached.mLastModified, bearer).execute();
+
+        if (cached != null && response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            FhirCallUtils.closeErrorBody(response);
+            mRevalidations.incrementAndGet();
+            mHits.incrementAndGet();
+            cached.mValidatedAt = now;
+            return cached.mResource;
+        }
+
+        mMisses.incrementAndGet();
+        if (!response.isSuccessful()) {
+            invalidate(resourceType, id);
+            throw FhirCallUtils.toException(response);
+        }
+        put(key, response, now);
+        BaseResource resource = response.body();
+        if (mStore != null && resource != null && resource.getId().hasVersionIdPart()) {
+            mStore.put(resource);
+        }
+        return resource;
+    }
+
+    /**
+     * {@link FhirInterface#vRead(String, String, String, String)} through the cache. Hits never touch the network.
+     *
+     * @throws IOException if the request could not be sent or the body could not be read.
+     * @throws ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException for any status other than {@code 2xx}.
+     */
+    public BaseResource vRead(String resourceType, String id, String version, String bearer) throws IOException {
+        String key = resourceType + "/" + id + HISTORY + version;
+        CachedResource cached = get(key);
+        if (cached != null) {
+            mHits.incrementAndGet();
+            return cached.mResource;
+        }
+        BaseResource stored = mStore != null ? mStore.get(key) : null;
+        if (stored != null) {
+            mHits.incrementAndGet();
+            return stored;
+        }
+
+        mMisses.incrementAndGet();
+        Response<BaseResource> response = mFhirInterface.vRead(resourceType, id, version, bearer).execute();
+        if (!response.isSuccessful()) {
+            throw FhirCallUtils.toException(response);
+        }
+        put(key, response, System.nanoTime());
+        if (mStore != null && response.body() != null) {
+            mStore.put(key, response.body());
+        }
+        return response.body();
+    }
+
+    /**
+     * Drops the current version of a resource, e.g. after updating or deleting it. Cached versions are kept.
+     */
+    public void invalidate(String resourceType, String id) {
+        synchronized (mEntries) {
+            remove(resourceType + "/" + id);
+        }
+    }
+
+    public void clear() {
+        synchronized (mEntries) {
+            mEntries.clear();
+            mTotalBytes = 0;
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (mEntries) {
+            return new Stats(mHits.get(), mMisses.get(), mRevalidations.get(), mEvictions.get(), mEntries.size(),
+                    mTotalBytes);
+        }
+    }
+
+    private long ttlNanos(String resourceType) {
+        Long ttl = mTtlNanosByType.get(resourceType);
+        return ttl != null ? ttl : mDefaultTtlNanos;
+    }
+
+    private CachedResource get(String key) {
+        synchronized (mEntries) {
+            return mEntries.get(key);
+        }
+    }
+
+    private void put(String key, Response<BaseResource> response, long validatedAt) {
+        BaseResource resource = response.body();
+        if (resource == null) {
+            return;
+        }
+        CachedResource cached = new CachedResource(resource, response.headers().get("ETag"),
+                response.headers().get("Last-Modified"), weigh(response), validatedAt);
+        if (cached.mBytes > mMaxBytes) {
+            return;
+        }
+
+        synchronized (mEntries) {
+            remove(key);
+            mEntries.put(key, cached);
+            mTotalBytes += cached.mBytes;
+
+            Iterator<CachedResource> eldest = mEntries.values().iterator();
+            while (mTotalBytes > mMaxBytes && eldest.hasNext()) {
+                mTotalBytes -= eldest.next().mBytes;
+                eldest.remove();
+                mEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        CachedResource removed = mEntries.remove(key);
+        if (removed != null) {
+            mTotalBytes -= removed.mBytes;
+        }
+    }
+
+    private long weigh(Response<BaseResource> response) {
+        long contentLength = response.raw().body() != null ? response.raw().body().contentLength() : -1;
+        if (contentLength < 0) {
+            contentLength = Utf8.size(mFhirJsonParser.get().encodeResourceToString(response.body()));
+        }
+        return contentLength;
+    }
+
+    private static class CachedResource {
+
+        final BaseResource mResource;
+        final String mEtag;
+        final String mLastModified;
+        final long mBytes;
+        volatile long mValidatedAt;
+
+        CachedResource(BaseResource resource, String etag, String lastModified, long bytes, long validatedAt) {
+            mResource = resource;
+            mEtag = etag;
+            mLastModified = lastModified;
+            mBytes = bytes;
+            mValidatedAt = validatedAt;
+        }
+    }
+
+    /**
+     * Snapshot of the cache counters.
+     */
+    public static class Stats {
+
+        private final long mHitCount;
+        private final long mMissCount;
+        private final long mRevalidationCount;
+        private final long mEvictionCount;
+        private final int mSize;
+        private final long mBytes;
+
+        Stats(long hitCount, long missCount, long revalidationCount, long evictionCount, int size, long bytes) {
+            mHitCount = hitCount;
+            mMissCount = missCount;
+            mRevalidationCount = revalidationCount;
+            mEvictionCount = evictionCount;
+            mSize = size;
+            mBytes = bytes;
+        }
+
+        /**
+         * Reads answered with a cached resource, including those revalidated with a {@code 304}.
+         */
+        public long getHitCount() {
+            return mHitCount;
+        }
+
+        /**
+         * Reads that had to download and parse the resource.
+         */
+        public long getMissCount() {
+            return mMissCount;
+        }
+
+        /**
+         * Hits that needed a {@code 304 Not Modified} from the server.
+         */
+        public long getRevalidationCount() {
+            return mRevalidationCount;
+        }
+
+        public long getEvictionCount() {
+            return mEvictionCount;
+        }
+
+        public int getSize() {
+            return mSize;
+        }
+
+        public long getBytes() {
+            return mBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{hits=" + mHitCount + ", misses=" + mMissCount + ", revalidations=" + mRevalidationCount
+                    + ", evictions=" + mEvictionCount + ", size=" + mSize + ", bytes=" + mBytes + "}";
+        }
+    }
+
+    public static class ReadCacheBuilder {
+
+        private final FhirInterface mFhirInterface;
+        private final FhirContext mFhirContext;
+        private long mMaxBytes = DEFAULT_MAX_BYTES;
+        private long mDefaultTtlNanos;
+        private final Map<String, Long> mTtlNanosByType = new HashMap<>();
+        private OffHeapResourceStore mStore;
+
+        /**
+         * @param fhirInterface used for the reads that miss.
+         * @param fhirContext   used to weigh resources when the server does not send a {@code Content-Length}.
+         */
+        public ReadCacheBuilder(FhirInterface fhirInterface, FhirContext fhirContext) {
+            if (fhirInterface == null) throw new NullPointerException("FhirInterface == null");
+            if (fhirContext == null) throw new NullPointerException("FhirContext == null");
+            mFhirInterface = fhirInterface;
+            mFhirContext = fhirContext;
+        }
+
+        /**
+         * Upper bound on the summed size of the cached resources. Defaults to 64 MiB.
+         */
+        public ReadCacheBuilder maxBytes(long maxBytes) {
+            if (maxBytes < 1) throw new IllegalArgumentException("maxBytes < 1");
+            mMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * How long a {@code read} may be answered without revalidation, for types without their own TTL.
+         */
+        public ReadCacheBuilder defaultTtl(long ttl, TimeUnit unit) {
+            if (ttl < 0) throw new IllegalArgumentException("ttl < 0");
+            mDefaultTtlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        /**
+         * How long a {@code read} of the given resource type may be answered without revalidation.
+         */
+        public ReadCacheBuilder ttl(String resourceType, long ttl, TimeUnit unit) {
+            if (ttl < 0) throw new IllegalArgumentException("ttl < 0");
+            mTtlNanosByType.put(resourceType, unit.toNanos(ttl));
+            return this;
+        }
+
+        /**
+         * Keeps every version read in {@code store} as well, and answers {@code vRead} misses from it.
+         */
+        public ReadCacheBuilder store(OffHeapResourceStore store) {
+            if (store == null) throw new NullPointerException("OffHeapResourceStore == null");
+            mStore = store;
+            return this;
+        }
+
+        public ReadCache build() {
+            return new ReadCache(this);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package smokesignals.utils.fhirconverter;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import okhttp3.ResponseBody;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A {@link Bundle} read incrementally from a response body. Entries are tokenized and parsed one at a time as the
+ * caller iterates, so only a single {@link Bundle.Entry} is materialized at any moment regardless of the page size.
+ * <p>
+ * Fields of the Bundle other than {@code entry} are collected as they are passed and are available through
+ * {@link #getBundle()}. Servers normally write {@code link} and {@code total} ahead of the entries, but anything that
+ * follows them only shows up once the iteration is finished.
+ * <p>
+ * The stream owns the response body and must be {@link #close() closed}, which happens automatically once the last
+ * entry has been read.
+ */
+public class BundleEntryStream implements Iterator<Bundle.Entry>, Closeable {
+
+    private static final String ENTRY = "entry";
+
+    static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper(JSON_FACTORY);
+
+    private final ThreadLocal<IParser> mFhirJsonParser;
+    private final ResponseBody mResponseBody;
+    private final JsonParser mJson;
+    private final ObjectNode mSkeleton = OBJECT_MAPPER.createObjectNode();
+
+    private boolean mInEntries;
+    private boolean mDone;
+    private boolean mClosed;
+    private Runnable mOnClose;
+    private Bundle.Entry mNext;
+
+    BundleEntryStream(ThreadLocal<IParser> fhirJsonParser, ResponseBody responseBody) throws IOException {
+        mFhirJsonParser = fhirJsonParser;
+        mResponseBody = responseBody;
+        mJson = JSON_FACTORY.createParser(responseBody.charStream());
+        if (mJson.nextToken() != JsonToken.START_OBJECT) {
+            throw new DataFormatException("Expected a JSON object at the start of the Bundle");
+        }
+        readUntilEntries();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (mNext != null) {
+            return true;
+        }
+        try {
+            while (!mDone) {
+                if (!mInEntries) {
+                    readUntilEntries();
+                    continue;
+                }
+                JsonToken token = mJson.nextToken();
+                if (token == JsonToken.START_OBJECT) {
+                    mNext = parseEntry();
+                    return true;
+                } else if (token == JsonToken.END_ARRAY) {
+                    mInEntries = false;
+                } else {
+                    throw new DataFormatException("Unexpected " + token + " in Bundle.entry");
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+        return false;
+    }
+
+    @Override
+    public Bundle.Entry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Bundle.Entry next = mNext;
+        mNext = null;
+        return next;
+    }
+
+    /**
+     * Returns a sequential {@link Stream} over the remaining entries. Closing the stream closes the response body.
+     */
+    public Stream<Bundle.Entry> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(this::close);
+    }
+
+    /**
+     * Returns the Bundle fields read so far, without any entries.
+     */
+    public Bundle getBundle() {
+        return mFhirJsonParser.get().parseResource(Bundle.class, mSkeleton.toString());
+    }
+
+    /**
+     * Runs {@code onClose} once the response body is closed, straight away if it already is. Used to hold on to
+     * whatever the request took, such as a concurrency slot, for as long as the stream reads from the connection.
+     */
+    public synchronized BundleEntryStream onClose(Runnable onClose) {
+        if (mOnClose != null) throw new IllegalStateException("onClose already set");
+        mOnClose = onClose;
+        if (mClosed) {
+            onClose.run();
+        }
+        return this;
+    }
+
+    @Override
+    public void close() {
+        mDone = true;
+        try {
+            mJson.close();
+        } catch (IOException ignored) {
+            // Nothing left to read from it.
+        } finally {
+            mResponseBody.close();
+            closed();
+        }
+    }
+
+    private void closed() {
+        Runnable onClose;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            onClose = mOnClose;
+        }
+        if (onClose != null) {
+            onClose.run();
+        }
+    }
+
+    /**
+     * Reads top level fields into the skeleton until the {@code entry} array opens or the Bundle ends.
+     */
+    private void readUntilEntries() throws IOException {
+        JsonToken token;
+        while ((token = mJson.nextToken()) == JsonToken.FIELD_NAME) {
+            String name = mJson.getCurrentName();
+            JsonToken value = mJson.nextToken();
+            if (ENTRY.equals(name) && value == JsonToken.START_ARRAY) {
+                mInEntries = true;
+                return;
+            }
+            mSkeleton.set(name, OBJECT_MAPPER.readTree(mJson));
+        }
+        if (token != JsonToken.END_OBJECT) {
+            throw new DataFormatException("Unexpected " + token + " in Bundle");
+        }
+        close();
+    }
+
+    /**
+     * Copies the entry the parser is positioned on into a single entry Bundle and lets HAPI parse that, so fullUrl,
+     * search and request metadata are handled exactly as in a fully parsed Bundle.
+     */
+    private Bundle.Entry parseEntry() throws IOException {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.writeStringField("resourceType", "Bundle");
+            generator.writeArrayFieldStart(ENTRY);
+            generator.copyCurrentStructure(mJson);
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        return mFhirJsonParser.get().parseResource(Bundle.class, writer.toString()).getEntry().get(0);
+    }
+}
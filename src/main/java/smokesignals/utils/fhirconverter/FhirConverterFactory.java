@@ -3,14 +3,28 @@ package smokesignals.utils.fhirconverter;
 import ca.uhn.fhir.context.FhirContext;
 
 import java.lang.annotation.Annotation;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.parser.IParser;
 import okhttp3.RequestBody;
 import okhttp3.ResponseBody;
 import retrofit2.Converter;
 import retrofit2.Retrofit;
+import smokesignals.utils.metrics.FhirInteraction;
+import smokesignals.utils.metrics.MetricsEventListener;
+import smokesignals.utils.metrics.MetricsPhase;
+import smokesignals.utils.metrics.MetricsRegistry;
 
 /**
  * Created by mark on 2017-11-28.
+ * <p>
+ * Converters are created once per declared {@link Type} and shared by every call with that type. They all draw
+ * their {@link IParser} from one per-thread pool, as HAPI parsers are cheap to keep but not safe to share between
+ * threads.
  */
 public class FhirConverterFactory extends Converter.Factory {
 
@@ -18,27 +32,98 @@ public class FhirConverterFactory extends Converter.Factory {
      * Create an instance using {@code FhirContext} for conversion. Encoding to JSON and
      * decoding from JSON (when no charset is specified by a header) will use UTF-8.
      */
-    @SuppressWarnings("ConstantConditions") // Guarding public API nullability.
     public static FhirConverterFactory create(FhirContext dstu2) {
+        return create(dstu2, MetricsRegistry.NONE);
+    }
+
+    /**
+     * Same as {@link #create(FhirContext)}, with the encode and decode time of every resource reported to
+     * {@code metrics}. See {@link smokesignals.utils.metrics.MetricsEventListener} for the network side.
+     * <p>
+     * To keep network time out of those numbers, request bodies are encoded into memory before they are written and
+     * resource responses are read in full before they are parsed, instead of streaming either way. A
+     * {@link LazyBundle} reports the tokenizing of its body; the parse of each entry, done later on demand, is not
+     * counted. A {@link BundleEntryStream} reports nothing, as it parses entries while the caller reads them off the
+     * connection.
+     */
+    @SuppressWarnings("ConstantConditions") // Guarding public API nullability.
+    public static FhirConverterFactory create(FhirContext dstu2, MetricsRegistry metrics) {
         if (dstu2 == null) throw new NullPointerException("FhirContext == null");
-        return new FhirConverterFactory(dstu2);
+        if (metrics == null) throw new NullPointerException("MetricsRegistry == null");
+        return new FhirConverterFactory(dstu2, metrics);
     }
 
     private final FhirContext mFhirContext;
+    private final ThreadLocal<IParser> mFhirJsonParsers;
+    private final MetricsRegistry mMetrics;
+    private final ConcurrentMap<Type, Converter<ResponseBody, ?>> mResponseBodyConverters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Type, Converter<?, RequestBody>> mRequestBodyConverters = new ConcurrentHashMap<>();
 
-    private FhirConverterFactory(FhirContext dstu2) {
+    private FhirConverterFactory(FhirContext dstu2, MetricsRegistry metrics) {
         this.mFhirContext = dstu2;
+        this.mFhirJsonParsers = parsers(dstu2);
+        this.mMetrics = metrics;
     }
 
+    /**
+     * Services declaring {@link BundleEntryStream} as their return type get the streaming decoder, and those declaring
+     * {@link LazyBundle} get one that defers parsing each entry until it is used. Concrete resource
+     * types such as {@code Bundle} or {@code Patient} are parsed straight into that class, abstract ones are parsed
+     * by the resource type found in the body. Types that are not resources are left to other factories.
+     */
     @Override
     public Converter<ResponseBody, ?> responseBodyConverter(Type type, Annotation[] annotations,
                                                             Retrofit retrofit) {
-        return new FhirResponseBodyConverter<>(mFhirContext);
+        if (type != BundleEntryStream.class && type != LazyBundle.class && !isResourceType(type)) {
+            return null;
+        }
+        return mResponseBodyConverters.computeIfAbsent(type, this::newResponseBodyConverter);
     }
 
     @Override
     public Converter<?, RequestBody> requestBodyConverter(Type type, Annotation[] parameterAnnotations,
                                                           Annotation[] methodAnnotations, Retrofit retrofit) {
-        return new FhirRequestBodyConverter<>(mFhirContext);
+        if (!isResourceType(type)) {
+            return null;
+        }
+        return mRequestBodyConverters.computeIfAbsent(type,
+                key -> new FhirRequestBodyConverter<>(mFhirJsonParsers, mMetrics));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Converter<ResponseBody, ?> newResponseBodyConverter(Type type) {
+        if (type == BundleEntryStream.class) {
+            return new FhirStreamingBundleConverter(mFhirJsonParsers);
+        }
+        if (type == LazyBundle.class) {
+            return new FhirLazyBundleConverter(mFhirJsonParsers, mMetrics);
+        }
+        Class<? extends BaseResource> resourceClass = (Class<? extends BaseResource>) type;
+        if (resourceClass.isInterface() || Modifier.isAbstract(resourceClass.getModifiers())) {
+            return new FhirResponseBodyConverter<>(mFhirJsonParsers, null, mMetrics);
+        }
+        return new FhirResponseBodyConverter<>(mFhirJsonParsers, resourceClass, mMetrics);
+    }
+
+    private static boolean isResourceType(Type type) {
+        return type instanceof Class && BaseResource.class.isAssignableFrom((Class<?>) type);
+    }
+
+    /**
+     * Attributes {@code nanos} to {@code call}, or to {@link FhirInteraction#OTHER} and {@code resourceType} outside
+     * of one. Take the call from {@link MetricsEventListener#current()} before reading the body, as it stops being
+     * current once the body is read to its end.
+     */
+    static void recordLatency(MetricsRegistry metrics, MetricsEventListener call, MetricsPhase phase,
+                              String resourceType, long nanos) {
+        if (call != null) {
+            metrics.recordLatency(call.getInteraction(), call.getResourceType(), phase, nanos);
+        } else {
+            metrics.recordLatency(FhirInteraction.OTHER, resourceType, phase, nanos);
+        }
+    }
+
+    static ThreadLocal<IParser> parsers(FhirContext fhirContext) {
+        return ThreadLocal.withInitial(fhirContext::newJsonParser);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,52 @@
+package smokesignals.utils.fhirconverter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.sun.istack.internal.NotNull;
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
+import smokesignals.utils.metrics.MetricsEventListener;
+import smokesignals.utils.metrics.MetricsPhase;
+import smokesignals.utils.metrics.MetricsRegistry;
+
+import java.io.IOException;
+
+/**
+ * Decodes a {@link ca.uhn.fhir.model.dstu2.resource.Bundle} into a {@link LazyBundle}, reading the body in full but
+ * leaving its resources unparsed until they are asked for.
+ * <p>
+ * With metrics on, the tokenizing of the read body is reported as {@link MetricsPhase#DECODE}. Entries parsed later
+ * through {@link LazyBundle.LazyEntry#getResource()} are not counted.
+ */
+public class FhirLazyBundleConverter implements Converter<ResponseBody, LazyBundle> {
+
+    private final ThreadLocal<IParser> fhirJsonParser;
+    private final MetricsRegistry metrics;
+
+    public FhirLazyBundleConverter(@NotNull FhirContext fhirContext) {
+        this(FhirConverterFactory.parsers(fhirContext), MetricsRegistry.NONE);
+    }
+
+    FhirLazyBundleConverter(ThreadLocal<IParser> fhirJsonParser, MetricsRegistry metrics) {
+        this.fhirJsonParser = fhirJsonParser;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public LazyBundle convert(ResponseBody responseBody) throws IOException {
+        try {
+            if (metrics == MetricsRegistry.NONE) {
+                return LazyBundle.parse(fhirJsonParser, responseBody.bytes());
+            }
+            MetricsEventListener call = MetricsEventListener.current();
+            byte[] bytes = responseBody.bytes();
+            long start = System.nanoTime();
+            LazyBundle bundle = LazyBundle.parse(fhirJsonParser, bytes);
+            long elapsed = System.nanoTime() - start;
+            FhirConverterFactory.recordLatency(metrics, call, MetricsPhase.DECODE, "Bundle", elapsed);
+            return bundle;
+        } finally {
+            responseBody.close();
+        }
+    }
+}
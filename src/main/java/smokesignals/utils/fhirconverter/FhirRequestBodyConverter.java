@@ -7,6 +7,7 @@ import com.sun.istack.internal.NotNull;
 import okhttp3.MediaType;
 import okhttp3.RequestBody;
 import retrofit2.Converter;
+import smokesignals.utils.metrics.MetricsRegistry;
 
 import java.io.IOException;
 
@@ -17,15 +18,24 @@ public class FhirRequestBodyConverter<T extends BaseResource> implements Convert
 
     private static final MediaType MEDIA_TYPE = MediaType.parse("application/json; charset=UTF-8");
 
-    private final IParser fhirJsonParser;
+    private final ThreadLocal<IParser> fhirJsonParser;
+    private final MetricsRegistry metrics;
 
     public FhirRequestBodyConverter(@NotNull FhirContext fhirContext) {
-        fhirJsonParser = fhirContext.newJsonParser();
+        this(FhirConverterFactory.parsers(fhirContext), MetricsRegistry.NONE);
     }
 
+    FhirRequestBodyConverter(ThreadLocal<IParser> fhirJsonParser, MetricsRegistry metrics) {
+        this.fhirJsonParser = fhirJsonParser;
+        this.metrics = metrics;
+    }
+
+    /**
+     * The body is encoded later on whichever thread OkHttp writes it from, so it takes its parser from that
+     * thread's pool.
+     */
     @Override
     public RequestBody convert(T t) throws IOException {
-        byte[] bytes = fhirJsonParser.encodeResourceToString(t).getBytes();
-        return RequestBody.create(MEDIA_TYPE, bytes);
+        return new FhirResourceRequestBody(MEDIA_TYPE, fhirJsonParser::get, t, metrics);
     }
 }
@@ -0,0 +1,88 @@
+package smokesignals.utils.fhirconverter;
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.parser.IParser;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import smokesignals.utils.metrics.MetricsEventListener;
+import smokesignals.utils.metrics.MetricsPhase;
+import smokesignals.utils.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * A {@link RequestBody} that encodes the resource as UTF-8 JSON directly into the outgoing {@link BufferedSink}, so
+ * no intermediate {@link String} or byte array of the whole resource is ever built.
+ * <p>
+ * The length is reported as unknown and the request is sent chunked. OkHttp asks for the length of every request, so
+ * computing it would mean encoding the resource twice. The body can be written more than once, which OkHttp relies
+ * on when it retries a request.
+ * <p>
+ * With metrics on, the resource is encoded into memory first and only that is timed as
+ * {@link MetricsPhase#ENCODE}, so a slow socket does not show up as slow encoding.
+ */
+public class FhirResourceRequestBody extends RequestBody {
+
+    private final MediaType mMediaType;
+    private final Supplier<IParser> mFhirJsonParser;
+    private final IBaseResource mResource;
+    private final MetricsRegistry mMetrics;
+
+    /**
+     * @param fhirJsonParser supplies a parser that is safe to use on the thread writing the body.
+     */
+    public FhirResourceRequestBody(MediaType mediaType, Supplier<IParser> fhirJsonParser, IBaseResource resource) {
+        this(mediaType, fhirJsonParser, resource, MetricsRegistry.NONE);
+    }
+
+    /**
+     * @param metrics receives the time spent encoding the body.
+     */
+    public FhirResourceRequestBody(MediaType mediaType, Supplier<IParser> fhirJsonParser, IBaseResource resource,
+                                   MetricsRegistry metrics) {
+        mMediaType = mediaType;
+        mFhirJsonParser = fhirJsonParser;
+        mResource = resource;
+        mMetrics = metrics;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return mMediaType;
+    }
+
+    @Override
+    public long contentLength() {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        if (mMetrics == MetricsRegistry.NONE) {
+            encode(sink);
+            return;
+        }
+        MetricsEventListener call = MetricsEventListener.current();
+        Buffer buffer = new Buffer();
+        long start = System.nanoTime();
+        encode(buffer);
+        long elapsed = System.nanoTime() - start;
+        String resourceType = mResource instanceof IResource ? ((IResource) mResource).getResourceName() : null;
+        FhirConverterFactory.recordLatency(mMetrics, call, MetricsPhase.ENCODE, resourceType, elapsed);
+        sink.writeAll(buffer);
+    }
+
+    private void encode(BufferedSink sink) throws IOException {
+        // The sink may be owned by OkHttp, only flush the writer's buffer into it.
+        Writer writer = new OutputStreamWriter(sink.outputStream(), StandardCharsets.UTF_8);
+        mFhirJsonParser.get().encodeResourceToWriter(mResource, writer);
+        writer.flush();
+    }
+}
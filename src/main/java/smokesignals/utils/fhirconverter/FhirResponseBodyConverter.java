@@ -4,28 +4,74 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.dstu2.resource.BaseResource;
 import ca.uhn.fhir.parser.IParser;
 import com.sun.istack.internal.NotNull;
+import okhttp3.MediaType;
 import okhttp3.ResponseBody;
+import okio.BufferedSource;
 import retrofit2.Converter;
+import smokesignals.utils.metrics.MetricsEventListener;
+import smokesignals.utils.metrics.MetricsPhase;
+import smokesignals.utils.metrics.MetricsRegistry;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Created by mark on 2017-11-28.
  */
 public class FhirResponseBodyConverter<T extends BaseResource> implements Converter<ResponseBody, T> {
 
-    private final IParser fhirJsonParser;
+    private final ThreadLocal<IParser> fhirJsonParser;
+    private final Class<T> resourceClass;
+    private final MetricsRegistry metrics;
 
     public FhirResponseBodyConverter(@NotNull FhirContext fhirContext) {
-        fhirJsonParser = fhirContext.newJsonParser();
+        this(FhirConverterFactory.parsers(fhirContext), null, MetricsRegistry.NONE);
+    }
+
+    /**
+     * @param fhirJsonParser parser for the calling thread.
+     * @param resourceClass  concrete class the body is parsed into, or {@code null} to go by the resource type in
+     *                       the body.
+     * @param metrics        receives the decode time. Unless it is {@link MetricsRegistry#NONE} the body is read in
+     *                       full before parsing starts, so that time spent waiting on the network is not counted.
+     */
+    FhirResponseBodyConverter(ThreadLocal<IParser> fhirJsonParser, Class<T> resourceClass, MetricsRegistry metrics) {
+        this.fhirJsonParser = fhirJsonParser;
+        this.resourceClass = resourceClass;
+        this.metrics = metrics;
     }
 
     @Override
     public T convert(ResponseBody responseBody) throws IOException {
         try {
-            return (T) fhirJsonParser.parseResource(responseBody.charStream());
+            if (metrics == MetricsRegistry.NONE) {
+                return parse(responseBody.charStream());
+            }
+            MetricsEventListener call = MetricsEventListener.current();
+            // Retrofit wraps the body in a new buffer on every source() call, so keep hold of this one.
+            BufferedSource source = responseBody.source();
+            source.request(Long.MAX_VALUE);
+            MediaType contentType = responseBody.contentType();
+            Charset charset = contentType == null ? StandardCharsets.UTF_8 : contentType.charset(StandardCharsets.UTF_8);
+            long start = System.nanoTime();
+            T resource = parse(new InputStreamReader(source.inputStream(), charset));
+            long elapsed = System.nanoTime() - start;
+            FhirConverterFactory.recordLatency(metrics, call, MetricsPhase.DECODE, resource.getResourceName(),
+                    elapsed);
+            return resource;
         } finally {
             responseBody.close();
         }
     }
+
+    @SuppressWarnings("unchecked")
+    private T parse(Reader reader) {
+        if (resourceClass != null) {
+            return fhirJsonParser.get().parseResource(resourceClass, reader);
+        }
+        return (T) fhirJsonParser.get().parseResource(reader);
+    }
 }
@@ -0,0 +1,40 @@
+package smokesignals.utils.fhirconverter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.sun.istack.internal.NotNull;
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
+
+import java.io.IOException;
+
+/**
+ * Decodes a searchset {@link ca.uhn.fhir.model.dstu2.resource.Bundle} lazily into a {@link BundleEntryStream}.
+ * Unlike {@link FhirResponseBodyConverter} the response body is left open and handed over to the returned stream.
+ * <p>
+ * No {@link smokesignals.utils.metrics.MetricsPhase#DECODE} time is reported. Entries are parsed while the caller
+ * reads them off the connection, after the call has returned, so parsing cannot be timed apart from the network
+ * without buffering the body, which is what streaming avoids.
+ */
+public class FhirStreamingBundleConverter implements Converter<ResponseBody, BundleEntryStream> {
+
+    private final ThreadLocal<IParser> fhirJsonParser;
+
+    public FhirStreamingBundleConverter(@NotNull FhirContext fhirContext) {
+        this(FhirConverterFactory.parsers(fhirContext));
+    }
+
+    FhirStreamingBundleConverter(ThreadLocal<IParser> fhirJsonParser) {
+        this.fhirJsonParser = fhirJsonParser;
+    }
+
+    @Override
+    public BundleEntryStream convert(ResponseBody responseBody) throws IOException {
+        try {
+            return new BundleEntryStream(fhirJsonParser, responseBody);
+        } catch (IOException | RuntimeException e) {
+            responseBody.close();
+            throw e;
+        }
+    }
+}
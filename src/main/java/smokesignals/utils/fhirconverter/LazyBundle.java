@@ -0,0 +1,246 @@
+package smokesignals.utils.fhirconverter;
+
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A {@link Bundle} whose entries are parsed only when they are used.
+ * <p>
+ * The response body is kept as a single byte array and tokenized once, without building any model objects. Each
+ * {@link LazyEntry} remembers where its entry and resource lie in that array, along with the few keys read on the
+ * way, the {@code fullUrl}, {@code resourceType}, {@code id}, {@code meta.versionId} and {@code meta.lastUpdated}, so
+ * entries can be counted, routed and filtered on those for the cost of the tokenizer alone. The HAPI parse of a
+ * resource happens on the first call to {@link LazyEntry#getResource()} and its result is kept.
+ * <p>
+ * Unlike {@link BundleEntryStream} the whole body is held in memory, but the entries can be visited in any order and
+ * more than once, and the connection is released as soon as the Bundle is returned.
+ */
+public class LazyBundle {
+
+    private static final String ENTRY = "entry";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper(BundleEntryStream.JSON_FACTORY);
+
+    private final ThreadLocal<IParser> mFhirJsonParser;
+    private final byte[] mBytes;
+    private final ObjectNode mSkeleton;
+    private final List<LazyEntry> mEntries;
+
+    private LazyBundle(ThreadLocal<IParser> fhirJsonParser, byte[] bytes, ObjectNode skeleton, List<LazyEntry> entries) {
+        mFhirJsonParser = fhirJsonParser;
+        mBytes = bytes;
+        mSkeleton = skeleton;
+        mEntries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Tokenizes the Bundle in {@code bytes}, which must be JSON and are kept without copying.
+     */
+    static LazyBundle parse(ThreadLocal<IParser> fhirJsonParser, byte[] bytes) throws IOException {
+        ObjectNode skeleton = OBJECT_MAPPER.createObjectNode();
+        List<LazyEntry> entries = new ArrayList<>();
+        LazyBundle bundle = new LazyBundle(fhirJsonParser, bytes, skeleton, entries);
+        try (JsonParser json = BundleEntryStream.JSON_FACTORY.createParser(bytes)) {
+            if (json.nextToken() != JsonToken.START_OBJECT) {
+                throw new DataFormatException("Expected a JSON object at the start of the Bundle");
+            }
+            JsonToken token;
+            while ((token = json.nextToken()) == JsonToken.FIELD_NAME) {
+                String name = json.getCurrentName();
+                JsonToken value = json.nextToken();
+                if (ENTRY.equals(name) && value == JsonToken.START_ARRAY) {
+                    while ((token = json.nextToken()) == JsonToken.START_OBJECT) {
+                        entries.add(bundle.scanEntry(json));
+                    }
+                    if (token != JsonToken.END_ARRAY) {
+                        throw new DataFormatException("Unexpected " + token + " in Bundle.entry");
+                    }
+                } else {
+                    skeleton.set(name, OBJECT_MAPPER.readTree(json));
+                }
+            }
+            if (token != JsonToken.END_OBJECT) {
+                throw new DataFormatException("Unexpected " + token + " in Bundle");
+            }
+        }
+        return bundle;
+    }
+
+    public List<LazyEntry> getEntries() {
+        return mEntries;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the Bundle fields other than its entries, such as {@code total} and {@code link}, parsed on every call.
+     */
+    public Bundle getBundle() {
+        return mFhirJsonParser.get().parseResource(Bundle.class, mSkeleton.toString());
+    }
+
+    /**
+     * Reads the entry the parser is positioned on, keeping only offsets and keys.
+     */
+    private LazyEntry scanEntry(JsonParser json) throws IOException {
+        LazyEntry entry = new LazyEntry(offset(json));
+        while (json.nextToken() == JsonToken.FIELD_NAME) {
+            String name = json.getCurrentName();
+            JsonToken value = json.nextToken();
+            if (name.equals("fullUrl") && value == JsonToken.VALUE_STRING) {
+                entry.mFullUrl = json.getText();
+            } else if (name.equals("resource") && value == JsonToken.START_OBJECT) {
+                entry.mResourceStart = offset(json);
+                scanResource(json, entry);
+                entry.mResourceEnd = offset(json) + 1;
+            } else {
+                json.skipChildren();
+            }
+        }
+        entry.mEnd = offset(json) + 1;
+        return entry;
+    }
+
+    private static void scanResource(JsonParser json, LazyEntry entry) throws IOException {
+        while (json.nextToken() == JsonToken.FIELD_NAME) {
+            String name = json.getCurrentName();
+            JsonToken value = json.nextToken();
+            if (name.equals("resourceType") && value == JsonToken.VALUE_STRING) {
+                entry.mResourceType = json.getText();
+            } else if (name.equals("id") && value == JsonToken.VALUE_STRING) {
+                entry.mId = json.getText();
+            } else if (name.equals("meta") && value == JsonToken.START_OBJECT) {
+                while (json.nextToken() == JsonToken.FIELD_NAME) {
+                    String metaName = json.getCurrentName();
+                    JsonToken metaValue = json.nextToken();
+                    if (metaName.equals("versionId") && metaValue == JsonToken.VALUE_STRING) {
+                        entry.mVersionId = json.getText();
+                    } else if (metaName.equals("lastUpdated") && metaValue == JsonToken.VALUE_STRING) {
+                        entry.mLastUpdated = json.getText();
+                    } else {
+                        json.skipChildren();
+                    }
+                }
+            } else {
+                json.skipChildren();
+            }
+        }
+    }
+
+    private static int offset(JsonParser json) {
+        return (int) json.getTokenLocation().getByteOffset();
+    }
+
+    /**
+     * An entry of a {@link LazyBundle}. The keys are available straight away; the resource and the full entry are
+     * parsed on first use and kept, so every call returns the same objects. It is safe to use from several threads.
+     */
+    public class LazyEntry {
+
+        private final int mStart;
+        private int mEnd;
+        private int mResourceStart = -1;
+        private int mResourceEnd = -1;
+        private String mFullUrl;
+        private String mResourceType;
+        private String mId;
+        private String mVersionId;
+        private String mLastUpdated;
+
+        private BaseResource mResource;
+        private Bundle.Entry mEntry;
+
+        private LazyEntry(int start) {
+            mStart = start;
+        }
+
+        public String getFullUrl() {
+            return mFullUrl;
+        }
+
+        public boolean hasResource() {
+            return mResourceStart >= 0;
+        }
+
+        public String getResourceType() {
+            return mResourceType;
+        }
+
+        public String getId() {
+            return mId;
+        }
+
+        public String getVersionId() {
+            return mVersionId;
+        }
+
+        /**
+         * The {@code meta.lastUpdated} of the resource, or null.
+         */
+        public Date getLastUpdated() {
+            return mLastUpdated == null ? null : new InstantDt(mLastUpdated).getValue();
+        }
+
+        /**
+         * The JSON of the resource, as received, or null when the entry has none.
+         */
+        public byte[] getResourceBytes() {
+            if (!hasResource()) {
+                return null;
+            }
+            byte[] bytes = new byte[mResourceEnd - mResourceStart];
+            System.arraycopy(mBytes, mResourceStart, bytes, 0, bytes.length);
+            return bytes;
+        }
+
+        /**
+         * Parses the resource on the first call, or returns null when the entry has none.
+         */
+        public synchronized BaseResource getResource() {
+            if (mResource == null && hasResource()) {
+                mResource = (BaseResource) mFhirJsonParser.get().parseResource(
+                        new String(mBytes, mResourceStart, mResourceEnd - mResourceStart, StandardCharsets.UTF_8));
+            }
+            return mResource;
+        }
+
+        /**
+         * Parses the whole entry, with its {@code search}, {@code request} and {@code response}, on the first call.
+         * Its resource is the one returned by {@link #getResource()}.
+         */
+        public synchronized Bundle.Entry getEntry() {
+            if (mEntry == null) {
+                String json = "{\"resourceType\":\"Bundle\",\"entry\":["
+                        + new String(mBytes, mStart, mEnd - mStart, StandardCharsets.UTF_8) + "]}";
+                Bundle.Entry entry = mFhirJsonParser.get().parseResource(Bundle.class, json).getEntry().get(0);
+                if (mResource != null) {
+                    entry.setResource(mResource);
+                } else {
+                    mResource = (BaseResource) entry.getResource();
+                }
+                mEntry = entry;
+            }
+            return mEntry;
+        }
+
+        @Override
+        public String toString() {
+            return mResourceType + "/" + mId + (mVersionId == null ? "" : "/_history/" + mVersionId);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package smokesignals.utils.metrics;
+
+import java.util.List;
+
+/**
+ * The FHIR RESTful interactions metrics are kept for, as told apart by the HTTP method and the request path relative
+ * to the server base.
+ */
+public enum FhirInteraction {
+
+    SEARCH,
+    READ,
+    VREAD,
+    HISTORY,
+    CREATE,
+    UPDATE,
+    PATCH,
+    DELETE,
+    TRANSACTION,
+    OPERATION,
+    CAPABILITIES,
+    OTHER;
+
+    private static final String HISTORY_SEGMENT = "_history";
+    private static final String SEARCH_SEGMENT = "_search";
+    private static final String METADATA_SEGMENT = "metadata";
+
+    /**
+     * @param method   HTTP method of the request.
+     * @param segments path segments after those of the server base, e.g. {@code [Patient, 1, _history, 2]}.
+     */
+    public static FhirInteraction classify(String method, List<String> segments) {
+        int size = segments.size();
+        if (size > 0 && segments.get(size - 1).isEmpty()) {
+            size--;
+        }
+        for (int i = 0; i < size; i++) {
+            if (segments.get(i).startsWith("$")) {
+                return OPERATION;
+            }
+        }
+        switch (method) {
+            case "GET":
+                int history = indexOf(segments, size, HISTORY_SEGMENT);
+                if (history >= 0) {
+                    return history == size - 2 && history == 2 ? VREAD : HISTORY;
+                }
+                if (size == 1 && segments.get(0).equals(METADATA_SEGMENT)) {
+                    return CAPABILITIES;
+                }
+                if (size > 0 && resourceType(segments) == null) {
+                    // anything else below the base that is not a resource type, such as a custom endpoint
+                    return OTHER;
+                }
+                if (size == 2 && !segments.get(1).equals(SEARCH_SEGMENT)) {
+                    return READ;
+                }
+                return size <= 2 ? SEARCH : OTHER;
+            case "POST":
+                if (size == 0) {
+                    return TRANSACTION;
+                }
+                if (size == 2 && segments.get(1).equals(SEARCH_SEGMENT)) {
+                    return SEARCH;
+                }
+                return size == 1 ? CREATE : OTHER;
+            case "PUT":
+                return size == 1 || size == 2 ? UPDATE : OTHER;
+            case "PATCH":
+                return size == 1 || size == 2 ? PATCH : OTHER;
+            case "DELETE":
+                return size == 1 || size == 2 ? DELETE : OTHER;
+            default:
+                return OTHER;
+        }
+    }
+
+    /**
+     * The resource type a request is about, or null for system level requests such as a transaction.
+     */
+    public static String resourceType(List<String> segments) {
+        if (segments.isEmpty()) {
+            return null;
+        }
+        String first = segments.get(0);
+        if (first.isEmpty() || !Character.isUpperCase(first.charAt(0))) {
+            return null;
+        }
+        return first;
+    }
+
+    private static int indexOf(List<String> segments, int size, String segment) {
+        for (int i = 0; i < size; i++) {
+            if (segments.get(i).equals(segment)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,102 @@
+package smokesignals.utils.metrics;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps a {@link LatencyHistogram} per interaction, resource type and phase, plus byte counters, in memory.
+ * <p>
+ * Histograms are only created for the combinations that are actually recorded. After the first call of a kind,
+ * recording is two map lookups by existing keys and an atomic increment, with no allocation.
+ */
+public class InMemoryMetricsRegistry implements MetricsRegistry {
+
+    private static final String SYSTEM = "";
+
+    private final AtomicReferenceArray<ConcurrentMap<String, Series>> mSeries =
+            new AtomicReferenceArray<>(FhirInteraction.values().length);
+
+    @Override
+    public void recordLatency(FhirInteraction interaction, String resourceType, MetricsPhase phase, long nanos) {
+        series(interaction, resourceType).histogram(phase).record(nanos);
+    }
+
+    @Override
+    public void recordBytes(FhirInteraction interaction, String resourceType, long sent, long received) {
+        Series series = series(interaction, resourceType);
+        if (sent > 0) {
+            series.mBytesSent.addAndGet(sent);
+        }
+        if (received > 0) {
+            series.mBytesReceived.addAndGet(received);
+        }
+    }
+
+    /**
+     * The histogram of one phase, or null if nothing was recorded for it.
+     *
+     * @param resourceType resource type, or null for system level requests.
+     */
+    public LatencyHistogram getHistogram(FhirInteraction interaction, String resourceType, MetricsPhase phase) {
+        Series series = find(interaction, resourceType);
+        return series == null ? null : series.mHistograms.get(phase.ordinal());
+    }
+
+    public long getBytesSent(FhirInteraction interaction, String resourceType) {
+        Series series = find(interaction, resourceType);
+        return series == null ? 0 : series.mBytesSent.get();
+    }
+
+    public long getBytesReceived(FhirInteraction interaction, String resourceType) {
+        Series series = find(interaction, resourceType);
+        return series == null ? 0 : series.mBytesReceived.get();
+    }
+
+    /**
+     * Resource types recorded for the interaction. System level requests are listed as the empty string.
+     */
+    public Set<String> getResourceTypes(FhirInteraction interaction) {
+        ConcurrentMap<String, Series> byType = mSeries.get(interaction.ordinal());
+        return byType == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(byType.keySet());
+    }
+
+    private Series find(FhirInteraction interaction, String resourceType) {
+        ConcurrentMap<String, Series> byType = mSeries.get(interaction.ordinal());
+        return byType == null ? null : byType.get(resourceType == null ? SYSTEM : resourceType);
+    }
+
+    private Series series(FhirInteraction interaction, String resourceType) {
+        ConcurrentMap<String, Series> byType = mSeries.get(interaction.ordinal());
+        if (byType == null) {
+            mSeries.compareAndSet(interaction.ordinal(), null, new ConcurrentHashMap<>());
+            byType = mSeries.get(interaction.ordinal());
+        }
+        String key = resourceType == null ? SYSTEM : resourceType;
+        Series series = byType.get(key);
+        if (series == null) {
+            series = byType.computeIfAbsent(key, ignored -> new Series());
+        }
+        return series;
+    }
+
+    private static class Series {
+
+        final AtomicReferenceArray<LatencyHistogram> mHistograms =
+                new AtomicReferenceArray<>(MetricsPhase.values().length);
+        final AtomicLong mBytesSent = new AtomicLong();
+        final AtomicLong mBytesReceived = new AtomicLong();
+
+        LatencyHistogram histogram(MetricsPhase phase) {
+            LatencyHistogram histogram = mHistograms.get(phase.ordinal());
+            if (histogram == null) {
+                mHistograms.compareAndSet(phase.ordinal(), null, new LatencyHistogram());
+                histogram = mHistograms.get(phase.ordinal());
+            }
+            return histogram;
+        }
+    }
+}
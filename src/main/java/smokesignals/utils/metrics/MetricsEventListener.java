@@ -0,0 +1,178 @@
+package smokesignals.utils.metrics;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.HttpUrl;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+/**
+ * Times the network phases of a call and reports them to a {@link MetricsRegistry}, keyed by the
+ * {@link FhirInteraction} and resource type read from the request.
+ * <p>
+ * Install it on the client used by Retrofit:
+ * <pre>
+ * MetricsRegistry metrics = new InMemoryMetricsRegistry();
+ * OkHttpClient client = new OkHttpClient.Builder()
+ *         .eventListenerFactory(MetricsEventListener.factory(metrics, HttpUrl.parse(baseUrl)))
+ *         .build();
+ * Retrofit retrofit = new Retrofit.Builder()
+ *         .baseUrl(baseUrl)
+ *         .client(client)
+ *         .addConverterFactory(FhirConverterFactory.create(fhirContext, metrics))
+ *         .build();
+ * </pre>
+ * While a call is in progress its listener is {@link #current() current} on the thread running it, which is how the
+ * converters attribute their encode and decode times to the same interaction.
+ */
+public class MetricsEventListener extends EventListener {
+
+    private static final ThreadLocal<MetricsEventListener> CURRENT = new ThreadLocal<>();
+
+    private final MetricsRegistry mRegistry;
+    private final FhirInteraction mInteraction;
+    private final String mResourceType;
+
+    private long mCallStart;
+    private long mDnsStart;
+    private long mConnectStart;
+    private long mRequestEnd;
+    private long mResponseBodyStart;
+    private long mBytesSent;
+    private long mBytesReceived;
+
+    MetricsEventListener(MetricsRegistry registry, FhirInteraction interaction, String resourceType) {
+        mRegistry = registry;
+        mInteraction = interaction;
+        mResourceType = resourceType;
+    }
+
+    /**
+     * Creates a listener for every call.
+     *
+     * @param baseUrl base URL of the FHIR server, whose path segments are skipped when classifying requests.
+     */
+    public static EventListener.Factory factory(final MetricsRegistry registry, HttpUrl baseUrl) {
+        if (registry == null) throw new NullPointerException("MetricsRegistry == null");
+        final int baseSegments = baseUrl == null ? 0 : pathSize(baseUrl.encodedPathSegments());
+        return call -> {
+            HttpUrl url = call.request().url();
+            List<String> segments = url.pathSegments();
+            segments = segments.subList(Math.min(baseSegments, segments.size()), segments.size());
+            return new MetricsEventListener(registry, FhirInteraction.classify(call.request().method(), segments),
+                    FhirInteraction.resourceType(segments));
+        };
+    }
+
+    /**
+     * The listener of the call running on this thread, or null.
+     */
+    public static MetricsEventListener current() {
+        return CURRENT.get();
+    }
+
+    public FhirInteraction getInteraction() {
+        return mInteraction;
+    }
+
+    public String getResourceType() {
+        return mResourceType;
+    }
+
+    public MetricsRegistry getRegistry() {
+        return mRegistry;
+    }
+
+    @Override
+    public void callStart(Call call) {
+        mCallStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        mDnsStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+        record(MetricsPhase.DNS, mDnsStart);
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        mConnectStart = System.nanoTime();
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+        record(MetricsPhase.CONNECT, mConnectStart);
+    }
+
+    @Override
+    public void requestHeadersStart(Call call) {
+        CURRENT.set(this);
+    }
+
+    @Override
+    public void requestHeadersEnd(Call call, Request request) {
+        mRequestEnd = System.nanoTime();
+    }
+
+    @Override
+    public void requestBodyEnd(Call call, long byteCount) {
+        mRequestEnd = System.nanoTime();
+        mBytesSent += byteCount;
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        record(MetricsPhase.TIME_TO_FIRST_BYTE, mRequestEnd);
+    }
+
+    @Override
+    public void responseBodyStart(Call call) {
+        mResponseBodyStart = System.nanoTime();
+    }
+
+    @Override
+    public void responseBodyEnd(Call call, long byteCount) {
+        record(MetricsPhase.RESPONSE_BODY, mResponseBodyStart);
+        mBytesReceived += byteCount;
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        finish();
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        finish();
+    }
+
+    private void finish() {
+        record(MetricsPhase.TOTAL, mCallStart);
+        mRegistry.recordBytes(mInteraction, mResourceType, mBytesSent, mBytesReceived);
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+    }
+
+    private void record(MetricsPhase phase, long start) {
+        if (start != 0) {
+            mRegistry.recordLatency(mInteraction, mResourceType, phase, System.nanoTime() - start);
+        }
+    }
+
+    private static int pathSize(List<String> segments) {
+        int size = segments.size();
+        return size > 0 && segments.get(size - 1).isEmpty() ? size - 1 : size;
+    }
+}
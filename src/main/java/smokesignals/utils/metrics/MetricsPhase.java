@@ -0,0 +1,44 @@
+package smokesignals.utils.metrics;
+
+/**
+ * The parts a call's latency is broken into. Network phases are measured by {@link MetricsEventListener}, the
+ * encode and decode phases by the converters of {@link smokesignals.utils.fhirconverter.FhirConverterFactory}.
+ */
+public enum MetricsPhase {
+
+    /**
+     * Resolving the host name. Not recorded when a pooled connection is reused.
+     */
+    DNS,
+
+    /**
+     * Opening the socket, including the TLS handshake. Not recorded when a pooled connection is reused.
+     */
+    CONNECT,
+
+    /**
+     * From the end of the request to the end of the response headers: server time plus one round trip.
+     */
+    TIME_TO_FIRST_BYTE,
+
+    /**
+     * Reading the response body off the wire.
+     */
+    RESPONSE_BODY,
+
+    /**
+     * Encoding the request resource as JSON, into memory ahead of writing it to the socket.
+     */
+    ENCODE,
+
+    /**
+     * Parsing the response body into a resource, once it has been read. Not reported for
+     * {@link smokesignals.utils.fhirconverter.BundleEntryStream}, which parses while it reads.
+     */
+    DECODE,
+
+    /**
+     * The whole call, from start to the response body being closed.
+     */
+    TOTAL
+}
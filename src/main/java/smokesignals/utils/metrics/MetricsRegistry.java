@@ -0,0 +1,34 @@
+package smokesignals.utils.metrics;
+
+/**
+ * Receives the measurements of every call. Implementations are called on OkHttp's and the callers' threads, so they
+ * must be thread safe, and should not allocate per measurement.
+ * <p>
+ * {@link InMemoryMetricsRegistry} keeps {@link LatencyHistogram}s in memory; other implementations can forward the
+ * values to a monitoring system.
+ */
+public interface MetricsRegistry {
+
+    /**
+     * Discards everything.
+     */
+    MetricsRegistry NONE = new MetricsRegistry() {
+        @Override
+        public void recordLatency(FhirInteraction interaction, String resourceType, MetricsPhase phase, long nanos) {
+        }
+
+        @Override
+        public void recordBytes(FhirInteraction interaction, String resourceType, long sent, long received) {
+        }
+    };
+
+    /**
+     * @param resourceType resource type of the request, or null for system level requests.
+     */
+    void recordLatency(FhirInteraction interaction, String resourceType, MetricsPhase phase, long nanos);
+
+    /**
+     * Body bytes of one call, as they went over the wire.
+     */
+    void recordBytes(FhirInteraction interaction, String resourceType, long sent, long received);
+}
@@ -0,0 +1,295 @@
+package smokesignals.utils.paging;
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.valueset.HTTPVerbEnum;
+import ca.uhn.fhir.model.primitive.IdDt;
+import retrofit2.Call;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.query.FhirQuery;
+import smokesignals.utils.query.Query;
+
+import java.io.Closeable;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterates over a history, page after page, as {@link HistoryEntry HistoryEntries} telling which interaction made
+ * each version.
+ * <p>
+ * Pages are fetched ahead of the caller by a {@link SearchPager}, with the same bounds on what is buffered, so a
+ * whole change log can be replayed in constant memory:
+ * <pre>
+ * try (HistoryPager history = new HistoryPager.HistoryPagerBuilder(fhirInterface)
+ *         .type("Patient")
+ *         .since(checkpoint)
+ *         .build()) {
+ *     while (history.hasNext()) {
+ *         HistoryEntry entry = history.next();
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * Servers list the newest versions first. The {@code bearer} is sent with every page.
+ */
+public class HistoryPager implements Iterator<HistoryPager.HistoryEntry>, Closeable {
+
+    private static final String INSTANT_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+    private final SearchPager mPager;
+
+    private HistoryPager(SearchPager pager) {
+        mPager = pager;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return mPager.hasNext();
+    }
+
+    @Override
+    public HistoryEntry next() {
+        return new HistoryEntry(mPager.next());
+    }
+
+    /**
+     * Returns a sequential {@link Stream} over the remaining entries. Closing the stream closes this pager.
+     */
+    public Stream<HistoryEntry> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(this::close);
+    }
+
+    @Override
+    public void close() {
+        mPager.close();
+    }
+
+    /**
+     * One version from a history {@link Bundle}.
+     */
+    public static class HistoryEntry {
+
+        private final Bundle.Entry mEntry;
+        private final IdDt mId;
+
+        HistoryEntry(Bundle.Entry entry) {
+            mEntry = entry;
+            IResource resource = entry.getResource();
+            if (resource != null && !resource.getIdElement().isEmpty()) {
+                IdDt id = resource.getId();
+                mId = id.hasResourceType() ? id : new IdDt(resource.getResourceName(), id.getIdPart(), id.getVersionIdPart());
+            } else if (entry.getRequest().getUrl() != null) {
+                // deletions carry no resource, only the request that deleted it
+                mId = new IdDt(entry.getRequest().getUrl());
+            } else {
+                mId = new IdDt();
+            }
+        }
+
+        /**
+         * The interaction that made this version: {@code POST} for a create, {@code PUT} for an update,
+         * {@code DELETE} for a delete. Null if the server left {@code Bundle.entry.request} out.
+         */
+        public HTTPVerbEnum getMethod() {
+            return mEntry.getRequest().getMethodElement().getValueAsEnum();
+        }
+
+        public String getResourceType() {
+            return mId.getResourceType();
+        }
+
+        public String getId() {
+            return mId.getIdPart();
+        }
+
+        /**
+         * The version id, from the resource or else from {@code Bundle.entry.response.etag}, or null.
+         */
+        public String getVersionId() {
+            if (mId.hasVersionIdPart()) {
+                return mId.getVersionIdPart();
+            }
+            IResource resource = mEntry.getResource();
+            if (resource instanceof BaseResource && ((BaseResource) resource).getMeta().getVersionId() != null) {
+                return ((BaseResource) resource).getMeta().getVersionId();
+            }
+            return versionFromEtag(mEntry.getResponse().getEtag());
+        }
+
+        /**
+         * When this version was made, from the resource or else from {@code Bundle.entry.response.lastModified}.
+         */
+        public Date getLastUpdated() {
+            IResource resource = mEntry.getResource();
+            if (resource instanceof BaseResource && ((BaseResource) resource).getMeta().getLastUpdated() != null) {
+                return ((BaseResource) resource).getMeta().getLastUpdated();
+            }
+            return mEntry.getResponse().getLastModified();
+        }
+
+        public boolean isDeleted() {
+            return getMethod() == HTTPVerbEnum.DELETE;
+        }
+
+        /**
+         * The resource as it was after the interaction, or null for a deletion.
+         */
+        public BaseResource getResource() {
+            return (BaseResource) mEntry.getResource();
+        }
+
+        public Bundle.Entry getEntry() {
+            return mEntry;
+        }
+
+        /**
+         * {@code W/"3"} and {@code "3"} are both version 3.
+         */
+        static String versionFromEtag(String etag) {
+            if (etag == null) {
+                return null;
+            }
+            String version = etag.startsWith("W/") ? etag.substring(2) : etag;
+            if (version.length() >= 2 && version.startsWith("\"") && version.endsWith("\"")) {
+                version = version.substring(1, version.length() - 1);
+            }
+            return version.isEmpty() ? null : version;
+        }
+    }
+
+    public static class HistoryPagerBuilder {
+
+        private final FhirInterface mFhirInterface;
+        private final SearchPager.SearchPagerBuilder mPager;
+        private String mResourceType;
+        private String mId;
+        private Date mSince;
+        private Date mAt;
+        private int mCount;
+        private String mBearer;
+
+        public HistoryPagerBuilder(FhirInterface fhirInterface) {
+            if (fhirInterface == null) throw new NullPointerException("FhirInterface == null");
+            mFhirInterface = fhirInterface;
+            mPager = new SearchPager.SearchPagerBuilder(fhirInterface);
+        }
+
+        /**
+         * History of one resource, {@code [type]/[id]/_history}. Without this or {@link #type(String)} the history
+         * of the whole system is read.
+         */
+        public HistoryPagerBuilder instance(String resourceType, String id) {
+            if (resourceType == null) throw new NullPointerException("resourceType == null");
+            if (id == null) throw new NullPointerException("id == null");
+            mResourceType = resourceType;
+            mId = id;
+            return this;
+        }
+
+        /**
+         * History of every resource of a type, {@code [type]/_history}.
+         */
+        public HistoryPagerBuilder type(String resourceType) {
+            if (resourceType == null) throw new NullPointerException("resourceType == null");
+            mResourceType = resourceType;
+            mId = null;
+            return this;
+        }
+
+        /**
+         * Only versions created at or after this instant, {@code _since}.
+         */
+        public HistoryPagerBuilder since(Date since) {
+            mSince = since;
+            return this;
+        }
+
+        /**
+         * Only versions that were current at this instant, {@code _at}.
+         */
+        public HistoryPagerBuilder at(Date at) {
+            mAt = at;
+            return this;
+        }
+
+        /**
+         * Entries per page, {@code _count}. Left to the server by default.
+         */
+        public HistoryPagerBuilder count(int count) {
+            if (count < 1) throw new IllegalArgumentException("count < 1");
+            mCount = count;
+            return this;
+        }
+
+        /**
+         * Authorization header sent with every page.
+         */
+        public HistoryPagerBuilder bearer(String bearer) {
+            mBearer = bearer;
+            mPager.bearer(bearer);
+            return this;
+        }
+
+        /**
+         * See {@link SearchPager.SearchPagerBuilder#prefetchDepth(int)}.
+         */
+        public HistoryPagerBuilder prefetchDepth(int prefetchDepth) {
+            mPager.prefetchDepth(prefetchDepth);
+            return this;
+        }
+
+        /**
+         * See {@link SearchPager.SearchPagerBuilder#maxBufferedEntries(int)}.
+         */
+        public HistoryPagerBuilder maxBufferedEntries(int maxBufferedEntries) {
+            mPager.maxBufferedEntries(maxBufferedEntries);
+            return this;
+        }
+
+        /**
+         * See {@link SearchPager.SearchPagerBuilder#executor(ExecutorService)}.
+         */
+        public HistoryPagerBuilder executor(ExecutorService executor) {
+            mPager.executor(executor);
+            return this;
+        }
+
+        /**
+         * Creates the pager and starts fetching the first page.
+         */
+        public HistoryPager build() {
+            SimpleDateFormat format = new SimpleDateFormat(INSTANT_FORMAT);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            FhirQuery.FhirQueryBuilder query = new FhirQuery.FhirQueryBuilder();
+            if (mSince != null) {
+                query.where(Query.since(format.format(mSince)));
+            }
+            if (mAt != null) {
+                query.where(Query.at(format.format(mAt)));
+            }
+            if (mCount > 0) {
+                query.where(Query.count(mCount));
+            }
+            FhirQuery parameters = query.build();
+
+            Call<Bundle> firstPage;
+            if (mId != null) {
+                firstPage = mFhirInterface.instanceHistory(mResourceType, mId, parameters, mBearer);
+            } else if (mResourceType != null) {
+                firstPage = mFhirInterface.typeHistory(mResourceType, parameters, mBearer);
+            } else {
+                firstPage = mFhirInterface.systemHistory(parameters, mBearer);
+            }
+            return new HistoryPager(mPager.firstPage(firstPage).build());
+        }
+    }
+}
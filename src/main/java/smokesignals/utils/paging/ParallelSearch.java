@@ -0,0 +1,363 @@
+package smokesignals.utils.paging;
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.query.FhirMultiQuery;
+import smokesignals.utils.query.Query;
+import smokesignals.utils.query.decorator.Comparator;
+import smokesignals.utils.query.encodedparams.Compare;
+
+import java.io.Closeable;
+import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Runs one search as several independent paging chains. The {@code [from, to)} time range is split into equal
+ * {@code _lastUpdated} partitions, each searched with {@code _lastUpdated=ge[start]&_lastUpdated=lt[end]} on top of
+ * the caller's parameters, and up to {@code maxConcurrency} of them are paged through at the same time.
+ * <p>
+ * Entries of all partitions are merged into this single iterator in the order they arrive, so there is no ordering
+ * across partitions. At most {@code maxBufferedEntries} entries wait for the caller; the partitions block once that
+ * buffer is full.
+ * <p>
+ * The partitions do not overlap, but a resource can still be returned twice: a server storing instants with less
+ * precision than the partition bounds can match it on both sides of a bound, and a resource updated during the
+ * extraction moves to a later partition. With {@link ParallelSearchBuilder#deduplicateBoundaries(long, TimeUnit)} set,
+ * resources last updated within the given window of an inner bound, or outside the range altogether, are only
+ * returned the first time they are seen. Only those resources are remembered.
+ * <p>
+ * As with {@link SearchPager}, the search must be {@link #close() closed} if the caller stops before the last entry.
+ */
+public class ParallelSearch implements Iterator<Bundle.Entry>, Closeable {
+
+    public static final int DEFAULT_PARTITIONS = 8;
+    public static final int DEFAULT_MAX_CONCURRENCY = 4;
+    public static final int DEFAULT_MAX_BUFFERED_ENTRIES = SearchPager.DEFAULT_MAX_BUFFERED_ENTRIES;
+
+    private static final String INSTANT_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+    private static final Bundle.Entry WORKER_DONE = new Bundle.Entry();
+
+    private final FhirInterface mFhirInterface;
+    private final String mEndpoint;
+    private final String mBearer;
+    private final long mFrom;
+    private final long mTo;
+    private final long[] mBounds;
+    private final long mBoundaryWindow;
+    private final int mWorkers;
+    private final BlockingQueue<Bundle.Entry> mEntries;
+    private final ConcurrentLinkedQueue<FhirMultiQuery> mPartitions = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<Throwable> mError = new AtomicReference<>();
+    private final ExecutorService mOwnedExecutor;
+    private final List<Future<?>> mFutures = new ArrayList<>();
+    private final Set<String> mSeenAtBoundaries = new HashSet<>();
+
+    private volatile boolean mClosed;
+    private int mFinishedWorkers;
+    private Bundle.Entry mNext;
+
+    private ParallelSearch(ParallelSearchBuilder builder) {
+        mFhirInterface = builder.mFhirInterface;
+        mEndpoint = builder.mEndpoint;
+        mBearer = builder.mBearer;
+        mFrom = builder.mFrom.getTime();
+        mTo = builder.mTo.getTime();
+        mBoundaryWindow = builder.mBoundaryWindowMillis;
+        mEntries = new ArrayBlockingQueue<>(builder.mMaxBufferedEntries);
+
+        int partitions = (int) Math.min(builder.mPartitions, mTo - mFrom);
+        mBounds = new long[partitions + 1];
+        for (int i = 0; i <= partitions; i++) {
+            mBounds[i] = mFrom + (mTo - mFrom) * i / partitions;
+        }
+        SimpleDateFormat format = new SimpleDateFormat(INSTANT_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        for (int i = 0; i < partitions; i++) {
+            FhirMultiQuery.FhirMultiQueryBuilder query = new FhirMultiQuery.FhirMultiQueryBuilder();
+            for (Map.Entry<String, String> parameter : builder.mQuery.entrySet()) {
+                final String name = parameter.getKey();
+                final String value = parameter.getValue();
+                query.where(() -> new AbstractMap.SimpleEntry<>(name, value));
+            }
+            query.where(Comparator.add(Query.lastUpdated(format.format(new Date(mBounds[i]))), Compare.GREATER_OR_EQUAL))
+                    .where(Comparator.add(Query.lastUpdated(format.format(new Date(mBounds[i + 1]))), Compare.LESS_THAN));
+            mPartitions.add(query.build());
+        }
+
+        mWorkers = Math.min(builder.mMaxConcurrency, partitions);
+        mOwnedExecutor = builder.mExecutor == null ? Executors.newFixedThreadPool(mWorkers, runnable -> {
+            Thread thread = new Thread(runnable, "ParallelSearch");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        ExecutorService executor = mOwnedExecutor != null ? mOwnedExecutor : builder.mExecutor;
+        for (int i = 0; i < mWorkers; i++) {
+            mFutures.add(executor.submit(this::runPartitions));
+        }
+    }
+
+    /**
+     * Number of {@code _lastUpdated} partitions the range was split into.
+     */
+    public int getPartitionCount() {
+        return mBounds.length - 1;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (mNext == null) {
+            if (mFinishedWorkers == mWorkers || mClosed) {
+                return false;
+            }
+            Bundle.Entry entry;
+            try {
+                entry = mEntries.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IllegalStateException("Interrupted while waiting for the next search entry", e);
+            }
+
+            if (entry == WORKER_DONE) {
+                Throwable error = mError.get();
+                if (error != null) {
+                    close();
+                    throw SearchPager.propagate(error);
+                }
+                if (++mFinishedWorkers == mWorkers) {
+                    shutdownExecutor();
+                }
+            } else if (isFirstSighting(entry)) {
+                mNext = entry;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Bundle.Entry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Bundle.Entry next = mNext;
+        mNext = null;
+        return next;
+    }
+
+    /**
+     * Returns a sequential {@link Stream} over the remaining entries. Closing the stream closes this search.
+     */
+    public Stream<Bundle.Entry> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.NONNULL), false)
+                .onClose(this::close);
+    }
+
+    /**
+     * Stops every partition, cancelling the requests in flight, and drops the buffered entries.
+     */
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mPartitions.clear();
+        for (Future<?> future : mFutures) {
+            future.cancel(true);
+        }
+        mEntries.clear();
+        mNext = null;
+        shutdownExecutor();
+    }
+
+    private void runPartitions() {
+        try {
+            FhirMultiQuery partition;
+            while (!mClosed && (partition = mPartitions.poll()) != null) {
+                try (SearchPager pager = new SearchPager.SearchPagerBuilder(mFhirInterface)
+                        .firstPage(partition.search(mFhirInterface, mEndpoint, mBearer))
+                        .bearer(mBearer)
+                        .build()) {
+                    while (!mClosed && pager.hasNext()) {
+                        mEntries.put(pager.next());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Throwable t) {
+            mError.compareAndSet(null, t);
+        }
+        if (!mClosed) {
+            try {
+                mEntries.put(WORKER_DONE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean isFirstSighting(Bundle.Entry entry) {
+        if (mBoundaryWindow < 0 || entry.getResource() == null) {
+            return true;
+        }
+        IResource resource = entry.getResource();
+        Date lastUpdated = resource.getMeta().getLastUpdated();
+        if (lastUpdated != null && !nearBoundary(lastUpdated.getTime())) {
+            return true;
+        }
+        return mSeenAtBoundaries.add(resource.getResourceName() + "/" + resource.getId().getIdPart());
+    }
+
+    private boolean nearBoundary(long time) {
+        if (time < mFrom || time >= mTo) {
+            return true;
+        }
+        for (int i = 1; i < mBounds.length - 1; i++) {
+            if (Math.abs(time - mBounds[i]) <= mBoundaryWindow) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void shutdownExecutor() {
+        if (mOwnedExecutor != null) {
+            mOwnedExecutor.shutdownNow();
+        }
+    }
+
+    public static class ParallelSearchBuilder {
+
+        private final FhirInterface mFhirInterface;
+        private String mEndpoint;
+        private String mBearer;
+        private Map<String, String> mQuery = Collections.emptyMap();
+        private Date mFrom;
+        private Date mTo;
+        private int mPartitions = DEFAULT_PARTITIONS;
+        private int mMaxConcurrency = DEFAULT_MAX_CONCURRENCY;
+        private int mMaxBufferedEntries = DEFAULT_MAX_BUFFERED_ENTRIES;
+        private long mBoundaryWindowMillis = -1;
+        private ExecutorService mExecutor;
+
+        public ParallelSearchBuilder(FhirInterface fhirInterface) {
+            if (fhirInterface == null) throw new NullPointerException("FhirInterface == null");
+            mFhirInterface = fhirInterface;
+        }
+
+        /**
+         * The search endpoint, typically a resource type such as {@code Observation}.
+         */
+        public ParallelSearchBuilder endpoint(String endpoint) {
+            mEndpoint = endpoint;
+            return this;
+        }
+
+        /**
+         * Parameters every partition is searched with, for example a {@link smokesignals.utils.query.FhirQuery}.
+         */
+        public ParallelSearchBuilder query(Map<String, String> query) {
+            mQuery = query == null ? Collections.<String, String>emptyMap() : query;
+            return this;
+        }
+
+        /**
+         * Authorization header sent with the first page and every {@code next} page of each partition.
+         */
+        public ParallelSearchBuilder bearer(String bearer) {
+            mBearer = bearer;
+            return this;
+        }
+
+        /**
+         * The {@code _lastUpdated} range to extract, {@code from} inclusive and {@code to} exclusive.
+         */
+        public ParallelSearchBuilder range(Date from, Date to) {
+            if (from == null || to == null) throw new NullPointerException("range bound == null");
+            if (!from.before(to)) throw new IllegalArgumentException("from must be before to");
+            mFrom = from;
+            mTo = to;
+            return this;
+        }
+
+        /**
+         * Number of equal partitions the range is split into. Defaults to {@value #DEFAULT_PARTITIONS}.
+         */
+        public ParallelSearchBuilder partitions(int partitions) {
+            if (partitions < 1) throw new IllegalArgumentException("partitions < 1");
+            mPartitions = partitions;
+            return this;
+        }
+
+        /**
+         * Number of partitions paged through at the same time. Defaults to {@value #DEFAULT_MAX_CONCURRENCY}.
+         */
+        public ParallelSearchBuilder maxConcurrency(int maxConcurrency) {
+            if (maxConcurrency < 1) throw new IllegalArgumentException("maxConcurrency < 1");
+            mMaxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        /**
+         * Upper bound on the entries waiting for the caller. Defaults to {@value #DEFAULT_MAX_BUFFERED_ENTRIES}.
+         */
+        public ParallelSearchBuilder maxBufferedEntries(int maxBufferedEntries) {
+            if (maxBufferedEntries < 1) throw new IllegalArgumentException("maxBufferedEntries < 1");
+            mMaxBufferedEntries = maxBufferedEntries;
+            return this;
+        }
+
+        /**
+         * Drops repeats of resources last updated within {@code window} of a partition bound. Off by default.
+         */
+        public ParallelSearchBuilder deduplicateBoundaries(long window, TimeUnit unit) {
+            if (window < 0) throw new IllegalArgumentException("window < 0");
+            mBoundaryWindowMillis = unit.toMillis(window);
+            return this;
+        }
+
+        /**
+         * Executor the partitions run on. It needs a thread for each of the {@code maxConcurrency} partitions and is
+         * never shut down. When none is given the search runs its own daemon threads.
+         */
+        public ParallelSearchBuilder executor(ExecutorService executor) {
+            mExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Creates the search and starts the first partitions.
+         */
+        public ParallelSearch build() {
+            if (mEndpoint == null) throw new IllegalStateException("endpoint == null");
+            if (mFrom == null) throw new IllegalStateException("range not set");
+            return new ParallelSearch(this);
+        }
+    }
+}
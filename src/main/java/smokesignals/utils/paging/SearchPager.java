@@ -0,0 +1,309 @@
+package smokesignals.utils.paging;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import retrofit2.Call;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.FhirCallUtils;
+import smokesignals.utils.query.FhirMultiQuery;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterates over every {@link Bundle.Entry} of a paged search, following the {@code Bundle.link} with relation
+ * {@code next}, through {@link FhirInterface#page(String, String)}, until the server stops returning one.
+ * <p>
+ * Pages are fetched on a background thread, so while the caller works through page N the pager is already
+ * downloading and parsing page N+1. At most {@code prefetchDepth} pages are queued ahead of the caller, and the
+ * queued pages together never hold more than {@code maxBufferedEntries} entries (a single page larger than the cap
+ * is still let through on its own). Note that the page currently being downloaded is not counted against either
+ * limit.
+ * <p>
+ * The pager must be {@link #close() closed} if the caller stops before the last entry, otherwise the background
+ * fetch stays blocked waiting for room in the queue.
+ */
+public class SearchPager implements Iterator<Bundle.Entry>, Closeable {
+
+    public static final int DEFAULT_PREFETCH_DEPTH = 2;
+    public static final int DEFAULT_MAX_BUFFERED_ENTRIES = 10000;
+
+    private static final Page END = new Page(null, null, 0);
+
+    private final FhirInterface mFhirInterface;
+    private final String mBearer;
+    private final BlockingQueue<Page> mPages;
+    private final Semaphore mEntryBudget;
+    private final int mMaxBufferedEntries;
+    private final ExecutorService mOwnedExecutor;
+
+    private volatile Call<Bundle> mInFlight;
+    private volatile boolean mClosed;
+    private Future<?> mProducer;
+
+    private Page mCurrentPage;
+    private Iterator<Bundle.Entry> mCurrent = Collections.emptyIterator();
+    private boolean mFinished;
+
+    private SearchPager(SearchPagerBuilder builder) {
+        mFhirInterface = builder.mFhirInterface;
+        mBearer = builder.mBearer;
+        mPages = new ArrayBlockingQueue<>(builder.mPrefetchDepth);
+        mMaxBufferedEntries = builder.mMaxBufferedEntries;
+        mEntryBudget = new Semaphore(builder.mMaxBufferedEntries);
+        mOwnedExecutor = builder.mExecutor == null ? Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SearchPager");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        ExecutorService executor = mOwnedExecutor != null ? mOwnedExecutor : builder.mExecutor;
+        final Call<Bundle> firstPage = builder.mFirstPage;
+        mProducer = executor.submit(() -> fetchPages(firstPage));
+    }
+
+    /**
+     * Convenience for paging through {@link FhirInterface#search(String, Map)} with the default limits.
+     */
+    public static SearchPager search(FhirInterface fhirInterface, String endpoint, Map<String, String> searchParameters) {
+        return new SearchPagerBuilder(fhirInterface)
+                .firstPage(fhirInterface.search(endpoint, searchParameters))
+                .build();
+    }
+
+    /**
+     * Convenience for paging through a {@link FhirMultiQuery} search with the default limits.
+     */
+    public static SearchPager search(FhirInterface fhirInterface, String endpoint, FhirMultiQuery query) {
+        return new SearchPagerBuilder(fhirInterface)
+                .firstPage(query.search(fhirInterface, endpoint))
+                .build();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!mCurrent.hasNext()) {
+            if (mFinished) {
+                return false;
+            }
+            releaseCurrentPage();
+
+            Page page;
+            try {
+                page = mPages.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IllegalStateException("Interrupted while waiting for the next search page", e);
+            }
+
+            if (page == END) {
+                mFinished = true;
+                shutdownExecutor();
+            } else if (page.mError != null) {
+                mFinished = true;
+                close();
+                throw propagate(page.mError);
+            } else {
+                mCurrentPage = page;
+                mCurrent = page.mBundle.getEntry().iterator();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Bundle.Entry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return mCurrent.next();
+    }
+
+    /**
+     * Returns a sequential {@link Stream} over the remaining entries. Closing the stream closes this pager.
+     */
+    public Stream<Bundle.Entry> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(this::close);
+    }
+
+    /**
+     * Stops the background fetch, cancels any request in flight and drops the buffered pages.
+     */
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mFinished = true;
+
+        Call<Bundle> inFlight = mInFlight;
+        if (inFlight != null) {
+            inFlight.cancel();
+        }
+        if (mProducer != null) {
+            mProducer.cancel(true);
+        }
+        mPages.clear();
+        mCurrent = Collections.emptyIterator();
+        mCurrentPage = null;
+        shutdownExecutor();
+    }
+
+    private void fetchPages(Call<Bundle> call) {
+        try {
+            while (call != null && !mClosed) {
+                mInFlight = call;
+                Bundle bundle = FhirCallUtils.execute(call);
+                mInFlight = null;
+
+                int permits = Math.min(bundle.getEntry().size(), mMaxBufferedEntries);
+                mEntryBudget.acquire(permits);
+                mPages.put(new Page(bundle, null, permits));
+
+                call = nextPage(bundle);
+            }
+            mPages.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            if (!mClosed) {
+                try {
+                    mPages.put(new Page(null, t, 0));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private Call<Bundle> nextPage(Bundle bundle) {
+        Bundle.Link next = bundle.getLink(Bundle.LINK_NEXT);
+        if (next == null || next.getUrl() == null || next.getUrl().isEmpty()) {
+            return null;
+        }
+        return mFhirInterface.page(next.getUrl(), mBearer);
+    }
+
+    private void releaseCurrentPage() {
+        if (mCurrentPage != null) {
+            mEntryBudget.release(mCurrentPage.mPermits);
+            mCurrentPage = null;
+        }
+    }
+
+    private void shutdownExecutor() {
+        if (mOwnedExecutor != null) {
+            mOwnedExecutor.shutdownNow();
+        }
+    }
+
+    static RuntimeException propagate(Throwable error) {
+        if (error instanceof RuntimeException) {
+            return (RuntimeException) error;
+        } else if (error instanceof IOException) {
+            return new UncheckedIOException((IOException) error);
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        }
+        return new IllegalStateException(error);
+    }
+
+    private static class Page {
+
+        final Bundle mBundle;
+        final Throwable mError;
+        final int mPermits;
+
+        Page(Bundle bundle, Throwable error, int permits) {
+            mBundle = bundle;
+            mError = error;
+            mPermits = permits;
+        }
+    }
+
+    public static class SearchPagerBuilder {
+
+        private final FhirInterface mFhirInterface;
+        private Call<Bundle> mFirstPage;
+        private String mBearer;
+        private int mPrefetchDepth = DEFAULT_PREFETCH_DEPTH;
+        private int mMaxBufferedEntries = DEFAULT_MAX_BUFFERED_ENTRIES;
+        private ExecutorService mExecutor;
+
+        /**
+         * @param fhirInterface used to request the {@code next} page links.
+         */
+        public SearchPagerBuilder(FhirInterface fhirInterface) {
+            if (fhirInterface == null) throw new NullPointerException("FhirInterface == null");
+            mFhirInterface = fhirInterface;
+        }
+
+        /**
+         * The call returning the first page, typically {@link FhirInterface#search(String, Map)}. It must not have
+         * been executed yet.
+         */
+        public SearchPagerBuilder firstPage(Call<Bundle> firstPage) {
+            mFirstPage = firstPage;
+            return this;
+        }
+
+        /**
+         * Authorization header sent with every {@code next} page. The first page carries its own.
+         */
+        public SearchPagerBuilder bearer(String bearer) {
+            mBearer = bearer;
+            return this;
+        }
+
+        /**
+         * Number of fetched pages that may wait ahead of the caller. Defaults to {@value #DEFAULT_PREFETCH_DEPTH}.
+         */
+        public SearchPagerBuilder prefetchDepth(int prefetchDepth) {
+            if (prefetchDepth < 1) throw new IllegalArgumentException("prefetchDepth < 1");
+            mPrefetchDepth = prefetchDepth;
+            return this;
+        }
+
+        /**
+         * Upper bound on the entries held by queued pages. Defaults to {@value #DEFAULT_MAX_BUFFERED_ENTRIES}.
+         */
+        public SearchPagerBuilder maxBufferedEntries(int maxBufferedEntries) {
+            if (maxBufferedEntries < 1) throw new IllegalArgumentException("maxBufferedEntries < 1");
+            mMaxBufferedEntries = maxBufferedEntries;
+            return this;
+        }
+
+        /**
+         * Executor the pages are fetched on. When none is given the pager runs its own daemon thread, which it shuts
+         * down once the last page has been taken or the pager is closed. A supplied executor is never shut down.
+         */
+        public SearchPagerBuilder executor(ExecutorService executor) {
+            mExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Creates the pager and starts fetching the first page.
+         */
+        public SearchPager build() {
+            if (mFirstPage == null) throw new IllegalStateException("firstPage == null");
+            return new SearchPager(this);
+        }
+    }
+}
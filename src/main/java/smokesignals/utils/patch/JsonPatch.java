@@ -0,0 +1,294 @@
+package smokesignals.utils.patch;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import retrofit2.Call;
+import smokesignals.interfaces.FhirInterface;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An RFC 6902 JSON Patch turning one version of a resource into another, for
+ * {@link FhirInterface#jsonPatch(String, String, RequestBody, String, String)}.
+ * <p>
+ * Both versions are encoded with the HAPI parser and compared as Jackson trees. Objects are compared member by member,
+ * so a changed element costs one operation however large the resource is. Arrays are compared after trimming their
+ * common head and tail, with a longest common subsequence over what is left, so inserting or removing an element in
+ * the middle of a list is a single {@code add} or {@code remove}, and an element changed in place is patched
+ * member by member. Arrays whose differing middle parts are too large to compare that way are replaced whole. The
+ * server managed {@code meta.versionId} and {@code meta.lastUpdated} are never patched.
+ * <p>
+ * The patch carries the version of the original as its {@code If-Match} precondition, so the server rejects it with a
+ * {@code 412 Precondition Failed} if the resource was changed in the meantime:
+ * <pre>
+ * Patient original = (Patient) fhir.read("Patient", "p1", bearer).execute().body();
+ * Patient changed = ... a modified copy of original ...
+ * JsonPatch patch = new JsonPatch.JsonPatchBuilder(fhirContext).source(original).target(changed).build();
+ * if (!patch.isEmpty()) {
+ *     Response&lt;BaseResource&gt; response = patch.call(fhir, "Patient", "p1", bearer).execute();
+ * }
+ * </pre>
+ */
+public class JsonPatch {
+
+    public static final MediaType MEDIA_TYPE = MediaType.parse("application/json-patch+json");
+
+    /**
+     * Above this many cells in the longest common subsequence table an array is replaced instead of diffed.
+     */
+    static final int MAX_LCS_CELLS = 1 << 20;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+    private final ArrayNode mOperations;
+    private final String mIfMatch;
+
+    private JsonPatch(ArrayNode operations, String ifMatch) {
+        mOperations = operations;
+        mIfMatch = ifMatch;
+    }
+
+    /**
+     * The operations turning {@code source} into {@code target}.
+     */
+    public static ArrayNode diff(JsonNode source, JsonNode target) {
+        ArrayNode operations = NODES.arrayNode();
+        diff("", source, target, operations);
+        return operations;
+    }
+
+    /**
+     * The operations, as a JSON array.
+     */
+    public ArrayNode getOperations() {
+        return mOperations.deepCopy();
+    }
+
+    public int size() {
+        return mOperations.size();
+    }
+
+    /**
+     * True when both versions are the same, and there is nothing to send.
+     */
+    public boolean isEmpty() {
+        return mOperations.size() == 0;
+    }
+
+    /**
+     * The {@code If-Match} value, such as {@code W/"3"}, or null when the version of the original is not known.
+     */
+    public String getIfMatch() {
+        return mIfMatch;
+    }
+
+    public RequestBody toRequestBody() {
+        return RequestBody.create(MEDIA_TYPE, toString());
+    }
+
+    /**
+     * Prepares the patch of {@code [type]/[id]}.
+     */
+    public Call<BaseResource> call(FhirInterface fhirInterface, String resourceType, String id, String bearer) {
+        return fhirInterface.jsonPatch(resourceType, id, toRequestBody(), mIfMatch, bearer);
+    }
+
+    @Override
+    public String toString() {
+        return mOperations.toString();
+    }
+
+    private static void diff(String path, JsonNode source, JsonNode target, ArrayNode operations) {
+        if (source.equals(target)) {
+            return;
+        }
+        if (source.isObject() && target.isObject()) {
+            diffObject(path, (ObjectNode) source, (ObjectNode) target, operations);
+        } else if (source.isArray() && target.isArray()) {
+            diffArray(path, (ArrayNode) source, (ArrayNode) target, operations);
+        } else {
+            operation(operations, "replace", path).set("value", target);
+        }
+    }
+
+    private static void diffObject(String path, ObjectNode source, ObjectNode target, ArrayNode operations) {
+        Iterator<Map.Entry<String, JsonNode>> fields = source.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            String fieldPath = path + "/" + escape(field.getKey());
+            JsonNode value = target.get(field.getKey());
+            if (value == null) {
+                operation(operations, "remove", fieldPath);
+            } else {
+                diff(fieldPath, field.getValue(), value, operations);
+            }
+        }
+        fields = target.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            if (!source.has(field.getKey())) {
+                operation(operations, "add", path + "/" + escape(field.getKey())).set("value", field.getValue());
+            }
+        }
+    }
+
+    private static void diffArray(String path, ArrayNode source, ArrayNode target, ArrayNode operations) {
+        int sourceSize = source.size();
+        int targetSize = target.size();
+        int head = 0;
+        while (head < sourceSize && head < targetSize && source.get(head).equals(target.get(head))) {
+            head++;
+        }
+        int tail = 0;
+        while (tail < sourceSize - head && tail < targetSize - head
+                && source.get(sourceSize - 1 - tail).equals(target.get(targetSize - 1 - tail))) {
+            tail++;
+        }
+        int n = sourceSize - head - tail;
+        int m = targetSize - head - tail;
+        if ((long) (n + 1) * (m + 1) > MAX_LCS_CELLS) {
+            operation(operations, "replace", path).set("value", target);
+            return;
+        }
+
+        // lcs[i][j] is the length of the longest common subsequence of source[head + i..] and target[head + j..]
+        int[][] lcs = new int[n + 1][m + 1];
+        for (int i = n - 1; i >= 0; i--) {
+            for (int j = m - 1; j >= 0; j--) {
+                lcs[i][j] = source.get(head + i).equals(target.get(head + j))
+                        ? lcs[i + 1][j + 1] + 1
+                        : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+            }
+        }
+
+        int i = 0;
+        int j = 0;
+        int index = head;
+        while (i < n || j < m) {
+            if (i < n && j < m && source.get(head + i).equals(target.get(head + j))) {
+                i++;
+                j++;
+                index++;
+            } else if (i < n && j < m && lcs[i + 1][j + 1] == lcs[i][j]) {
+                // changed in place
+                diff(path + "/" + index, source.get(head + i), target.get(head + j), operations);
+                i++;
+                j++;
+                index++;
+            } else if (j < m && (i == n || lcs[i][j + 1] >= lcs[i + 1][j])) {
+                operation(operations, "add", path + "/" + index).set("value", target.get(head + j));
+                j++;
+                index++;
+            } else {
+                operation(operations, "remove", path + "/" + index);
+                i++;
+            }
+        }
+    }
+
+    private static ObjectNode operation(ArrayNode operations, String op, String path) {
+        ObjectNode operation = operations.addObject();
+        operation.put("op", op);
+        operation.put("path", path);
+        return operation;
+    }
+
+    /**
+     * Escapes a member name as a JSON Pointer reference token.
+     */
+    static String escape(String name) {
+        return name.replace("~", "~0").replace("/", "~1");
+    }
+
+    public static class JsonPatchBuilder {
+
+        private final IParser mParser;
+        private BaseResource mSource;
+        private BaseResource mTarget;
+        private String mVersion;
+        private boolean mVersionSet;
+
+        /**
+         * @param fhirContext used to encode both versions.
+         */
+        public JsonPatchBuilder(FhirContext fhirContext) {
+            if (fhirContext == null) throw new NullPointerException("FhirContext == null");
+            mParser = fhirContext.newJsonParser();
+        }
+
+        /**
+         * The version the server holds. Its {@code meta.versionId}, or else the version of its id, becomes the
+         * {@code If-Match} precondition.
+         */
+        public JsonPatchBuilder source(BaseResource source) {
+            if (source == null) throw new NullPointerException("source == null");
+            mSource = source;
+            return this;
+        }
+
+        /**
+         * The version the resource should be turned into.
+         */
+        public JsonPatchBuilder target(BaseResource target) {
+            if (target == null) throw new NullPointerException("target == null");
+            mTarget = target;
+            return this;
+        }
+
+        /**
+         * Overrides the version expected on the server, or removes the precondition when null.
+         */
+        public JsonPatchBuilder ifMatch(String version) {
+            mVersion = version;
+            mVersionSet = true;
+            return this;
+        }
+
+        /**
+         * @throws IOException if a version could not be read back as JSON.
+         */
+        public JsonPatch build() throws IOException {
+            if (mSource == null) throw new IllegalStateException("source is not set");
+            if (mTarget == null) throw new IllegalStateException("target is not set");
+            if (!mSource.getResourceName().equals(mTarget.getResourceName())) {
+                throw new IllegalArgumentException("Cannot patch a " + mSource.getResourceName() + " into a "
+                        + mTarget.getResourceName());
+            }
+            JsonNode source = MAPPER.readTree(mParser.encodeResourceToString(mSource));
+            JsonNode target = MAPPER.readTree(mParser.encodeResourceToString(mTarget));
+            stripServerManaged(source);
+            stripServerManaged(target);
+
+            String version = mVersion;
+            if (!mVersionSet) {
+                version = mSource.getMeta().getVersionId();
+            }
+            if (!mVersionSet && version == null && mSource.getId() != null) {
+                version = mSource.getId().getVersionIdPart();
+            }
+            return new JsonPatch(diff(source, target), version == null ? null : "W/\"" + version + "\"");
+        }
+
+        private static void stripServerManaged(JsonNode resource) {
+            JsonNode meta = resource.get("meta");
+            if (meta instanceof ObjectNode) {
+                ((ObjectNode) meta).remove("versionId");
+                ((ObjectNode) meta).remove("lastUpdated");
+                if (meta.size() == 0) {
+                    ((ObjectNode) resource).remove("meta");
+                }
+            }
+        }
+    }
+}
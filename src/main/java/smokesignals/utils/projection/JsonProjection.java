@@ -0,0 +1,260 @@
+package smokesignals.utils.projection;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.TreeNode;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Copies a FHIR JSON document token by token, dropping the elements of projected resources that were not asked for.
+ * <p>
+ * A dropped element is skipped by the tokenizer without building anything for it, and the HAPI parser then only
+ * sees the elements that are kept. Only the resources in the {@code entry[].resource} of a Bundle, including those
+ * of Bundles nested in it, are projected; a resource that is the whole document, as returned by a read, is copied
+ * whole. Choice elements are matched by their base name, so {@code value} keeps {@code valueQuantity}, and the
+ * {@code _name} holding the id and extensions of a primitive is kept with it.
+ * <p>
+ * {@link #inspect(InputStream)} reads a Bundle without copying it, for the {@code next} link and for whether the
+ * server already cut its resources down, in which case the copy can be skipped.
+ */
+final class JsonProjection {
+
+    /**
+     * Elements kept in every projected resource, whatever was asked for.
+     */
+    static final Set<String> MANDATORY = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "resourceType", "id", "meta", "implicitRules", "modifierExtension")));
+
+    /**
+     * Tag a server puts in {@code meta.tag} of the resources it returned only some elements of.
+     */
+    static final String SUBSETTED_SYSTEM = "http://hl7.org/fhir/v3/ObservationValue";
+    static final String SUBSETTED = "SUBSETTED";
+
+    private static final JsonFactory FACTORY = new ObjectMapper().getFactory();
+
+    private final Map<String, Set<String>> mElements;
+
+    /**
+     * @param elements the elements to keep, by resource type. Resources of other types are copied whole.
+     */
+    JsonProjection(Map<String, Set<String>> elements) {
+        mElements = elements;
+    }
+
+    /**
+     * Copies the document in {@code in} to {@code out}.
+     */
+    void filter(InputStream in, OutputStream out) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(in);
+             JsonGenerator generator = FACTORY.createGenerator(out)) {
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                copyResource(parser, generator, false);
+            } else if (parser.getCurrentToken() != null) {
+                generator.copyCurrentStructure(parser);
+            }
+        }
+    }
+
+    /**
+     * Tokenizes the top level of the Bundle in {@code in}, stopping once its {@code link} and its first projected
+     * resource have been seen. A server that cut that resource down and tagged it {@link #SUBSETTED} is taken to have
+     * done so for the whole page.
+     */
+    Page inspect(InputStream in) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return new Page(null, false);
+            }
+            String next = null;
+            boolean linked = false;
+            Boolean subsetted = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (name.equals("link") && value == JsonToken.START_ARRAY) {
+                    next = nextLink(parser.readValueAsTree());
+                    linked = true;
+                } else if (name.equals("entry") && value == JsonToken.START_ARRAY && subsetted == null) {
+                    subsetted = firstProjectedSubsetted(parser);
+                } else {
+                    parser.skipChildren();
+                }
+                if (linked && subsetted != null) {
+                    break;
+                }
+            }
+            // a page without projected resources has nothing to filter either
+            return new Page(next, subsetted == Boolean.FALSE);
+        }
+    }
+
+    /**
+     * Reads the entries up to their {@code END_ARRAY}, looking at the first resource of a projected type only.
+     *
+     * @return whether that resource is tagged {@link #SUBSETTED}, or null when there is none.
+     */
+    private Boolean firstProjectedSubsetted(JsonParser parser) throws IOException {
+        Boolean subsetted = null;
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token != JsonToken.START_OBJECT || subsetted != null) {
+                parser.skipChildren();
+                continue;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (subsetted == null && name.equals("resource") && value == JsonToken.START_OBJECT) {
+                    JsonNode resource = parser.readValueAsTree();
+                    if (mElements.containsKey(resource.path("resourceType").asText())) {
+                        subsetted = isSubsetted(resource);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return subsetted;
+    }
+
+    private static boolean isSubsetted(JsonNode resource) {
+        for (JsonNode tag : resource.path("meta").path("tag")) {
+            if (tag.path("system").asText().equals(SUBSETTED_SYSTEM) && tag.path("code").asText().equals(SUBSETTED)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the resource whose {@code START_OBJECT} the parser is on. Elements read before {@code resourceType} are
+     * buffered until the type, and with it the projection, is known.
+     *
+     * @param project whether the elements of the resource itself are filtered, or only those of its entries.
+     */
+    private void copyResource(JsonParser parser, JsonGenerator generator, boolean project) throws IOException {
+        generator.writeStartObject();
+        List<Map.Entry<String, TreeNode>> pending = null;
+        String type = null;
+        Set<String> keep = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (type == null) {
+                if (name.equals("resourceType") && value == JsonToken.VALUE_STRING) {
+                    type = parser.getText();
+                    keep = project ? mElements.get(type) : null;
+                    generator.writeStringField(name, type);
+                    if (pending != null) {
+                        for (Map.Entry<String, TreeNode> element : pending) {
+                            if (keeps(keep, element.getKey())) {
+                                generator.writeFieldName(element.getKey());
+                                generator.writeTree(element.getValue());
+                            }
+                        }
+                    }
+                } else {
+                    if (pending == null) {
+                        pending = new ArrayList<>();
+                    }
+                    pending.add(new AbstractMap.SimpleEntry<>(name, parser.readValueAsTree()));
+                }
+            } else if (name.equals("entry") && value == JsonToken.START_ARRAY && type.equals("Bundle")) {
+                generator.writeFieldName(name);
+                copyEntries(parser, generator);
+            } else if (keeps(keep, name)) {
+                generator.writeFieldName(name);
+                generator.copyCurrentStructure(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (type == null && pending != null) {
+            for (Map.Entry<String, TreeNode> element : pending) {
+                generator.writeFieldName(element.getKey());
+                generator.writeTree(element.getValue());
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    private static String nextLink(JsonNode links) {
+        for (JsonNode link : links) {
+            if (link.path("relation").asText().equals("next") && link.path("url").isTextual()) {
+                return link.path("url").asText();
+            }
+        }
+        return null;
+    }
+
+    private void copyEntries(JsonParser parser, JsonGenerator generator) throws IOException {
+        generator.writeStartArray();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token != JsonToken.START_OBJECT) {
+                generator.copyCurrentStructure(parser);
+                continue;
+            }
+            generator.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                generator.writeFieldName(name);
+                if (name.equals("resource") && value == JsonToken.START_OBJECT) {
+                    copyResource(parser, generator, true);
+                } else {
+                    generator.copyCurrentStructure(parser);
+                }
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    static boolean keeps(Set<String> keep, String name) {
+        if (keep == null) {
+            return true;
+        }
+        String element = name.startsWith("_") ? name.substring(1) : name;
+        if (MANDATORY.contains(element) || keep.contains(element)) {
+            return true;
+        }
+        for (String kept : keep) {
+            if (element.length() > kept.length() && element.startsWith(kept)
+                    && Character.isUpperCase(element.charAt(kept.length()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * What {@link #inspect(InputStream)} found out about a Bundle.
+     */
+    static final class Page {
+
+        final String mNext;
+        final boolean mNeedsFilter;
+
+        Page(String next, boolean needsFilter) {
+            mNext = next;
+            mNeedsFilter = needsFilter;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package smokesignals.utils.projection;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import smokesignals.utils.query.parameters.ResultParameter;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Asks the server for only the elements a client uses, and parses only those.
+ * <p>
+ * Declare the elements needed for each resource type, and every {@code GET} search on that type that does not ask
+ * for a projection of its own is sent with {@code _elements}, or {@code _summary} for the types given a summary mode.
+ * Servers are free to return more than was asked for, so the JSON Bundles that come back from the searches given
+ * {@code _elements} here have the unrequested elements of the projected resources in their entries skipped by the
+ * tokenizer before the converter parses them, and the HAPI model objects for them are never built. The page behind
+ * the {@code next} link of such a Bundle is filtered as well, whether or not the server kept {@code _elements} in the
+ * link, and a relative link is resolved against the URL of the page it came from. The elements of the
+ * {@link JsonProjection#MANDATORY mandatory} set, such as {@code id} and {@code meta}, are always kept. A page whose
+ * resources the server tagged {@code SUBSETTED}, as it should when it honours {@code _elements}, is handed on as it
+ * came, without the extra pass. Searches that asked for their own projection, summaries, reads, XML and NDJSON
+ * bodies are left as they are.
+ * <p>
+ * Add it as an application interceptor, on a client used for the projected searches only:
+ * <pre>
+ * OkHttpClient client = new OkHttpClient.Builder()
+ *         .addInterceptor(new ProjectionInterceptor.ProjectionInterceptorBuilder()
+ *                 .elements("Observation", "code", "subject", "value")
+ *                 .summary("Patient", "true")
+ *                 .build())
+ *         .build();
+ * </pre>
+ */
+public class ProjectionInterceptor implements Interceptor {
+
+    private static final String SEARCH = "_search";
+    private static final String ELEMENTS = ResultParameter.ELEMENTS.getStringValue();
+    private static final String SUMMARY = ResultParameter.SUMMARY.getStringValue();
+
+    /**
+     * Next page links remembered at most, so that pages nobody asks for are eventually forgotten.
+     */
+    private static final int MAX_NEXT_PAGES = 256;
+
+    private final Map<String, String> mElements;
+    private final Map<String, String> mSummaries;
+    private final JsonProjection mProjection;
+    private final Set<String> mNextPages = Collections.newSetFromMap(Collections.synchronizedMap(
+            new LinkedHashMap<String, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_NEXT_PAGES;
+                }
+            }));
+
+    private ProjectionInterceptor(ProjectionInterceptorBuilder builder) {
+        Map<String, String> elements = new HashMap<>();
+        for (Map.Entry<String, Set<String>> projection : builder.mElements.entrySet()) {
+            elements.put(projection.getKey(), String.join(",", projection.getValue()));
+        }
+        mElements = Collections.unmodifiableMap(elements);
+        mSummaries = Collections.unmodifiableMap(new HashMap<>(builder.mSummaries));
+        mProjection = new JsonProjection(Collections.unmodifiableMap(new HashMap<>(builder.mElements)));
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (!request.method().equals("GET")) {
+            return chain.proceed(request);
+        }
+        Request projected = project(request);
+        // only the searches projected here, and the pages that follow them, are known to hold the projected elements
+        boolean filter = mNextPages.remove(request.url().toString())
+                || (projected != request && projected.url().queryParameter(ELEMENTS) != null);
+        Response response = chain.proceed(projected);
+        ResponseBody body = response.body();
+        if (!filter || !response.isSuccessful() || body == null || !isJson(body.contentType())) {
+            return response;
+        }
+        Buffer page = new Buffer();
+        try {
+            page.writeAll(body.source());
+        } finally {
+            body.close();
+        }
+        JsonProjection.Page inspected = mProjection.inspect(page.clone().inputStream());
+        HttpUrl nextUrl = inspected.mNext == null ? null : response.request().url().resolve(inspected.mNext);
+        if (nextUrl != null) {
+            mNextPages.add(nextUrl.toString());
+        }
+        if (!inspected.mNeedsFilter) {
+            return response.newBuilder()
+                    .body(ResponseBody.create(body.contentType(), page.size(), page))
+                    .build();
+        }
+        Buffer filtered = new Buffer();
+        mProjection.filter(page.inputStream(), filtered.outputStream());
+        return response.newBuilder()
+                .removeHeader("Content-Length")
+                .body(ResponseBody.create(body.contentType(), filtered.size(), filtered))
+                .build();
+    }
+
+    /**
+     * The request with {@code _elements} or {@code _summary} added when it is a search on a projected type that does
+     * not carry either.
+     */
+    Request project(Request request) {
+        HttpUrl url = request.url();
+        String type = searchedType(url.pathSegments());
+        if (type == null
+                || url.queryParameter(ELEMENTS) != null
+                || url.queryParameter(SUMMARY) != null) {
+            return request;
+        }
+        String elements = mElements.get(type);
+        String summary = mSummaries.get(type);
+        if (elements != null) {
+            url = url.newBuilder().addQueryParameter(ELEMENTS, elements).build();
+        } else if (summary != null) {
+            url = url.newBuilder().addQueryParameter(SUMMARY, summary).build();
+        } else {
+            return request;
+        }
+        return request.newBuilder().url(url).build();
+    }
+
+    /**
+     * The resource type searched by {@code [base]/[type]} or {@code [base]/[type]/_search}, or null.
+     */
+    private static String searchedType(List<String> segments) {
+        int last = segments.size() - 1;
+        if (last >= 0 && segments.get(last).isEmpty()) {
+            last--;
+        }
+        if (last >= 0 && segments.get(last).equals(SEARCH)) {
+            last--;
+        }
+        return last >= 0 ? segments.get(last) : null;
+    }
+
+    /**
+     * True for a single JSON document, such as {@code application/json+fhir}, but not for NDJSON.
+     */
+    private static boolean isJson(MediaType contentType) {
+        return contentType != null && contentType.subtype().contains("json")
+                && !contentType.subtype().contains("ndjson");
+    }
+
+    public static class ProjectionInterceptorBuilder {
+
+        private final Map<String, Set<String>> mElements = new HashMap<>();
+        private final Map<String, String> mSummaries = new HashMap<>();
+
+        public ProjectionInterceptorBuilder() {
+        }
+
+        /**
+         * Searches on {@code resourceType} ask for, and parse, only these elements besides the mandatory ones.
+         * Elements are named as in the resource, with choice elements by their base name, such as {@code value}.
+         */
+        public ProjectionInterceptorBuilder elements(String resourceType, String... elements) {
+            if (resourceType == null) throw new NullPointerException("resourceType == null");
+            if (elements.length < 1) throw new IllegalArgumentException("elements.length < 1");
+            Set<String> projection = new LinkedHashSet<>();
+            for (String element : elements) {
+                if (element == null) throw new NullPointerException("element == null");
+                projection.add(element);
+            }
+            mElements.put(resourceType, Collections.unmodifiableSet(projection));
+            mSummaries.remove(resourceType);
+            return this;
+        }
+
+        public ProjectionInterceptorBuilder elements(String resourceType, Set<String> elements) {
+            if (elements == null) throw new NullPointerException("elements == null");
+            return elements(resourceType, elements.toArray(new String[0]));
+        }
+
+        /**
+         * Searches on {@code resourceType} ask for a summary, such as {@code true}, {@code text} or {@code data}. The
+         * server decides what a summary holds, so these responses are not filtered.
+         */
+        public ProjectionInterceptorBuilder summary(String resourceType, String mode) {
+            if (resourceType == null) throw new NullPointerException("resourceType == null");
+            if (mode == null) throw new NullPointerException("mode == null");
+            mSummaries.put(resourceType, mode);
+            mElements.remove(resourceType);
+            return this;
+        }
+
+        public ProjectionInterceptor build() {
+            return new ProjectionInterceptor(this);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package smokesignals.utils.query;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import retrofit2.Call;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.query.contract.QueryElement;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Search parameters kept as an ordered multimap. Unlike {@link FhirQuery}, a second {@code _include} or a
+ * {@code date=ge...&date=le...} range keeps every value instead of replacing the first.
+ * <p>
+ * The parameters are URL encoded once, when the query is built, and sent through
+ * {@link FhirInterface#search(String, QueryPairs)} as {@link QueryPairs}, a map view that repeats a name once for
+ * each of its values.
+ */
+public class FhirMultiQuery {
+
+    private final List<AbstractMap.SimpleEntry<String, String>> mQueries;
+    private final Map<String, List<String>> mParameters;
+    private final List<String> mEncoded;
+    private final QueryPairs mPairs;
+
+    private FhirMultiQuery(List<AbstractMap.SimpleEntry<String, String>> queries,
+                           Map<String, List<String>> parameters, List<String> encoded, QueryPairs pairs) {
+        mQueries = queries;
+        mParameters = parameters;
+        mEncoded = encoded;
+        mPairs = pairs;
+    }
+
+    /**
+     * Values of a parameter in the order they were added, or an empty list.
+     */
+    public List<String> get(String name) {
+        List<String> values = mParameters.get(name);
+        return values == null ? Collections.<String>emptyList() : values;
+    }
+
+    /**
+     * Every parameter with its values, in the order the names were first added.
+     */
+    public Map<String, List<String>> asMap() {
+        return mParameters;
+    }
+
+    /**
+     * The {@code name=value} pairs, already URL encoded, in the order they were added.
+     */
+    public List<String> encoded() {
+        return mEncoded;
+    }
+
+    /**
+     * The encoded parameters as the {@code @QueryMap} of {@link FhirInterface#search(String, QueryPairs)}.
+     */
+    public QueryPairs pairs() {
+        return mPairs;
+    }
+
+    /**
+     * Returns the endpoint with the encoded parameters appended to its query string.
+     */
+    public String appendTo(String endpoint) {
+        if (mEncoded.isEmpty()) {
+            return endpoint;
+        }
+        return endpoint + (endpoint.indexOf('?') < 0 ? '?' : '&') + toString();
+    }
+
+    /**
+     * Runs the query against the endpoint through {@link FhirInterface#search(String, QueryPairs)}.
+     */
+    public Call<Bundle> search(FhirInterface fhirInterface, String endpoint) {
+        return fhirInterface.search(endpoint, mPairs);
+    }
+
+    /**
+     * Runs the query against the endpoint with an {@code Authorization} header, through
+     * {@link FhirInterface#search(String, QueryPairs, String)}.
+     */
+    public Call<Bundle> search(FhirInterface fhirInterface, String endpoint, String bearer) {
+        return fhirInterface.search(endpoint, mPairs, bearer);
+    }
+
+    /**
+     * Returns a builder starting with all of this query's parameters.
+     */
+    public FhirMultiQueryBuilder newBuilder() {
+        FhirMultiQueryBuilder builder = new FhirMultiQueryBuilder();
+        builder.mQueries.addAll(mQueries);
+        return builder;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (String parameter : mEncoded) {
+            if (builder.length() > 0) {
+                builder.append('&');
+            }
+            builder.append(parameter);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The URL encoded {@code name=value} pairs of a query, as a map for Retrofit's {@code @QueryMap}. Its entries are
+     * every pair in the order they were added, so a name appears once for each of its values, which a map otherwise
+     * cannot do. Lookups by name only see the first value; use {@link FhirMultiQuery#get(String)} for all of them.
+     */
+    public static final class QueryPairs extends AbstractMap<String, String> {
+
+        private final List<Map.Entry<String, String>> mPairs;
+
+        QueryPairs(List<Map.Entry<String, String>> pairs) {
+            mPairs = pairs;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return mPairs.iterator();
+                }
+
+                @Override
+                public int size() {
+                    return mPairs.size();
+                }
+            };
+        }
+    }
+
+    public static class FhirMultiQueryBuilder {
+        List<AbstractMap.SimpleEntry<String, String>> mQueries = new ArrayList<>();
+
+        /**
+         * Adds the parameter, keeping any earlier value with the same name.
+         */
+        public FhirMultiQueryBuilder where(QueryElement element) {
+            mQueries.add(element.create());
+            return this;
+        }
+
+        /**
+         * Adds a single parameter matching any of the given alternatives, which must all share one name. Their
+         * values are joined with {@code ,}, with commas inside a value escaped as {@code \,}.
+         */
+        public FhirMultiQueryBuilder whereAny(QueryElement... alternatives) {
+            if (alternatives.length == 0) throw new IllegalArgumentException("No alternatives given");
+            String name = null;
+            StringBuilder values = new StringBuilder();
+            for (QueryElement alternative : alternatives) {
+                AbstractMap.SimpleEntry<String, String> entry = alternative.create();
+                if (name == null) {
+                    name = entry.getKey();
+                } else if (!name.equals(entry.getKey())) {
+                    throw new IllegalArgumentException("Alternatives mix " + name + " and " + entry.getKey());
+                } else {
+                    values.append(',');
+                }
+                values.append(entry.getValue().replace(",", "\\,"));
+            }
+            mQueries.add(new AbstractMap.SimpleEntry<>(name, values.toString()));
+            return this;
+        }
+
+        public FhirMultiQuery build() {
+            Map<String, List<String>> parameters = new LinkedHashMap<>();
+            List<String> encoded = new ArrayList<>(mQueries.size());
+            List<Map.Entry<String, String>> pairs = new ArrayList<>(mQueries.size());
+            for (AbstractMap.SimpleEntry<String, String> entry : mQueries) {
+                List<String> values = parameters.get(entry.getKey());
+                if (values == null) {
+                    values = new ArrayList<>(1);
+                    parameters.put(entry.getKey(), values);
+                }
+                values.add(entry.getValue());
+                String name = QueryEncoding.encode(entry.getKey());
+                String value = QueryEncoding.encode(entry.getValue());
+                encoded.add(name + "=" + value);
+                pairs.add(new AbstractMap.SimpleImmutableEntry<>(name, value));
+            }
+            for (Map.Entry<String, List<String>> parameter : parameters.entrySet()) {
+                parameter.setValue(Collections.unmodifiableList(parameter.getValue()));
+            }
+            return new FhirMultiQuery(new ArrayList<>(mQueries), Collections.unmodifiableMap(parameters),
+                    Collections.unmodifiableList(encoded), new QueryPairs(Collections.unmodifiableList(pairs)));
+        }
+    }
+}
@@ -81,7 +81,7 @@ public class Query implements QueryElement {
     }
 
     public static Query include(@NotNull String include) {
-        return new Query(SECURITY, include);
+        return new Query(INCLUDE, include);
     }
 
     public static Query revinclude(@NotNull String revinclude) {
@@ -105,7 +105,7 @@ public class Query implements QueryElement {
     }
 
     public static Query since(@NotNull String since) {
-        return new Query(SECURITY, since);
+        return new Query(SINCE, since);
     }
 
     public static Query at(@NotNull String at) {
@@ -0,0 +1,60 @@
+package smokesignals.utils.query;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Percent-encodes query names and values the same way {@link okhttp3.HttpUrl.Builder#addQueryParameter} does, so
+ * search parameters that are encoded up front end up on the wire exactly as if Retrofit had encoded them. The FHIR
+ * separators {@code ,} {@code |} {@code :} and {@code $} are left as they are.
+ */
+final class QueryEncoding {
+
+    private static final String ENCODE_SET = " \"'<>#&=+%";
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private QueryEncoding() {}
+
+    static String encode(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (needsEncoding(value.charAt(i))) {
+                StringBuilder builder = new StringBuilder(value.length() + 16);
+                append(builder, value);
+                return builder.toString();
+            }
+        }
+        return value;
+    }
+
+    static void append(StringBuilder builder, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (needsEncoding(value.charAt(i))) {
+                builder.append(value, 0, i);
+                appendEncoded(builder, value.substring(i));
+                return;
+            }
+        }
+        builder.append(value);
+    }
+
+    private static void appendEncoded(StringBuilder builder, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!needsEncoding(c)) {
+                builder.append(c);
+                continue;
+            }
+            int end = i + 1;
+            if (Character.isHighSurrogate(c) && end < value.length()) {
+                end++;
+            }
+            for (byte b : value.substring(i, end).getBytes(StandardCharsets.UTF_8)) {
+                builder.append('%').append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+            }
+            i = end - 1;
+        }
+    }
+
+    private static boolean needsEncoding(char c) {
+        return c < 0x20 || c >= 0x7f || ENCODE_SET.indexOf(c) != -1;
+    }
+}
@@ -0,0 +1,201 @@
+package smokesignals.utils.query;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import retrofit2.Call;
+import smokesignals.interfaces.FhirInterface;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A search declared once and bound many times. The template is a relative search URL in which values starting with
+ * {@code :} are placeholders, for example
+ * <p>
+ * {@code Observation?code=:code&date=ge:from&date=lt:to&_count=:n}
+ * <p>
+ * Compiling splits the template into its constant parts, already URL encoded, and the placeholder slots between them.
+ * Binding only has to encode the values and copy them into a presized buffer, with none of the per-request
+ * {@link FhirQuery} and {@link java.util.AbstractMap.SimpleEntry} allocations of the builder. Repeated parameter names,
+ * such as the two {@code date} bounds above, are kept as they are.
+ * <p>
+ * Placeholders are a {@code :} followed by a Java identifier and may only appear in values. A literal {@code :} that
+ * would otherwise start a placeholder is written as {@code ::}. A placeholder used more than once takes the same value
+ * everywhere.
+ */
+public class QueryTemplate {
+
+    private final String mTemplate;
+    private final String[] mChunks;
+    private final int[] mSlots;
+    private final List<String> mPlaceholders;
+    private final int mConstantLength;
+
+    private QueryTemplate(String template, String[] chunks, int[] slots, List<String> placeholders) {
+        mTemplate = template;
+        mChunks = chunks;
+        mSlots = slots;
+        mPlaceholders = Collections.unmodifiableList(placeholders);
+        int length = 0;
+        for (String chunk : chunks) {
+            length += chunk.length();
+        }
+        mConstantLength = length;
+    }
+
+    /**
+     * Parses the template.
+     *
+     * @throws IllegalArgumentException if a parameter has no {@code =} or a placeholder name is empty.
+     */
+    public static QueryTemplate compile(String template) {
+        if (template == null) throw new NullPointerException("template == null");
+
+        List<String> chunks = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        List<String> placeholders = new ArrayList<>();
+        StringBuilder chunk = new StringBuilder();
+
+        int queryStart = template.indexOf('?');
+        if (queryStart < 0) {
+            chunk.append(template);
+        } else {
+            chunk.append(template, 0, queryStart + 1);
+            String[] parameters = template.substring(queryStart + 1).split("&");
+            for (int p = 0; p < parameters.length; p++) {
+                String parameter = parameters[p];
+                int equals = parameter.indexOf('=');
+                if (equals <= 0) {
+                    throw new IllegalArgumentException("Parameter without a name or value in " + template + ": " + parameter);
+                }
+                if (p > 0) {
+                    chunk.append('&');
+                }
+                QueryEncoding.append(chunk, parameter.substring(0, equals));
+                chunk.append('=');
+
+                String value = parameter.substring(equals + 1);
+                StringBuilder literal = new StringBuilder();
+                int i = 0;
+                while (i < value.length()) {
+                    char c = value.charAt(i);
+                    if (c == ':' && i + 1 < value.length() && value.charAt(i + 1) == ':') {
+                        literal.append(':');
+                        i += 2;
+                    } else if (c == ':' && i + 1 < value.length() && Character.isJavaIdentifierStart(value.charAt(i + 1))) {
+                        int end = i + 2;
+                        while (end < value.length() && Character.isJavaIdentifierPart(value.charAt(end))) {
+                            end++;
+                        }
+                        String name = value.substring(i + 1, end);
+                        int slot = placeholders.indexOf(name);
+                        if (slot < 0) {
+                            slot = placeholders.size();
+                            placeholders.add(name);
+                        }
+                        QueryEncoding.append(chunk, literal.toString());
+                        literal.setLength(0);
+                        chunks.add(chunk.toString());
+                        chunk.setLength(0);
+                        slots.add(slot);
+                        i = end;
+                    } else if (c == ':' && i + 1 == value.length()) {
+                        throw new IllegalArgumentException("Empty placeholder name in " + template);
+                    } else {
+                        literal.append(c);
+                        i++;
+                    }
+                }
+                QueryEncoding.append(chunk, literal.toString());
+            }
+        }
+        chunks.add(chunk.toString());
+
+        int[] slotArray = new int[slots.size()];
+        for (int i = 0; i < slotArray.length; i++) {
+            slotArray[i] = slots.get(i);
+        }
+        return new QueryTemplate(template, chunks.toArray(new String[chunks.size()]), slotArray, placeholders);
+    }
+
+    /**
+     * Placeholder names in the order their values are expected by {@link #expand(Object...)}.
+     */
+    public List<String> getPlaceholders() {
+        return mPlaceholders;
+    }
+
+    /**
+     * Returns the relative search URL with the values, given in {@link #getPlaceholders()} order, filled in.
+     */
+    public String expand(Object... values) {
+        if (values.length != mPlaceholders.size()) {
+            throw new IllegalArgumentException("Expected " + mPlaceholders.size() + " values for " + mTemplate
+                    + " but got " + values.length);
+        }
+        String[] encoded = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                throw new IllegalArgumentException("No value bound to :" + mPlaceholders.get(i) + " in " + mTemplate);
+            }
+            encoded[i] = QueryEncoding.encode(String.valueOf(values[i]));
+        }
+        int length = mConstantLength;
+        for (int slot : mSlots) {
+            length += encoded[slot].length();
+        }
+
+        StringBuilder url = new StringBuilder(length);
+        url.append(mChunks[0]);
+        for (int i = 0; i < mSlots.length; i++) {
+            url.append(encoded[mSlots[i]]).append(mChunks[i + 1]);
+        }
+        return url.toString();
+    }
+
+    /**
+     * Expands the template and runs it through {@link FhirInterface#search(String, java.util.Map)}.
+     */
+    public Call<Bundle> search(FhirInterface fhirInterface, Object... values) {
+        return fhirInterface.search(expand(values), Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Starts binding values by placeholder name.
+     */
+    public Binding bind() {
+        return new Binding();
+    }
+
+    @Override
+    public String toString() {
+        return mTemplate;
+    }
+
+    /**
+     * Values for one expansion of the template, set by placeholder name.
+     */
+    public class Binding {
+
+        private final Object[] mValues = new Object[mPlaceholders.size()];
+
+        private Binding() {}
+
+        public Binding set(String placeholder, Object value) {
+            int slot = mPlaceholders.indexOf(placeholder);
+            if (slot < 0) {
+                throw new IllegalArgumentException("No placeholder :" + placeholder + " in " + mTemplate);
+            }
+            mValues[slot] = value;
+            return this;
+        }
+
+        public String expand() {
+            return QueryTemplate.this.expand(mValues);
+        }
+
+        public Call<Bundle> search(FhirInterface fhirInterface) {
+            return QueryTemplate.this.search(fhirInterface, mValues);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package smokesignals.utils.resilience;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import smokesignals.utils.FhirCallUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the number of requests in flight near what the server can actually handle, and retries throttled idempotent
+ * requests once it is ready for them again.
+ * <p>
+ * The limit follows an additive increase, multiplicative decrease (AIMD) scheme: every successful response raises it
+ * by about one per round trip, while a {@code 429 Too Many Requests}, a {@code 503 Service Unavailable}, a timeout or,
+ * if configured, a response slower than the latency threshold, cuts it by the backoff ratio. A burst of throttled
+ * responses cuts it only once: drops reported by requests sent before the last cut are ignored, as the cut already
+ * answered the load they saw. Requests over the limit wait on the calling thread before they are sent.
+ * <p>
+ * Throttled {@code GET}, {@code HEAD} and {@code PUT} requests, which covers read, vread, search and update, are sent
+ * again after the delay asked for by {@code Retry-After}, or otherwise after an exponential backoff with full jitter,
+ * so clients that were throttled together do not come back together. Other requests, and requests whose
+ * {@code Retry-After} is longer than {@link AdaptiveLimitInterceptorBuilder#maxRetryAfter(long, TimeUnit)}, get the
+ * throttled response back as it is.
+ * <p>
+ * Add it as an application interceptor, since it may proceed more than once per call:
+ * <pre>
+ * OkHttpClient client = new OkHttpClient.Builder()
+ *         .addInterceptor(new AdaptiveLimitInterceptor.AdaptiveLimitInterceptorBuilder().maxLimit(32).build())
+ *         .build();
+ * </pre>
+ */
+public class AdaptiveLimitInterceptor implements Interceptor {
+
+    public static final int HTTP_TOO_MANY_REQUESTS = 429;
+    public static final int HTTP_SERVICE_UNAVAILABLE = 503;
+
+    private final int mMinLimit;
+    private final int mMaxLimit;
+    private final double mBackoffRatio;
+    private final long mLatencyThresholdNanos;
+    private final int mMaxRetries;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final long mMaxRetryAfterMillis;
+
+    private final AtomicLong mRetryCount = new AtomicLong();
+    private final AtomicLong mThrottledCount = new AtomicLong();
+
+    private double mLimit;
+    private int mInFlight;
+    /**
+     * Requests sent so far, numbering each one as it is let through.
+     */
+    private long mSent;
+    /**
+     * Value of {@code mSent} at the last decrease; drops from requests numbered below it belong to the same window.
+     */
+    private long mDecreasedAt;
+
+    private AdaptiveLimitInterceptor(AdaptiveLimitInterceptorBuilder builder) {
+        mMinLimit = builder.mMinLimit;
+        mMaxLimit = builder.mMaxLimit;
+        mBackoffRatio = builder.mBackoffRatio;
+        mLatencyThresholdNanos = builder.mLatencyThresholdNanos;
+        mMaxRetries = builder.mMaxRetries;
+        mBaseDelayMillis = builder.mBaseDelayMillis;
+        mMaxDelayMillis = builder.mMaxDelayMillis;
+        mMaxRetryAfterMillis = builder.mMaxRetryAfterMillis;
+        mLimit = Math.max(mMinLimit, Math.min(mMaxLimit, builder.mInitialLimit));
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        boolean idempotent = isIdempotent(request.method());
+        for (int attempt = 0; ; attempt++) {
+            long sequence = acquire();
+            long start = System.nanoTime();
+            Response response;
+            try {
+                response = chain.proceed(request);
+            } catch (IOException e) {
+                release(sequence, e instanceof SocketTimeoutException);
+                throw e;
+            }
+            boolean throttled = response.code() == HTTP_TOO_MANY_REQUESTS || response.code() == HTTP_SERVICE_UNAVAILABLE;
+            boolean slow = mLatencyThresholdNanos > 0 && System.nanoTime() - start > mLatencyThresholdNanos;
+            release(sequence, throttled || slow);
+            if (!throttled) {
+                return response;
+            }
+            mThrottledCount.incrementAndGet();
+            if (!idempotent || attempt >= mMaxRetries || chain.call().isCanceled()) {
+                return response;
+            }
+            long delay = FhirCallUtils.retryAfterMillis(response.headers(), System.currentTimeMillis());
+            if (delay > mMaxRetryAfterMillis) {
+                return response;
+            }
+            if (delay < 0) {
+                delay = backoffMillis(attempt);
+            }
+            response.close();
+            mRetryCount.incrementAndGet();
+            sleep(delay);
+        }
+    }
+
+    /**
+     * The current concurrency limit.
+     */
+    public synchronized int getLimit() {
+        return (int) mLimit;
+    }
+
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * Requests sent again after being throttled.
+     */
+    public long getRetryCount() {
+        return mRetryCount.get();
+    }
+
+    /**
+     * {@code 429} and {@code 503} responses received, including those that were retried.
+     */
+    public long getThrottledCount() {
+        return mThrottledCount.get();
+    }
+
+    static boolean isIdempotent(String method) {
+        return method.equals("GET") || method.equals("HEAD") || method.equals("PUT");
+    }
+
+    /**
+     * Full jitter: a uniformly random delay between zero and the exponential backoff for the attempt.
+     */
+    long backoffMillis(int attempt) {
+        long ceiling = attempt >= 30 ? mMaxDelayMillis : Math.min(mMaxDelayMillis, mBaseDelayMillis << attempt);
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * @return the number of the request let through.
+     */
+    private synchronized long acquire() throws InterruptedIOException {
+        try {
+            while (mInFlight >= (int) mLimit) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the concurrency limit");
+        }
+        mInFlight++;
+        return mSent++;
+    }
+
+    private synchronized void release(long sequence, boolean dropped) {
+        if (dropped) {
+            if (sequence >= mDecreasedAt) {
+                mLimit = Math.max(mMinLimit, mLimit * mBackoffRatio);
+                mDecreasedAt = mSent;
+            }
+        } else if (mInFlight * 2 >= mLimit) {
+            // only grow while the limit is actually in use, otherwise an idle client would drift to the maximum
+            mLimit = Math.min(mMaxLimit, mLimit + 1 / mLimit);
+        }
+        mInFlight--;
+        notifyAll();
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to retry");
+        }
+    }
+
+    public static class AdaptiveLimitInterceptorBuilder {
+
+        private int mInitialLimit = 20;
+        private int mMinLimit = 1;
+        private int mMaxLimit = 200;
+        private double mBackoffRatio = 0.9;
+        private long mLatencyThresholdNanos;
+        private int mMaxRetries = 3;
+        private long mBaseDelayMillis = 100;
+        private long mMaxDelayMillis = TimeUnit.SECONDS.toMillis(10);
+        private long mMaxRetryAfterMillis = TimeUnit.SECONDS.toMillis(30);
+
+        /**
+         * Limit to start from, clamped between the minimum and the maximum. Defaults to 20.
+         */
+        public AdaptiveLimitInterceptorBuilder initialLimit(int initialLimit) {
+            if (initialLimit < 1) throw new IllegalArgumentException("initialLimit < 1");
+            mInitialLimit = initialLimit;
+            return this;
+        }
+
+        /**
+         * Defaults to 1.
+         */
+        public AdaptiveLimitInterceptorBuilder minLimit(int minLimit) {
+            if (minLimit < 1) throw new IllegalArgumentException("minLimit < 1");
+            mMinLimit = minLimit;
+            return this;
+        }
+
+        /**
+         * Defaults to 200.
+         */
+        public AdaptiveLimitInterceptorBuilder maxLimit(int maxLimit) {
+            if (maxLimit < 1) throw new IllegalArgumentException("maxLimit < 1");
+            mMaxLimit = maxLimit;
+            return this;
+        }
+
+        /**
+         * Factor the limit is multiplied by when the server pushes back. Defaults to 0.9.
+         */
+        public AdaptiveLimitInterceptorBuilder backoffRatio(double backoffRatio) {
+            if (backoffRatio <= 0 || backoffRatio >= 1) throw new IllegalArgumentException("backoffRatio " + backoffRatio);
+            mBackoffRatio = backoffRatio;
+            return this;
+        }
+
+        /**
+         * Treats responses slower than this as a sign of overload too, lowering the limit before the server starts
+         * throttling. Off by default.
+         */
+        public AdaptiveLimitInterceptorBuilder latencyThreshold(long latency, TimeUnit unit) {
+            if (latency < 0) throw new IllegalArgumentException("latency < 0");
+            mLatencyThresholdNanos = unit.toNanos(latency);
+            return this;
+        }
+
+        /**
+         * Times a throttled idempotent request is sent again. Defaults to 3.
+         */
+        public AdaptiveLimitInterceptorBuilder maxRetries(int maxRetries) {
+            if (maxRetries < 0) throw new IllegalArgumentException("maxRetries < 0");
+            mMaxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * Bounds of the jittered exponential backoff used when the server gives no {@code Retry-After}. Default to
+         * 100 ms and 10 s.
+         */
+        public AdaptiveLimitInterceptorBuilder backoff(long baseDelay, long maxDelay, TimeUnit unit) {
+            if (baseDelay < 0 || maxDelay < baseDelay) throw new IllegalArgumentException("backoff " + baseDelay + ".." + maxDelay);
+            mBaseDelayMillis = unit.toMillis(baseDelay);
+            mMaxDelayMillis = unit.toMillis(maxDelay);
+            return this;
+        }
+
+        /**
+         * Longest {@code Retry-After} worth waiting for on the calling thread. Defaults to 30 s.
+         */
+        public AdaptiveLimitInterceptorBuilder maxRetryAfter(long delay, TimeUnit unit) {
+            if (delay < 0) throw new IllegalArgumentException("delay < 0");
+            mMaxRetryAfterMillis = unit.toMillis(delay);
+            return this;
+        }
+
+        public AdaptiveLimitInterceptor build() {
+            if (mMinLimit > mMaxLimit) throw new IllegalArgumentException("minLimit > maxLimit");
+            return new AdaptiveLimitInterceptor(this);
+        }
+    }
+}
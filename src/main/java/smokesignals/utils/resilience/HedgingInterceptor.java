@@ -0,0 +1,376 @@
+package smokesignals.utils.resilience;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.metrics.FhirInteraction;
+import smokesignals.utils.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a second copy of a read, vread or search when the first one is slower than usual, and takes whichever
+ * successful response arrives first. The other call is cancelled.
+ * <p>
+ * Only those idempotent interactions are hedged, as told apart by {@link FhirInteraction#classify(String, List)} from
+ * the path below the server base. Operations such as a Bulk Data {@code $export} kick-off, requests carrying a
+ * {@code Prefer} header, and anything outside the base, such as export status polls and file downloads, go down the
+ * chain as usual: a second copy of those could start a second job on the server, or download a file twice.
+ * <p>
+ * "Slower than usual" is a percentile of the latencies observed so far, the 95th by default, kept in a
+ * {@link LatencyHistogram} that may be shared with a {@link smokesignals.utils.metrics.InMemoryMetricsRegistry}.
+ * Until enough samples are in, a fixed initial delay is used. Hedges are paid for from a budget that every request
+ * tops up by a fraction of a token, so they never add more than that fraction to the load, even when the server as a
+ * whole slows down and every request would otherwise qualify.
+ * <p>
+ * The requests are sent with the client given to the builder, which must not itself contain this interceptor. Derive
+ * the client that does from it, so both share their connection pool:
+ * <pre>
+ * OkHttpClient base = new OkHttpClient.Builder().build();
+ * HedgingInterceptor hedging = new HedgingInterceptor.HedgingInterceptorBuilder(base, HttpUrl.parse(baseUrl)).build();
+ * OkHttpClient client = base.newBuilder().addInterceptor(hedging).build();
+ * </pre>
+ * The copies go through a {@link Dispatcher} of the interceptor's own, allowing twice the requests of the client's.
+ * An intercepted asynchronous call holds a slot of the client's dispatcher while it waits for its copies, so copies
+ * queued behind it on the same dispatcher would never run.
+ */
+public class HedgingInterceptor implements Interceptor {
+
+    private static final long CANCEL_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final OkHttpClient mClient;
+    private final HttpUrl mBaseUrl;
+    private final List<String> mBaseSegments;
+    private final LatencyHistogram mHistogram;
+    private final double mPercentile;
+    private final long mInitialDelayNanos;
+    private final long mMinSamples;
+    private final double mBudgetRatio;
+    private final double mMaxTokens;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mHedgeCount = new AtomicLong();
+    private final AtomicLong mHedgeWinCount = new AtomicLong();
+
+    private double mTokens;
+
+    private HedgingInterceptor(HedgingInterceptorBuilder builder) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(2 * builder.mClient.dispatcher().getMaxRequests());
+        dispatcher.setMaxRequestsPerHost(2 * builder.mClient.dispatcher().getMaxRequestsPerHost());
+        mClient = builder.mClient.newBuilder().dispatcher(dispatcher).build();
+        mBaseUrl = builder.mBaseUrl;
+        mBaseSegments = pathSegments(builder.mBaseUrl);
+        mHistogram = builder.mHistogram != null ? builder.mHistogram : new LatencyHistogram();
+        mPercentile = builder.mPercentile;
+        mInitialDelayNanos = builder.mInitialDelayNanos;
+        mMinSamples = builder.mMinSamples;
+        mBudgetRatio = builder.mBudgetRatio;
+        mMaxTokens = builder.mMaxTokens;
+        mTokens = builder.mMaxTokens;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (!isHedgeable(request)) {
+            return chain.proceed(request);
+        }
+        mRequestCount.incrementAndGet();
+        deposit();
+        Race race = new Race(chain.call());
+        Call primary = race.start(request);
+        if (!race.await(hedgeDelayNanos()) && withdraw()) {
+            mHedgeCount.incrementAndGet();
+            race.start(request);
+        }
+        race.await(Long.MAX_VALUE);
+        if (race.mWinner != null && race.mWinner != primary) {
+            mHedgeWinCount.incrementAndGet();
+        }
+        return race.result();
+    }
+
+    /**
+     * The delay after which a request is hedged: the configured percentile of the observed latencies, or the
+     * initial delay while there are too few of them.
+     */
+    public long hedgeDelayNanos() {
+        return mHistogram.getCount() < mMinSamples ? mInitialDelayNanos : mHistogram.getValueAtPercentile(mPercentile);
+    }
+
+    public LatencyHistogram getHistogram() {
+        return mHistogram;
+    }
+
+    /**
+     * Reads, vreads and searches seen, whether hedged or not.
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Hedges sent.
+     */
+    public long getHedgeCount() {
+        return mHedgeCount.get();
+    }
+
+    /**
+     * Hedges whose response was used.
+     */
+    public long getHedgeWinCount() {
+        return mHedgeWinCount.get();
+    }
+
+    /**
+     * True for a read, vread or search below the base URL without a {@code Prefer} header.
+     */
+    boolean isHedgeable(Request request) {
+        if (!request.method().equals("GET") || request.header(FhirInterface.PREFER) != null) {
+            return false;
+        }
+        HttpUrl url = request.url();
+        if (!url.scheme().equals(mBaseUrl.scheme()) || !url.host().equals(mBaseUrl.host())
+                || url.port() != mBaseUrl.port()) {
+            return false;
+        }
+        List<String> segments = url.pathSegments();
+        int base = mBaseSegments.size();
+        if (segments.size() < base || !segments.subList(0, base).equals(mBaseSegments)) {
+            return false;
+        }
+        switch (FhirInteraction.classify(request.method(), segments.subList(base, segments.size()))) {
+            case READ:
+            case VREAD:
+            case SEARCH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static List<String> pathSegments(HttpUrl url) {
+        List<String> segments = url.pathSegments();
+        int size = segments.size();
+        return size > 0 && segments.get(size - 1).isEmpty() ? segments.subList(0, size - 1) : segments;
+    }
+
+    private synchronized void deposit() {
+        mTokens = Math.min(mMaxTokens, mTokens + mBudgetRatio);
+    }
+
+    private synchronized boolean withdraw() {
+        if (mTokens < 1) {
+            return false;
+        }
+        mTokens--;
+        return true;
+    }
+
+    /**
+     * The copies of one request in flight. The first successful response wins, otherwise the last outcome does.
+     */
+    private class Race implements Callback {
+
+        private final Call mOuter;
+        private final List<Call> mCalls = new ArrayList<>();
+        private long mStart;
+        private int mDone;
+        private Call mWinner;
+        private Response mResponse;
+        private IOException mFailure;
+
+        Race(Call outer) {
+            mOuter = outer;
+        }
+
+        synchronized Call start(Request request) {
+            Call call = mClient.newCall(request);
+            if (mCalls.isEmpty()) {
+                mStart = System.nanoTime();
+            }
+            mCalls.add(call);
+            call.enqueue(this);
+            return call;
+        }
+
+        /**
+         * Waits up to {@code nanos} for the race to be decided, cancelling everything if the outer call is.
+         *
+         * @return true once decided.
+         */
+        synchronized boolean await(long nanos) throws InterruptedIOException {
+            long deadline = nanos == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + nanos;
+            try {
+                while (!isDecided()) {
+                    if (mOuter.isCanceled()) {
+                        cancelAll();
+                    }
+                    long remaining = deadline == Long.MAX_VALUE ? CANCEL_CHECK_NANOS : deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    long wait = Math.min(remaining, CANCEL_CHECK_NANOS);
+                    wait(TimeUnit.NANOSECONDS.toMillis(wait), (int) (wait % 1000000));
+                }
+                return true;
+            } catch (InterruptedException e) {
+                cancelAll();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a response");
+            }
+        }
+
+        synchronized Response result() throws IOException {
+            if (mResponse != null) {
+                return mResponse;
+            }
+            throw mFailure;
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+            synchronized (this) {
+                mDone++;
+                if (mWinner == null && response.isSuccessful()) {
+                    // the caller waited from the start of the primary, whichever copy won
+                    mHistogram.record(System.nanoTime() - mStart);
+                    closeQuietly(mResponse);
+                    mWinner = call;
+                    mResponse = response;
+                    mFailure = null;
+                    cancelOthers(call);
+                } else if (mWinner == null) {
+                    closeQuietly(mResponse);
+                    mResponse = response;
+                    mFailure = null;
+                } else {
+                    closeQuietly(response);
+                }
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            synchronized (this) {
+                mDone++;
+                if (mWinner == null && mResponse == null) {
+                    mFailure = e;
+                }
+                notifyAll();
+            }
+        }
+
+        private boolean isDecided() {
+            return mWinner != null || mDone == mCalls.size();
+        }
+
+        private void cancelOthers(Call winner) {
+            for (Call call : mCalls) {
+                if (call != winner) {
+                    call.cancel();
+                }
+            }
+        }
+
+        private void cancelAll() {
+            for (Call call : mCalls) {
+                call.cancel();
+            }
+        }
+
+        private void closeQuietly(Response response) {
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+
+    public static class HedgingInterceptorBuilder {
+
+        private final OkHttpClient mClient;
+        private final HttpUrl mBaseUrl;
+        private LatencyHistogram mHistogram;
+        private double mPercentile = 95;
+        private long mInitialDelayNanos = TimeUnit.MILLISECONDS.toNanos(500);
+        private long mMinSamples = 100;
+        private double mBudgetRatio = 0.1;
+        private double mMaxTokens = 10;
+
+        /**
+         * @param client  client sending the requests and their hedges, without this interceptor.
+         * @param baseUrl base URL of the FHIR server, below which reads, vreads and searches are hedged.
+         */
+        public HedgingInterceptorBuilder(OkHttpClient client, HttpUrl baseUrl) {
+            if (client == null) throw new NullPointerException("OkHttpClient == null");
+            if (baseUrl == null) throw new NullPointerException("baseUrl == null");
+            for (Interceptor interceptor : client.interceptors()) {
+                if (interceptor instanceof HedgingInterceptor) {
+                    throw new IllegalArgumentException("client already hedges its requests");
+                }
+            }
+            mClient = client;
+            mBaseUrl = baseUrl;
+        }
+
+        /**
+         * Histogram of the latencies, from sending a request to receiving a successful response, that the hedge delay
+         * is derived from. Every winning response is recorded into it. Defaults to a histogram of its own.
+         */
+        public HedgingInterceptorBuilder histogram(LatencyHistogram histogram) {
+            if (histogram == null) throw new NullPointerException("LatencyHistogram == null");
+            mHistogram = histogram;
+            return this;
+        }
+
+        /**
+         * Percentile of the observed latencies after which a request is hedged. Defaults to 95.
+         */
+        public HedgingInterceptorBuilder percentile(double percentile) {
+            if (percentile <= 0 || percentile > 100) throw new IllegalArgumentException("percentile " + percentile);
+            mPercentile = percentile;
+            return this;
+        }
+
+        /**
+         * Delay used until {@code minSamples} latencies have been observed. Default to 500 ms and 100 samples.
+         */
+        public HedgingInterceptorBuilder initialDelay(long delay, TimeUnit unit, long minSamples) {
+            if (delay < 0) throw new IllegalArgumentException("delay < 0");
+            if (minSamples < 0) throw new IllegalArgumentException("minSamples < 0");
+            mInitialDelayNanos = unit.toNanos(delay);
+            mMinSamples = minSamples;
+            return this;
+        }
+
+        /**
+         * Caps the extra load: every request adds {@code ratio} of a hedge to the budget, up to {@code maxTokens}
+         * hedges in reserve. Default to 0.1, at most one hedge per ten requests, and 10.
+         */
+        public HedgingInterceptorBuilder budget(double ratio, int maxTokens) {
+            if (ratio < 0 || ratio > 1) throw new IllegalArgumentException("ratio " + ratio);
+            if (maxTokens < 0) throw new IllegalArgumentException("maxTokens < 0");
+            mBudgetRatio = ratio;
+            mMaxTokens = maxTokens;
+            return this;
+        }
+
+        public HedgingInterceptor build() {
+            return new HedgingInterceptor(this);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package smokesignals.utils.resilience;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import smokesignals.interfaces.FhirInterface;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets identical {@code GET} requests that are in flight at the same time share a single network call.
+ * <p>
+ * The first request for a key is sent as usual; requests for the same key arriving before its response is in wait for
+ * it instead, and each gets its own copy of the buffered body, which the converter then parses into a resource of its
+ * own, so no caller can see another's changes. Requests are identical when they have the same method, the same URL
+ * with the query parameters in any order, and the same {@code Authorization}, conditional ({@code If-None-Match},
+ * {@code If-Modified-Since}) and negotiation ({@code Accept}, {@code Prefer}) headers. Callers with different access
+ * never share a response, and a plain read never gets the bodiless {@code 304} of a concurrent revalidation.
+ * <p>
+ * A body is only buffered when another request is actually waiting for it; a request nobody joined gets its response
+ * as it streams in. The shared body is held in memory, so bodies larger than
+ * {@link SingleFlightInterceptorBuilder#maxBodyBytes(long)} are not shared and each waiting request is sent on its
+ * own. Add it as an application interceptor:
+ * <pre>
+ * OkHttpClient client = new OkHttpClient.Builder()
+ *         .addInterceptor(new SingleFlightInterceptor.SingleFlightInterceptorBuilder().build())
+ *         .build();
+ * </pre>
+ */
+public class SingleFlightInterceptor implements Interceptor {
+
+    private static final long CANCEL_CHECK_MILLIS = 100;
+
+    /**
+     * Headers that change what the server answers, and so must match for two requests to share a response.
+     */
+    private static final List<String> KEY_HEADERS = Arrays.asList(FhirInterface.AUTHORIZATION,
+            FhirInterface.IF_NONE_MATCH, FhirInterface.IF_MODIFIED_SINCE, FhirInterface.ACCEPT, FhirInterface.PREFER);
+
+    private final long mMaxBodyBytes;
+    private final ConcurrentMap<String, Flight> mInFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong mCallCount = new AtomicLong();
+    private final AtomicLong mSharedCount = new AtomicLong();
+
+    private SingleFlightInterceptor(SingleFlightInterceptorBuilder builder) {
+        mMaxBodyBytes = builder.mMaxBodyBytes;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (!request.method().equals("GET")) {
+            return chain.proceed(request);
+        }
+        String key = key(request);
+        Flight flight = new Flight();
+        Flight leader = mInFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            leader.mFollowers.incrementAndGet();
+            Response shared = await(chain, leader);
+            if (shared != null) {
+                mSharedCount.incrementAndGet();
+                return shared;
+            }
+            mCallCount.incrementAndGet();
+            return chain.proceed(request);
+        }
+
+        mCallCount.incrementAndGet();
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException e) {
+            // waiting requests fail with the leader, unless it merely gave up, in which case they go on their own
+            land(key, flight, null, chain.call().isCanceled() ? null : e);
+            throw e;
+        } catch (RuntimeException | Error e) {
+            land(key, flight, null, null);
+            throw e;
+        }
+        // from here on nobody joins, and with nobody waiting the body is handed over as it streams in
+        mInFlight.remove(key, flight);
+        ResponseBody body = response.body();
+        if (flight.mFollowers.get() == 0 || body == null || body.contentLength() > mMaxBodyBytes) {
+            land(key, flight, null, null);
+            return response;
+        }
+        SharedResponse result;
+        try {
+            BufferedSource source = body.source();
+            if (source.request(mMaxBodyBytes == Long.MAX_VALUE ? mMaxBodyBytes : mMaxBodyBytes + 1)) {
+                // a chunked body turned out too large; what was read stays in the source for the leader
+                land(key, flight, null, null);
+                return response;
+            }
+            result = new SharedResponse(response, body.contentType(), source.readByteArray());
+            body.close();
+        } catch (IOException e) {
+            body.close();
+            land(key, flight, null, e);
+            throw e;
+        }
+        land(key, flight, result, null);
+        return result.copy(request);
+    }
+
+    /**
+     * Network calls made for {@code GET} requests.
+     */
+    public long getCallCount() {
+        return mCallCount.get();
+    }
+
+    /**
+     * {@code GET} requests answered with the response of another one.
+     */
+    public long getSharedCount() {
+        return mSharedCount.get();
+    }
+
+    /**
+     * The method, the URL with its query parameters sorted and the {@link #KEY_HEADERS} of the request. The parameters
+     * are compared as sent, still encoded, so an escaped {@code &} or {@code =} inside a value never matches a
+     * separator.
+     */
+    static String key(Request request) {
+        HttpUrl url = request.url();
+        String query = url.encodedQuery();
+        List<String> parameters = query == null ? Collections.emptyList() : Arrays.asList(query.split("&", -1));
+        Collections.sort(parameters);
+        StringBuilder key = new StringBuilder(request.method()).append(' ')
+                .append(url.newBuilder().query(null).build());
+        for (int i = 0; i < parameters.size(); i++) {
+            key.append(i == 0 ? '?' : '&').append(parameters.get(i));
+        }
+        for (String header : KEY_HEADERS) {
+            String value = request.header(header);
+            key.append('\n').append(value == null ? "" : value);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Ends a flight. It is removed first, so a request arriving from now on is sent again rather than handed a
+     * response that was already on its way before it was made.
+     */
+    private void land(String key, Flight flight, SharedResponse result, IOException failure) {
+        mInFlight.remove(key, flight);
+        if (failure != null) {
+            flight.mResult.completeExceptionally(failure);
+        } else {
+            flight.mResult.complete(result);
+        }
+    }
+
+    /**
+     * Waits for the leader's response, or returns null when the request has to be sent on its own.
+     */
+    private Response await(Chain chain, Flight leader) throws IOException {
+        try {
+            while (true) {
+                try {
+                    SharedResponse shared = leader.mResult.get(CANCEL_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                    return shared == null ? null : shared.copy(chain.request());
+                } catch (TimeoutException e) {
+                    if (chain.call().isCanceled()) {
+                        throw new IOException("Canceled");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for an identical request");
+        } catch (ExecutionException e) {
+            throw new IOException("Identical request failed", e.getCause());
+        }
+    }
+
+    /**
+     * A request in flight, with the number of identical requests waiting for it.
+     */
+    private static class Flight {
+
+        private final CompletableFuture<SharedResponse> mResult = new CompletableFuture<>();
+        private final AtomicInteger mFollowers = new AtomicInteger();
+    }
+
+    /**
+     * A buffered response that can be handed out any number of times.
+     */
+    private static class SharedResponse {
+
+        private final Response mResponse;
+        private final MediaType mContentType;
+        private final byte[] mBody;
+
+        SharedResponse(Response response, MediaType contentType, byte[] body) {
+            mResponse = response;
+            mContentType = contentType;
+            mBody = body;
+        }
+
+        Response copy(Request request) {
+            return mResponse.newBuilder()
+                    .request(request)
+                    .body(ResponseBody.create(mContentType, mBody))
+                    .build();
+        }
+    }
+
+    public static class SingleFlightInterceptorBuilder {
+
+        private long mMaxBodyBytes = 16 << 20;
+
+        /**
+         * Largest body that is buffered and shared. Defaults to 16 MB. A body announced as larger by its
+         * {@code Content-Length} is not read at all, and a chunked body is read up to this size before it is given up.
+         */
+        public SingleFlightInterceptorBuilder maxBodyBytes(long maxBodyBytes) {
+            if (maxBodyBytes < 0) throw new IllegalArgumentException("maxBodyBytes < 0");
+            mMaxBodyBytes = maxBodyBytes;
+            return this;
+        }
+
+        public SingleFlightInterceptor build() {
+            return new SingleFlightInterceptor(this);
+        }
+    }
+}
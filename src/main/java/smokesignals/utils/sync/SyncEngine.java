@@ -0,0 +1,303 @@
+package smokesignals.utils.sync;
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.paging.SearchPager;
+import smokesignals.utils.query.FhirQuery;
+import smokesignals.utils.query.Query;
+import smokesignals.utils.query.decorator.Comparator;
+import smokesignals.utils.query.encodedparams.Compare;
+import smokesignals.utils.query.parameters.ResourceParameter;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a local copy of some resource types up to date by fetching only what changed since the previous run.
+ * <p>
+ * The first run of a type searches all of it. Every run remembers the highest {@code meta.lastUpdated} it saw, the
+ * high-water mark, and the next one only searches {@code _lastUpdated=ge[mark - overlap]}, sorted by
+ * {@code _lastUpdated}, so its cost depends on what changed rather than on the size of the data set. The overlap
+ * covers resources a server commits with a timestamp slightly earlier than ones already returned, and clock skew
+ * between the server's nodes. Resources seen again inside the overlap are recognised by id and version and not
+ * passed on a second time.
+ * <p>
+ * The marks, and the versions inside the overlap, are kept in a properties file that is replaced atomically after
+ * each type, so a crash leaves either the old checkpoint or the new one. A type whose run fails, including because
+ * the {@link SyncListener} threw, keeps its old checkpoint and is fetched again next time: every change is delivered
+ * at least once.
+ * <p>
+ * Searches do not return deletions; follow the history of a type with a
+ * {@link smokesignals.utils.paging.HistoryPager} to see those.
+ */
+public class SyncEngine {
+
+    public static final long DEFAULT_OVERLAP_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    private static final String INSTANT_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+    private static final String HIGH_WATER_MARK = ".highWaterMark";
+    private static final String SEEN = ".seen.";
+
+    /**
+     * Receives every new or changed resource.
+     */
+    public interface SyncListener {
+
+        void onResource(String resourceType, BaseResource resource);
+    }
+
+    private final FhirInterface mFhirInterface;
+    private final String mBearer;
+    private final Path mCheckpointFile;
+    private final List<String> mResourceTypes;
+    private final long mOverlapMillis;
+    private final int mPageSize;
+
+    private SyncEngine(SyncEngineBuilder builder) {
+        mFhirInterface = builder.mFhirInterface;
+        mBearer = builder.mBearer;
+        mCheckpointFile = builder.mCheckpointFile;
+        mResourceTypes = Collections.unmodifiableList(new ArrayList<>(builder.mResourceTypes));
+        mOverlapMillis = builder.mOverlapMillis;
+        mPageSize = builder.mPageSize;
+    }
+
+    /**
+     * Fetches the changes of every type and passes them to the listener, checkpointing after each type.
+     *
+     * @return the number of resources passed to the listener.
+     * @throws IOException if the checkpoint could not be read or written.
+     */
+    public synchronized int sync(SyncListener listener) throws IOException {
+        if (listener == null) throw new NullPointerException("SyncListener == null");
+        Properties checkpoint = readCheckpoint();
+        int delivered = 0;
+        for (String resourceType : mResourceTypes) {
+            delivered += sync(resourceType, checkpoint, listener);
+            writeCheckpoint(checkpoint);
+        }
+        return delivered;
+    }
+
+    /**
+     * The high-water mark of a type in milliseconds, or -1 before its first run.
+     */
+    public long getHighWaterMark(String resourceType) throws IOException {
+        return Long.parseLong(readCheckpoint().getProperty(resourceType + HIGH_WATER_MARK, "-1"));
+    }
+
+    public List<String> getResourceTypes() {
+        return mResourceTypes;
+    }
+
+    private int sync(String resourceType, Properties checkpoint, SyncListener listener) {
+        long highWaterMark = Long.parseLong(checkpoint.getProperty(resourceType + HIGH_WATER_MARK, "-1"));
+        Map<String, Seen> seen = readSeen(resourceType, checkpoint);
+
+        FhirQuery.FhirQueryBuilder query = new FhirQuery.FhirQueryBuilder()
+                .where(Query.sort(ResourceParameter.LAST_UPDATED.getStringValue()))
+                .where(Query.count(mPageSize));
+        if (highWaterMark >= 0) {
+            SimpleDateFormat format = new SimpleDateFormat(INSTANT_FORMAT);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            query.where(Comparator.add(Query.lastUpdated(format.format(new Date(highWaterMark - mOverlapMillis))),
+                    Compare.GREATER_OR_EQUAL));
+        }
+
+        int delivered = 0;
+        try (SearchPager pager = new SearchPager.SearchPagerBuilder(mFhirInterface)
+                .firstPage(mFhirInterface.search(resourceType, query.build(), mBearer))
+                .bearer(mBearer)
+                .build()) {
+            while (pager.hasNext()) {
+                Bundle.Entry entry = pager.next();
+                IResource resource = entry.getResource();
+                if (!(resource instanceof BaseResource) || !resourceType.equals(resource.getResourceName())) {
+                    // included resources and OperationOutcomes
+                    continue;
+                }
+                Date lastUpdated = resource.getMeta().getLastUpdated();
+                long updated = lastUpdated == null ? -1 : lastUpdated.getTime();
+                String version = resource.getIdElement().getVersionIdPart();
+                if (version == null) {
+                    version = resource.getMeta().getVersionId();
+                }
+                if (version == null) {
+                    version = String.valueOf(updated);
+                }
+                String id = resource.getIdElement().getIdPart();
+                Seen previous = seen.get(id);
+                if (previous != null && previous.mVersion.equals(version)) {
+                    continue;
+                }
+                listener.onResource(resourceType, (BaseResource) resource);
+                delivered++;
+                seen.put(id, new Seen(version, updated));
+                highWaterMark = Math.max(highWaterMark, updated);
+            }
+        }
+
+        // versions older than the next overlap can no longer come back
+        for (Iterator<Seen> iterator = seen.values().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().mLastUpdated < highWaterMark - mOverlapMillis) {
+                iterator.remove();
+            }
+        }
+        writeSeen(resourceType, seen, checkpoint);
+        if (highWaterMark >= 0) {
+            checkpoint.setProperty(resourceType + HIGH_WATER_MARK, String.valueOf(highWaterMark));
+        }
+        return delivered;
+    }
+
+    private static Map<String, Seen> readSeen(String resourceType, Properties checkpoint) {
+        String prefix = resourceType + SEEN;
+        Map<String, Seen> seen = new HashMap<>();
+        for (String key : checkpoint.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                String value = checkpoint.getProperty(key);
+                int at = value.lastIndexOf('@');
+                seen.put(key.substring(prefix.length()),
+                        new Seen(value.substring(0, at), Long.parseLong(value.substring(at + 1))));
+            }
+        }
+        return seen;
+    }
+
+    private static void writeSeen(String resourceType, Map<String, Seen> seen, Properties checkpoint) {
+        String prefix = resourceType + SEEN;
+        for (String key : checkpoint.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                checkpoint.remove(key);
+            }
+        }
+        for (Map.Entry<String, Seen> entry : seen.entrySet()) {
+            checkpoint.setProperty(prefix + entry.getKey(),
+                    entry.getValue().mVersion + "@" + entry.getValue().mLastUpdated);
+        }
+    }
+
+    private Properties readCheckpoint() throws IOException {
+        Properties checkpoint = new Properties();
+        if (Files.exists(mCheckpointFile)) {
+            try (InputStream in = Files.newInputStream(mCheckpointFile)) {
+                checkpoint.load(in);
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file next to it, syncs it to disk and moves it into place.
+     */
+    private void writeCheckpoint(Properties checkpoint) throws IOException {
+        Path directory = mCheckpointFile.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, mCheckpointFile.getFileName().toString(), ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+                checkpoint.store(out, "SyncEngine checkpoint");
+                out.getFD().sync();
+            }
+            try {
+                Files.move(temp, mCheckpointFile, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, mCheckpointFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static class Seen {
+
+        final String mVersion;
+        final long mLastUpdated;
+
+        Seen(String version, long lastUpdated) {
+            mVersion = version;
+            mLastUpdated = lastUpdated;
+        }
+    }
+
+    public static class SyncEngineBuilder {
+
+        private final FhirInterface mFhirInterface;
+        private final Path mCheckpointFile;
+        private final List<String> mResourceTypes = new ArrayList<>();
+        private String mBearer;
+        private long mOverlapMillis = DEFAULT_OVERLAP_MILLIS;
+        private int mPageSize = DEFAULT_PAGE_SIZE;
+
+        /**
+         * @param checkpointFile properties file holding the checkpoints, created on the first run.
+         */
+        public SyncEngineBuilder(FhirInterface fhirInterface, Path checkpointFile) {
+            if (fhirInterface == null) throw new NullPointerException("FhirInterface == null");
+            if (checkpointFile == null) throw new NullPointerException("checkpointFile == null");
+            mFhirInterface = fhirInterface;
+            mCheckpointFile = checkpointFile;
+        }
+
+        /**
+         * Resource types to keep up to date, synchronised in this order.
+         */
+        public SyncEngineBuilder types(String... resourceTypes) {
+            for (String resourceType : resourceTypes) {
+                if (resourceType == null || resourceType.isEmpty()) throw new IllegalArgumentException("empty resourceType");
+                mResourceTypes.add(resourceType);
+            }
+            return this;
+        }
+
+        /**
+         * Authorization header sent with every search and every page of it.
+         */
+        public SyncEngineBuilder bearer(String bearer) {
+            mBearer = bearer;
+            return this;
+        }
+
+        /**
+         * How far before the high-water mark each run starts again. Defaults to 5 minutes.
+         */
+        public SyncEngineBuilder overlap(long overlap, TimeUnit unit) {
+            if (overlap < 0) throw new IllegalArgumentException("overlap < 0");
+            mOverlapMillis = unit.toMillis(overlap);
+            return this;
+        }
+
+        /**
+         * {@code _count} of the searches. Defaults to {@value #DEFAULT_PAGE_SIZE}.
+         */
+        public SyncEngineBuilder pageSize(int pageSize) {
+            if (pageSize < 1) throw new IllegalArgumentException("pageSize < 1");
+            mPageSize = pageSize;
+            return this;
+        }
+
+        public SyncEngine build() {
+            if (mResourceTypes.isEmpty()) throw new IllegalStateException("no resource types to sync");
+            return new SyncEngine(this);
+        }
+    }
+}
@@ -9,6 +9,7 @@ import okhttp3.mockwebserver.MockWebServer;
 import org.junit.After;
 import org.junit.Before;
 import retrofit2.Retrofit;
+import smokesignals.utils.FhirClientBootstrap;
 import smokesignals.utils.RestServiceMockUtils;
 import smokesignals.utils.fhirconverter.FhirConverterFactory;
 
@@ -28,6 +29,7 @@ public abstract class DSTU2BaseTest {
     private boolean mLiveTest = false;
 
     private MockWebServer mServer;
+    private String mBaseUrl;
     private OkHttpClient mOkHttpClient;
     private Retrofit mRetrofit;
 
@@ -38,7 +40,7 @@ public abstract class DSTU2BaseTest {
     @Before
     public void setUp() throws Exception {
 
-        FhirContext ctxDstu2 = FhirContext.forDstu2();
+        FhirContext ctxDstu2 = FhirClientBootstrap.sharedContext();
 
         mFhirObjectMapper = new ObjectMapper();
         mFhirJsonParser = ctxDstu2.newJsonParser();
@@ -52,19 +54,19 @@ public abstract class DSTU2BaseTest {
         } else {
             derivedUrl = startMockServer();
         }
+        mBaseUrl = derivedUrl;
 
-        mOkHttpClient = new OkHttpClient.Builder()
+        mOkHttpClient = FhirClientBootstrap.sharedClient().newBuilder()
                 .readTimeout(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS)
                 .connectTimeout(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS)
                 .build();
 
-        mRetrofit = new Retrofit.Builder()
-                .baseUrl(derivedUrl)
-                .addConverterFactory(FhirConverterFactory.create(ctxDstu2))
+        FhirClientBootstrap bootstrap = new FhirClientBootstrap.FhirClientBootstrapBuilder(derivedUrl)
+                .context(ctxDstu2)
                 .client(mOkHttpClient)
                 .build();
-
-        mFhirInterface = mRetrofit.create(FhirInterface.class);
+        mRetrofit = bootstrap.getRetrofit();
+        mFhirInterface = bootstrap.getFhirInterface();
     }
 
     @After
@@ -75,6 +77,34 @@ public abstract class DSTU2BaseTest {
         testWithLiveServer(false);
     }
 
+    /**
+     * The URL of the server the tests run against, as returned by {@link #startMockServer()} or the live one.
+     */
+    protected String getBaseUrl() {
+        return mBaseUrl;
+    }
+
+    /**
+     * Returns a builder for a client sharing the connection pool and timeouts of the one behind
+     * {@link #mFhirInterface}, for test cases adding interceptors or listeners of their own.
+     */
+    protected OkHttpClient.Builder newClientBuilder() {
+        return mOkHttpClient.newBuilder();
+    }
+
+    /**
+     * Returns a {@link Retrofit.Builder} for the base URL with the shared {@link FhirContext} and the given client,
+     * for test cases needing a service configured differently from {@link #mFhirInterface}.
+     *
+     * @param client usually made from {@link #newClientBuilder()}.
+     */
+    protected Retrofit.Builder newRetrofitBuilder(OkHttpClient client) {
+        return new Retrofit.Builder()
+                .baseUrl(mBaseUrl)
+                .addConverterFactory(FhirConverterFactory.create(FhirClientBootstrap.sharedContext()))
+                .client(client);
+    }
+
     /**
      * Test cases must generate their own dispatchers.
      */
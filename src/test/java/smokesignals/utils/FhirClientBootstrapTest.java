@@ -0,0 +1,78 @@
+package smokesignals.utils;
+
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import smokesignals.interfaces.DSTU2BaseTest;
+
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+public class FhirClientBootstrapTest extends DSTU2BaseTest {
+
+    private final Queue<RecordedRequest> mRequests = new ConcurrentLinkedQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                mRequests.add(request);
+                if (request.getMethod().equals("HEAD")) {
+                    // hold every warm-up request long enough for each to need a connection of its own
+                    Thread.sleep(200);
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_BAD_METHOD);
+                }
+                Patient patient = new Patient();
+                patient.setId("p1");
+                return new MockResponse().setResponseCode(HttpURLConnection.HTTP_OK)
+                        .setBody(mFhirJsonParser.encodeResourceToString(patient));
+            }
+        };
+    }
+
+    @Test
+    public void testBootstrapsShareContextAndWarmUpConnections() throws Exception {
+        FhirClientBootstrap bootstrap = new FhirClientBootstrap.FhirClientBootstrapBuilder(getBaseUrl())
+                .client(FhirClientBootstrap.sharedClient().newBuilder().build())
+                .warmUp("Patient", "Observation", "Bundle")
+                .parallelism(2)
+                .preconnect(3)
+                .preconnectTimeout(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS)
+                .build();
+        Assert.assertSame(FhirClientBootstrap.sharedContext(), bootstrap.getFhirContext());
+        Assert.assertSame(FhirClientBootstrap.sharedClient().connectionPool(),
+                bootstrap.getOkHttpClient().connectionPool());
+        Assert.assertEquals(3, bootstrap.getWarmedTypeCount());
+        Assert.assertEquals(3, bootstrap.getPreconnectedCount());
+        Assert.assertEquals(3, mRequests.size());
+
+        mRequests.clear();
+        Assert.assertEquals("p1", bootstrap.getFhirInterface().read("Patient", "p1", null).execute().body()
+                .getId().getIdPart());
+        // the read went over one of the connections opened by the warm-up
+        Assert.assertTrue(mRequests.poll().getSequenceNumber() > 0);
+    }
+
+    @Test
+    public void testEveryResourceTypeCanBeWarmedUp() throws Exception {
+        int scanned = FhirClientBootstrap.warmUp(FhirClientBootstrap.sharedContext(),
+                FhirClientBootstrap.resourceNames(FhirClientBootstrap.sharedContext()), 4);
+        Assert.assertTrue(scanned > 90);
+        Assert.assertEquals(0, FhirClientBootstrap.warmUp(FhirClientBootstrap.sharedContext(),
+                Arrays.<String>asList(), 4));
+    }
+}
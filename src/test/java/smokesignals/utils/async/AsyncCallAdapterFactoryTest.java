@@ -0,0 +1,223 @@
+package smokesignals.utils.async;
+
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import okhttp3.Dispatcher;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit2.Response;
+import smokesignals.interfaces.DSTU2BaseTest;
+import smokesignals.interfaces.FhirAsyncInterface;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.fhirconverter.BundleEntryStream;
+
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncCallAdapterFactoryTest extends DSTU2BaseTest {
+
+    private static final int READS = 60;
+    private static final int MAX_PER_HOST = 5;
+    private static final int MAX_PER_TYPE = 3;
+
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxInFlight = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicInteger> mInFlightByType = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> mMaxInFlightByType = new ConcurrentHashMap<>();
+
+    private AsyncCallAdapterFactory mFactory;
+    private FhirAsyncInterface mFhirAsyncInterface;
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+        // more connections than the limits allow, so any cap observed by the server comes from the factory
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(64);
+        mFactory = new AsyncCallAdapterFactory.AsyncCallAdapterFactoryBuilder()
+                .maxRequestsPerHost(MAX_PER_HOST)
+                .maxRequestsPerResourceType(MAX_PER_TYPE)
+                .build();
+        mFhirAsyncInterface = newRetrofitBuilder(newClientBuilder().dispatcher(dispatcher).build())
+                .addCallAdapterFactory(mFactory)
+                .build()
+                .create(FhirAsyncInterface.class);
+    }
+
+    @Override
+    public okhttp3.mockwebserver.Dispatcher getDispatcher() {
+        return new okhttp3.mockwebserver.Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (request.getPath().startsWith("/Observation?")) {
+                    Bundle searchSet = new Bundle().setType(BundleTypeEnum.SEARCH_RESULTS);
+                    searchSet.addEntry().setResource(new Observation().setId("o1"));
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_OK)
+                            .setBody(mFhirJsonParser.encodeResourceToString(searchSet));
+                }
+                String[] segments = request.getPath().substring(1).split("/");
+                if (segments.length != 2 || segments[1].equals("missing")) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_FOUND);
+                }
+                String type = segments[0];
+                AtomicInteger inFlightOfType = mInFlightByType.computeIfAbsent(type, key -> new AtomicInteger());
+                AtomicInteger maxOfType = mMaxInFlightByType.computeIfAbsent(type, key -> new AtomicInteger());
+                mMaxInFlight.accumulateAndGet(mInFlight.incrementAndGet(), Math::max);
+                maxOfType.accumulateAndGet(inFlightOfType.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(10);
+                    BaseResource resource = type.equals("Patient") ? new Patient() : new Observation();
+                    resource.setId(segments[1]);
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_OK)
+                            .setBody(mFhirJsonParser.encodeResourceToString(resource));
+                } finally {
+                    inFlightOfType.decrementAndGet();
+                    mInFlight.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testFanOutStaysWithinLimits() throws Exception {
+        List<CompletableFuture<BaseResource>> reads = new ArrayList<>();
+        for (int i = 0; i < READS; i++) {
+            reads.add(mFhirAsyncInterface.read(i % 3 == 0 ? "Observation" : "Patient", "r" + i, null));
+        }
+        CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).get(CONNECTION_TIMEOUT_LONG, TimeUnit.SECONDS);
+
+        for (int i = 0; i < READS; i++) {
+            BaseResource resource = reads.get(i).get();
+            Assert.assertEquals(i % 3 == 0 ? Observation.class : Patient.class, resource.getClass());
+            Assert.assertEquals("r" + i, resource.getIdElement().getIdPart());
+        }
+        Assert.assertTrue(mMaxInFlight.get() <= MAX_PER_HOST);
+        Assert.assertTrue(mMaxInFlightByType.get("Patient").get() <= MAX_PER_TYPE);
+        Assert.assertTrue(mMaxInFlightByType.get("Observation").get() <= MAX_PER_TYPE);
+        // both types got to run side by side, so the host limit was actually reached
+        Assert.assertTrue(mMaxInFlight.get() > MAX_PER_TYPE);
+
+        Assert.assertEquals(0, mFactory.getHostLimiter().getInFlight(host()));
+        Assert.assertEquals(0, mFactory.getResourceTypeLimiter().getInFlight("Patient"));
+        Assert.assertEquals(0, mFactory.getResourceTypeLimiter().getQueued("Patient"));
+    }
+
+    @Test
+    public void testErrorStatusCompletesExceptionally() throws Exception {
+        CompletableFuture<BaseResource> read = mFhirAsyncInterface.read("Patient", "missing", null);
+        try {
+            read.get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS);
+            Assert.fail("expected the read to fail");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof ResourceNotFoundException);
+        }
+        Assert.assertEquals(0, mFactory.getResourceTypeLimiter().getInFlight("Patient"));
+    }
+
+    @Test
+    public void testKeyedLimiterQueuesAndHandsOver() throws Exception {
+        KeyedLimiter limiter = new KeyedLimiter(1);
+        List<String> ran = new ArrayList<>();
+        limiter.acquire("a", () -> ran.add("first"));
+        limiter.acquire("a", () -> ran.add("second"));
+        limiter.acquire("b", () -> ran.add("other key"));
+        Assert.assertEquals(2, ran.size());
+        Assert.assertEquals(1, limiter.getQueued("a"));
+
+        limiter.release("a");
+        Assert.assertEquals("second", ran.get(2));
+        Assert.assertEquals(1, limiter.getInFlight("a"));
+        limiter.release("a");
+        Assert.assertEquals(0, limiter.getInFlight("a"));
+        Assert.assertEquals(1, limiter.getKeyCount());
+        limiter.release("b");
+        Assert.assertEquals(0, limiter.getKeyCount());
+
+        // an idle key comes back with all its slots
+        limiter.acquire("a", () -> ran.add("again"));
+        Assert.assertEquals("again", ran.get(3));
+        Assert.assertEquals(1, limiter.getInFlight("a"));
+    }
+
+    @Test
+    public void testStreamedBodyHoldsItsSlotsUntilClosed() throws Exception {
+        String host = host();
+        ResponseBody file = mFhirAsyncInterface.bulkExportFile(getBaseUrl() + "Binary/export-1", null, null)
+                .get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS);
+        Assert.assertEquals(1, mFactory.getHostLimiter().getInFlight(host));
+        Assert.assertEquals(1, mFactory.getResourceTypeLimiter().getInFlight("Binary"));
+        file.close();
+        Assert.assertEquals(0, mFactory.getHostLimiter().getInFlight(host));
+        Assert.assertEquals(0, mFactory.getResourceTypeLimiter().getInFlight("Binary"));
+
+        BundleEntryStream entries = mFhirAsyncInterface
+                .searchStreaming("Observation", Collections.singletonMap("code", "8867-4"))
+                .get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS);
+        Assert.assertEquals(1, mFactory.getResourceTypeLimiter().getInFlight("Observation"));
+        Assert.assertEquals("o1", entries.next().getResource().getIdElement().getIdPart());
+        Assert.assertFalse(entries.hasNext());
+        // reading the last entry closed the stream
+        Assert.assertEquals(0, mFactory.getResourceTypeLimiter().getInFlight("Observation"));
+        Assert.assertEquals(0, mFactory.getHostLimiter().getKeyCount());
+    }
+
+    private String host() {
+        okhttp3.HttpUrl baseUrl = okhttp3.HttpUrl.parse(getBaseUrl());
+        return baseUrl.host() + ":" + baseUrl.port();
+    }
+
+    interface ResponseInterface {
+
+        @retrofit2.http.GET("{type}/{id}")
+        CompletableFuture<Response<BaseResource>> read(@retrofit2.http.Path("type") String resourceType,
+                                                       @retrofit2.http.Path("id") String id);
+    }
+
+    @Test
+    public void testResponseIsPassedThroughUnchecked() throws Exception {
+        ResponseInterface responses = newRetrofitBuilder(newClientBuilder().build())
+                .addCallAdapterFactory(mFactory)
+                .build()
+                .create(ResponseInterface.class);
+        Response<BaseResource> response = responses.read("Patient", "missing").get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS);
+        Assert.assertEquals(HttpURLConnection.HTTP_NOT_FOUND, response.code());
+        response.errorBody().close();
+    }
+
+    @Test
+    public void testAsyncInterfaceMirrorsEveryInteraction() throws Exception {
+        Set<String> async = new HashSet<>();
+        for (Method method : FhirAsyncInterface.class.getMethods()) {
+            async.add(method.getName());
+        }
+        for (Method method : FhirInterface.class.getMethods()) {
+            Assert.assertTrue(method.getName(), async.contains(method.getName()));
+        }
+        // every method is a valid service method for the factory
+        newRetrofitBuilder(newClientBuilder().build())
+                .addCallAdapterFactory(mFactory)
+                .validateEagerly(true)
+                .build()
+                .create(FhirAsyncInterface.class);
+    }
+}
@@ -0,0 +1,224 @@
+package smokesignals.utils.batch;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.HTTPVerbEnum;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import smokesignals.interfaces.DSTU2BaseTest;
+
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class ReadBatcherTest extends DSTU2BaseTest {
+
+    private static final String MISSING_ID = "missing";
+
+    private final IParser mServerParser = FhirContext.forDstu2().newJsonParser();
+    private final List<String> mRequests = new CopyOnWriteArrayList<>();
+    private final List<String> mAuthorizations = new CopyOnWriteArrayList<>();
+    private volatile int mPageCap = Integer.MAX_VALUE;
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                HttpUrl url = request.getRequestUrl();
+                String type = url.encodedPath().substring(1);
+                Bundle response;
+                if (request.getMethod().equals(HTTPVerbEnum.GET.name()) && url.queryParameter("_id") != null) {
+                    mRequests.add(type + "?" + url.queryParameter("_id"));
+                    mAuthorizations.add(String.valueOf(request.getHeader("Authorization")));
+                    response = new Bundle().setType(BundleTypeEnum.SEARCH_RESULTS);
+                    String[] ids = url.queryParameter("_id").split(",");
+                    for (String id : ids) {
+                        if (response.getEntry().size() == mPageCap) {
+                            response.addLink().setRelation(Bundle.LINK_NEXT).setUrl(url.toString() + "&page=2");
+                            break;
+                        }
+                        if (!id.equals(MISSING_ID)) {
+                            response.addEntry().setResource(resource(type, id));
+                        }
+                    }
+                } else if (request.getMethod().equals(HTTPVerbEnum.POST.name()) && type.isEmpty()) {
+                    mRequests.add("batch " + request.getHeader("Authorization"));
+                    Bundle batch = mServerParser.parseResource(Bundle.class, request.getBody().readUtf8());
+                    response = new Bundle().setType(BundleTypeEnum.BATCH_RESPONSE);
+                    for (Bundle.Entry entry : batch.getEntry()) {
+                        String[] reference = entry.getRequest().getUrl().split("/");
+                        Bundle.Entry answer = response.addEntry();
+                        if (reference[1].equals(MISSING_ID)) {
+                            answer.getResponse().setStatus("404 Not Found");
+                        } else {
+                            answer.getResponse().setStatus("200 OK");
+                            answer.setResource(resource(reference[0], reference[1]));
+                        }
+                    }
+                } else {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_BAD_REQUEST);
+                }
+                return new MockResponse().setBody(mServerParser.encodeResourceToString(response))
+                        .setResponseCode(HttpURLConnection.HTTP_OK);
+            }
+        };
+    }
+
+    private static BaseResource resource(String type, String id) {
+        BaseResource resource = type.equals("Patient") ? new Patient() : new Observation();
+        resource.setId(id);
+        return resource;
+    }
+
+    private static void assertNotFound(CompletableFuture<BaseResource> read) throws Exception {
+        try {
+            read.get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS);
+            Assert.fail("expected the read to fail");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof ResourceNotFoundException);
+        }
+    }
+
+    @Test
+    public void testReadsAreGroupedIntoOneSearchPerType() throws Exception {
+        try (ReadBatcher batcher = new ReadBatcher.ReadBatcherBuilder(mFhirInterface)
+                .maxDelay(1, TimeUnit.MINUTES)
+                .build()) {
+            CompletableFuture<BaseResource> p1 = batcher.read("Patient", "p1");
+            CompletableFuture<BaseResource> o1 = batcher.read("Observation", "o1");
+            CompletableFuture<BaseResource> p2 = batcher.read("Patient", "p2");
+            CompletableFuture<BaseResource> again = batcher.read("Patient", "p1");
+            CompletableFuture<BaseResource> missing = batcher.read("Patient", MISSING_ID);
+            batcher.flush();
+
+            Assert.assertEquals("p1", p1.get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS).getIdElement().getIdPart());
+            Assert.assertEquals("p2", p2.get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS).getIdElement().getIdPart());
+            Assert.assertTrue(o1.get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS) instanceof Observation);
+            Assert.assertSame(p1, again);
+            assertNotFound(missing);
+        }
+        Assert.assertEquals(2, mRequests.size());
+        Assert.assertTrue(mRequests.contains("Patient?p1,p2," + MISSING_ID));
+        Assert.assertTrue(mRequests.contains("Observation?o1"));
+    }
+
+    @Test
+    public void testFullBatchIsSentWithoutWaiting() throws Exception {
+        try (ReadBatcher batcher = new ReadBatcher.ReadBatcherBuilder(mFhirInterface)
+                .maxEntries(2)
+                .maxDelay(1, TimeUnit.MINUTES)
+                .build()) {
+            CompletableFuture<BaseResource> p1 = batcher.read("Patient", "p1");
+            CompletableFuture<BaseResource> p2 = batcher.read("Patient", "p2");
+            Assert.assertEquals("p2", p2.get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS).getIdElement().getIdPart());
+            Assert.assertTrue(p1.isDone());
+        }
+    }
+
+    @Test
+    public void testCappedPageIsAskedForAgain() throws Exception {
+        mPageCap = 2;
+        try (ReadBatcher batcher = new ReadBatcher.ReadBatcherBuilder(mFhirInterface)
+                .maxDelay(1, TimeUnit.MINUTES)
+                .build()) {
+            CompletableFuture<BaseResource> p3 = null;
+            for (int i = 1; i <= 3; i++) {
+                p3 = batcher.read("Patient", "p" + i);
+            }
+            CompletableFuture<BaseResource> missing = batcher.read("Patient", MISSING_ID);
+            batcher.flush();
+            Assert.assertEquals("p3", p3.get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS).getIdElement().getIdPart());
+            assertNotFound(missing);
+        }
+        Assert.assertEquals("Patient?p1,p2,p3," + MISSING_ID, mRequests.get(0));
+        Assert.assertEquals("Patient?p3," + MISSING_ID, mRequests.get(1));
+    }
+
+    @Test
+    public void testCloseWaitsForTheSearchOfACappedPage() throws Exception {
+        mPageCap = 2;
+        ReadBatcher batcher = new ReadBatcher.ReadBatcherBuilder(mFhirInterface)
+                .maxDelay(1, TimeUnit.MINUTES)
+                .maxInFlightBatches(1)
+                .build();
+        CompletableFuture<BaseResource> p3 = null;
+        for (int i = 1; i <= 3; i++) {
+            p3 = batcher.read("Patient", "p" + i);
+        }
+        batcher.close();
+
+        Assert.assertTrue(p3.isDone());
+        Assert.assertEquals("p3", p3.get().getIdElement().getIdPart());
+        Assert.assertEquals(2, mRequests.size());
+    }
+
+    @Test
+    public void testBatchBundleCarriesAuthorization() throws Exception {
+        try (ReadBatcher batcher = new ReadBatcher.ReadBatcherBuilder(mFhirInterface)
+                .mode(ReadBatcher.Mode.BATCH_BUNDLE)
+                .bearer("Bearer token")
+                .maxDelay(1, TimeUnit.MINUTES)
+                .build()) {
+            CompletableFuture<BaseResource> p1 = batcher.read("Patient", "p1");
+            CompletableFuture<BaseResource> o1 = batcher.read("Observation", "o1");
+            CompletableFuture<BaseResource> missing = batcher.read("Patient", MISSING_ID);
+            batcher.flush();
+
+            Assert.assertEquals("p1", p1.get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS).getIdElement().getIdPart());
+            Assert.assertTrue(o1.get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS) instanceof Observation);
+            assertNotFound(missing);
+        }
+        Assert.assertEquals(1, mRequests.size());
+        Assert.assertEquals("batch Bearer token", mRequests.get(0));
+    }
+
+    @Test
+    public void testIdSearchCarriesAuthorization() throws Exception {
+        try (ReadBatcher batcher = new ReadBatcher.ReadBatcherBuilder(mFhirInterface)
+                .bearer("Bearer token")
+                .maxDelay(1, TimeUnit.MINUTES)
+                .build()) {
+            CompletableFuture<BaseResource> p1 = batcher.read("Patient", "p1");
+            CompletableFuture<BaseResource> o1 = batcher.read("Observation", "o1");
+            batcher.flush();
+
+            Assert.assertEquals("p1", p1.get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS).getIdElement().getIdPart());
+            Assert.assertTrue(o1.get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS) instanceof Observation);
+        }
+        Assert.assertEquals(Arrays.asList("Bearer token", "Bearer token"), mAuthorizations);
+    }
+
+    @Test
+    public void testReadAfterCloseFails() throws Exception {
+        ReadBatcher batcher = new ReadBatcher.ReadBatcherBuilder(mFhirInterface).build();
+        batcher.close();
+        try {
+            batcher.read("Patient", "p1").get();
+            Assert.fail("expected the read to fail");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+    }
+}
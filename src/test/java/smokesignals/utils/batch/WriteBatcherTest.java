@@ -0,0 +1,159 @@
+package smokesignals.utils.batch;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.HTTPVerbEnum;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import smokesignals.interfaces.DSTU2BaseTest;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WriteBatcherTest extends DSTU2BaseTest {
+
+    private static final String REJECTED_ID = "rejected";
+    private static final String SLOW_ID = "slow";
+
+    private final IParser mServerParser = FhirContext.forDstu2().newJsonParser();
+    private final AtomicInteger mBatchesReceived = new AtomicInteger();
+    private final CountDownLatch mSlowBatchArrived = new CountDownLatch(1);
+    private final CountDownLatch mReleaseSlowBatch = new CountDownLatch(1);
+    private volatile Bundle mLastBatch;
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (!request.getPath().equals("/") || !request.getMethod().equals(HTTPVerbEnum.POST.name())) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_FORBIDDEN);
+                }
+                mBatchesReceived.incrementAndGet();
+                Bundle batch = mServerParser.parseResource(Bundle.class, request.getBody().readUtf8());
+                mLastBatch = batch;
+                if (batch.getEntry().get(0).getRequest().getUrl().endsWith(SLOW_ID)) {
+                    mSlowBatchArrived.countDown();
+                    mReleaseSlowBatch.await(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS);
+                }
+
+                Bundle response = new Bundle().setType(BundleTypeEnum.BATCH_RESPONSE);
+                for (Bundle.Entry entry : batch.getEntry()) {
+                    Bundle.Entry answer = response.addEntry();
+                    if (entry.getRequest().getUrl().endsWith(REJECTED_ID)) {
+                        answer.getResponse().setStatus("422 Unprocessable Entity");
+                        answer.setResource(new OperationOutcome());
+                    } else {
+                        answer.getResponse().setStatus("201 Created").setLocation(entry.getRequest().getUrl() + "/1");
+                    }
+                }
+                return new MockResponse().setBody(mServerParser.encodeResourceToString(response))
+                        .setResponseCode(HttpURLConnection.HTTP_OK);
+            }
+        };
+    }
+
+    @Test
+    public void testFullBatchIsSentAsOneRequest() throws Exception {
+        try (WriteBatcher batcher = new WriteBatcher.WriteBatcherBuilder(mFhirInterface)
+                .maxEntries(3)
+                .maxDelay(1, TimeUnit.MINUTES)
+                .build()) {
+
+            CompletableFuture<Bundle.Entry> created = batcher.create("Patient", new Patient());
+            CompletableFuture<Bundle.Entry> updated = batcher.update("Patient", "p1", new Patient());
+            CompletableFuture<Bundle.Entry> deleted = batcher.delete("Patient", "p2");
+
+            Assert.assertEquals("201 Created", created.get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS).getResponse().getStatus());
+            Assert.assertEquals("Patient/p1/1", updated.get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS).getResponse().getLocation());
+            Assert.assertNotNull(deleted.get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS));
+        }
+
+        Assert.assertEquals(1, mBatchesReceived.get());
+        Assert.assertEquals(BundleTypeEnum.BATCH.getCode(), mLastBatch.getType());
+        Assert.assertEquals(HTTPVerbEnum.DELETE.getCode(), mLastBatch.getEntry().get(2).getRequest().getMethod());
+    }
+
+    @Test
+    public void testDelayFlushesPartialBatchAndIsolatesFailures() throws Exception {
+        WriteBatcher batcher = new WriteBatcher.WriteBatcherBuilder(mFhirInterface)
+                .maxEntries(100)
+                .maxDelay(20, TimeUnit.MILLISECONDS)
+                .build();
+
+        List<CompletableFuture<Bundle.Entry>> results = new ArrayList<>();
+        results.add(batcher.update("Patient", "ok-1", new Patient()));
+        results.add(batcher.update("Patient", REJECTED_ID, new Patient()));
+        results.add(batcher.update("Patient", "ok-2", new Patient()));
+
+        Assert.assertNotNull(results.get(0).get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS));
+        Assert.assertNotNull(results.get(2).get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS));
+        try {
+            results.get(1).get(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS);
+            Assert.fail("rejected entry should fail on its own");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof UnprocessableEntityException);
+        }
+        Assert.assertEquals(1, mBatchesReceived.get());
+
+        batcher.close();
+        Assert.assertTrue(batcher.create("Patient", new Patient()).isCompletedExceptionally());
+    }
+
+    @Test
+    public void testCloseWaitsForBatchDrainedByAnotherThread() throws Exception {
+        final WriteBatcher batcher = new WriteBatcher.WriteBatcherBuilder(mFhirInterface)
+                .maxEntries(1)
+                .maxInFlightBatches(1)
+                .build();
+
+        CompletableFuture<Bundle.Entry> slow = batcher.update("Patient", SLOW_ID, new Patient());
+        Assert.assertTrue(mSlowBatchArrived.await(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS));
+        final List<CompletableFuture<Bundle.Entry>> queued = new ArrayList<>();
+        // drains its batch at once, then parks on the only permit, which the slow batch holds
+        Thread writer = new Thread(() -> queued.add(batcher.update("Patient", "p1", new Patient())));
+        writer.start();
+        awaitParked(writer);
+
+        Thread closer = new Thread(batcher::close);
+        closer.start();
+        awaitParked(closer);
+        Assert.assertFalse(slow.isDone());
+
+        mReleaseSlowBatch.countDown();
+        closer.join();
+        writer.join();
+
+        Assert.assertTrue(slow.isDone());
+        Assert.assertTrue(queued.get(0).isDone());
+        Assert.assertEquals(2, mBatchesReceived.get());
+    }
+
+    private static void awaitParked(Thread thread) {
+        while (thread.getState() != Thread.State.WAITING) {
+            Assert.assertTrue(thread.isAlive());
+            Thread.yield();
+        }
+    }
+}
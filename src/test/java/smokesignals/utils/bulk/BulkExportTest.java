@@ -0,0 +1,180 @@
+package smokesignals.utils.bulk;
+
+import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.HTTPVerbEnum;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import okhttp3.Headers;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import smokesignals.interfaces.DSTU2BaseTest;
+import smokesignals.utils.FhirClientBootstrap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+public class BulkExportTest extends DSTU2BaseTest {
+
+    private static final int PATIENTS = 25;
+    private static final int OBSERVATIONS = 40;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final AtomicInteger mPolls = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                String path = request.getPath();
+                if (path.startsWith("/Patient/$export?")) {
+                    if (!"respond-async".equals(request.getHeader("Prefer"))
+                            || !"Patient,Observation".equals(request.getRequestUrl().queryParameter("_type"))) {
+                        return new MockResponse().setResponseCode(HttpURLConnection.HTTP_BAD_REQUEST);
+                    }
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_ACCEPTED)
+                            .setHeader("Content-Location", getBaseUrl() + "status/1");
+                } else if (path.equals("/status/1") && request.getMethod().equals(HTTPVerbEnum.GET.name())) {
+                    if (mPolls.incrementAndGet() < 3) {
+                        return new MockResponse().setResponseCode(HttpURLConnection.HTTP_ACCEPTED)
+                                .setHeader("X-Progress", "step " + mPolls.get())
+                                .setHeader("Retry-After", "0");
+                    }
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_OK).setBody("{"
+                            + "\"transactionTime\":\"2018-01-01T00:00:00Z\","
+                            + "\"request\":\"" + getBaseUrl() + "Patient/$export\","
+                            + "\"requiresAccessToken\":true,"
+                            + "\"output\":["
+                            + "{\"type\":\"Patient\",\"url\":\"" + getBaseUrl() + "files/patient\",\"count\":" + PATIENTS + "},"
+                            + "{\"type\":\"Observation\",\"url\":\"" + getBaseUrl() + "files/observation\"}"
+                            + "],\"error\":[]}");
+                } else if (path.equals("/status/1")) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_ACCEPTED);
+                } else if (path.startsWith("/files/") && "Bearer token".equals(request.getHeader("Authorization"))) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_OK)
+                            .setBody(path.equals("/files/patient") ? patients() : observations())
+                            .throttleBody(512, 1, TimeUnit.MILLISECONDS);
+                }
+                return new MockResponse().setResponseCode(HttpURLConnection.HTTP_BAD_REQUEST);
+            }
+        };
+    }
+
+    private String patients() {
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < PATIENTS; i++) {
+            Patient patient = new Patient();
+            patient.setId("p" + i);
+            ndjson.append(mFhirJsonParser.encodeResourceToString(patient)).append('\n');
+        }
+        return ndjson.toString();
+    }
+
+    private String observations() {
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < OBSERVATIONS; i++) {
+            Observation observation = new Observation();
+            observation.setId("o" + i);
+            // blank and CRLF terminated lines are tolerated, the last line has no terminator
+            ndjson.append(mFhirJsonParser.encodeResourceToString(observation)).append(i % 2 == 0 ? "\r\n" : "\n\n");
+        }
+        return ndjson.substring(0, ndjson.length() - 1);
+    }
+
+    @Test
+    public void testExportIsPolledAndDownloaded() throws Exception {
+        BulkExport export = new BulkExport.BulkExportBuilder(mFhirInterface)
+                .endpoint("Patient/$export")
+                .types("Patient", "Observation")
+                .bearer("Bearer token")
+                .pollInterval(1, TimeUnit.MILLISECONDS)
+                .start();
+        Assert.assertEquals(getBaseUrl() + "status/1", export.getStatusUrl());
+
+        BulkExportManifest manifest = export.awaitManifest(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS);
+        Assert.assertNotNull(manifest);
+        Assert.assertEquals(3, mPolls.get());
+        Assert.assertEquals("step 2", export.getProgress());
+        Assert.assertEquals("2018-01-01T00:00:00Z", manifest.getTransactionTime());
+        Assert.assertEquals(2, manifest.getOutput().size());
+        Assert.assertEquals(PATIENTS, manifest.getOutput().get(0).getCount());
+        Assert.assertEquals(-1, manifest.getOutput().get(1).getCount());
+
+        Map<BulkExportManifest.OutputFile, Path> files = export.download(manifest, mFolder.getRoot().toPath().resolve("export"));
+        List<Path> paths = new ArrayList<>(files.values());
+        Assert.assertEquals("Patient-1.ndjson", paths.get(0).getFileName().toString());
+        Assert.assertEquals("Observation-1.ndjson", paths.get(1).getFileName().toString());
+
+        try (NdjsonResourceReader reader = new NdjsonResourceReader(FhirClientBootstrap.sharedContext(), paths.get(0))) {
+            List<String> ids = reader.stream().map(resource -> resource.getIdElement().getIdPart()).collect(Collectors.toList());
+            Assert.assertEquals(PATIENTS, ids.size());
+            Assert.assertEquals("p0", ids.get(0));
+            Assert.assertEquals("p" + (PATIENTS - 1), ids.get(PATIENTS - 1));
+        }
+        // a window of a few lines forces the file to be remapped many times
+        try (NdjsonResourceReader reader = new NdjsonResourceReader(FhirClientBootstrap.sharedContext(), paths.get(1), 256)) {
+            int count = 0;
+            while (reader.hasNext()) {
+                IBaseResource resource = reader.next();
+                Assert.assertTrue(resource instanceof Observation);
+                Assert.assertEquals("o" + count, resource.getIdElement().getIdPart());
+                count++;
+            }
+            Assert.assertEquals(OBSERVATIONS, count);
+        }
+
+        export.cancel();
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void testRejectedKickOffIsRethrown() throws Exception {
+        new BulkExport.BulkExportBuilder(mFhirInterface).endpoint("Patient/$export").start();
+    }
+
+    @Test
+    public void testRetryAfterAcceptsSecondsAndDates() throws Exception {
+        long now = 1500000000000L;
+        Assert.assertEquals(120000, BulkExport.retryAfterMillis(Headers.of("Retry-After", "120"), now));
+        Assert.assertEquals(-1, BulkExport.retryAfterMillis(Headers.of(), now));
+        Assert.assertEquals(-1, BulkExport.retryAfterMillis(Headers.of("Retry-After", "soon"), now));
+        Assert.assertEquals(30000, BulkExport.retryAfterMillis(
+                Headers.of("Retry-After", "Fri, 14 Jul 2017 02:40:30 GMT"), now));
+        Assert.assertEquals(0, BulkExport.retryAfterMillis(
+                Headers.of("Retry-After", "Fri, 14 Jul 2017 02:39:00 GMT"), now));
+    }
+
+    @Test
+    public void testManifestWithoutUrlIsRejected() throws Exception {
+        try {
+            BulkExportManifest.parse(new ByteArrayInputStream(
+                    "{\"output\":[{\"type\":\"Patient\"}]}".getBytes(StandardCharsets.UTF_8)));
+            Assert.fail("expected the manifest to be rejected");
+        } catch (IOException expected) {
+            Assert.assertTrue(expected.getMessage().contains("url"));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package smokesignals.utils.bundle;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import smokesignals.interfaces.DSTU2BaseTest;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BundleReferenceResolverTest extends DSTU2BaseTest {
+
+    private static final String BASE = "http://example.com/baseDstu2/";
+
+    private final List<String> mSearches = new ArrayList<>();
+    private final List<String> mAuthorizations = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                String ids = request.getRequestUrl().queryParameter("_id");
+                if (!request.getRequestUrl().encodedPath().equals("/Patient") || ids == null) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_BAD_REQUEST);
+                }
+                mSearches.add(ids);
+                mAuthorizations.add(request.getHeader("Authorization"));
+                Bundle bundle = new Bundle();
+                bundle.setType(BundleTypeEnum.SEARCH_RESULTS);
+                for (String id : ids.split(",")) {
+                    if (!id.equals("gone")) {
+                        bundle.addEntry().setFullUrl(BASE + "Patient/" + id).setResource(patient(id));
+                    }
+                }
+                return new MockResponse().setResponseCode(HttpURLConnection.HTTP_OK)
+                        .setBody(mFhirJsonParser.encodeResourceToString(bundle));
+            }
+        };
+    }
+
+    private static Patient patient(String id) {
+        Patient patient = new Patient();
+        patient.setId(id);
+        return patient;
+    }
+
+    private static Observation observation(String id, String subject) {
+        Observation observation = new Observation();
+        observation.setId(id);
+        observation.setSubject(new ResourceReferenceDt(subject));
+        return observation;
+    }
+
+    private static Bundle page(String... subjects) {
+        Bundle bundle = new Bundle();
+        bundle.setType(BundleTypeEnum.SEARCH_RESULTS);
+        for (int i = 0; i < subjects.length; i++) {
+            bundle.addEntry().setFullUrl(BASE + "Observation/o" + i).setResource(observation("o" + i, subjects[i]));
+        }
+        bundle.addEntry().setFullUrl(BASE + "Patient/included").setResource(patient("included"));
+        bundle.addEntry().setFullUrl("urn:uuid:5d2c1f3e-0000-4000-8000-000000000001").setResource(patient("local"));
+        return bundle;
+    }
+
+    @Test
+    public void testReferencesResolveByTypeIdAndFullUrl() throws Exception {
+        BundleReferenceResolver resolver = new BundleReferenceResolver(page());
+        Assert.assertEquals("included", resolver.resolve("Patient/included").getIdElement().getIdPart());
+        Assert.assertEquals("included", resolver.resolve("Patient/included/_history/3").getIdElement().getIdPart());
+        Assert.assertEquals("included", resolver.resolve(BASE + "Patient/included").getIdElement().getIdPart());
+        Assert.assertEquals("local", resolver.resolve("urn:uuid:5d2c1f3e-0000-4000-8000-000000000001")
+                .getIdElement().getIdPart());
+        Assert.assertNull(resolver.resolve("http://elsewhere.org/fhir/Patient/included"));
+        Assert.assertNull(resolver.resolve("Patient/unknown"));
+        Assert.assertNull(resolver.resolve("#contained"));
+    }
+
+    @Test
+    public void testLinkSetsTargetsAndReportsTheRest() throws Exception {
+        Bundle page = page("Patient/included", "Patient/p1", "#contained");
+        BundleReferenceResolver resolver = new BundleReferenceResolver(page);
+        List<ResourceReferenceDt> unresolved = resolver.link(FhirContext.forDstu2());
+
+        Assert.assertEquals(1, unresolved.size());
+        Assert.assertEquals("Patient/p1", unresolved.get(0).getReference().getValue());
+        Observation first = (Observation) page.getEntry().get(0).getResource();
+        Assert.assertSame(page.getEntry().get(3).getResource(), first.getSubject().getResource());
+    }
+
+    @Test
+    public void testUnresolvedReferencesAreFetchedInOneSearchPerType() throws Exception {
+        Bundle page = page("Patient/p1", "Patient/p2", "Patient/p1", "Patient/gone", "Patient/p3", "Patient/included");
+        BundleReferenceResolver resolver = new BundleReferenceResolver(page);
+        FhirContext fhirContext = FhirContext.forDstu2();
+        List<ResourceReferenceDt> unresolved = resolver.link(fhirContext);
+        Assert.assertEquals(5, unresolved.size());
+
+        Assert.assertEquals(3, resolver.fetch(mFhirInterface, unresolved, 2, "Bearer a"));
+        // two searches of at most two distinct ids each
+        Assert.assertEquals(2, mSearches.size());
+        Assert.assertEquals("p1,p2", mSearches.get(0));
+        Assert.assertEquals("gone,p3", mSearches.get(1));
+        Assert.assertEquals(Arrays.asList("Bearer a", "Bearer a"), mAuthorizations);
+
+        unresolved = resolver.link(fhirContext);
+        Assert.assertEquals(1, unresolved.size());
+        Assert.assertEquals("Patient/gone", unresolved.get(0).getReference().getValue());
+        Observation second = (Observation) page.getEntry().get(1).getResource();
+        Assert.assertEquals("p2", second.getSubject().getResource().getIdElement().getIdPart());
+    }
+}
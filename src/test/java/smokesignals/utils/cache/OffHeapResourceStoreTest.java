@@ -0,0 +1,126 @@
+package smokesignals.utils.cache;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.primitive.IdDt;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class OffHeapResourceStoreTest {
+
+    private static final FhirContext CONTEXT = FhirContext.forDstu2();
+
+    private OffHeapResourceStore mStore;
+
+    @After
+    public void tearDown() {
+        if (mStore != null) {
+            mStore.close();
+        }
+    }
+
+    private static Patient patient(String id, String version, String note) {
+        Patient patient = new Patient();
+        patient.setId(new IdDt("Patient", id, version));
+        patient.addName().addFamily(note);
+        return patient;
+    }
+
+    private static byte[] record(int size) {
+        byte[] json = new byte[size];
+        for (int i = 0; i < size; i++) {
+            json[i] = (byte) ('a' + i % 26);
+        }
+        return json;
+    }
+
+    @Test
+    public void testResourcesRoundTripWithAndWithoutCompression() throws Exception {
+        for (boolean compress : new boolean[]{false, true}) {
+            mStore = new OffHeapResourceStore.OffHeapResourceStoreBuilder(CONTEXT).compress(compress).build();
+            StringBuilder note = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                note.append("repeated ");
+            }
+            mStore.put(patient("p1", "2", note.toString()));
+
+            BaseResource read = mStore.get("Patient", "p1", "2");
+            Assert.assertEquals("p1", read.getId().getIdPart());
+            Assert.assertEquals(note.toString(), ((Patient) read).getNameFirstRep().getFamilyAsSingleString());
+            Assert.assertNotSame(read, mStore.get("Patient/p1/_history/2"));
+            Assert.assertNull(mStore.get("Patient", "p1", null));
+            Assert.assertEquals(1, mStore.getSize());
+            if (compress) {
+                Assert.assertTrue(mStore.getLiveBytes() < note.length());
+            } else {
+                Assert.assertTrue(mStore.getLiveBytes() > note.length());
+            }
+            mStore.close();
+        }
+    }
+
+    @Test
+    public void testIndexGrowsAndRemovesKeys() throws Exception {
+        mStore = new OffHeapResourceStore.OffHeapResourceStoreBuilder(CONTEXT).segmentSize(1 << 20).build();
+        for (int i = 0; i < 5000; i++) {
+            mStore.put("Observation/o" + i, ("{\"n\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals(5000, mStore.getSize());
+        for (int i = 0; i < 5000; i += 2) {
+            Assert.assertTrue(mStore.remove("Observation/o" + i));
+        }
+        Assert.assertFalse(mStore.remove("Observation/o0"));
+        Assert.assertEquals(2500, mStore.getSize());
+        for (int i = 0; i < 5000; i++) {
+            byte[] json = mStore.getBytes("Observation/o" + i);
+            if (i % 2 == 0) {
+                Assert.assertNull(json);
+            } else {
+                Assert.assertEquals("{\"n\":" + i + "}", new String(json, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    public void testGarbageIsCompactedAndLiveRecordsSurvive() throws Exception {
+        mStore = new OffHeapResourceStore.OffHeapResourceStoreBuilder(CONTEXT)
+                .segmentSize(10 * 1024)
+                .maxBytes(100 * 1024)
+                .compactionExecutor(Runnable::run)
+                .build();
+        // every key is written ten times, so nine records in ten are garbage
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 20; i++) {
+                mStore.put("Binary/b" + i, record(400 + round));
+            }
+        }
+        Assert.assertTrue(mStore.getCompactionCount() > 0);
+        Assert.assertEquals(0, mStore.getEvictionCount());
+        Assert.assertEquals(20, mStore.getSize());
+        Assert.assertTrue(mStore.getAllocatedBytes() < 100 * 1024);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(409, mStore.getBytes("Binary/b" + i).length);
+        }
+    }
+
+    @Test
+    public void testOldestSegmentIsEvictedWhenFull() throws Exception {
+        mStore = new OffHeapResourceStore.OffHeapResourceStoreBuilder(CONTEXT)
+                .segmentSize(4 * 1024)
+                .maxBytes(8 * 1024)
+                .build();
+        for (int i = 0; i < 30; i++) {
+            Assert.assertTrue(mStore.put("Binary/b" + i, record(500)));
+        }
+        Assert.assertFalse(mStore.put("Binary/huge", record(5000)));
+        Assert.assertTrue(mStore.getEvictionCount() > 0);
+        Assert.assertEquals(30 - mStore.getEvictionCount(), mStore.getSize());
+        Assert.assertNull(mStore.getBytes("Binary/b0"));
+        Assert.assertNotNull(mStore.getBytes("Binary/b29"));
+        Assert.assertEquals(8 * 1024, mStore.getAllocatedBytes());
+    }
+}
@@ -0,0 +1,142 @@
+package smokesignals.utils.cache;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.parser.IParser;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import smokesignals.interfaces.DSTU2BaseTest;
+
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ReadCacheTest extends DSTU2BaseTest {
+
+    private static final String CHUNKED_ID = "chunked";
+
+    private final IParser mServerParser = FhirContext.forDstu2().newJsonParser();
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private volatile String mCurrentVersion = "1";
+
+    private ReadCache mReadCache;
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+        mReadCache = new ReadCache.ReadCacheBuilder(mFhirInterface, FhirContext.forDstu2())
+                .ttl("Practitioner", 1, TimeUnit.HOURS)
+                .build();
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                mRequests.incrementAndGet();
+                String[] path = request.getPath().substring(1).split("/");
+                String version = path.length == 4 ? path[3] : mCurrentVersion;
+                String etag = "W/\"" + version + "\"";
+                if (path.length == 2 && etag.equals(request.getHeader("If-None-Match"))) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED);
+                }
+                Patient patient = new Patient();
+                patient.setId(path[0] + "/" + path[1] + "/_history/" + version);
+                MockResponse response = new MockResponse()
+                        .setHeader("ETag", etag)
+                        .setResponseCode(HttpURLConnection.HTTP_OK);
+                if (path[1].startsWith(CHUNKED_ID)) {
+                    patient.addName().addFamily("Zo\u00eb \u00c5ngstr\u00f6m");
+                    return response.setChunkedBody(mServerParser.encodeResourceToString(patient), 16);
+                }
+                return response.setBody(mServerParser.encodeResourceToString(patient));
+            }
+        };
+    }
+
+    @Test
+    public void testReadIsRevalidatedAndReusedOnNotModified() throws Exception {
+        BaseResource first = mReadCache.read("Patient", "p1", null);
+        BaseResource second = mReadCache.read("Patient", "p1", null);
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(2, mRequests.get());
+        Assert.assertEquals(1, mReadCache.getStats().getRevalidationCount());
+
+        mCurrentVersion = "2";
+        BaseResource third = mReadCache.read("Patient", "p1", null);
+        Assert.assertNotSame(first, third);
+        Assert.assertEquals("2", third.getId().getVersionIdPart());
+        Assert.assertEquals(2, mReadCache.getStats().getMissCount());
+    }
+
+    @Test
+    public void testReadWithinTtlAndVReadStayOffTheNetwork() throws Exception {
+        BaseResource practitioner = mReadCache.read("Practitioner", "dr1", null);
+        Assert.assertSame(practitioner, mReadCache.read("Practitioner", "dr1", null));
+
+        BaseResource version = mReadCache.vRead("Patient", "p1", "7", null);
+        Assert.assertSame(version, mReadCache.vRead("Patient", "p1", "7", null));
+
+        Assert.assertEquals(2, mRequests.get());
+        Assert.assertEquals(2, mReadCache.getStats().getHitCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvictedBySize() throws Exception {
+        mReadCache.vRead("Patient", "p1", "1", null);
+        long entryBytes = mReadCache.getStats().getBytes();
+
+        ReadCache small = new ReadCache.ReadCacheBuilder(mFhirInterface, FhirContext.forDstu2())
+                .maxBytes(entryBytes * 2)
+                .build();
+        small.vRead("Patient", "p1", "1", null);
+        small.vRead("Patient", "p2", "1", null);
+        small.vRead("Patient", "p1", "1", null);
+        small.vRead("Patient", "p3", "1", null);
+
+        Assert.assertEquals(1, small.getStats().getEvictionCount());
+        Assert.assertEquals(2, small.getStats().getSize());
+        int before = mRequests.get();
+        small.vRead("Patient", "p1", "1", null);
+        Assert.assertEquals(before, mRequests.get());
+    }
+
+    @Test
+    public void testBodyWithoutContentLengthIsWeighedInUtf8Bytes() throws Exception {
+        BaseResource patient = mReadCache.vRead("Patient", CHUNKED_ID, "1", null);
+
+        long utf8Bytes = mServerParser.encodeResourceToString(patient).getBytes(StandardCharsets.UTF_8).length;
+        Assert.assertEquals(utf8Bytes, mReadCache.getStats().getBytes());
+    }
+
+    @Test
+    public void testVReadMissesAreAnsweredFromTheStore() throws Exception {
+        OffHeapResourceStore store = new OffHeapResourceStore.OffHeapResourceStoreBuilder(FhirContext.forDstu2())
+                .segmentSize(64 * 1024)
+                .maxBytes(256 * 1024)
+                .build();
+        ReadCache first = new ReadCache.ReadCacheBuilder(mFhirInterface, FhirContext.forDstu2()).store(store).build();
+        first.vRead("Patient", "p1", "3", null);
+        first.read("Patient", "p2", null);
+        Assert.assertEquals(2, store.getSize());
+
+        ReadCache second = new ReadCache.ReadCacheBuilder(mFhirInterface, FhirContext.forDstu2()).store(store).build();
+        int before = mRequests.get();
+        BaseResource version = second.vRead("Patient", "p1", "3", null);
+        BaseResource current = second.vRead("Patient", "p2", mCurrentVersion, null);
+        Assert.assertEquals(before, mRequests.get());
+        Assert.assertEquals("p1", version.getId().getIdPart());
+        Assert.assertEquals("p2", current.getId().getIdPart());
+        Assert.assertEquals(2, second.getStats().getHitCount());
+        store.close();
+    }
+}
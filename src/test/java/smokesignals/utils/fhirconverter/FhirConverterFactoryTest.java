@@ -0,0 +1,80 @@
+package smokesignals.utils.fhirconverter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+import smokesignals.utils.RestServiceMockUtils;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class FhirConverterFactoryTest {
+
+    private static final MediaType JSON = MediaType.parse("application/json");
+    private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+
+    private FhirConverterFactory mFactory;
+    private Retrofit mRetrofit;
+    private String mBundleJson;
+
+    @Before
+    public void setUp() {
+        mFactory = FhirConverterFactory.create(FhirContext.forDstu2());
+        mRetrofit = new Retrofit.Builder().baseUrl("http://localhost/").addConverterFactory(mFactory).build();
+        mBundleJson = RestServiceMockUtils.getStringFromFile(getClass().getClassLoader(), "observation_bundle.json");
+    }
+
+    @Test
+    public void testConvertersAreReusedPerType() {
+        Assert.assertSame(mFactory.responseBodyConverter(Bundle.class, NO_ANNOTATIONS, mRetrofit),
+                mFactory.responseBodyConverter(Bundle.class, NO_ANNOTATIONS, mRetrofit));
+        Assert.assertNotSame(mFactory.responseBodyConverter(Bundle.class, NO_ANNOTATIONS, mRetrofit),
+                mFactory.responseBodyConverter(Patient.class, NO_ANNOTATIONS, mRetrofit));
+        Assert.assertSame(mFactory.requestBodyConverter(Patient.class, NO_ANNOTATIONS, NO_ANNOTATIONS, mRetrofit),
+                mFactory.requestBodyConverter(Patient.class, NO_ANNOTATIONS, NO_ANNOTATIONS, mRetrofit));
+    }
+
+    @Test
+    public void testNonResourceTypesAreLeftToOtherFactories() {
+        Assert.assertNull(mFactory.responseBodyConverter(String.class, NO_ANNOTATIONS, mRetrofit));
+        Assert.assertNull(mFactory.requestBodyConverter(String.class, NO_ANNOTATIONS, NO_ANNOTATIONS, mRetrofit));
+    }
+
+    @Test
+    public void testSharedConverterParsesConcurrently() throws Exception {
+        @SuppressWarnings("unchecked")
+        final Converter<ResponseBody, BaseResource> typed = (Converter<ResponseBody, BaseResource>)
+                mFactory.responseBodyConverter(Bundle.class, NO_ANNOTATIONS, mRetrofit);
+        @SuppressWarnings("unchecked")
+        final Converter<ResponseBody, BaseResource> untyped = (Converter<ResponseBody, BaseResource>)
+                mFactory.responseBodyConverter(BaseResource.class, NO_ANNOTATIONS, mRetrofit);
+        final int expectedEntries = ((Bundle) untyped.convert(ResponseBody.create(JSON, mBundleJson))).getEntry().size();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                final Converter<ResponseBody, BaseResource> converter = i % 2 == 0 ? typed : untyped;
+                results.add(executor.submit(() ->
+                        ((Bundle) converter.convert(ResponseBody.create(JSON, mBundleJson))).getEntry().size()));
+            }
+            for (Future<Integer> result : results) {
+                Assert.assertEquals(expectedEntries, (int) result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package smokesignals.utils.fhirconverter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit2.Response;
+import smokesignals.interfaces.DSTU2BaseTest;
+import smokesignals.utils.query.FhirQuery;
+
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class FhirLazyBundleConverterTest extends DSTU2BaseTest {
+
+    private final String ENDPOINT_OBSERVATION = "Observation";
+
+    private String mObservationBaseSearchResponseJson;
+    private Bundle mObservationBaseSearchResponse;
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+
+        mObservationBaseSearchResponseJson = getJsonString("search/observation_count_limited_search_result.json");
+        mObservationBaseSearchResponse = (Bundle) mFhirJsonParser.parseResource(mObservationBaseSearchResponseJson);
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (request.getPath().substring(1).equals(ENDPOINT_OBSERVATION)) {
+                    return new MockResponse().setBody(mObservationBaseSearchResponseJson)
+                            .setResponseCode(HttpURLConnection.HTTP_OK);
+                }
+                return new MockResponse().setResponseCode(HttpURLConnection.HTTP_FORBIDDEN);
+            }
+        };
+    }
+
+    @Test
+    public void testKeysAndResourcesMatchFullyParsedBundle() throws Exception {
+        Response<LazyBundle> response = mFhirInterface.searchLazy(ENDPOINT_OBSERVATION,
+                new FhirQuery.FhirQueryBuilder().build()).execute();
+        Assert.assertTrue(response.isSuccessful());
+        LazyBundle bundle = response.body();
+
+        Bundle skeleton = bundle.getBundle();
+        Assert.assertEquals(mObservationBaseSearchResponse.getLink(Bundle.LINK_NEXT).getUrl(),
+                skeleton.getLink(Bundle.LINK_NEXT).getUrl());
+        Assert.assertTrue(skeleton.getEntry().isEmpty());
+
+        List<Bundle.Entry> expected = mObservationBaseSearchResponse.getEntry();
+        List<LazyBundle.LazyEntry> entries = bundle.getEntries();
+        Assert.assertEquals(expected.size(), bundle.size());
+        for (int i = 0; i < expected.size(); i++) {
+            BaseResource resource = (BaseResource) expected.get(i).getResource();
+            LazyBundle.LazyEntry entry = entries.get(i);
+            Assert.assertEquals(expected.get(i).getFullUrl(), entry.getFullUrl());
+            Assert.assertEquals(resource.getResourceName(), entry.getResourceType());
+            Assert.assertEquals(resource.getId().getIdPart(), entry.getId());
+            Assert.assertEquals(resource.getMeta().getVersionId(), entry.getVersionId());
+            Assert.assertEquals(resource.getMeta().getLastUpdated(), entry.getLastUpdated());
+            Assert.assertEquals(mFhirJsonParser.encodeResourceToString(resource),
+                    mFhirJsonParser.encodeResourceToString(entry.getResource()));
+        }
+    }
+
+    @Test
+    public void testResourceIsParsedOnceAndSharedWithItsEntry() throws Exception {
+        LazyBundle bundle = LazyBundle.parse(FhirConverterFactory.parsers(FhirContext.forDstu2()),
+                mObservationBaseSearchResponseJson.getBytes(StandardCharsets.UTF_8));
+        LazyBundle.LazyEntry entry = bundle.getEntries().get(0);
+
+        BaseResource resource = entry.getResource();
+        Assert.assertSame(resource, entry.getResource());
+        Assert.assertSame(resource, entry.getEntry().getResource());
+        Assert.assertEquals(mObservationBaseSearchResponse.getEntry().get(0).getSearch().getMode(),
+                entry.getEntry().getSearch().getMode());
+
+        String json = new String(entry.getResourceBytes(), StandardCharsets.UTF_8);
+        Assert.assertTrue(json.startsWith("{") && json.endsWith("}"));
+        Assert.assertEquals(mFhirJsonParser.encodeResourceToString(resource),
+                mFhirJsonParser.encodeResourceToString(mFhirJsonParser.parseResource(json)));
+    }
+}
@@ -0,0 +1,53 @@
+package smokesignals.utils.fhirconverter;
+
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit2.Response;
+import smokesignals.interfaces.DSTU2BaseTest;
+
+import java.net.HttpURLConnection;
+
+public class FhirRequestBodyConverterTest extends DSTU2BaseTest {
+
+    private volatile RecordedRequest mLastRequest;
+    private volatile String mLastBody;
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                mLastRequest = request;
+                mLastBody = request.getBody().readUtf8();
+                return new MockResponse().setBody(mLastBody).setResponseCode(HttpURLConnection.HTTP_CREATED);
+            }
+        };
+    }
+
+    @Test
+    public void testResourceIsStreamedAsUtf8() throws Exception {
+        Patient patient = new Patient();
+        patient.addName().addFamily("S\u00f8ren Kierkeg\u00e5rd");
+
+        Response<BaseResource> response = mFhirInterface.create("Patient", patient, null).execute();
+
+        Assert.assertTrue(response.isSuccessful());
+        Assert.assertEquals("application/json; charset=UTF-8", mLastRequest.getHeader("Content-Type"));
+        Assert.assertEquals("chunked", mLastRequest.getHeader("Transfer-Encoding"));
+        Assert.assertEquals(mFhirJsonParser.encodeResourceToString(patient), mLastBody);
+        Assert.assertEquals("S\u00f8ren Kierkeg\u00e5rd",
+                ((Patient) response.body()).getNameFirstRep().getFamilyFirstRep().getValue());
+    }
+}
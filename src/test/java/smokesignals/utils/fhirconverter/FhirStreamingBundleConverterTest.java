@@ -0,0 +1,73 @@
+package smokesignals.utils.fhirconverter;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit2.Response;
+import smokesignals.interfaces.DSTU2BaseTest;
+import smokesignals.utils.query.FhirQuery;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FhirStreamingBundleConverterTest extends DSTU2BaseTest {
+
+    private final String ENDPOINT_OBSERVATION = "Observation";
+
+    private String mObservationBaseSearchResponseJson;
+    private Bundle mObservationBaseSearchResponse;
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+
+        mObservationBaseSearchResponseJson = getJsonString("search/observation_count_limited_search_result.json");
+        mObservationBaseSearchResponse = (Bundle) mFhirJsonParser.parseResource(mObservationBaseSearchResponseJson);
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (request.getPath().substring(1).equals(ENDPOINT_OBSERVATION)) {
+                    return new MockResponse().setBody(mObservationBaseSearchResponseJson)
+                            .setResponseCode(HttpURLConnection.HTTP_OK);
+                }
+                return new MockResponse().setResponseCode(HttpURLConnection.HTTP_FORBIDDEN);
+            }
+        };
+    }
+
+    @Test
+    public void testEntriesMatchFullyParsedBundle() throws Exception {
+        Response<BundleEntryStream> response = mFhirInterface.searchStreaming(ENDPOINT_OBSERVATION,
+                new FhirQuery.FhirQueryBuilder().build()).execute();
+        Assert.assertTrue(response.isSuccessful());
+
+        try (BundleEntryStream entries = response.body()) {
+            Bundle skeleton = entries.getBundle();
+            Assert.assertEquals(mObservationBaseSearchResponse.getLink(Bundle.LINK_NEXT).getUrl(),
+                    skeleton.getLink(Bundle.LINK_NEXT).getUrl());
+            Assert.assertTrue(skeleton.getEntry().isEmpty());
+
+            List<Bundle.Entry> streamed = new ArrayList<>();
+            entries.forEachRemaining(streamed::add);
+
+            List<Bundle.Entry> expected = mObservationBaseSearchResponse.getEntry();
+            Assert.assertEquals(expected.size(), streamed.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertEquals(expected.get(i).getFullUrl(), streamed.get(i).getFullUrl());
+                Assert.assertEquals(mFhirJsonParser.encodeResourceToString(expected.get(i).getResource()),
+                        mFhirJsonParser.encodeResourceToString(streamed.get(i).getResource()));
+            }
+            Assert.assertFalse(entries.hasNext());
+        }
+    }
+}
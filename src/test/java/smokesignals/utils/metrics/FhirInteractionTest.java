@@ -0,0 +1,31 @@
+package smokesignals.utils.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class FhirInteractionTest {
+
+    @Test
+    public void testInteractionsAreClassifiedByMethodAndPath() {
+        Assert.assertEquals(FhirInteraction.SEARCH, FhirInteraction.classify("GET", Collections.singletonList("Patient")));
+        Assert.assertEquals(FhirInteraction.SEARCH, FhirInteraction.classify("POST", Arrays.asList("Patient", "_search")));
+        Assert.assertEquals(FhirInteraction.READ, FhirInteraction.classify("GET", Arrays.asList("Patient", "1")));
+        Assert.assertEquals(FhirInteraction.VREAD, FhirInteraction.classify("GET", Arrays.asList("Patient", "1", "_history", "2")));
+        Assert.assertEquals(FhirInteraction.HISTORY, FhirInteraction.classify("GET", Arrays.asList("Patient", "1", "_history")));
+        Assert.assertEquals(FhirInteraction.HISTORY, FhirInteraction.classify("GET", Collections.singletonList("_history")));
+        Assert.assertEquals(FhirInteraction.CREATE, FhirInteraction.classify("POST", Collections.singletonList("Patient")));
+        Assert.assertEquals(FhirInteraction.UPDATE, FhirInteraction.classify("PUT", Arrays.asList("Patient", "1")));
+        Assert.assertEquals(FhirInteraction.PATCH, FhirInteraction.classify("PATCH", Arrays.asList("Patient", "1")));
+        Assert.assertEquals(FhirInteraction.DELETE, FhirInteraction.classify("DELETE", Arrays.asList("Patient", "1")));
+        Assert.assertEquals(FhirInteraction.TRANSACTION, FhirInteraction.classify("POST", Collections.singletonList("")));
+        Assert.assertEquals(FhirInteraction.OPERATION, FhirInteraction.classify("GET", Arrays.asList("Patient", "$export")));
+        Assert.assertEquals(FhirInteraction.CAPABILITIES, FhirInteraction.classify("GET", Collections.singletonList("metadata")));
+        Assert.assertEquals(FhirInteraction.OTHER, FhirInteraction.classify("GET", Collections.singletonList("status")));
+        Assert.assertEquals(FhirInteraction.SEARCH, FhirInteraction.classify("GET", Collections.singletonList("")));
+        Assert.assertEquals("Patient", FhirInteraction.resourceType(Arrays.asList("Patient", "1")));
+        Assert.assertNull(FhirInteraction.resourceType(Collections.singletonList("_history")));
+    }
+}
@@ -0,0 +1,56 @@
+package smokesignals.utils.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentilesStayWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(42);
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1000 + (long) (random.nextDouble() * random.nextDouble() * 5000000000L);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        Assert.assertEquals(values.length, histogram.getCount());
+        Assert.assertEquals(values[values.length - 1], histogram.getMax());
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(values.length * percentile / 100) - 1];
+            long reported = histogram.getValueAtPercentile(percentile);
+            Assert.assertTrue(percentile + ": " + reported + " < " + exact, reported >= exact);
+            Assert.assertTrue(percentile + ": " + reported + " vs " + exact,
+                    reported <= exact + exact / LatencyHistogram.SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void testBucketBoundsRoundTrip() {
+        for (long value : new long[]{0, 1, 31, 32, 33, 63, 64, 1000, 123456789, 1L << 40, Long.MAX_VALUE >>> 23}) {
+            int index = LatencyHistogram.index(value);
+            Assert.assertTrue(value + " above its bucket", value <= LatencyHistogram.highestValue(index));
+            if (index > 0) {
+                Assert.assertTrue(value + " below its bucket", value > LatencyHistogram.highestValue(index - 1));
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+        histogram.record(-5);
+        histogram.record(7);
+        Assert.assertEquals(0, histogram.getValueAtPercentile(50));
+        Assert.assertEquals(7, histogram.getValueAtPercentile(100));
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMax());
+    }
+}
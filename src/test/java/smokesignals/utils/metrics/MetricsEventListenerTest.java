@@ -0,0 +1,119 @@
+package smokesignals.utils.metrics;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.HTTPVerbEnum;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit2.Retrofit;
+import smokesignals.interfaces.DSTU2BaseTest;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.FhirCallUtils;
+import smokesignals.utils.FhirClientBootstrap;
+import smokesignals.utils.fhirconverter.BundleEntryStream;
+import smokesignals.utils.fhirconverter.FhirConverterFactory;
+import smokesignals.utils.fhirconverter.LazyBundle;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Collections;
+
+public class MetricsEventListenerTest extends DSTU2BaseTest {
+
+    private InMemoryMetricsRegistry mMetrics;
+    private FhirInterface mMeteredInterface;
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+
+        mMetrics = new InMemoryMetricsRegistry();
+        OkHttpClient client = newClientBuilder()
+                .eventListenerFactory(MetricsEventListener.factory(mMetrics, HttpUrl.parse(getBaseUrl())))
+                .build();
+        mMeteredInterface = new Retrofit.Builder()
+                .baseUrl(getBaseUrl())
+                .client(client)
+                .addConverterFactory(FhirConverterFactory.create(FhirClientBootstrap.sharedContext(), mMetrics))
+                .build()
+                .create(FhirInterface.class);
+    }
+
+    @Override
+    public String startMockServer() throws IOException {
+        return super.startMockServer() + "baseDstu2/";
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                String path = request.getPath();
+                if (path.equals("/baseDstu2/Patient/1") && request.getMethod().equals(HTTPVerbEnum.GET.name())) {
+                    Patient patient = new Patient();
+                    patient.setId("Patient/1");
+                    patient.addName().addFamily("Chalmers");
+                    return new MockResponse().setBody(mFhirJsonParser.encodeResourceToString(patient));
+                } else if (path.startsWith("/baseDstu2/Observation")) {
+                    Bundle bundle = new Bundle();
+                    bundle.setType(BundleTypeEnum.SEARCH_RESULTS);
+                    return new MockResponse().setBody(mFhirJsonParser.encodeResourceToString(bundle));
+                } else if (path.equals("/baseDstu2/Patient") && request.getMethod().equals(HTTPVerbEnum.POST.name())) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_CREATED)
+                            .setBody(request.getBody().readUtf8());
+                }
+                return new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_FOUND);
+            }
+        };
+    }
+
+    @Test
+    public void testPhasesAreRecordedPerInteractionAndType() throws Exception {
+        FhirCallUtils.execute(mMeteredInterface.read("Patient", "1", null));
+        FhirCallUtils.execute(mMeteredInterface.read("Patient", "1", null));
+        FhirCallUtils.execute(mMeteredInterface.search("Observation", Collections.<String, String>emptyMap()));
+        Patient patient = new Patient();
+        patient.addName().addFamily("Chalmers");
+        FhirCallUtils.execute(mMeteredInterface.create("Patient", patient, null));
+
+        for (MetricsPhase phase : new MetricsPhase[]{MetricsPhase.TIME_TO_FIRST_BYTE, MetricsPhase.RESPONSE_BODY,
+                MetricsPhase.DECODE, MetricsPhase.TOTAL}) {
+            LatencyHistogram histogram = mMetrics.getHistogram(FhirInteraction.READ, "Patient", phase);
+            Assert.assertNotNull(phase.name(), histogram);
+            Assert.assertEquals(phase.name(), 2, histogram.getCount());
+        }
+        // the second read reuses the pooled connection
+        Assert.assertEquals(1, mMetrics.getHistogram(FhirInteraction.READ, "Patient", MetricsPhase.CONNECT).getCount());
+        Assert.assertTrue(mMetrics.getBytesReceived(FhirInteraction.READ, "Patient") > 0);
+
+        Assert.assertEquals(1, mMetrics.getHistogram(FhirInteraction.SEARCH, "Observation", MetricsPhase.DECODE).getCount());
+        Assert.assertEquals(1, mMetrics.getHistogram(FhirInteraction.CREATE, "Patient", MetricsPhase.ENCODE).getCount());
+        Assert.assertTrue(mMetrics.getBytesSent(FhirInteraction.CREATE, "Patient") > 0);
+        Assert.assertNull(mMetrics.getHistogram(FhirInteraction.UPDATE, "Patient", MetricsPhase.TOTAL));
+        Assert.assertTrue(mMetrics.getResourceTypes(FhirInteraction.READ).contains("Patient"));
+        Assert.assertNull(MetricsEventListener.current());
+    }
+
+    @Test
+    public void testLazySearchRecordsDecodeAndStreamingSearchDoesNot() throws Exception {
+        LazyBundle lazy = FhirCallUtils.execute(mMeteredInterface.searchLazy("Observation",
+                Collections.<String, String>emptyMap()));
+        Assert.assertTrue(lazy.getEntries().isEmpty());
+        Assert.assertEquals(1, mMetrics.getHistogram(FhirInteraction.SEARCH, "Observation", MetricsPhase.DECODE).getCount());
+
+        try (BundleEntryStream entries = FhirCallUtils.execute(mMeteredInterface.searchStreaming("Observation",
+                Collections.<String, String>emptyMap()))) {
+            Assert.assertFalse(entries.hasNext());
+        }
+        Assert.assertEquals(1, mMetrics.getHistogram(FhirInteraction.SEARCH, "Observation", MetricsPhase.DECODE).getCount());
+    }
+}
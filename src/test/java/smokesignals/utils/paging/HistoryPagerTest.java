@@ -0,0 +1,130 @@
+package smokesignals.utils.paging;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.HTTPVerbEnum;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import smokesignals.interfaces.DSTU2BaseTest;
+
+import java.net.HttpURLConnection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+public class HistoryPagerTest extends DSTU2BaseTest {
+
+    private final List<RecordedRequest> mRequests = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                mRequests.add(request);
+                HttpUrl url = request.getRequestUrl();
+                Bundle history = new Bundle().setType(BundleTypeEnum.HISTORY_LIST);
+                switch (url.encodedPath()) {
+                    case "/Patient/p1/_history":
+                        if (url.queryParameter("page") == null) {
+                            version(history, HTTPVerbEnum.PUT, 3);
+                            version(history, HTTPVerbEnum.PUT, 2);
+                            history.addLink().setRelation(Bundle.LINK_NEXT).setUrl(getBaseUrl() + "Patient/p1/_history?page=2");
+                        } else {
+                            version(history, HTTPVerbEnum.POST, 1);
+                        }
+                        break;
+                    case "/Patient/_history":
+                        Bundle.Entry deleted = history.addEntry();
+                        deleted.getRequest().setMethod(HTTPVerbEnum.DELETE).setUrl("Patient/p2");
+                        deleted.getResponse().setStatus("204").setEtag("W/\"4\"");
+                        break;
+                    case "/_history":
+                        version(history, HTTPVerbEnum.POST, 1);
+                        break;
+                    default:
+                        return new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_FOUND);
+                }
+                return new MockResponse().setResponseCode(HttpURLConnection.HTTP_OK)
+                        .setBody(mFhirJsonParser.encodeResourceToString(history));
+            }
+        };
+    }
+
+    private static void version(Bundle history, HTTPVerbEnum method, int version) {
+        Patient patient = new Patient();
+        patient.setId("Patient/p1/_history/" + version);
+        patient.getMeta().setLastUpdated(new Date(1500000000000L + version));
+        Bundle.Entry entry = history.addEntry().setResource(patient);
+        entry.getRequest().setMethod(method).setUrl(method == HTTPVerbEnum.POST ? "Patient" : "Patient/p1");
+    }
+
+    @Test
+    public void testInstanceHistoryIsPagedInOrder() throws Exception {
+        try (HistoryPager history = new HistoryPager.HistoryPagerBuilder(mFhirInterface)
+                .instance("Patient", "p1")
+                .since(new Date(1500000000000L))
+                .count(2)
+                .bearer("Bearer token")
+                .build()) {
+            List<HistoryPager.HistoryEntry> entries = history.stream().collect(Collectors.toList());
+            Assert.assertEquals(3, entries.size());
+            Assert.assertEquals("3", entries.get(0).getVersionId());
+            Assert.assertEquals(HTTPVerbEnum.PUT, entries.get(0).getMethod());
+            Assert.assertEquals("1", entries.get(2).getVersionId());
+            Assert.assertEquals(HTTPVerbEnum.POST, entries.get(2).getMethod());
+            Assert.assertEquals("Patient", entries.get(2).getResourceType());
+            Assert.assertEquals("p1", entries.get(2).getId());
+            Assert.assertEquals(1500000000001L, entries.get(2).getLastUpdated().getTime());
+            Assert.assertFalse(entries.get(2).isDeleted());
+        }
+        HttpUrl first = mRequests.get(0).getRequestUrl();
+        Assert.assertEquals("2017-07-14T02:40:00.000Z", first.queryParameter("_since"));
+        Assert.assertEquals("2", first.queryParameter("_count"));
+        Assert.assertEquals(2, mRequests.size());
+        Assert.assertEquals("Bearer token", mRequests.get(0).getHeader("Authorization"));
+        Assert.assertEquals("2", mRequests.get(1).getRequestUrl().queryParameter("page"));
+        Assert.assertEquals("Bearer token", mRequests.get(1).getHeader("Authorization"));
+    }
+
+    @Test
+    public void testDeletionIsReadFromTheRequest() throws Exception {
+        try (HistoryPager history = new HistoryPager.HistoryPagerBuilder(mFhirInterface).type("Patient").build()) {
+            HistoryPager.HistoryEntry deleted = history.next();
+            Assert.assertTrue(deleted.isDeleted());
+            Assert.assertNull(deleted.getResource());
+            Assert.assertEquals("Patient", deleted.getResourceType());
+            Assert.assertEquals("p2", deleted.getId());
+            Assert.assertEquals("4", deleted.getVersionId());
+            Assert.assertFalse(history.hasNext());
+        }
+    }
+
+    @Test
+    public void testSystemHistory() throws Exception {
+        try (HistoryPager history = new HistoryPager.HistoryPagerBuilder(mFhirInterface).build()) {
+            Assert.assertEquals("p1", history.next().getId());
+        }
+        Assert.assertEquals("/_history", mRequests.get(0).getPath());
+    }
+
+    @Test
+    public void testVersionFromEtag() throws Exception {
+        Assert.assertEquals("3", HistoryPager.HistoryEntry.versionFromEtag("W/\"3\""));
+        Assert.assertEquals("3", HistoryPager.HistoryEntry.versionFromEtag("\"3\""));
+        Assert.assertNull(HistoryPager.HistoryEntry.versionFromEtag(null));
+    }
+}
@@ -0,0 +1,163 @@
+package smokesignals.utils.paging;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import smokesignals.interfaces.DSTU2BaseTest;
+import smokesignals.utils.query.FhirQuery;
+
+import java.net.HttpURLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+public class ParallelSearchTest extends DSTU2BaseTest {
+
+    private static final long START = 1500000000000L;
+    private static final int RESOURCE_COUNT = 40;
+    private static final long SPACING = 1000;
+    private static final int PAGE_SIZE = 3;
+
+    private final IParser mServerParser = FhirContext.forDstu2().newJsonParser();
+    private final Set<String> mRequestedRanges = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Set<String> mAuthorizations = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private volatile boolean mFailing;
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+    }
+
+    /**
+     * Serves {@link #RESOURCE_COUNT} observations one {@link #SPACING} apart. The upper bound is treated as inclusive,
+     * like a server comparing at a coarser precision would, so resources on a partition bound are returned twice.
+     */
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                HttpUrl url = request.getRequestUrl();
+                if (mFailing) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_INTERNAL_ERROR);
+                }
+                if (!url.encodedPath().equals("/Observation") || !"final".equals(url.queryParameter("status"))) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_FORBIDDEN);
+                }
+                mAuthorizations.add(String.valueOf(request.getHeader("Authorization")));
+                List<String> bounds = url.queryParameterValues("_lastUpdated");
+                mRequestedRanges.add(bounds.toString());
+                long from = parse(bounds.get(0).substring(2));
+                long to = parse(bounds.get(1).substring(2));
+
+                int page = url.queryParameter("page") == null ? 0 : Integer.parseInt(url.queryParameter("page"));
+                Bundle bundle = new Bundle();
+                bundle.setType(BundleTypeEnum.SEARCH_RESULTS);
+                int matched = 0;
+                for (int i = 0; i < RESOURCE_COUNT; i++) {
+                    long lastUpdated = START + i * SPACING;
+                    if (lastUpdated < from || lastUpdated > to) {
+                        continue;
+                    }
+                    if (matched++ / PAGE_SIZE == page) {
+                        Observation observation = new Observation();
+                        observation.setId("Observation/obs-" + i);
+                        observation.getMeta().setLastUpdated(new Date(lastUpdated));
+                        bundle.addEntry().setResource(observation);
+                    }
+                }
+                if ((page + 1) * PAGE_SIZE < matched) {
+                    bundle.addLink().setRelation(Bundle.LINK_NEXT)
+                            .setUrl(url.newBuilder().setQueryParameter("page", String.valueOf(page + 1)).build().toString());
+                }
+                return new MockResponse().setBody(mServerParser.encodeResourceToString(bundle))
+                        .setResponseCode(HttpURLConnection.HTTP_OK);
+            }
+        };
+    }
+
+    private static long parse(String instant) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            return format.parse(instant).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(instant, e);
+        }
+    }
+
+    private ParallelSearch.ParallelSearchBuilder search() {
+        return new ParallelSearch.ParallelSearchBuilder(mFhirInterface)
+                .endpoint("Observation")
+                .query(new FhirQuery.FhirQueryBuilder().where(() -> new AbstractMap.SimpleEntry<>("status", "final")).build())
+                .range(new Date(START), new Date(START + RESOURCE_COUNT * SPACING))
+                .partitions(4)
+                .maxConcurrency(2)
+                .maxBufferedEntries(5);
+    }
+
+    @Test
+    public void testEveryPartitionIsSearched() throws Exception {
+        try (ParallelSearch search = search().build()) {
+            List<String> ids = search.stream()
+                    .map(entry -> entry.getResource().getId().getIdPart())
+                    .collect(Collectors.toList());
+
+            Assert.assertEquals(4, search.getPartitionCount());
+            Assert.assertEquals(4, mRequestedRanges.size());
+            // the three inner bounds are matched by two partitions each
+            Assert.assertEquals(RESOURCE_COUNT + 3, ids.size());
+            Assert.assertEquals(RESOURCE_COUNT, ids.stream().distinct().count());
+        }
+    }
+
+    @Test
+    public void testBoundaryDuplicatesAreDropped() throws Exception {
+        try (ParallelSearch search = search().deduplicateBoundaries(0, TimeUnit.MILLISECONDS).build()) {
+            List<String> ids = search.stream()
+                    .map(entry -> entry.getResource().getId().getIdPart())
+                    .collect(Collectors.toList());
+
+            Assert.assertEquals(RESOURCE_COUNT, ids.size());
+            Assert.assertEquals(RESOURCE_COUNT, ids.stream().distinct().count());
+        }
+    }
+
+    @Test
+    public void testEveryPageCarriesTheBearer() throws Exception {
+        try (ParallelSearch search = search().bearer("Bearer a").build()) {
+            Assert.assertEquals(RESOURCE_COUNT + 3, search.stream().count());
+        }
+        // the first page of every partition and all of their next pages
+        Assert.assertEquals(Collections.singleton("Bearer a"), mAuthorizations);
+    }
+
+    @Test(expected = InternalErrorException.class)
+    public void testFailedPartitionIsRethrownToCaller() throws Exception {
+        mFailing = true;
+        try (ParallelSearch search = search().build()) {
+            while (search.hasNext()) {
+                search.next();
+            }
+        }
+    }
+}
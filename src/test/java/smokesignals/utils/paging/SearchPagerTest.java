@@ -0,0 +1,108 @@
+package smokesignals.utils.paging;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import smokesignals.interfaces.DSTU2BaseTest;
+import smokesignals.utils.query.FhirQuery;
+
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class SearchPagerTest extends DSTU2BaseTest {
+
+    private static final int PAGE_COUNT = 5;
+    private static final int PAGE_SIZE = 3;
+
+    private final IParser mServerParser = FhirContext.forDstu2().newJsonParser();
+    private int mFailingPage = -1;
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                HttpUrl url = request.getRequestUrl();
+                if (!url.encodedPath().equals("/Observation")) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_FORBIDDEN);
+                }
+                int page = url.queryParameter("page") == null ? 0 : Integer.parseInt(url.queryParameter("page"));
+                if (page == mFailingPage) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_INTERNAL_ERROR);
+                }
+                return new MockResponse().setBody(mServerParser.encodeResourceToString(page(url, page)))
+                        .setResponseCode(HttpURLConnection.HTTP_OK);
+            }
+        };
+    }
+
+    private Bundle page(HttpUrl url, int page) {
+        Bundle bundle = new Bundle();
+        bundle.setType(BundleTypeEnum.SEARCH_RESULTS);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            Observation observation = new Observation();
+            observation.setId("Observation/obs-" + page + "-" + i);
+            bundle.addEntry().setResource(observation);
+        }
+        if (page + 1 < PAGE_COUNT) {
+            bundle.addLink().setRelation(Bundle.LINK_NEXT)
+                    .setUrl(url.newBuilder().setQueryParameter("page", String.valueOf(page + 1)).build().toString());
+        }
+        return bundle;
+    }
+
+    @Test
+    public void testFollowsNextLinksInOrder() throws Exception {
+        try (SearchPager pager = new SearchPager.SearchPagerBuilder(mFhirInterface)
+                .firstPage(mFhirInterface.search("Observation", new FhirQuery.FhirQueryBuilder().build()))
+                .prefetchDepth(1)
+                .maxBufferedEntries(PAGE_SIZE)
+                .build()) {
+
+            List<String> ids = pager.stream()
+                    .map(entry -> entry.getResource().getId().getIdPart())
+                    .collect(Collectors.toList());
+
+            Assert.assertEquals(PAGE_COUNT * PAGE_SIZE, ids.size());
+            Assert.assertEquals("obs-0-0", ids.get(0));
+            Assert.assertEquals("obs-" + (PAGE_COUNT - 1) + "-" + (PAGE_SIZE - 1), ids.get(ids.size() - 1));
+            Assert.assertFalse(pager.hasNext());
+        }
+    }
+
+    @Test
+    public void testFailedPageIsRethrownToCaller() throws Exception {
+        mFailingPage = 2;
+
+        SearchPager pager = SearchPager.search(mFhirInterface, "Observation", new FhirQuery.FhirQueryBuilder().build());
+        int seen = 0;
+        try {
+            while (pager.hasNext()) {
+                pager.next();
+                seen++;
+            }
+            Assert.fail("expected the failing page to surface");
+        } catch (InternalErrorException expected) {
+            Assert.assertEquals(2 * PAGE_SIZE, seen);
+        } finally {
+            pager.close();
+        }
+    }
+}
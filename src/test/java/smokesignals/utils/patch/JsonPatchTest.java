@@ -0,0 +1,182 @@
+package smokesignals.utils.patch;
+
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.primitive.IdDt;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit2.Response;
+import smokesignals.interfaces.DSTU2BaseTest;
+import smokesignals.utils.FhirClientBootstrap;
+
+import java.net.HttpURLConnection;
+import java.util.Random;
+
+public class JsonPatchTest extends DSTU2BaseTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private volatile RecordedRequest mPatchRequest;
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                mPatchRequest = request;
+                if (!"W/\"3\"".equals(request.getHeader("If-Match"))) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_PRECON_FAILED);
+                }
+                Patient patient = new Patient();
+                patient.setId(new IdDt("Patient", "p1", "4"));
+                return new MockResponse().setResponseCode(HttpURLConnection.HTTP_OK)
+                        .setBody(mFhirJsonParser.encodeResourceToString(patient));
+            }
+        };
+    }
+
+    private static Patient patient(String... given) {
+        Patient patient = new Patient();
+        patient.setId(new IdDt("Patient", "p1", "3"));
+        patient.getMeta().setVersionId("3");
+        patient.addName().addFamily("Chalmers");
+        for (String name : given) {
+            patient.getNameFirstRep().addGiven(name);
+        }
+        for (int i = 0; i < 50; i++) {
+            patient.addIdentifier().setSystem("urn:mrn").setValue("mrn-" + i);
+        }
+        return patient;
+    }
+
+    @Test
+    public void testOneChangedElementIsOneOperation() throws Exception {
+        Patient original = patient("Peter", "James");
+        Patient changed = patient("Peter", "James");
+        changed.getIdentifier().get(25).setValue("changed");
+        changed.getMeta().setVersionId("4");
+
+        JsonPatch patch = new JsonPatch.JsonPatchBuilder(FhirClientBootstrap.sharedContext())
+                .source(original).target(changed).build();
+        Assert.assertEquals("[{\"op\":\"replace\",\"path\":\"/identifier/25/value\",\"value\":\"changed\"}]",
+                patch.toString());
+        Assert.assertEquals("W/\"3\"", patch.getIfMatch());
+
+        JsonPatch none = new JsonPatch.JsonPatchBuilder(FhirClientBootstrap.sharedContext())
+                .source(original).target(patient("Peter", "James")).ifMatch(null).build();
+        Assert.assertTrue(none.isEmpty());
+        Assert.assertNull(none.getIfMatch());
+    }
+
+    @Test
+    public void testInsertInTheMiddleOfAListIsOneAdd() throws Exception {
+        JsonPatch patch = new JsonPatch.JsonPatchBuilder(FhirClientBootstrap.sharedContext())
+                .source(patient("Peter", "James"))
+                .target(patient("Peter", "Jim", "James"))
+                .build();
+        Assert.assertEquals("[{\"op\":\"add\",\"path\":\"/name/0/given/1\",\"value\":\"Jim\"}]", patch.toString());
+    }
+
+    @Test
+    public void testPatchIsSentWithContentTypeAndPrecondition() throws Exception {
+        Patient changed = patient("Peter");
+        changed.setActive(true);
+        JsonPatch patch = new JsonPatch.JsonPatchBuilder(FhirClientBootstrap.sharedContext())
+                .source(patient("Peter")).target(changed).build();
+
+        Response<BaseResource> response = patch.call(mFhirInterface, "Patient", "p1", "Bearer token").execute();
+        Assert.assertTrue(response.isSuccessful());
+        Assert.assertEquals("4", response.body().getId().getVersionIdPart());
+        Assert.assertEquals("PATCH", mPatchRequest.getMethod());
+        Assert.assertEquals("/Patient/p1", mPatchRequest.getPath());
+        Assert.assertEquals("application/json-patch+json", mPatchRequest.getHeader("Content-Type").split(";")[0]);
+        Assert.assertEquals("Bearer token", mPatchRequest.getHeader("Authorization"));
+        Assert.assertEquals("[{\"op\":\"add\",\"path\":\"/active\",\"value\":true}]",
+                mPatchRequest.getBody().readUtf8());
+
+        Response<BaseResource> stale = new JsonPatch.JsonPatchBuilder(FhirClientBootstrap.sharedContext())
+                .source(patient("Peter")).target(changed).ifMatch("2").build()
+                .call(mFhirInterface, "Patient", "p1", null).execute();
+        Assert.assertEquals(HttpURLConnection.HTTP_PRECON_FAILED, stale.code());
+    }
+
+    @Test
+    public void testRandomArrayEditsApplyBackToTheTarget() throws Exception {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            ArrayNode source = MAPPER.createArrayNode();
+            for (int i = 0; i < random.nextInt(12); i++) {
+                source.addObject().put("v", random.nextInt(6)).put("w", random.nextInt(2));
+            }
+            ArrayNode target = source.deepCopy();
+            for (int edit = 0; edit < 4; edit++) {
+                int choice = random.nextInt(3);
+                if (choice == 0 || target.size() == 0) {
+                    target.insertObject(random.nextInt(target.size() + 1)).put("v", random.nextInt(6));
+                } else if (choice == 1) {
+                    target.remove(random.nextInt(target.size()));
+                } else {
+                    ((ObjectNode) target.get(random.nextInt(target.size()))).put("w", 7);
+                }
+            }
+            ObjectNode sourceDocument = MAPPER.createObjectNode();
+            sourceDocument.set("list", source);
+            ObjectNode targetDocument = MAPPER.createObjectNode();
+            targetDocument.set("list", target);
+
+            ArrayNode operations = JsonPatch.diff(sourceDocument, targetDocument);
+            Assert.assertEquals(operations.toString(), targetDocument, apply(sourceDocument.deepCopy(), operations));
+        }
+        Assert.assertEquals("a~1b~0c", JsonPatch.escape("a/b~c"));
+    }
+
+    /**
+     * Applies add, remove and replace operations as RFC 6902 describes them.
+     */
+    private static JsonNode apply(JsonNode document, ArrayNode operations) {
+        for (JsonNode operation : operations) {
+            String path = operation.get("path").asText();
+            if (path.isEmpty()) {
+                document = operation.get("value");
+                continue;
+            }
+            int last = path.lastIndexOf('/');
+            JsonNode parent = document.at(path.substring(0, last));
+            String token = path.substring(last + 1).replace("~1", "/").replace("~0", "~");
+            String op = operation.get("op").asText();
+            if (parent.isArray()) {
+                ArrayNode array = (ArrayNode) parent;
+                int index = Integer.parseInt(token);
+                if (op.equals("add")) {
+                    array.insert(index, operation.get("value"));
+                } else if (op.equals("remove")) {
+                    array.remove(index);
+                } else {
+                    array.set(index, operation.get("value"));
+                }
+            } else {
+                ObjectNode object = (ObjectNode) parent;
+                if (op.equals("remove")) {
+                    object.remove(token);
+                } else {
+                    object.set(token, operation.get("value"));
+                }
+            }
+        }
+        return document;
+    }
+}
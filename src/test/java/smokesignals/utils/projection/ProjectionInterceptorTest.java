@@ -0,0 +1,194 @@
+package smokesignals.utils.projection;
+
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.api.TagList;
+import ca.uhn.fhir.model.dstu2.composite.CodeableConceptDt;
+import ca.uhn.fhir.model.dstu2.composite.QuantityDt;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.SearchEntryModeEnum;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import smokesignals.interfaces.DSTU2BaseTest;
+import smokesignals.interfaces.FhirInterface;
+
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ProjectionInterceptorTest extends DSTU2BaseTest {
+
+    private final Map<String, HttpUrl> mRequests = new ConcurrentHashMap<>();
+
+    private FhirInterface mProjectedInterface;
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+        ProjectionInterceptor interceptor = new ProjectionInterceptor.ProjectionInterceptorBuilder()
+                .elements("Observation", "code", "subject", "value")
+                .summary("Patient", "true")
+                .build();
+        mProjectedInterface = newRetrofitBuilder(newClientBuilder().addInterceptor(interceptor).build())
+                .build()
+                .create(FhirInterface.class);
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                HttpUrl url = request.getRequestUrl();
+                mRequests.put(url.encodedPath(), url);
+                String body;
+                if (url.queryParameter("_getpages") != null) {
+                    Bundle bundle = new Bundle();
+                    bundle.setType(BundleTypeEnum.SEARCH_RESULTS);
+                    bundle.addEntry().setResource(observation("o2"));
+                    body = mFhirJsonParser.encodeResourceToString(bundle);
+                } else if (url.encodedPath().equals("/Observation") && "subsetted".equals(url.queryParameter("code"))) {
+                    // the server honours _elements and says so, but this one keeps a comment to show the pass-through
+                    Bundle bundle = new Bundle();
+                    bundle.setType(BundleTypeEnum.SEARCH_RESULTS);
+                    bundle.addLink().setRelation("next").setUrl("Observation?_getpages=subsetted");
+                    Observation observation = observation("o1");
+                    TagList tags = new TagList();
+                    tags.addTag(JsonProjection.SUBSETTED_SYSTEM, JsonProjection.SUBSETTED);
+                    ResourceMetadataKeyEnum.TAG_LIST.put(observation, tags);
+                    bundle.addEntry().setResource(observation);
+                    body = mFhirJsonParser.encodeResourceToString(bundle);
+                } else if (url.encodedPath().equals("/Observation")) {
+                    // the server ignores _elements and returns everything
+                    Bundle bundle = new Bundle();
+                    bundle.setType(BundleTypeEnum.SEARCH_RESULTS);
+                    bundle.addLink().setRelation("next").setUrl(getBaseUrl() + "?_getpages=abc");
+                    bundle.addEntry().setResource(observation("o1"));
+                    Patient patient = new Patient();
+                    patient.setId("p1");
+                    patient.setActive(true);
+                    bundle.addEntry().setResource(patient).getSearch().setMode(SearchEntryModeEnum.INCLUDE);
+                    body = mFhirJsonParser.encodeResourceToString(bundle);
+                } else if (url.encodedPath().equals("/Observation/o1")) {
+                    body = mFhirJsonParser.encodeResourceToString(observation("o1"));
+                } else {
+                    body = mFhirJsonParser.encodeResourceToString(new Bundle());
+                }
+                return new MockResponse().setResponseCode(HttpURLConnection.HTTP_OK)
+                        .setHeader("Content-Type", "application/json+fhir")
+                        .setBody(body);
+            }
+        };
+    }
+
+    private static Observation observation(String id) {
+        Observation observation = new Observation();
+        observation.setId(id);
+        observation.setCode(new CodeableConceptDt("http://loinc.org", "8867-4"));
+        observation.setSubject(new ResourceReferenceDt("Patient/p1"));
+        observation.setValue(new QuantityDt(72));
+        observation.setComments("resting");
+        observation.setInterpretation(new CodeableConceptDt("http://hl7.org/fhir/v2/0078", "N"));
+        return observation;
+    }
+
+    @Test
+    public void testSearchIsProjectedAndUnrequestedElementsAreSkipped() throws Exception {
+        Bundle bundle = mProjectedInterface.search("Observation", Collections.singletonMap("code", "8867-4"))
+                .execute().body();
+        Assert.assertEquals("code,subject,value",
+                mRequests.get("/Observation").queryParameter("_elements"));
+        Assert.assertEquals("8867-4", mRequests.get("/Observation").queryParameter("code"));
+
+        Observation observation = (Observation) bundle.getEntry().get(0).getResource();
+        Assert.assertEquals("o1", observation.getId().getIdPart());
+        Assert.assertEquals("8867-4", observation.getCode().getCodingFirstRep().getCode());
+        Assert.assertEquals("Patient/p1", observation.getSubject().getReference().getValue());
+        Assert.assertEquals(72, ((QuantityDt) observation.getValue()).getValue().intValue());
+        Assert.assertNull(observation.getComments());
+        Assert.assertTrue(observation.getInterpretation().isEmpty());
+
+        // included resources of other types are left whole, as is the envelope
+        Patient patient = (Patient) bundle.getEntry().get(1).getResource();
+        Assert.assertTrue(patient.getActive());
+        Assert.assertEquals(SearchEntryModeEnum.INCLUDE, bundle.getEntry().get(1).getSearch().getModeElement().getValueAsEnum());
+        Assert.assertEquals(BundleTypeEnum.SEARCH_RESULTS, bundle.getTypeElement().getValueAsEnum());
+
+        // the next page is filtered too, although its link does not carry _elements
+        Bundle next = mProjectedInterface.search(bundle.getLink("next").getUrl(), Collections.emptyMap())
+                .execute().body();
+        Assert.assertNull(mRequests.get("/").queryParameter("_elements"));
+        Observation second = (Observation) next.getEntry().get(0).getResource();
+        Assert.assertEquals("o2", second.getId().getIdPart());
+        Assert.assertEquals("8867-4", second.getCode().getCodingFirstRep().getCode());
+        Assert.assertNull(second.getComments());
+    }
+
+    @Test
+    public void testSubsettedPageIsPassedOnAndItsRelativeNextLinkFollowed() throws Exception {
+        Bundle bundle = mProjectedInterface.search("Observation", Collections.singletonMap("code", "subsetted"))
+                .execute().body();
+        Assert.assertEquals("code,subject,value", mRequests.get("/Observation").queryParameter("_elements"));
+        // tagged by the server, so the page is not filtered again
+        Observation observation = (Observation) bundle.getEntry().get(0).getResource();
+        Assert.assertEquals("resting", observation.getComments());
+
+        // the relative link resolves against the page, and the page behind it is untagged and filtered
+        String link = bundle.getLink("next").getUrl();
+        Assert.assertEquals("Observation?_getpages=subsetted", link);
+        Bundle next = mProjectedInterface.search(link, Collections.emptyMap()).execute().body();
+        Observation second = (Observation) next.getEntry().get(0).getResource();
+        Assert.assertEquals("o2", second.getId().getIdPart());
+        Assert.assertEquals("8867-4", second.getCode().getCodingFirstRep().getCode());
+        Assert.assertNull(second.getComments());
+    }
+
+    @Test
+    public void testExplicitProjectionSummaryAndReadsAreLeftAlone() throws Exception {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("_elements", "status");
+        Bundle explicit = mProjectedInterface.search("Observation", parameters).execute().body();
+        Assert.assertEquals("status", mRequests.get("/Observation").queryParameter("_elements"));
+        // what the server returned is not cut down to the configured projection
+        Observation observation = (Observation) explicit.getEntry().get(0).getResource();
+        Assert.assertEquals("resting", observation.getComments());
+        Assert.assertFalse(observation.getInterpretation().isEmpty());
+
+        // nor are the pages of such a search
+        Bundle next = mProjectedInterface.search(explicit.getLink("next").getUrl(), Collections.emptyMap())
+                .execute().body();
+        Assert.assertEquals("resting", ((Observation) next.getEntry().get(0).getResource()).getComments());
+
+        mProjectedInterface.search("Patient/_search", Collections.emptyMap()).execute();
+        Assert.assertEquals("true", mRequests.get("/Patient/_search").queryParameter("_summary"));
+        Assert.assertNull(mRequests.get("/Patient/_search").queryParameter("_elements"));
+
+        BaseResource read = mProjectedInterface.read("Observation", "o1", null).execute().body();
+        Assert.assertNull(mRequests.get("/Observation/o1").queryParameter("_elements"));
+        Assert.assertEquals("resting", ((Observation) read).getComments());
+    }
+
+    @Test
+    public void testElementsAreMatchedByBaseNameAndPrimitiveSiblings() throws Exception {
+        Set<String> keep = Collections.singleton("value");
+        Assert.assertTrue(JsonProjection.keeps(keep, "valueQuantity"));
+        Assert.assertTrue(JsonProjection.keeps(keep, "_valueString"));
+        Assert.assertTrue(JsonProjection.keeps(keep, "meta"));
+        Assert.assertFalse(JsonProjection.keeps(keep, "valuer"));
+        Assert.assertFalse(JsonProjection.keeps(keep, "comments"));
+        Assert.assertTrue(JsonProjection.keeps(null, "comments"));
+    }
+}
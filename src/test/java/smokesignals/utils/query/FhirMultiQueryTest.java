@@ -0,0 +1,92 @@
+package smokesignals.utils.query;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import smokesignals.interfaces.DSTU2BaseTest;
+import smokesignals.utils.FhirCallUtils;
+import smokesignals.utils.query.decorator.Comparator;
+import smokesignals.utils.query.encodedparams.Compare;
+
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+
+public class FhirMultiQueryTest extends DSTU2BaseTest {
+
+    private HttpUrl mLastRequestUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                mLastRequestUrl = request.getRequestUrl();
+                Bundle bundle = new Bundle();
+                bundle.setType(BundleTypeEnum.SEARCH_RESULTS);
+                return new MockResponse().setBody(mFhirJsonParser.encodeResourceToString(bundle))
+                        .setResponseCode(HttpURLConnection.HTTP_OK);
+            }
+        };
+    }
+
+    @Test
+    public void testRepeatedParametersAreAllSent() throws Exception {
+        FhirMultiQuery query = new FhirMultiQuery.FhirMultiQueryBuilder()
+                .where(Comparator.add(Query.lastUpdated("2017-01-01"), Compare.GREATER_OR_EQUAL))
+                .where(Comparator.add(Query.lastUpdated("2018-01-01"), Compare.LESS_THAN))
+                .where(Query.include("Observation:subject"))
+                .where(Query.include("Observation:performer"))
+                .build();
+
+        FhirCallUtils.execute(query.search(mFhirInterface, "Observation"));
+
+        Assert.assertEquals(Arrays.asList("ge2017-01-01", "lt2018-01-01"), mLastRequestUrl.queryParameterValues("_lastUpdated"));
+        Assert.assertEquals(Arrays.asList("Observation:subject", "Observation:performer"),
+                mLastRequestUrl.queryParameterValues("_include"));
+        Assert.assertEquals(query.get("_include"), mLastRequestUrl.queryParameterValues("_include"));
+    }
+
+    @Test
+    public void testValuesAreEncodedOnce() throws Exception {
+        FhirMultiQuery query = new FhirMultiQuery.FhirMultiQueryBuilder()
+                .where(Query.text("O'Brien & Sons+"))
+                .whereAny(Query.id("a,1"), Query.id("b"))
+                .build();
+
+        FhirCallUtils.execute(query.search(mFhirInterface, "Patient?_count=10"));
+
+        Assert.assertEquals("10", mLastRequestUrl.queryParameter("_count"));
+
+        Assert.assertEquals("O'Brien & Sons+", mLastRequestUrl.queryParameter("_text"));
+        Assert.assertEquals("a\\,1,b", mLastRequestUrl.queryParameter("_id"));
+    }
+
+    @Test
+    public void testSinceIsSentAsSince() throws Exception {
+        FhirMultiQuery query = new FhirMultiQuery.FhirMultiQueryBuilder()
+                .where(Query.since("2017-01-01T00:00:00Z"))
+                .build();
+
+        FhirCallUtils.execute(query.search(mFhirInterface, "Patient/_history"));
+
+        Assert.assertEquals("2017-01-01T00:00:00Z", mLastRequestUrl.queryParameter("_since"));
+        Assert.assertNull(mLastRequestUrl.queryParameter("_security"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAlternativesMustShareAName() {
+        new FhirMultiQuery.FhirMultiQueryBuilder().whereAny(Query.id("a"), Query.text("b"));
+    }
+}
@@ -0,0 +1,50 @@
+package smokesignals.utils.query;
+
+import okhttp3.HttpUrl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class QueryTemplateTest {
+
+    private static final HttpUrl BASE = HttpUrl.parse("http://localhost/base/");
+
+    @Test
+    public void testPlaceholdersAreBoundInDeclarationOrder() {
+        QueryTemplate template = QueryTemplate.compile("Observation?code=:code&date=ge:from&date=lt:to&_count=:n");
+
+        Assert.assertEquals(Arrays.asList("code", "from", "to", "n"), template.getPlaceholders());
+        Assert.assertEquals("Observation?code=1234-5&date=ge2017-01-01&date=lt2018-01-01&_count=50",
+                template.expand("1234-5", "2017-01-01", "2018-01-01", 50));
+    }
+
+    @Test
+    public void testValuesAreEncodedLikeRetrofit() {
+        QueryTemplate template = QueryTemplate.compile("Patient?name:exact=:name&identifier=http://acme.org/mrn|:mrn");
+        String url = template.bind()
+                .set("name", "O'Brien & Sons+")
+                .set("mrn", "12 34")
+                .expand();
+
+        HttpUrl expected = BASE.newBuilder("Patient").build().newBuilder()
+                .addQueryParameter("name:exact", "O'Brien & Sons+")
+                .addQueryParameter("identifier", "http://acme.org/mrn|12 34")
+                .build();
+        Assert.assertEquals(expected, BASE.resolve(url));
+    }
+
+    @Test
+    public void testRepeatedPlaceholderAndEscapedColon() {
+        QueryTemplate template = QueryTemplate.compile("Observation?date=ge:day&date=le:day&code=urn::oid::1.2|:code");
+
+        Assert.assertEquals(Arrays.asList("day", "code"), template.getPlaceholders());
+        Assert.assertEquals("Observation?date=ge2017&date=le2017&code=urn:oid:1.2|x",
+                template.expand("2017", "x"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingValueIsRejected() {
+        QueryTemplate.compile("Observation?code=:code").bind().expand();
+    }
+}
@@ -0,0 +1,188 @@
+package smokesignals.utils.resilience;
+
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import smokesignals.interfaces.DSTU2BaseTest;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.FhirCallUtils;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AdaptiveLimitInterceptorTest extends DSTU2BaseTest {
+
+    private static final int MAX_LIMIT = 3;
+    private static final int CROWD = 8;
+
+    private final AtomicInteger mThrottledReads = new AtomicInteger();
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxInFlight = new AtomicInteger();
+    private final CountDownLatch mCrowdArrived = new CountDownLatch(CROWD);
+
+    private AdaptiveLimitInterceptor mInterceptor;
+    private FhirInterface mLimitedInterface;
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+        mInterceptor = new AdaptiveLimitInterceptor.AdaptiveLimitInterceptorBuilder()
+                .initialLimit(MAX_LIMIT)
+                .maxLimit(MAX_LIMIT)
+                .backoff(1, 5, TimeUnit.MILLISECONDS)
+                .build();
+        mLimitedInterface = newRetrofitBuilder(newClientBuilder().addInterceptor(mInterceptor).build())
+                .build()
+                .create(FhirInterface.class);
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                mRequests.incrementAndGet();
+                String path = request.getPath();
+                if (path.equals("/Patient/throttled") && mThrottledReads.incrementAndGet() <= 2) {
+                    // the first answer uses the server's delay, the second falls back to the jittered backoff
+                    MockResponse throttled = new MockResponse().setResponseCode(AdaptiveLimitInterceptor.HTTP_TOO_MANY_REQUESTS);
+                    return mThrottledReads.get() == 1 ? throttled.setHeader("Retry-After", "0") : throttled;
+                } else if (path.startsWith("/Patient/crowded")) {
+                    // answers only once the whole crowd is waiting on the server, so every drop lands in one window
+                    mCrowdArrived.countDown();
+                    mCrowdArrived.await(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS);
+                    return new MockResponse().setResponseCode(AdaptiveLimitInterceptor.HTTP_TOO_MANY_REQUESTS)
+                            .setHeader("Retry-After", "3600");
+                } else if (path.equals("/Patient/busy")) {
+                    return new MockResponse().setResponseCode(AdaptiveLimitInterceptor.HTTP_SERVICE_UNAVAILABLE)
+                            .setHeader("Retry-After", "3600");
+                } else if (request.getMethod().equals("POST")) {
+                    return new MockResponse().setResponseCode(AdaptiveLimitInterceptor.HTTP_SERVICE_UNAVAILABLE)
+                            .setHeader("Retry-After", "0");
+                }
+                mMaxInFlight.accumulateAndGet(mInFlight.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5);
+                    Patient patient = new Patient();
+                    patient.setId(path.substring(path.lastIndexOf('/') + 1));
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_OK)
+                            .setBody(mFhirJsonParser.encodeResourceToString(patient));
+                } finally {
+                    mInFlight.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testThrottledReadIsRetried() throws Exception {
+        BaseResource resource = FhirCallUtils.execute(mLimitedInterface.read("Patient", "throttled", null));
+        Assert.assertEquals("throttled", resource.getIdElement().getIdPart());
+        Assert.assertEquals(3, mRequests.get());
+        Assert.assertEquals(2, mInterceptor.getRetryCount());
+        Assert.assertEquals(2, mInterceptor.getThrottledCount());
+        Assert.assertTrue(mInterceptor.getLimit() < MAX_LIMIT);
+        Assert.assertEquals(0, mInterceptor.getInFlight());
+    }
+
+    @Test
+    public void testCreateIsNotRetried() throws Exception {
+        try {
+            FhirCallUtils.execute(mLimitedInterface.create("Patient", new Patient(), null));
+            Assert.fail("expected the create to fail");
+        } catch (BaseServerResponseException expected) {
+            Assert.assertEquals(AdaptiveLimitInterceptor.HTTP_SERVICE_UNAVAILABLE, expected.getStatusCode());
+        }
+        Assert.assertEquals(1, mRequests.get());
+        Assert.assertEquals(0, mInterceptor.getRetryCount());
+    }
+
+    @Test
+    public void testLongRetryAfterIsHandedBack() throws Exception {
+        try {
+            FhirCallUtils.execute(mLimitedInterface.read("Patient", "busy", null));
+            Assert.fail("expected the read to fail");
+        } catch (BaseServerResponseException expected) {
+            Assert.assertEquals(AdaptiveLimitInterceptor.HTTP_SERVICE_UNAVAILABLE, expected.getStatusCode());
+        }
+        Assert.assertEquals(1, mRequests.get());
+    }
+
+    @Test
+    public void testConcurrencyStaysWithinLimit() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(12);
+        try {
+            List<Future<BaseResource>> reads = new ArrayList<>();
+            for (int i = 0; i < 48; i++) {
+                final String id = "p" + i;
+                reads.add(executor.submit(() -> FhirCallUtils.execute(mLimitedInterface.read("Patient", id, null))));
+            }
+            for (int i = 0; i < reads.size(); i++) {
+                Assert.assertEquals("p" + i, reads.get(i).get(CONNECTION_TIMEOUT_LONG, TimeUnit.SECONDS)
+                        .getIdElement().getIdPart());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertTrue(mMaxInFlight.get() <= MAX_LIMIT);
+        Assert.assertEquals(MAX_LIMIT, mInterceptor.getLimit());
+    }
+
+    @Test
+    public void testBurstOfDropsCutsTheLimitOnce() throws Exception {
+        AdaptiveLimitInterceptor interceptor = new AdaptiveLimitInterceptor.AdaptiveLimitInterceptorBuilder()
+                .initialLimit(CROWD)
+                .maxLimit(CROWD)
+                .backoffRatio(0.5)
+                .build();
+        FhirInterface crowdedInterface = newRetrofitBuilder(newClientBuilder().addInterceptor(interceptor).build())
+                .build()
+                .create(FhirInterface.class);
+
+        ExecutorService executor = Executors.newFixedThreadPool(CROWD);
+        try {
+            List<Future<retrofit2.Response<BaseResource>>> reads = new ArrayList<>();
+            for (int i = 0; i < CROWD; i++) {
+                final String id = "crowded" + i;
+                reads.add(executor.submit(() -> crowdedInterface.read("Patient", id, null).execute()));
+            }
+            for (Future<retrofit2.Response<BaseResource>> read : reads) {
+                Assert.assertEquals(AdaptiveLimitInterceptor.HTTP_TOO_MANY_REQUESTS,
+                        read.get(CONNECTION_TIMEOUT_LONG, TimeUnit.SECONDS).code());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(CROWD, interceptor.getThrottledCount());
+        Assert.assertEquals(CROWD / 2, interceptor.getLimit());
+
+        // a request sent after the cut still lowers the limit again
+        Assert.assertEquals(AdaptiveLimitInterceptor.HTTP_TOO_MANY_REQUESTS,
+                crowdedInterface.read("Patient", "crowded", null).execute().code());
+        Assert.assertEquals(CROWD / 4, interceptor.getLimit());
+    }
+
+    @Test
+    public void testBackoffIsJitteredWithinBounds() throws Exception {
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long delay = mInterceptor.backoffMillis(attempt);
+            Assert.assertTrue(delay >= 0);
+            Assert.assertTrue(delay <= Math.min(5, 1L << Math.min(attempt, 30)));
+        }
+    }
+}
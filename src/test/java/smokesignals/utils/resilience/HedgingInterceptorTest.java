@@ -0,0 +1,187 @@
+package smokesignals.utils.resilience;
+
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import smokesignals.interfaces.DSTU2BaseTest;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.FhirCallUtils;
+import smokesignals.utils.metrics.LatencyHistogram;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HedgingInterceptorTest extends DSTU2BaseTest {
+
+    private static final long SLOW_MILLIS = 2000;
+
+    private final AtomicInteger mSlowRequests = new AtomicInteger();
+    private final AtomicInteger mRequests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                mRequests.incrementAndGet();
+                String path = request.getPath();
+                // every other request to the slow patient lands on a slow replica, starting with the first
+                if (path.equals("/Patient/slow") && mSlowRequests.getAndIncrement() % 2 == 0) {
+                    Thread.sleep(SLOW_MILLIS);
+                }
+                Patient patient = new Patient();
+                patient.setId(path.substring(path.lastIndexOf('/') + 1));
+                return new MockResponse().setResponseCode(HttpURLConnection.HTTP_OK)
+                        .setBody(mFhirJsonParser.encodeResourceToString(patient));
+            }
+        };
+    }
+
+    private HttpUrl baseUrl() {
+        return HttpUrl.parse(getBaseUrl());
+    }
+
+    private FhirInterface hedged(HedgingInterceptor hedging, OkHttpClient base) {
+        return newRetrofitBuilder(base.newBuilder().addInterceptor(hedging).build())
+                .build()
+                .create(FhirInterface.class);
+    }
+
+    private static Request get(String url) {
+        return new Request.Builder().url(url).build();
+    }
+
+    @Test
+    public void testSlowReadIsHedged() throws Exception {
+        OkHttpClient base = newClientBuilder().readTimeout(CONNECTION_TIMEOUT_LONG, TimeUnit.SECONDS).build();
+        HedgingInterceptor hedging = new HedgingInterceptor.HedgingInterceptorBuilder(base, baseUrl())
+                .initialDelay(50, TimeUnit.MILLISECONDS, 1000)
+                .budget(1, 1)
+                .build();
+        FhirInterface fhirInterface = hedged(hedging, base);
+
+        long start = System.nanoTime();
+        BaseResource resource = FhirCallUtils.execute(fhirInterface.read("Patient", "slow", null));
+        Assert.assertEquals("slow", resource.getIdElement().getIdPart());
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(SLOW_MILLIS));
+        Assert.assertEquals(2, mRequests.get());
+        Assert.assertEquals(1, hedging.getHedgeCount());
+        Assert.assertEquals(1, hedging.getHedgeWinCount());
+        Assert.assertEquals(1, hedging.getHistogram().getCount());
+        // the winning hedge is timed from the start of the primary, so the hedge delay is included
+        Assert.assertTrue(hedging.getHistogram().getMax() >= TimeUnit.MILLISECONDS.toNanos(50));
+
+        FhirCallUtils.execute(fhirInterface.read("Patient", "fast", null));
+        Assert.assertEquals(3, mRequests.get());
+        Assert.assertEquals(1, hedging.getHedgeCount());
+    }
+
+    @Test
+    public void testMoreAsyncCallsThanTheDispatcherRunsPerHostComplete() throws Exception {
+        OkHttpClient base = newClientBuilder().build();
+        HedgingInterceptor hedging = new HedgingInterceptor.HedgingInterceptorBuilder(base, baseUrl()).budget(0, 0).build();
+        FhirInterface fhirInterface = hedged(hedging, base);
+
+        int calls = base.dispatcher().getMaxRequestsPerHost() + 3;
+        final CountDownLatch done = new CountDownLatch(calls);
+        final AtomicInteger succeeded = new AtomicInteger();
+        for (int i = 0; i < calls; i++) {
+            fhirInterface.read("Patient", "fast" + i, null).enqueue(new Callback<BaseResource>() {
+                @Override
+                public void onResponse(Call<BaseResource> call, Response<BaseResource> response) {
+                    if (response.isSuccessful()) {
+                        succeeded.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+
+                @Override
+                public void onFailure(Call<BaseResource> call, Throwable throwable) {
+                    done.countDown();
+                }
+            });
+        }
+
+        Assert.assertTrue(done.await(CONNECTION_TIMEOUT_SHORT, TimeUnit.SECONDS));
+        Assert.assertEquals(calls, succeeded.get());
+        Assert.assertEquals(calls, mRequests.get());
+    }
+
+    @Test
+    public void testHedgesStayWithinBudget() throws Exception {
+        OkHttpClient base = newClientBuilder().readTimeout(CONNECTION_TIMEOUT_LONG, TimeUnit.SECONDS).build();
+        HedgingInterceptor hedging = new HedgingInterceptor.HedgingInterceptorBuilder(base, baseUrl())
+                .initialDelay(50, TimeUnit.MILLISECONDS, 1000)
+                .budget(0, 0)
+                .build();
+        BaseResource resource = FhirCallUtils.execute(hedged(hedging, base).read("Patient", "slow", null));
+        Assert.assertEquals("slow", resource.getIdElement().getIdPart());
+        Assert.assertEquals(1, mRequests.get());
+        Assert.assertEquals(0, hedging.getHedgeCount());
+        Assert.assertEquals(1, hedging.getRequestCount());
+    }
+
+    @Test
+    public void testOnlyReadsAndSearchesBelowTheBaseAreHedged() throws Exception {
+        HedgingInterceptor hedging = new HedgingInterceptor.HedgingInterceptorBuilder(newClientBuilder().build(),
+                HttpUrl.parse(getBaseUrl() + "baseDstu2/")).build();
+        String base = getBaseUrl() + "baseDstu2/";
+
+        Assert.assertTrue(hedging.isHedgeable(get(base + "Patient/1")));
+        Assert.assertTrue(hedging.isHedgeable(get(base + "Patient/1/_history/2")));
+        Assert.assertTrue(hedging.isHedgeable(get(base + "Patient?name=smith")));
+
+        Assert.assertFalse(hedging.isHedgeable(get(base + "$export")));
+        Assert.assertFalse(hedging.isHedgeable(get(base + "Group/1/$export")));
+        Assert.assertFalse(hedging.isHedgeable(get(base + "Patient").newBuilder()
+                .header(FhirInterface.PREFER, "respond-async").build()));
+        Assert.assertFalse(hedging.isHedgeable(get(base + "Patient/1/_history")));
+        Assert.assertFalse(hedging.isHedgeable(get(base + "metadata")));
+        Assert.assertFalse(hedging.isHedgeable(get(getBaseUrl() + "files/Patient.ndjson")));
+        Assert.assertFalse(hedging.isHedgeable(get("https://files.example.org/baseDstu2/Patient/1")));
+        Assert.assertFalse(hedging.isHedgeable(new Request.Builder().url(base + "Patient/1").delete().build()));
+    }
+
+    @Test
+    public void testDelayFollowsObservedPercentile() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        HedgingInterceptor hedging = new HedgingInterceptor.HedgingInterceptorBuilder(newClientBuilder().build(), baseUrl())
+                .histogram(histogram)
+                .percentile(90)
+                .initialDelay(7, TimeUnit.MILLISECONDS, 10)
+                .build();
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(7), hedging.hedgeDelayNanos());
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i, TimeUnit.MILLISECONDS);
+        }
+        Assert.assertEquals(histogram.getValueAtPercentile(90), hedging.hedgeDelayNanos());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testClientMustNotHedgeItself() throws Exception {
+        OkHttpClient base = newClientBuilder().readTimeout(CONNECTION_TIMEOUT_LONG, TimeUnit.SECONDS).build();
+        OkHttpClient client = base.newBuilder()
+                .addInterceptor(new HedgingInterceptor.HedgingInterceptorBuilder(base, baseUrl()).build())
+                .build();
+        new HedgingInterceptor.HedgingInterceptorBuilder(client, baseUrl());
+    }
+}
@@ -0,0 +1,183 @@
+package smokesignals.utils.resilience;
+
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit2.Response;
+import smokesignals.interfaces.DSTU2BaseTest;
+import smokesignals.interfaces.FhirInterface;
+import smokesignals.utils.FhirCallUtils;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightInterceptorTest extends DSTU2BaseTest {
+
+    private static final int CALLERS = 8;
+
+    private final AtomicInteger mRequests = new AtomicInteger();
+
+    private SingleFlightInterceptor mInterceptor;
+    private FhirInterface mSharingInterface;
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+        mInterceptor = new SingleFlightInterceptor.SingleFlightInterceptorBuilder().build();
+        mSharingInterface = newRetrofitBuilder(newClientBuilder().addInterceptor(mInterceptor).build())
+                .build()
+                .create(FhirInterface.class);
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                mRequests.incrementAndGet();
+                Thread.sleep(300);
+                String path = request.getPath();
+                Patient patient = new Patient();
+                patient.setId(path.substring(path.lastIndexOf('/') + 1));
+                if (request.getHeader(FhirInterface.IF_NONE_MATCH) != null) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED);
+                }
+                MockResponse response = new MockResponse().setResponseCode(HttpURLConnection.HTTP_OK);
+                if (path.endsWith("/chunked")) {
+                    return response.setChunkedBody(mFhirJsonParser.encodeResourceToString(patient), 8);
+                }
+                return response.setBody(mFhirJsonParser.encodeResourceToString(patient));
+            }
+        };
+    }
+
+    private List<BaseResource> readConcurrently(String... bearers) throws Exception {
+        return readConcurrently(bearers, "p1");
+    }
+
+    private List<BaseResource> readConcurrently(String[] bearers, String id) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(bearers.length);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<BaseResource>> reads = new ArrayList<>();
+            for (final String bearer : bearers) {
+                reads.add(executor.submit(() -> {
+                    start.await();
+                    return FhirCallUtils.execute(mSharingInterface.read("Patient", id, bearer));
+                }));
+            }
+            start.countDown();
+            List<BaseResource> resources = new ArrayList<>();
+            for (Future<BaseResource> read : reads) {
+                resources.add(read.get(CONNECTION_TIMEOUT_LONG, TimeUnit.SECONDS));
+            }
+            return resources;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testIdenticalReadsShareOneCall() throws Exception {
+        String[] bearers = new String[CALLERS];
+        Arrays.fill(bearers, "Bearer a");
+        List<BaseResource> resources = readConcurrently(bearers);
+
+        Assert.assertEquals(1, mRequests.get());
+        Assert.assertEquals(1, mInterceptor.getCallCount());
+        Assert.assertEquals(CALLERS - 1, mInterceptor.getSharedCount());
+        Set<BaseResource> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (BaseResource resource : resources) {
+            Assert.assertEquals("p1", resource.getIdElement().getIdPart());
+            distinct.add(resource);
+        }
+        // every caller parsed a resource of its own
+        Assert.assertEquals(CALLERS, distinct.size());
+    }
+
+    @Test
+    public void testDifferentAuthorizationIsNotShared() throws Exception {
+        readConcurrently("Bearer a", "Bearer b");
+        Assert.assertEquals(2, mRequests.get());
+        Assert.assertEquals(0, mInterceptor.getSharedCount());
+    }
+
+    @Test
+    public void testReadDoesNotJoinConcurrentRevalidation() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Response<BaseResource>> revalidation = executor.submit(() ->
+                    mSharingInterface.conditionalRead("Patient", "p1", "W/\"1\"", null, "Bearer a").execute());
+            while (mRequests.get() == 0) {
+                Thread.sleep(10);
+            }
+            BaseResource read = FhirCallUtils.execute(mSharingInterface.read("Patient", "p1", "Bearer a"));
+
+            Assert.assertEquals("p1", read.getIdElement().getIdPart());
+            Assert.assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED,
+                    revalidation.get(CONNECTION_TIMEOUT_LONG, TimeUnit.SECONDS).code());
+            Assert.assertEquals(2, mRequests.get());
+            Assert.assertEquals(0, mInterceptor.getSharedCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testKeyIgnoresParameterOrder() throws Exception {
+        Request first = new Request.Builder().url("http://example.com/Patient?name=a&_count=5&name=b").build();
+        Request second = new Request.Builder().url("http://example.com/Patient?_count=5&name=b&name=a").build();
+        Request other = new Request.Builder().url("http://example.com/Patient?_count=5&name=b").build();
+        Assert.assertEquals(SingleFlightInterceptor.key(first), SingleFlightInterceptor.key(second));
+        Assert.assertNotEquals(SingleFlightInterceptor.key(first), SingleFlightInterceptor.key(other));
+        Assert.assertNotEquals(SingleFlightInterceptor.key(first),
+                SingleFlightInterceptor.key(first.newBuilder().header("Authorization", "Bearer a").build()));
+        Assert.assertNotEquals(SingleFlightInterceptor.key(first),
+                SingleFlightInterceptor.key(first.newBuilder().header("If-None-Match", "W/\"1\"").build()));
+        Assert.assertNotEquals(SingleFlightInterceptor.key(first),
+                SingleFlightInterceptor.key(first.newBuilder().header("Accept", "application/fhir+xml").build()));
+    }
+
+    @Test
+    public void testKeyKeepsEscapedSeparatorsApart() throws Exception {
+        Request escaped = new Request.Builder().url("http://example.com/Patient?x=1%26y%3D2").build();
+        Request separate = new Request.Builder().url("http://example.com/Patient?x=1&y=2").build();
+        Assert.assertNotEquals(SingleFlightInterceptor.key(escaped), SingleFlightInterceptor.key(separate));
+    }
+
+    @Test
+    public void testChunkedBodyLargerThanTheLimitIsNotShared() throws Exception {
+        mInterceptor = new SingleFlightInterceptor.SingleFlightInterceptorBuilder().maxBodyBytes(16).build();
+        mSharingInterface = newRetrofitBuilder(newClientBuilder().addInterceptor(mInterceptor).build())
+                .build()
+                .create(FhirInterface.class);
+        String[] bearers = new String[CALLERS];
+        Arrays.fill(bearers, "Bearer a");
+        List<BaseResource> resources = readConcurrently(bearers, "chunked");
+
+        // the leader still reads its whole body, and every waiting request is sent on its own
+        Assert.assertEquals(CALLERS, mRequests.get());
+        Assert.assertEquals(0, mInterceptor.getSharedCount());
+        for (BaseResource resource : resources) {
+            Assert.assertEquals("chunked", resource.getIdElement().getIdPart());
+        }
+    }
+}
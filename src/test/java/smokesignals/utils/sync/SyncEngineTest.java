@@ -0,0 +1,181 @@
+package smokesignals.utils.sync;
+
+import ca.uhn.fhir.model.dstu2.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import smokesignals.interfaces.DSTU2BaseTest;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+public class SyncEngineTest extends DSTU2BaseTest {
+
+    private static final long T0 = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Map<String, Patient> mPatients = new ConcurrentHashMap<>();
+    private final List<String> mLastUpdatedParameters = new CopyOnWriteArrayList<>();
+    private final List<String> mAuthorizations = new CopyOnWriteArrayList<>();
+
+    private Path mCheckpoint;
+    private SyncEngine mEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        testWithLiveServer(false);
+        super.setUp();
+        mCheckpoint = mFolder.getRoot().toPath().resolve("sync/checkpoint.properties");
+        mEngine = new SyncEngine.SyncEngineBuilder(mFhirInterface, mCheckpoint)
+                .types("Patient")
+                .overlap(1, TimeUnit.MINUTES)
+                .build();
+        put("p1", 1, T0);
+        put("p2", 1, T0 + 1000);
+        put("p3", 1, T0 + 2000);
+    }
+
+    private void put(String id, int version, long lastUpdated) {
+        Patient patient = new Patient();
+        patient.setId("Patient/" + id + "/_history/" + version);
+        patient.getMeta().setVersionId(String.valueOf(version));
+        patient.getMeta().setLastUpdated(new Date(lastUpdated));
+        mPatients.put(id, patient);
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                HttpUrl url = request.getRequestUrl();
+                if (!url.encodedPath().equals("/Patient") || !"_lastUpdated".equals(url.queryParameter("_sort"))) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_BAD_REQUEST);
+                }
+                mAuthorizations.add(String.valueOf(request.getHeader("Authorization")));
+                String lastUpdated = url.queryParameter("_lastUpdated");
+                mLastUpdatedParameters.add(String.valueOf(lastUpdated));
+                long from = lastUpdated == null ? Long.MIN_VALUE
+                        : new InstantDt(lastUpdated.substring(2)).getValue().getTime();
+                List<Patient> matches = new ArrayList<>();
+                for (Patient patient : mPatients.values()) {
+                    if (patient.getMeta().getLastUpdated().getTime() >= from) {
+                        matches.add(patient);
+                    }
+                }
+                matches.sort((a, b) -> a.getMeta().getLastUpdated().compareTo(b.getMeta().getLastUpdated()));
+                Bundle bundle = new Bundle().setType(BundleTypeEnum.SEARCH_RESULTS);
+                int count = Integer.parseInt(url.queryParameter("_count"));
+                if (url.queryParameter("page") != null) {
+                    matches = matches.subList(Math.min(count, matches.size()), matches.size());
+                } else if (matches.size() > count) {
+                    matches = matches.subList(0, count);
+                    bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl(url + "&page=2");
+                }
+                for (Patient patient : matches) {
+                    bundle.addEntry().setResource(patient);
+                }
+                return new MockResponse().setResponseCode(HttpURLConnection.HTTP_OK)
+                        .setBody(mFhirJsonParser.encodeResourceToString(bundle));
+            }
+        };
+    }
+
+    private List<String> sync() throws Exception {
+        List<String> delivered = new ArrayList<>();
+        mEngine.sync((resourceType, resource) -> delivered.add(
+                resource.getIdElement().getIdPart() + "/" + resource.getIdElement().getVersionIdPart()));
+        return delivered;
+    }
+
+    @Test
+    public void testOnlyChangesAreDeliveredAfterTheFirstRun() throws Exception {
+        Assert.assertEquals(-1, mEngine.getHighWaterMark("Patient"));
+        Assert.assertEquals(3, sync().size());
+        Assert.assertEquals("null", mLastUpdatedParameters.get(0));
+        Assert.assertEquals(T0 + 2000, mEngine.getHighWaterMark("Patient"));
+
+        // everything is still inside the overlap, but nothing changed
+        Assert.assertTrue(sync().isEmpty());
+        Assert.assertEquals("ge2017-07-14T02:39:02.000Z", mLastUpdatedParameters.get(1));
+
+        put("p2", 2, T0 + 5000);
+        put("p4", 1, T0 + 4000);
+        List<String> delivered = sync();
+        Assert.assertEquals(2, delivered.size());
+        Assert.assertEquals("p4/1", delivered.get(0));
+        Assert.assertEquals("p2/2", delivered.get(1));
+        Assert.assertEquals(T0 + 5000, mEngine.getHighWaterMark("Patient"));
+
+        // a late commit stamped before the mark but inside the overlap is still picked up
+        put("p5", 1, T0 + 4500);
+        Assert.assertEquals("p5/1", sync().get(0));
+    }
+
+    @Test
+    public void testFailedRunKeepsTheOldCheckpoint() throws Exception {
+        sync();
+        put("p2", 2, T0 + 5000);
+        try {
+            mEngine.sync((resourceType, resource) -> {
+                throw new IllegalStateException("replica unavailable");
+            });
+            Assert.fail("expected the listener's exception");
+        } catch (IllegalStateException expected) {
+            Assert.assertEquals("replica unavailable", expected.getMessage());
+        }
+        Assert.assertEquals(T0 + 2000, mEngine.getHighWaterMark("Patient"));
+        Assert.assertEquals("p2/2", sync().get(0));
+
+        File[] files = mCheckpoint.getParent().toFile().listFiles();
+        Assert.assertEquals(1, files.length);
+        Assert.assertEquals("checkpoint.properties", files[0].getName());
+    }
+
+    @Test
+    public void testCheckpointSurvivesANewEngine() throws Exception {
+        sync();
+        SyncEngine restarted = new SyncEngine.SyncEngineBuilder(mFhirInterface, mCheckpoint)
+                .types("Patient")
+                .overlap(1, TimeUnit.MINUTES)
+                .build();
+        List<BaseResource> delivered = new ArrayList<>();
+        Assert.assertEquals(0, restarted.sync((resourceType, resource) -> delivered.add(resource)));
+        Assert.assertTrue(delivered.isEmpty());
+    }
+
+    @Test
+    public void testEveryPageCarriesTheBearer() throws Exception {
+        SyncEngine engine = new SyncEngine.SyncEngineBuilder(mFhirInterface, mCheckpoint)
+                .types("Patient")
+                .pageSize(2)
+                .bearer("Bearer a")
+                .build();
+        List<BaseResource> delivered = new ArrayList<>();
+        Assert.assertEquals(3, engine.sync((resourceType, resource) -> delivered.add(resource)));
+        Assert.assertEquals(2, mAuthorizations.size());
+        for (String authorization : mAuthorizations) {
+            Assert.assertEquals("Bearer a", authorization);
+        }
+    }
+}